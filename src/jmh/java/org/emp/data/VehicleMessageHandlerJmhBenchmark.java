@@ -0,0 +1,75 @@
+package org.emp.data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.emp.network.BandwidthEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Framing of the messages received from a vehicle
+ *
+ * <p> The messages are of type 'X', which the handler parses and drops without submitting tasks,
+ * so only the framing is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VehicleMessageHandlerJmhBenchmark {
+  // Number of messages in one read
+  @Param({"1", "64", "1024"})
+  public int numMessages;
+
+  @Param({"64", "65536"})
+  public int payloadSize;
+
+  private VehicleMessageHandlerImpl handler;
+  private ByteBuffer messages;
+  private ByteBuffer receiveBuffer;
+
+  @Setup
+  public void setup() {
+    handler = new VehicleMessageHandlerImpl(null, new EmpReapSensorDataHandler(null, 0, null),
+        new BandwidthEstimator());
+    int messageSize = VehicleMessageHandlerImpl.HEADER_BYTES + payloadSize;
+    messages = ByteBuffer.allocateDirect(numMessages * messageSize);
+    for (int i = 0; i < numMessages; i++) {
+      messages.putInt(payloadSize).putInt(1).putShort((short) i).putShort((short) 0).put((byte) 'X');
+      messages.position(messages.position() + payloadSize);
+    }
+    // Room for the messages plus half a message left over from the previous read
+    receiveBuffer = ByteBuffer.allocateDirect(messages.capacity() + messageSize);
+  }
+
+  @Benchmark
+  public int handleCompleteMessages() {
+    receiveBuffer.clear();
+    messages.clear();
+    receiveBuffer.put(messages);
+    return handler.handle(receiveBuffer);
+  }
+
+  @Benchmark
+  public int handleMessagesAndPartialMessage() {
+    receiveBuffer.clear();
+    messages.clear();
+    receiveBuffer.put(messages);
+    // Header and half of the payload of the next message
+    receiveBuffer.putInt(payloadSize).putInt(1).putShort((short) numMessages).putShort((short) 0)
+        .put((byte) 'X');
+    receiveBuffer.position(receiveBuffer.position() + payloadSize / 2);
+    return handler.handle(receiveBuffer);
+  }
+}
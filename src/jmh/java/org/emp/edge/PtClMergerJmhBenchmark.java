@@ -0,0 +1,83 @@
+package org.emp.edge;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.emp.utils.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging point clouds of secondary vehicles into the view of the primary vehicle
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PtClMergerJmhBenchmark {
+  @Param({"120000"})
+  public int numPoints;
+
+  @Param({"3", "6"})
+  public int numSecondaryVehicles;
+
+  @Param({"4"})
+  public int mergeParallelism;
+
+  private final PtClMerger merger = new PtClMerger();
+  private float[] pointsPrimary;
+  private float[] oxtsPrimary;
+  private List<float[]> pointsSecondary;
+  private List<float[]> oxtsSecondary;
+  private FloatBuffer result;
+  private ForkJoinPool mergePool;
+
+  @Setup
+  public void setup() {
+    float[][] oxtsSet = SyntheticData.oxtsSet(numSecondaryVehicles + 1, 0);
+    pointsPrimary = SyntheticData.pointCloud(numPoints, 0);
+    oxtsPrimary = oxtsSet[0];
+    pointsSecondary = new ArrayList<>();
+    oxtsSecondary = new ArrayList<>();
+    for (int i = 1; i <= numSecondaryVehicles; i++) {
+      pointsSecondary.add(SyntheticData.pointCloud(numPoints, i));
+      oxtsSecondary.add(oxtsSet[i]);
+    }
+    result = FloatBuffer.allocate(numPoints * 4 * (numSecondaryVehicles + 1));
+    mergePool = new ForkJoinPool(mergeParallelism);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mergePool.shutdown();
+  }
+
+  @Benchmark
+  public float[] naiveMerge() {
+    return merger.naiveMerge(pointsPrimary, oxtsPrimary, pointsSecondary, oxtsSecondary);
+  }
+
+  @Benchmark
+  public int fbMergeNoPrimary() {
+    return merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, result, 0);
+  }
+
+  @Benchmark
+  public int fbMergeNoPrimaryParallel() {
+    return merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, result, 0, mergePool);
+  }
+}
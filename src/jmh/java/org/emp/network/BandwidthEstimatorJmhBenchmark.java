@@ -0,0 +1,61 @@
+package org.emp.network;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updating the bandwidth estimator on each read from a vehicle socket
+ *
+ * <p> Each invocation is one read of a chunk from one of the vehicles in turn.  A chunk is
+ * received in {@code readsPerChunk} reads, the last of which completes it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BandwidthEstimatorJmhBenchmark {
+  @Param({"4"})
+  public int numVehicles;
+
+  @Param({"8"})
+  public int readsPerChunk;
+
+  @Param({"65536"})
+  public int chunkSize;
+
+  private BandwidthEstimator bandwidthEstimator;
+  // Number of reads so far
+  private int numReads;
+
+  @Setup
+  public void setup() {
+    bandwidthEstimator = new BandwidthEstimator();
+    numReads = 0;
+  }
+
+  @Benchmark
+  public void onReceiveBytes() {
+    int vehicleId = numReads % numVehicles;
+    int readIndex = numReads / numVehicles;
+    int chunkSeq = readIndex / readsPerChunk;
+    int receivedSize = chunkSize / readsPerChunk * (readIndex % readsPerChunk + 1);
+    if (readIndex % readsPerChunk == readsPerChunk - 1) {
+      receivedSize = chunkSize;
+    }
+    numReads++;
+
+    bandwidthEstimator.onReceiveBytes(vehicleId, chunkSeq, receivedSize, chunkSize, System.nanoTime());
+  }
+}
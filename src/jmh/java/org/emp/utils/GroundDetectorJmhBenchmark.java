@@ -0,0 +1,46 @@
+package org.emp.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Detecting the ground plane of a point cloud with RANSAC
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroundDetectorJmhBenchmark {
+  @Param({"120000"})
+  public int numPoints;
+
+  @Param({"false", "true"})
+  public boolean useAllSample;
+
+  private float[] pointCloud;
+
+  @Setup
+  public void setup() {
+    pointCloud = SyntheticData.pointCloud(numPoints, 0);
+  }
+
+  @Benchmark
+  public boolean groundDetectorRANSAC() {
+    // A new detector per run, so every run uses the same random samples
+    GroundDetector groundDetector = new GroundDetector();
+    return groundDetector.groundDetectorRANSAC(
+        pointCloud, useAllSample, SyntheticData.LIDAR_HEIGHT - 0.1f, true);
+  }
+}
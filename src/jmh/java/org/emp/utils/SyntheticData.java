@@ -0,0 +1,65 @@
+package org.emp.utils;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic sensor data for benchmarks, so they run without the datasets
+ */
+public class SyntheticData {
+  // Point dimension (x, y, z, intensity)
+  private static final int DIMENSION = 4;
+  // Range of the x and y coordinates in meters
+  private static final float RANGE = 50.0f;
+  // Height of the LiDAR above the ground in meters
+  public static final float LIDAR_HEIGHT = 1.7f;
+  // Fraction of the points on the ground
+  private static final float GROUND_RATIO = 0.6f;
+
+  /**
+   * Generates a point cloud with a flat ground plane and objects above it.
+   *
+   * @param numPoints  Number of points.
+   * @param seed  Seed of the random generator, so that runs are reproducible.
+   * @return  A float array of size 4 * numPoints.  Each point has four float: the coordinate
+   *          (x, y, z) and the intensity.
+   */
+  public static float[] pointCloud(int numPoints, long seed) {
+    Random random = new Random(seed);
+    float[] points = new float[numPoints * DIMENSION];
+    for (int i = 0; i < numPoints; i++) {
+      int base = i * DIMENSION;
+      points[base] = (random.nextFloat() * 2 - 1) * RANGE;
+      points[base + 1] = (random.nextFloat() * 2 - 1) * RANGE;
+      if (random.nextFloat() < GROUND_RATIO) {
+        // Ground with a few centimeters of noise
+        points[base + 2] = -LIDAR_HEIGHT + (float) random.nextGaussian() * 0.02f;
+      } else {
+        points[base + 2] = -LIDAR_HEIGHT + random.nextFloat() * 3.0f;
+      }
+      points[base + 3] = random.nextFloat();
+    }
+    return points;
+  }
+
+  /**
+   * @return  Oxts data (x, y, z, roll, pitch, yaw) of a vehicle on flat ground.
+   */
+  public static float[] oxts(float x, float y, float yaw) {
+    return new float[]{x, y, 0.0f, 0.0f, 0.0f, yaw};
+  }
+
+  /**
+   * @param numVehicles  Number of vehicles.
+   * @param seed  Seed of the random generator.
+   * @return  Oxts data of vehicles scattered around the origin.
+   */
+  public static float[][] oxtsSet(int numVehicles, long seed) {
+    Random random = new Random(seed);
+    float[][] oxtsSet = new float[numVehicles][];
+    for (int i = 0; i < numVehicles; i++) {
+      oxtsSet[i] = oxts((random.nextFloat() * 2 - 1) * RANGE, (random.nextFloat() * 2 - 1) * RANGE,
+          (float) (random.nextFloat() * 2 * Math.PI));
+    }
+    return oxtsSet;
+  }
+}
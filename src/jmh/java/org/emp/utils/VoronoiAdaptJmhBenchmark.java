@@ -0,0 +1,54 @@
+package org.emp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a point cloud by the partitioning decision of the vehicle
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VoronoiAdaptJmhBenchmark {
+  @Param({"120000"})
+  public int numPoints;
+
+  @Param({"4"})
+  public int numVehicles;
+
+  private final VoronoiAdapt voronoiAdapt = new VoronoiAdapt();
+  private float[] pointCloud;
+  private List<float[]> pbSet;
+
+  @Setup
+  public void setup() {
+    pointCloud = SyntheticData.pointCloud(numPoints, 0);
+    List<float[]> oxtsSet = Arrays.asList(SyntheticData.oxtsSet(numVehicles, 0));
+    List<Float> bwSet = new ArrayList<>();
+    for (int i = 0; i < numVehicles; i++) {
+      bwSet.add(4.0f + 2.0f * i);
+    }
+    pbSet = voronoiAdapt.voronoiAdapt(oxtsSet, bwSet).pbSet.get(0);
+  }
+
+  @Benchmark
+  public List<float[]> voronoiMaskAdapt() {
+    return voronoiAdapt.voronoiMaskAdapt(pointCloud, pbSet);
+  }
+}
@@ -8,7 +8,9 @@
 
 #include <stdio.h>
 #include <stdarg.h>
+#include <string.h>
 #include <time.h>
+#include <vector>
 
 using namespace std;
 using namespace draco;
@@ -36,128 +38,297 @@ void ConsoleLog(const char* format, ...) {
 #endif // _EMP_NATIVE_DEBUG
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_emp_utils_DracoHelper_encode
-  (JNIEnv *env, jobject obj, jfloatArray data, jint cl, jint qb) {
-  // ConsoleLog("Encoding...");
-  jsize size = env->GetArrayLength(data);
-  jfloat *points = env->GetFloatArrayElements(data, 0);
-  int numPoints = size / 4;
-  ConsoleLog("Points: %d", numPoints);
+// Attribute IDs of the point cloud, in the order the attributes are added
+#define POSITION_ATT_ID 0
+#define INTENSITY_ATT_ID 1
 
+/*
+ * Native codec context owned by a DracoHelper instance and reused across calls.
+ * It is only used by one thread at a time.
+ */
+struct DracoCodec {
   PointCloudBuilder builder;
+  PointCloudKdTreeEncoder encoder;
+  EncoderOptions options = EncoderOptions::CreateDefaultOptions();
+  // Keeps its capacity across calls, so encoding a similar-sized cloud does not reallocate
+  EncoderBuffer encoderBuffer;
+  PointCloudKdTreeDecoder decoder;
+  DecoderOptions decoderOptions;
+};
+
+// Field ID of DracoHelper.nativeCodec, cached when the first context is created
+static jfieldID nativeCodecFieldId = NULL;
+// Method ID of IntUnaryOperator.applyAsInt, to reserve the region of decodeReservedDirect
+static jmethodID applyAsIntMethodId = NULL;
+
+static DracoCodec *getObject(JNIEnv *env, jobject obj) {
+  return reinterpret_cast<DracoCodec *>(env->GetLongField(obj, nativeCodecFieldId));
+}
+
+/*
+ * Throws an IllegalArgumentException to the Java caller, once the native method returns.
+ */
+static void ThrowIllegalArgument(JNIEnv *env, const char *message) {
+  env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), message);
+}
+
+/*
+ * Encodes numPoints points of four floats (x, y, z, intensity) into codec->encoderBuffer.
+ */
+static bool EncodePoints(DracoCodec *codec, const float *points, int numPoints, int cl, int qb) {
+  ConsoleLog("Points: %d", numPoints);
+
+  PointCloudBuilder &builder = codec->builder;
   builder.Start(numPoints);
   const int pos_att_id = builder.AddAttribute(GeometryAttribute::POSITION, 3, DT_FLOAT32);
   const int intensity_att_id = builder.AddAttribute(GeometryAttribute::GENERIC, 1, DT_FLOAT32);
 
-  float *px = points;
-  float *py = points + 1;
-  float *pz = points + 2;
-  float *pi = points + 3;
+  const float *px = points;
+  const float *pi = points + 3;
 
   // ConsoleLog("cl: %d, qb: %d", cl, qb);
 
   for (int i = 0; i < numPoints; i++) {
-    std::array<float, 3> point;
-    point[0] = *px;
-    point[1] = *py;
-    point[2] = *pz;
-    if (i < 4) {
-      // ConsoleLog("Point %d: %f %f %f", i, point[0], point[1], point[2]);
-    }
-    builder.SetAttributeValueForPoint(pos_att_id, PointIndex(i), &(point)[0]);
-
-    std::array<float, 1> intensity;
-    intensity[0] = *pi;
-    builder.SetAttributeValueForPoint(intensity_att_id, PointIndex(i), &(intensity)[0]);
+    // The position attribute takes (x, y, z) straight from the point
+    builder.SetAttributeValueForPoint(pos_att_id, PointIndex(i), px);
+    builder.SetAttributeValueForPoint(intensity_att_id, PointIndex(i), pi);
 
     px += 4;
-    py += 4;
-    pz += 4;
     pi += 4;
   }
   std::unique_ptr<PointCloud> pointCloud = builder.Finalize(false);
 
-  EncoderBuffer encoderBuffer;
-  PointCloudKdTreeEncoder encoder;
-  EncoderOptions options = EncoderOptions::CreateDefaultOptions();
-  options.SetGlobalInt("quantization_bits", qb);
-  options.SetSpeed(10 - cl, 10 - cl);
-  encoder.SetPointCloud(*pointCloud);
+  codec->options.SetGlobalInt("quantization_bits", qb);
+  codec->options.SetSpeed(10 - cl, 10 - cl);
+  codec->encoder.SetPointCloud(*pointCloud);
+  codec->encoderBuffer.Clear();
 
-  bool status = encoder.Encode(options, &encoderBuffer).ok();
+  bool status = codec->encoder.Encode(codec->options, &codec->encoderBuffer).ok();
   // ConsoleLog("Encode status: %d", status);
+  ConsoleLog("Encode bytes: %d", (int) codec->encoderBuffer.size());
+  return status;
+}
+
+/*
+ * Decodes size bytes of Draco data into pointCloud.
+ * Returns false if the data cannot be decoded, or lacks the position or intensity attribute.
+ */
+static bool DecodePoints(DracoCodec *codec, const char *data, size_t size, PointCloud *pointCloud) {
+  ConsoleLog("Decode bytes: %d", (int) size);
+  DecoderBuffer decoderBuffer;
+  decoderBuffer.Init(data, size);
+
+  bool status = codec->decoder.Decode(codec->decoderOptions, &decoderBuffer, pointCloud).ok();
+  ConsoleLog("Decode status: %d", status);
+  ConsoleLog("Points: %d", (int) pointCloud->num_points());
+  return status && pointCloud->num_attributes() > INTENSITY_ATT_ID;
+}
+
+/*
+ * Writes the points of pointCloud as four floats (x, y, z, intensity) each.
+ * points must have space for 4 * num_points() floats.
+ */
+static void CopyPoints(PointCloud *pointCloud, float *points) {
+  int numPoints = pointCloud->num_points();
+
+  std::array<float, 3> positionArray;
+  std::array<float, 1> intensityArray;
+
+  GeometryAttribute *pos = pointCloud->attribute(POSITION_ATT_ID);
+  GeometryAttribute *intensity = pointCloud->attribute(INTENSITY_ATT_ID);
+
+  float *p = points;
+  for (int i = 0; i < numPoints; i++) {
+    pos->GetValue(AttributeValueIndex(i), &positionArray);
+    intensity->GetValue(AttributeValueIndex(i), &intensityArray);
+
+    p[0] = positionArray[0];
+    p[1] = positionArray[1];
+    p[2] = positionArray[2];
+    p[3] = intensityArray[0];
+    p += 4;
+  }
+}
 
-  int resultSize = (int) encoderBuffer.size();
-  ConsoleLog("Encode bytes: %d", resultSize);
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_createNativeObject
+  (JNIEnv *env, jobject obj) {
+  if (nativeCodecFieldId == NULL) {
+    jclass cls = env->GetObjectClass(obj);
+    nativeCodecFieldId = env->GetFieldID(cls, "nativeCodec", "J");
+    if (!nativeCodecFieldId)
+      env->FatalError("GetFieldID failed");
+    jclass operatorCls = env->FindClass("java/util/function/IntUnaryOperator");
+    applyAsIntMethodId = env->GetMethodID(operatorCls, "applyAsInt", "(I)I");
+    if (!applyAsIntMethodId)
+      env->FatalError("GetMethodID failed");
+  }
+  return reinterpret_cast<jlong>(new DracoCodec());
+}
+
+JNIEXPORT void JNICALL Java_org_emp_utils_DracoHelper_deleteNativeObject
+  (JNIEnv *env, jobject obj, jlong nativeCodec) {
+  delete reinterpret_cast<DracoCodec *>(nativeCodec);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_emp_utils_DracoHelper_encode
+  (JNIEnv *env, jobject obj, jfloatArray data, jint cl, jint qb) {
+  // ConsoleLog("Encoding...");
+  DracoCodec *codec = getObject(env, obj);
+  jsize size = env->GetArrayLength(data);
+  jfloat *points = env->GetFloatArrayElements(data, 0);
+
+  bool status = EncodePoints(codec, points, size / 4, cl, qb);
+  // The points are only read, so nothing needs to be copied back
+  env->ReleaseFloatArrayElements(data, points, JNI_ABORT);
+  if (!status) {
+    ThrowIllegalArgument(env, "Draco encoding failed");
+    return NULL;
+  }
+
+  int resultSize = (int) codec->encoderBuffer.size();
   jbyteArray result = env->NewByteArray(resultSize);
   env->SetByteArrayRegion(
-    result, 0, resultSize, reinterpret_cast<jbyte*>((signed char*)encoderBuffer.data()));
+    result, 0, resultSize, reinterpret_cast<jbyte*>((signed char*)codec->encoderBuffer.data()));
   // ConsoleLog("Encoding finished.");
   return result;
 }
 
 JNIEXPORT jfloatArray JNICALL Java_org_emp_utils_DracoHelper_decode
   (JNIEnv *env, jobject obj, jbyteArray data) {
-  int int_random = rand();
-  ConsoleLog("Decoding... (%d)", int_random);
+  ConsoleLog("Decoding...");
   jsize size = env->GetArrayLength(data);
-  ConsoleLog("Decode bytes (%d): %d", int_random, size);
-  char* buffer = new char[size];
-  env->GetByteArrayRegion(data, 0, size, reinterpret_cast<jbyte*>(buffer));
-
-  DecoderBuffer decoderBuffer;
-  decoderBuffer.Init(buffer, size);
+  jbyte *buffer = env->GetByteArrayElements(data, 0);
 
-  DecoderOptions decoderOptions;
-  PointCloudKdTreeDecoder decoder;
   std::unique_ptr<PointCloud> pointCloud(new PointCloud());
-
-
-  bool status = decoder.Decode(decoderOptions, &decoderBuffer, pointCloud.get()).ok();
-  ConsoleLog("Decode status (%d): %d", int_random, status);
+  bool status = DecodePoints(getObject(env, obj), reinterpret_cast<const char*>(buffer), size, pointCloud.get());
+  env->ReleaseByteArrayElements(data, buffer, JNI_ABORT);
+  if (!status) {
+    ThrowIllegalArgument(env, "Draco decoding failed");
+    return NULL;
+  }
 
   int numPoints = pointCloud->num_points();
-  ConsoleLog("Points (%d): %d", int_random, numPoints);
+  jfloatArray result = env->NewFloatArray(numPoints * 4);
+  // Write the points straight into the Java array
+  jfloat *points = env->GetFloatArrayElements(result, 0);
+  CopyPoints(pointCloud.get(), points);
+  env->ReleaseFloatArrayElements(result, points, 0);
+  ConsoleLog("Decoding finished.");
+  return result;
+}
 
-  float *points = (float *)malloc(numPoints * 4 * sizeof(float));
+JNIEXPORT jint JNICALL Java_org_emp_utils_DracoHelper_encodeDirect
+  (JNIEnv *env, jobject obj, jobject data, jint offset, jint length, jint cl, jint qb,
+   jobject result, jint resultOffset, jint resultLength) {
+  DracoCodec *codec = getObject(env, obj);
+  const float *points = static_cast<const float*>(env->GetDirectBufferAddress(data)) + offset;
 
-  float *px = points;
-  float *py = points + 1;
-  float *pz = points + 2;
-  float *pi = points + 3;
+  if (!EncodePoints(codec, points, length / 4, cl, qb)) {
+    return -2;
+  }
 
-  std::array<float, 3> positionArray;
-  std::array<float, 1> intensityArray;
+  int resultSize = (int) codec->encoderBuffer.size();
+  if (resultSize > resultLength) {
+    return -1;
+  }
+  char *resultBytes = static_cast<char*>(env->GetDirectBufferAddress(result)) + resultOffset;
+  memcpy(resultBytes, codec->encoderBuffer.data(), resultSize);
+  return resultSize;
+}
 
-  PointCloudBuilder builder;
-  builder.Start(numPoints);
-  const int pos_att_id = builder.AddAttribute(GeometryAttribute::POSITION, 3, DT_FLOAT32);
-  const int intensity_att_id = builder.AddAttribute(GeometryAttribute::GENERIC, 1, DT_FLOAT32);
+JNIEXPORT jint JNICALL Java_org_emp_utils_DracoHelper_decodeDirect
+  (JNIEnv *env, jobject obj, jobject data, jint offset, jint length,
+   jobject result, jint resultOffset, jint resultLength) {
+  DracoCodec *codec = getObject(env, obj);
+  // Draco reads the encoded data in place, without copying it
+  const char *buffer = static_cast<const char*>(env->GetDirectBufferAddress(data)) + offset;
 
-  GeometryAttribute *pos = pointCloud->attribute(pos_att_id);
-  GeometryAttribute *intensity = pointCloud->attribute(intensity_att_id);
+  std::unique_ptr<PointCloud> pointCloud(new PointCloud());
+  if (!DecodePoints(codec, buffer, length, pointCloud.get())) {
+    return -2;
+  }
 
-  for (int i = 0; i < numPoints; i++) {
-    pos->GetValue(AttributeValueIndex(i), &positionArray);
-    intensity->GetValue(AttributeValueIndex(i), &intensityArray);
+  int numFloats = pointCloud->num_points() * 4;
+  if (numFloats > resultLength) {
+    return -1;
+  }
+  float *points = static_cast<float*>(env->GetDirectBufferAddress(result)) + resultOffset;
+  CopyPoints(pointCloud.get(), points);
+  return numFloats;
+}
 
-    *px = positionArray[0];
-    *py = positionArray[1];
-    *pz = positionArray[2];
-    *pi = intensityArray[0];
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_decodeReservedDirect
+  (JNIEnv *env, jobject obj, jobject data, jint offset, jint length,
+   jobject result, jint resultLimit, jobject reserve) {
+  DracoCodec *codec = getObject(env, obj);
+  const char *buffer = static_cast<const char*>(env->GetDirectBufferAddress(data)) + offset;
 
-    px += 4;
-    py += 4;
-    pz += 4;
-    pi += 4;
+  std::unique_ptr<PointCloud> pointCloud(new PointCloud());
+  if (!DecodePoints(codec, buffer, length, pointCloud.get())) {
+    return -2;
   }
 
-  // ConsoleLog("Points array construction done.");
-  jfloatArray result;
-  result = env->NewFloatArray(numPoints * 4);
-  env->SetFloatArrayRegion(result, 0, numPoints * 4, points);
-  free(points);
-  ConsoleLog("Decoding finished. (%d)", int_random);
-  return result;
+  // The region is reserved by calling back into Java once the number of points is known, so the
+  // points are written in the same native call instead of being held until a second one
+  int numFloats = pointCloud->num_points() * 4;
+  jint resultOffset = env->CallIntMethod(reserve, applyAsIntMethodId, numFloats);
+  if (env->ExceptionCheck()) {
+    // The exception is thrown to the Java caller once the native method returns
+    return -1;
+  }
+  if (resultOffset < 0) {
+    return -1;
+  }
+  if (numFloats > resultLimit - resultOffset) {
+    return -3;
+  }
+  float *points = static_cast<float*>(env->GetDirectBufferAddress(result)) + resultOffset;
+  CopyPoints(pointCloud.get(), points);
+  return (static_cast<jlong>(resultOffset) << 32) | static_cast<jlong>(numFloats);
 }
 
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_decodeBatchReservedDirect
+  (JNIEnv *env, jobject obj, jobjectArray data, jintArray offsets, jintArray lengths,
+   jobject result, jint resultLimit, jobject reserve, jintArray numFloats) {
+  DracoCodec *codec = getObject(env, obj);
+  jsize numChunks = env->GetArrayLength(data);
+  std::vector<jint> chunkOffsets(numChunks);
+  std::vector<jint> chunkLengths(numChunks);
+  env->GetIntArrayRegion(offsets, 0, numChunks, chunkOffsets.data());
+  env->GetIntArrayRegion(lengths, 0, numChunks, chunkLengths.data());
+
+  // All chunks are decoded before reserving, so a chunk that cannot be decoded reserves nothing
+  std::vector<std::unique_ptr<PointCloud>> pointClouds(numChunks);
+  std::vector<jint> chunkNumFloats(numChunks);
+  int totalNumFloats = 0;
+  for (jsize i = 0; i < numChunks; i++) {
+    jobject chunk = env->GetObjectArrayElement(data, i);
+    const char *buffer = static_cast<const char*>(env->GetDirectBufferAddress(chunk)) + chunkOffsets[i];
+    env->DeleteLocalRef(chunk);
+    pointClouds[i].reset(new PointCloud());
+    if (!DecodePoints(codec, buffer, chunkLengths[i], pointClouds[i].get())) {
+      return -2;
+    }
+    chunkNumFloats[i] = pointClouds[i]->num_points() * 4;
+    totalNumFloats += chunkNumFloats[i];
+  }
+
+  jint resultOffset = env->CallIntMethod(reserve, applyAsIntMethodId, totalNumFloats);
+  if (env->ExceptionCheck()) {
+    // The exception is thrown to the Java caller once the native method returns
+    return -1;
+  }
+  if (resultOffset < 0) {
+    return -1;
+  }
+  if (totalNumFloats > resultLimit - resultOffset) {
+    return -3;
+  }
+  float *points = static_cast<float*>(env->GetDirectBufferAddress(result)) + resultOffset;
+  for (jsize i = 0; i < numChunks; i++) {
+    CopyPoints(pointClouds[i].get(), points);
+    points += chunkNumFloats[i];
+  }
+  env->SetIntArrayRegion(numFloats, 0, numChunks, chunkNumFloats.data());
+  return (static_cast<jlong>(resultOffset) << 32) | static_cast<jlong>(totalNumFloats);
+}
@@ -8,6 +8,22 @@
 extern "C" {
 #endif
 
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    createNativeObject
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_createNativeObject
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    deleteNativeObject
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_emp_utils_DracoHelper_deleteNativeObject
+  (JNIEnv *, jobject, jlong);
+
 /*
  * Class:     org_emp_utils_DracoHelper
  * Method:    encode
@@ -24,6 +40,38 @@ JNIEXPORT jbyteArray JNICALL Java_org_emp_utils_DracoHelper_encode
 JNIEXPORT jfloatArray JNICALL Java_org_emp_utils_DracoHelper_decode
   (JNIEnv *, jobject, jbyteArray);
 
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    encodeDirect
+ * Signature: (Ljava/nio/FloatBuffer;IIIILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_emp_utils_DracoHelper_encodeDirect
+  (JNIEnv *, jobject, jobject, jint, jint, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    decodeDirect
+ * Signature: (Ljava/nio/ByteBuffer;IILjava/nio/FloatBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_emp_utils_DracoHelper_decodeDirect
+  (JNIEnv *, jobject, jobject, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    decodeReservedDirect
+ * Signature: (Ljava/nio/ByteBuffer;IILjava/nio/FloatBuffer;ILjava/util/function/IntUnaryOperator;)J
+ */
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_decodeReservedDirect
+  (JNIEnv *, jobject, jobject, jint, jint, jobject, jint, jobject);
+
+/*
+ * Class:     org_emp_utils_DracoHelper
+ * Method:    decodeBatchReservedDirect
+ * Signature: ([Ljava/nio/ByteBuffer;[I[ILjava/nio/FloatBuffer;ILjava/util/function/IntUnaryOperator;[I)J
+ */
+JNIEXPORT jlong JNICALL Java_org_emp_utils_DracoHelper_decodeBatchReservedDirect
+  (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jobject, jint, jobject, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
@@ -20,9 +20,12 @@ public class EdgeMessageHandlerImpl implements EdgeMessageHandler {
   private static final Logger LOGGER = LogManager.getLogger(EdgeMessageHandlerImpl.class);
 
   public static final int HEADER_BYTES = 7;
-  private List<float[]> mask;
-  private boolean ready;
-  private int frameToSent = 0;
+  // Updated by the network thread and read by the vehicle thread
+  private volatile List<float[]> mask;
+  private volatile boolean ready;
+  private volatile int frameToSent = 0;
+  // Notified when the "start" or "finish" signal is received
+  private final Object signalLock = new Object();
 
   public EdgeMessageHandlerImpl() {
   }
@@ -52,11 +55,17 @@ public class EdgeMessageHandlerImpl implements EdgeMessageHandler {
           }
         }
         else if (fileType == 'S') {  // "start" signal, start the entire workflow
-          ready = true;
+          synchronized (signalLock) {
+            ready = true;
+            signalLock.notifyAll();
+          }
           LOGGER.info("[Begin]");
         }
         else if (fileType == 'D') {  // "finish" signal, stop uploading the current frame
-          frameToSent = frameId + 1;
+          synchronized (signalLock) {
+            frameToSent = frameId + 1;
+            signalLock.notifyAll();
+          }
           LOGGER.info("[Finish] frame: " + frameId);
         }
         else {
@@ -128,4 +137,30 @@ public class EdgeMessageHandlerImpl implements EdgeMessageHandler {
   public int getFrameToSent() {
     return frameToSent;
   }
+
+  /**
+   * Waits for the "start" signal of the edge.
+   */
+  public void awaitReady() throws InterruptedException {
+    synchronized (signalLock) {
+      while (!ready) {
+        signalLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Waits until the edge asks for the frame or a later one.
+   *
+   * @return  The frame the edge asks for, i.e., {@code frameId}, or a later frame if the edge has
+   *          finished {@code frameId} already.
+   */
+  public int awaitFrameToSent(int frameId) throws InterruptedException {
+    synchronized (signalLock) {
+      while (frameToSent < frameId) {
+        signalLock.wait();
+      }
+      return frameToSent;
+    }
+  }
 }
@@ -10,18 +10,28 @@ import org.emp.utils.DataUtils;
 import org.emp.utils.VoronoiAdapt;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A sensor data handler that uses EMP REAP point cloud partitioning algorithm
+ *
+ * <p> Merged point clouds are direct buffers recycled across frames.  Once a frame is released,
+ * the state of the frame and all frames before it is evicted, and its merged point cloud goes back
+ * to the pool as soon as the merging tasks still writing to it are done, so memory stays flat over
+ * a long session.  Frame IDs wrap around after 65535 (see {@link FrameIds}).
  */
 public class EmpReapSensorDataHandler implements SensorDataHandler {
   private static final Logger LOGGER = LogManager.getLogger(EmpReapSensorDataHandler.class);
+  // Capacity of the merged point cloud per vehicle, in floats
+  private static final int MERGED_POINT_CLOUD_CAPACITY_PER_VEHICLE = 533248;
+  // Max number of released merged point clouds kept for reuse
+  private static final int MAX_POOLED_MERGED_POINT_CLOUDS = 4;
 
-
-  // EMP statistics handler to store system statistics during running
-  StatHandler statHandler = new StatHandler();
   // Network server instance to send control messages to vehicles
   NonBlockingNetworkServer networkServer;
   // Bandwidth estimator instance
@@ -30,20 +40,20 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
   private final int algorithmId;
   // Path to save the merged point cloud for replay
   private final String savePath;
-  // Mapping of vehicle ID to {@code VehicleState} instance
-  private final Map<Integer, VehicleState> vehicleStateMap = new HashMap<>();
-  // frameID of the frame of which the primary vehicle (v1) delivered its oxts of not
-  private final Set<Integer> isOxtsReceivedSet = new HashSet<>();
-  // frameID -> < vehicleID -> Set<chunkID> >
-  private final Map<Integer, Map<Integer, Set<Integer>>> unmergedData = new HashMap<>();
-  // frameID -> Oxts of the primary vehicle
-  private final Map<Integer, VehicleLocation> primaryOxtsMap = new HashMap<>();
-  // frameID -> merged point cloud
-  private final Map<Integer, FloatBuffer> mergedPointCloudMap = new HashMap<>();
-  // frameID -> merged point cloud buffer offset
-  private final Map<Integer, Integer> mergedPointCloudOffsetMap = new HashMap<>();
+  // Store of the chunks, vehicle states and per-frame merging state, shared by all tasks
+  private final SensorFrameStore frameStore = new SensorFrameStore();
+  // Mapping of vehicle ID to {@code VehicleState} instance, backed by the frame store
+  private final Map<Integer, VehicleState> vehicleStateMap = frameStore.getVehicleStateMap();
+  // frameID -> merge target holding the merged point cloud
+  private final Map<Integer, MergeTarget> mergeTargetMap = new ConcurrentHashMap<>();
+  // Released merged point clouds ready for reuse, which no merging task writes to any more
+  private final Queue<FloatBuffer> pooledMergedPointClouds = new ConcurrentLinkedQueue<>();
+  // ID of the latest released frame, initially the frame before frame 0
+  private volatile int lastReleasedFrameId = -1;
   // ID of the frame that the system is working on
   private int currentFrame = 0;
+  // Number of frames completed, only updated with the frame completion check, read by any thread
+  private volatile long numFramesCompleted;
   // Max number of clients
   private int maxNumClients = 1;
 
@@ -54,85 +64,86 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
   }
 
   @Override
-  public void pushUnmergedData(int vehicleId, int frameId, int chunkId) {
-    Map<Integer, Set<Integer>> vehicleIdMap = unmergedData.get(frameId);
-    if (vehicleIdMap == null) {
-      vehicleIdMap = new HashMap<>();
-      Set<Integer> chunkIdSet = new HashSet<>();
-      chunkIdSet.add(chunkId);
-      vehicleIdMap.put(vehicleId, chunkIdSet);
-    }
-    else {
-      Set<Integer> chunkIdSet = vehicleIdMap.get(vehicleId);
-      if (chunkIdSet == null) { chunkIdSet = new HashSet<>();}
-      chunkIdSet.add(chunkId);
-      vehicleIdMap.put(vehicleId, chunkIdSet);
-    }
-    unmergedData.put(frameId, vehicleIdMap);
+  public boolean pushUnmergedData(int vehicleId, int frameId, int chunkId) {
+    return frameStore.pushUnmerged(vehicleId, frameId, chunkId);
   }
 
   @Override
-  public Map<Integer, Set<Integer>> popUnmergedData(int frameId) { return unmergedData.remove(frameId); }
+  public Map<Integer, Set<Integer>> popUnmergedData(int frameId) { return frameStore.popUnmerged(frameId); }
 
   @Override
-  public boolean shouldRunMerging(int frameId) { return isOxtsReceivedSet.contains(frameId); }
+  public boolean hasVehicleLocation(int vehicleId, int frameId) {
+    return frameStore.hasVehicleLocation(vehicleId, frameId);
+  }
 
   @Override
-  public float[] getDataChunk(int vehicleId, int frameId, int chunkId) {
-    return vehicleStateMap.get(vehicleId).getFrames().get(frameId).getChunks().get(chunkId).getDecodedPointCloud();
+  public boolean waitForVehicleLocation(SensorDataChunk dataChunk) {
+    return frameStore.waitForVehicleLocation(dataChunk);
   }
 
   @Override
-  public VehicleLocation getPrimaryLocation (int frameId) { return primaryOxtsMap.get(frameId); }
+  public List<SensorDataChunk> popChunksWaitingForVehicleLocation(int vehicleId, int frameId) {
+    return frameStore.popChunksWaitingForVehicleLocation(vehicleId, frameId);
+  }
 
   @Override
-  public VehicleLocation getVehicleLocation(int vehicleId, int frameId) {
-    return vehicleStateMap.get(vehicleId).getFrames().get(frameId).getVehicleLocation();
+  public boolean shouldRunMerging(int frameId) { return frameStore.getPrimaryLocation(frameId) != null; }
+
+  @Override
+  public float[] getDataChunk(int vehicleId, int frameId, int chunkId) {
+    return frameStore.getChunk(vehicleId, frameId, chunkId).getDecodedPointCloud();
   }
 
   @Override
-  public FloatBuffer getMergedPointCloud (int frameId) {
-    synchronized (mergedPointCloudMap) {
-      return mergedPointCloudMap.computeIfAbsent(frameId, k -> FloatBuffer.allocate(533248 * maxNumClients));
-    }
+  public VehicleLocation getPrimaryLocation (int frameId) { return frameStore.getPrimaryLocation(frameId); }
+
+  @Override
+  public VehicleLocation getVehicleLocation(int vehicleId, int frameId) {
+    return frameStore.getFrame(vehicleId, frameId).getVehicleLocation();
   }
 
   @Override
-  public int updateMergedPointCloudOffset(int frameId, int dataSize) {
-    synchronized (mergedPointCloudOffsetMap) {
-      int offset = mergedPointCloudOffsetMap.computeIfAbsent(frameId, k -> 0);
-      mergedPointCloudOffsetMap.put(frameId, offset + dataSize);
-      return offset;
+  public MergeTarget getMergeTarget(int frameId) {
+    // Look up first, as computeIfAbsent locks the bin even if the target exists
+    MergeTarget mergeTarget = mergeTargetMap.get(frameId);
+    if (mergeTarget != null) {
+      return mergeTarget;
     }
+    mergeTarget = mergeTargetMap.computeIfAbsent(frameId, k -> isReleased(k) ? null
+        : new MergeTarget(acquireMergedPointCloud(), this::recycleMergedPointCloud));
+    // The frame may be released after the check above, but before releaseFrame sees the new
+    // target, in which case the target is retired here
+    if (mergeTarget != null && isReleased(frameId) && mergeTargetMap.remove(frameId, mergeTarget)) {
+      mergeTarget.retire();
+      return null;
+    }
+    return mergeTarget;
   }
 
   @Override
   public void saveDataChunk(SensorDataChunk dataChunk) {
-    int vehicleId = dataChunk.getVehicleId();
-    int frameId = dataChunk.getFrameId();
-    int chunkId = dataChunk.getChunkId();
-    Map<Integer, SensorDataChunk> chunks = getFrame(vehicleId, frameId).getChunks();
-    if (!chunks.containsKey(chunkId)) {
-      chunks.put(chunkId, dataChunk);
-    }
+    frameStore.saveChunk(dataChunk);
   }
 
   @Override
   public void saveMergedPointCloud(int frameId, Set<Integer> vehicleIds) {
     for (Integer vehicleId : vehicleIds) {
-      vehicleStateMap.get(vehicleId).getFrames().get(frameId).setMerged(true);
+      SensorDataFrame frame = frameStore.getFrame(vehicleId, frameId);
+      // The frame may have been released while merging
+      if (frame != null) {
+        frame.setMerged(true);
+      }
     }
   }
 
   @Override
   public void updateVehicleLocation(int vehicleId, int frameId, VehicleLocation location){
     // Update the location data for the corresponding vehicle, frame
-    getFrame(vehicleId, frameId).setVehicleLocation(location);
+    frameStore.setVehicleLocation(vehicleId, frameId, location);
 
     // When the location data of the primary vehicle (v1) is received
     if (vehicleId == 1) {
-      primaryOxtsMap.put(frameId, location);
-      isOxtsReceivedSet.add(frameId);
+      frameStore.setPrimaryLocation(frameId, location);
     }
   }
 
@@ -146,7 +157,7 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
     List<Float> bwList = new ArrayList<>();
     for (Integer vehicleId : orderedVehicleIds) {
       oxtsList.add(getVehicleLocation(vehicleId, frameId).getOxtsData());
-      float bw = (float)bandwidthEstimator.getEstimatedBW(vehicleId, "naive") / 1000;
+      float bw = (float)bandwidthEstimator.getEstimatedBW(vehicleId) / 1000;
       if (bw < 0) {
         bw = 10f;
       }
@@ -179,7 +190,7 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
   @Override
   public boolean shouldRunObjectDetection() throws IOException {
     if (UploadingScheduler.check(vehicleStateMap, currentFrame, statHandler)) {
-      statHandler.logFrameEndTime(currentFrame, System.currentTimeMillis());
+      statHandler.logFrameEndTime(currentFrame, System.nanoTime());
 
       // Send "finish" signal to vehicles
       byte[] finishMsg = VehicleMessageHandlerImpl.encodeMessage(new byte[]{}, currentFrame, 'D');
@@ -190,19 +201,22 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
 
       // Update partitioning decisions and send to vehicles
       updatePartitioningDecisions(currentFrame);
+      statHandler.logPartitionSentTime(currentFrame, System.nanoTime());
       LOGGER.info("frame: " + currentFrame + " uploading finished");
 
       // Save merged point cloud to file
       if (savePath != null) {
-        long tSave1 = System.currentTimeMillis();
-        float[] mergedPointCloud = new float[mergedPointCloudOffsetMap.get(currentFrame)];
-        mergedPointCloudMap.get(currentFrame).get(mergedPointCloud, 0, mergedPointCloudOffsetMap.get(currentFrame));
+        long tSave1 = System.nanoTime();
+        MergeTarget mergeTarget = mergeTargetMap.get(currentFrame);
+        float[] mergedPointCloud = new float[mergeTarget.getSize()];
+        mergeTarget.getBuffer().duplicate().get(mergedPointCloud);
         DataUtils.writePointCloudToFile(mergedPointCloud, savePath + String.format("%06d", currentFrame) + ".bin");
-        long tSave2 = System.currentTimeMillis();
+        long tSave2 = System.nanoTime();
         statHandler.logDataSavingTime(currentFrame, tSave2 - tSave1);
       }
 
-      currentFrame ++;
+      currentFrame = FrameIds.next(currentFrame);
+      numFramesCompleted++;
       return true;
     }
     else {
@@ -211,36 +225,74 @@ public class EmpReapSensorDataHandler implements SensorDataHandler {
   }
 
   @Override
-  public void setNetworkServer(NonBlockingNetworkServer networkServer) {
-    if (networkServer == null) {
-      LOGGER.error("Network server not built");
+  public int getCurrentFrameId() {
+    return currentFrame;
+  }
+
+  @Override
+  public long getNumFramesCompleted() {
+    return numFramesCompleted;
+  }
+
+  @Override
+  public void releaseFrame(int frameId) {
+    synchronized (this) {
+      // Stop handing out the targets before retiring them
+      if (!isReleased(frameId)) {
+        lastReleasedFrameId = frameId;
+      }
     }
-    else {
-      this.networkServer = networkServer;
-      this.maxNumClients = networkServer.maxNumClients;
+    for (Map.Entry<Integer, MergeTarget> entry : mergeTargetMap.entrySet()) {
+      if (FrameIds.isAtOrBefore(entry.getKey(), frameId) && mergeTargetMap.remove(entry.getKey(), entry.getValue())) {
+        // The merged point cloud is recycled once the merging tasks writing to it are done
+        entry.getValue().retire();
+      }
+    }
+    frameStore.evict(frameId);
+    LOGGER.debug("frame: " + frameId + " released");
+  }
+
+  /**
+   * @return  {@code true} if the frame is the latest released frame or a frame before it.
+   */
+  private boolean isReleased(int frameId) {
+    return FrameIds.isAtOrBefore(frameId, lastReleasedFrameId);
+  }
+
+  /**
+   * Keeps a merged point cloud for reuse, once its frame is released and no merging task writes
+   * to it.
+   */
+  private void recycleMergedPointCloud(FloatBuffer mergedPointCloud) {
+    if (pooledMergedPointClouds.size() < MAX_POOLED_MERGED_POINT_CLOUDS) {
+      pooledMergedPointClouds.add(mergedPointCloud);
     }
   }
 
-  private VehicleState getVehicle (int vehicleId) {
-    VehicleState state = vehicleStateMap.get(vehicleId);
-    if (state == null) {
-      state = VehicleState.builder().vehicleId(vehicleId).frames(new HashMap<>()).build();
-      vehicleStateMap.put(vehicleId, state);
+  /**
+   * @return  A merged point cloud from the pool, or a newly allocated one if the pool has none.
+   */
+  private FloatBuffer acquireMergedPointCloud() {
+    int capacity = MERGED_POINT_CLOUD_CAPACITY_PER_VEHICLE * maxNumClients;
+    FloatBuffer mergedPointCloud;
+    while ((mergedPointCloud = pooledMergedPointClouds.poll()) != null) {
+      // Drop buffers sized for a different number of clients
+      if (mergedPointCloud.capacity() == capacity) {
+        mergedPointCloud.clear();
+        return mergedPointCloud;
+      }
     }
-    return state;
+    return ByteBuffer.allocateDirect(capacity * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
   }
 
-  private SensorDataFrame getFrame (int vehicleId, int frameId) {
-    VehicleState state = vehicleStateMap.get(vehicleId);
-    if (state == null) {
-      state = VehicleState.builder().vehicleId(vehicleId).frames(new HashMap<>()).build();
-      vehicleStateMap.put(vehicleId, state);
+  @Override
+  public void setNetworkServer(NonBlockingNetworkServer networkServer) {
+    if (networkServer == null) {
+      LOGGER.error("Network server not built");
     }
-    SensorDataFrame frame = state.getFrames().get(frameId);
-    if (frame == null) {
-      frame = SensorDataFrame.builder().chunks(new HashMap<>()).build();
-      state.getFrames().put(frameId, frame);
+    else {
+      this.networkServer = networkServer;
+      this.maxNumClients = networkServer.maxNumClients;
     }
-    return frame;
   }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package org.emp.data;
+
+/**
+ * Frame IDs on the edge, which are the unsigned 16-bit frame IDs of the message headers and wrap
+ * around after 65535
+ */
+public final class FrameIds {
+  // Mask of the 16 bits of a frame ID
+  private static final int FRAME_ID_MASK = 0xFFFF;
+
+  private FrameIds() {}
+
+  /**
+   * @return  The frame ID in a message header, as an unsigned 16-bit value.
+   */
+  public static int fromHeader(short frameId) {
+    return frameId & FRAME_ID_MASK;
+  }
+
+  /**
+   * @return  ID of the frame after the given frame.
+   */
+  public static int next(int frameId) {
+    return (frameId + 1) & FRAME_ID_MASK;
+  }
+
+  /**
+   * Compares frame IDs across the wraparound, assuming the frames are less than 32768 frames
+   * apart.  For example, frame 0 is after frame 65535.
+   *
+   * @return  {@code true} if frame {@code a} is frame {@code b} or a frame before it.
+   */
+  public static boolean isAtOrBefore(int a, int b) {
+    return (short) (a - b) <= 0;
+  }
+}
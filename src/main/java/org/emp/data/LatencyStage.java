@@ -0,0 +1,35 @@
+package org.emp.data;
+
+/**
+ * Stages of the edge pipeline whose latencies are aggregated into histograms by {@code StatHandler}
+ */
+public enum LatencyStage {
+  // A chunk is received -> the chunk is decoded, including waiting for a decoding thread
+  RECEIVE_TO_DECODED("receive_to_decoded"),
+  // Draco decoding of a chunk
+  DECODING("decoding"),
+  // A chunk is decoded (or received, if raw) -> the chunk is merged by immediate merging,
+  // including waiting for a merging thread
+  DECODED_TO_MERGED("decoded_to_merged"),
+  // Merging of a chunk by immediate merging
+  MERGING("merging"),
+  // The first chunk of a frame is received -> all chunks of the frame are merged
+  FRAME_COMPLETE("frame_complete"),
+  // A frame is complete -> the partitioning decisions for the next frame are sent
+  PARTITION_SENT("partition_sent"),
+  // The first chunk of a frame is received -> the partitioning decisions are sent
+  FRAME_TOTAL("frame_total");
+
+  private final String name;
+
+  LatencyStage(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return  Name of the stage in reports.
+   */
+  public String getName() {
+    return name;
+  }
+}
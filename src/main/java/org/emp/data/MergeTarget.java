@@ -0,0 +1,124 @@
+package org.emp.data;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The merged point cloud of a frame, into which merging tasks write concurrently
+ *
+ * <p> Each merging task reserves a disjoint region of the buffer with a bump pointer, so
+ * reserving a region is a single compare-and-set and the writes need no locking.  A region that
+ * does not fit in the buffer is not reserved at all.
+ *
+ * <p> Writers bracket their writes with {@link #acquire()} and {@link #release()}.  Once the frame
+ * is retired, no writer can acquire the target any more, and the buffer is handed back for reuse
+ * as soon as the writers in progress are done.
+ */
+public class MergeTarget {
+  // Bit of the writer state set once the target is retired, above the number of writers
+  private static final int RETIRED = 1 << 30;
+
+  // Buffer of the merged point cloud
+  private final FloatBuffer buffer;
+  // Number of floats reserved so far, i.e., offset of the next reservation
+  private final AtomicInteger size = new AtomicInteger(0);
+  // Number of writers in progress, plus RETIRED once the target is retired
+  private final AtomicInteger writerState = new AtomicInteger(0);
+  // Called with the buffer once the target is retired and no writer is in progress
+  private final Consumer<FloatBuffer> onDrained;
+
+  public MergeTarget(FloatBuffer buffer) {
+    this(buffer, drainedBuffer -> {});
+  }
+
+  /**
+   * @param onDrained  Called with the buffer once the target is retired and no writer is in
+   *                   progress, e.g., to reuse the buffer.  It is called exactly once.
+   */
+  public MergeTarget(FloatBuffer buffer, Consumer<FloatBuffer> onDrained) {
+    this.buffer = buffer;
+    this.onDrained = onDrained;
+  }
+
+  /**
+   * @return  Buffer of the merged point cloud.  Writers should only write to their reserved region,
+   *          through absolute puts or a duplicate, and leave the position of the buffer as is.
+   */
+  public FloatBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Reserves a region of the buffer.
+   *
+   * @param dataSize  Number of floats to reserve.
+   * @return  Offset of the reserved region, or -1 if the region does not fit in the buffer, in
+   *          which case nothing is reserved.
+   */
+  public int reserve(int dataSize) {
+    while (true) {
+      int offset = size.get();
+      if (dataSize > buffer.capacity() - offset) {
+        return -1;
+      }
+      if (size.compareAndSet(offset, offset + dataSize)) {
+        return offset;
+      }
+    }
+  }
+
+  /**
+   * @return  Number of floats reserved so far.
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * Starts writing to the buffer.  Each successful call must be followed by {@link #release()}
+   * once the writes are done.
+   *
+   * @return  {@code true} if acquired; {@code false} if the target has been retired, in which case
+   *          nothing should be written.
+   */
+  public boolean acquire() {
+    while (true) {
+      int state = writerState.get();
+      if ((state & RETIRED) != 0) {
+        return false;
+      }
+      if (writerState.compareAndSet(state, state + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Finishes writing to the buffer, after a successful {@link #acquire()}.
+   */
+  public void release() {
+    if (writerState.decrementAndGet() == RETIRED) {
+      onDrained.accept(buffer);
+    }
+  }
+
+  /**
+   * Retires the target once its frame is released, after which no writer can acquire it.  The
+   * buffer is drained right away if no writer is in progress, or by the last writer otherwise.
+   */
+  void retire() {
+    while (true) {
+      int state = writerState.get();
+      if ((state & RETIRED) != 0) {
+        return;
+      }
+      if (writerState.compareAndSet(state, state | RETIRED)) {
+        if (state == 0) {
+          onDrained.accept(buffer);
+        }
+        return;
+      }
+    }
+  }
+}
@@ -20,5 +20,15 @@ public class SensorDataChunk {
   int chunkId;
   byte[] compressedPointCloud;
   float[] decodedPointCloud;
+  // Merge target the points are decoded straight into, at mergeOffset, or null if the points are
+  // in decodedPointCloud
+  MergeTarget mergeTarget;
+  int mergeOffset;
+  // Number of floats decoded into the merge target
+  int mergeSize;
   boolean isUsed;
+  // nanoTime the chunk is received on the edge
+  long receivedNanos;
+  // nanoTime the chunk is decoded (or received, if raw) on the edge
+  long decodedNanos;
 }
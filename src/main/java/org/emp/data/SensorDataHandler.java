@@ -3,7 +3,7 @@ package org.emp.data;
 import org.emp.network.NonBlockingNetworkServer;
 
 import java.io.IOException;
-import java.nio.FloatBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,6 +13,7 @@ import java.util.Set;
  */
 public interface SensorDataHandler {
 
+  // EMP statistics handler shared by the edge pipeline
   StatHandler statHandler = new StatHandler();
 
   /**
@@ -32,8 +33,41 @@ public interface SensorDataHandler {
    */
   void updateVehicleLocation(int vehicleId, int frameId, VehicleLocation location);
 
-  void pushUnmergedData(int vehicleId, int frameId, int chunkId);
+  /**
+   * @return  {@code true} if the location of the vehicle for the frame has been received.
+   */
+  boolean hasVehicleLocation(int vehicleId, int frameId);
+
+  /**
+   * Keeps a decoded chunk of a secondary vehicle until the location of the vehicle for the frame is
+   * received, unless it has been received.  This is atomic with respect to receiving the location.
+   *
+   * @return  {@code true} if kept; {@code false} if the location has been received, in which case
+   *          the caller should go on merging the chunk.
+   */
+  boolean waitForVehicleLocation(SensorDataChunk dataChunk);
+
+  /**
+   * Pops the chunks kept by {@link #waitForVehicleLocation}, once the location is received.
+   *
+   * @return  The chunks, or {@code null} if none.
+   */
+  List<SensorDataChunk> popChunksWaitingForVehicleLocation(int vehicleId, int frameId);
+
+  /**
+   * Pushes a decoded chunk for cleanup merging, unless the location of the primary vehicle for the
+   * frame has been received.  This is atomic with respect to receiving the location.
+   *
+   * @return  {@code true} if pushed; {@code false} if the location has been received, in which case
+   *          the caller should merge the chunk right away.
+   */
+  boolean pushUnmergedData(int vehicleId, int frameId, int chunkId);
 
+  /**
+   * Pops the chunks of the frame pushed for cleanup merging.  Each chunk is popped once.
+   *
+   * @return  Vehicle ID -> chunk IDs, or {@code null} if none.
+   */
   Map<Integer, Set<Integer>> popUnmergedData(int frameId);
 
   float[] getDataChunk(int vehicleId, int frameId, int chunkId);
@@ -42,9 +76,12 @@ public interface SensorDataHandler {
 
   VehicleLocation getPrimaryLocation(int frameId);
 
-  FloatBuffer getMergedPointCloud (int frameId);
-
-  int updateMergedPointCloudOffset (int frameId, int dataSize);
+  /**
+   * @param frameId  frame ID.
+   * @return  The merge target holding the merged point cloud of the frame, or {@code null} if
+   *          the frame has been released.
+   */
+  MergeTarget getMergeTarget(int frameId);
 
   void updatePartitioningDecisions(int frameId) throws IOException;
 
@@ -57,5 +94,23 @@ public interface SensorDataHandler {
    */
   boolean shouldRunObjectDetection() throws IOException;
 
+  /**
+   * @return  ID of the frame that the system is working on.
+   */
+  int getCurrentFrameId();
+
+  /**
+   * @return  Number of frames completed (i.e., all expected chunks merged) so far.
+   */
+  long getNumFramesCompleted();
+
+  /**
+   * Releases the merged point cloud and the per-frame state of the frame and all frames before it,
+   * once the frame is finished (i.e., saved and object detection done).
+   *
+   * @param frameId  frame ID.
+   */
+  void releaseFrame(int frameId);
+
   void setNetworkServer(NonBlockingNetworkServer networkServer);
 }
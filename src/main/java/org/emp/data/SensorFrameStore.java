@@ -0,0 +1,257 @@
+package org.emp.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe store of the sensor data chunks, vehicle states and per-frame merging state
+ *
+ * <p> Chunks are keyed by (vehicle ID, frame ID, chunk ID) packed into a primitive long, so looking
+ * up a chunk is a single map access.  The merging state of each frame (location of the primary
+ * vehicle and chunks waiting for it) is guarded by a lock of its own, so tasks of different frames
+ * never contend.  Pushing a chunk for cleanup merging and receiving the primary location are atomic
+ * with respect to each other: a chunk is either pushed before the location arrives (and popped by
+ * the cleanup merging afterwards) or rejected so that the caller merges it right away, never both
+ * or neither.  Likewise, a chunk of a secondary vehicle that arrives before the location of its
+ * vehicle (e.g., a raw chunk, which skips decoding) either waits for the location or finds it.
+ */
+public class SensorFrameStore {
+  // Vehicle ID and chunk ID each take 16 bits of a key, and frame ID the 32 bits in between
+  private static final int CHUNK_ID_BITS = 16;
+  private static final int FRAME_ID_BITS = 32;
+
+  // (vehicle ID, frame ID, chunk ID) key -> decoded sensor data chunk
+  private final Map<Long, SensorDataChunk> chunkMap = new ConcurrentHashMap<>();
+  // Vehicle ID -> state of the vehicle
+  private final Map<Integer, VehicleState> vehicleStateMap = new ConcurrentHashMap<>();
+  // Frame ID -> merging state of the frame
+  private final Map<Integer, FrameMergingState> frameMergingStateMap = new ConcurrentHashMap<>();
+  // (vehicle ID, frame ID, 0) key -> chunks waiting for the location of the vehicle for the frame,
+  // guarded by the frame of the vehicle
+  private final Map<Long, List<SensorDataChunk>> chunksWaitingForLocationMap = new ConcurrentHashMap<>();
+
+  /**
+   * @return  The key of a chunk.  Vehicle ID and chunk ID should fit in 16 bits, and frame ID should
+   *          be non-negative.
+   */
+  public static long key(int vehicleId, int frameId, int chunkId) {
+    return ((long) (vehicleId & 0xFFFF) << (FRAME_ID_BITS + CHUNK_ID_BITS))
+        | ((frameId & 0xFFFFFFFFL) << CHUNK_ID_BITS)
+        | (chunkId & 0xFFFF);
+  }
+
+  public static int vehicleIdOf(long key) {
+    return (int) (key >>> (FRAME_ID_BITS + CHUNK_ID_BITS));
+  }
+
+  public static int frameIdOf(long key) {
+    return (int) (key >>> CHUNK_ID_BITS);
+  }
+
+  public static int chunkIdOf(long key) {
+    return (int) (key & 0xFFFF);
+  }
+
+  /**
+   * Saves a decoded chunk, unless a chunk with the same key has been saved.
+   *
+   * @param dataChunk  Decoded sensor data chunk.
+   * @return  {@code true} if saved; {@code false} if a chunk with the same key exists.
+   */
+  public boolean saveChunk(SensorDataChunk dataChunk) {
+    int vehicleId = dataChunk.getVehicleId();
+    int frameId = dataChunk.getFrameId();
+    int chunkId = dataChunk.getChunkId();
+    if (chunkMap.putIfAbsent(key(vehicleId, frameId, chunkId), dataChunk) != null) {
+      return false;
+    }
+    getOrCreateFrame(vehicleId, frameId).getChunks().put(chunkId, dataChunk);
+    return true;
+  }
+
+  /**
+   * @return  The chunk, or {@code null} if not saved.
+   */
+  public SensorDataChunk getChunk(int vehicleId, int frameId, int chunkId) {
+    return chunkMap.get(key(vehicleId, frameId, chunkId));
+  }
+
+  /**
+   * @return  Vehicle ID -> state of the vehicle.  The map and the frame maps of the vehicles are
+   *          safe to read while other threads update them.
+   */
+  public Map<Integer, VehicleState> getVehicleStateMap() {
+    return vehicleStateMap;
+  }
+
+  /**
+   * @return  The frame of the vehicle, or {@code null} if the vehicle has not uploaded anything for it.
+   */
+  public SensorDataFrame getFrame(int vehicleId, int frameId) {
+    VehicleState state = vehicleStateMap.get(vehicleId);
+    return (state == null) ? null : state.getFrames().get(frameId);
+  }
+
+  /**
+   * @return  The frame of the vehicle, which is created if absent.
+   */
+  public SensorDataFrame getOrCreateFrame(int vehicleId, int frameId) {
+    VehicleState state = vehicleStateMap.computeIfAbsent(vehicleId,
+        k -> VehicleState.builder().vehicleId(vehicleId).frames(new ConcurrentHashMap<>()).build());
+    return state.getFrames().computeIfAbsent(frameId,
+        k -> SensorDataFrame.builder().vehicleId(vehicleId).frameId(frameId).chunks(new ConcurrentHashMap<>()).build());
+  }
+
+  /**
+   * Sets the location of the vehicle for the frame, after which chunks of the vehicle for the frame
+   * no longer wait for it.
+   */
+  public void setVehicleLocation(int vehicleId, int frameId, VehicleLocation location) {
+    SensorDataFrame frame = getOrCreateFrame(vehicleId, frameId);
+    synchronized (frame) {
+      frame.setVehicleLocation(location);
+    }
+  }
+
+  /**
+   * @return  {@code true} if the location of the vehicle for the frame has been set.
+   */
+  public boolean hasVehicleLocation(int vehicleId, int frameId) {
+    SensorDataFrame frame = getFrame(vehicleId, frameId);
+    if (frame == null) {
+      return false;
+    }
+    synchronized (frame) {
+      return frame.getVehicleLocation() != null;
+    }
+  }
+
+  /**
+   * Keeps a chunk until the location of its vehicle for the frame is set, unless it has been set.
+   *
+   * @return  {@code true} if kept; {@code false} if the location has been set, in which case the
+   *          caller should go on merging the chunk.
+   */
+  public boolean waitForVehicleLocation(SensorDataChunk dataChunk) {
+    int vehicleId = dataChunk.getVehicleId();
+    int frameId = dataChunk.getFrameId();
+    SensorDataFrame frame = getOrCreateFrame(vehicleId, frameId);
+    synchronized (frame) {
+      if (frame.getVehicleLocation() != null) {
+        return false;
+      }
+      chunksWaitingForLocationMap.computeIfAbsent(key(vehicleId, frameId, 0), k -> new ArrayList<>()).add(dataChunk);
+      return true;
+    }
+  }
+
+  /**
+   * Pops the chunks that waited for the location of the vehicle for the frame.  Called after the
+   * location is set, so that no chunk waits for it afterwards.
+   *
+   * @return  The chunks, in the order they started waiting, or {@code null} if none.
+   */
+  public List<SensorDataChunk> popChunksWaitingForVehicleLocation(int vehicleId, int frameId) {
+    SensorDataFrame frame = getFrame(vehicleId, frameId);
+    if (frame == null) {
+      return null;
+    }
+    synchronized (frame) {
+      return chunksWaitingForLocationMap.remove(key(vehicleId, frameId, 0));
+    }
+  }
+
+  /**
+   * Sets the location of the primary vehicle for the frame, after which chunks of the frame are
+   * no longer accepted for cleanup merging.
+   */
+  public void setPrimaryLocation(int frameId, VehicleLocation location) {
+    FrameMergingState state = getOrCreateFrameMergingState(frameId);
+    synchronized (state) {
+      state.primaryLocation = location;
+    }
+  }
+
+  /**
+   * @return  Location of the primary vehicle for the frame, or {@code null} if not received.
+   */
+  public VehicleLocation getPrimaryLocation(int frameId) {
+    FrameMergingState state = frameMergingStateMap.get(frameId);
+    if (state == null) {
+      return null;
+    }
+    synchronized (state) {
+      return state.primaryLocation;
+    }
+  }
+
+  /**
+   * Pushes a chunk for cleanup merging, unless the location of the primary vehicle for the frame
+   * has been received.
+   *
+   * @return  {@code true} if pushed; {@code false} if the location has been received, in which
+   *          case the caller should merge the chunk right away.
+   */
+  public boolean pushUnmerged(int vehicleId, int frameId, int chunkId) {
+    FrameMergingState state = getOrCreateFrameMergingState(frameId);
+    synchronized (state) {
+      if (state.primaryLocation != null) {
+        return false;
+      }
+      state.unmergedChunks.computeIfAbsent(vehicleId, k -> new TreeSet<>()).add(chunkId);
+      return true;
+    }
+  }
+
+  /**
+   * Pops the chunks of the frame pushed for cleanup merging.  Each chunk is popped once.
+   *
+   * @return  Vehicle ID -> IDs of the chunks, in ascending order, or {@code null} if none.
+   */
+  public Map<Integer, Set<Integer>> popUnmerged(int frameId) {
+    FrameMergingState state = frameMergingStateMap.get(frameId);
+    if (state == null) {
+      return null;
+    }
+    synchronized (state) {
+      if (state.unmergedChunks.isEmpty()) {
+        return null;
+      }
+      Map<Integer, Set<Integer>> unmergedChunks = state.unmergedChunks;
+      state.unmergedChunks = new TreeMap<>();
+      return unmergedChunks;
+    }
+  }
+
+  /**
+   * Evicts the chunks, vehicle frames and merging state of the frame and all frames before it,
+   * across the wraparound of frame IDs.
+   */
+  public void evict(int frameId) {
+    chunkMap.keySet().removeIf(key -> FrameIds.isAtOrBefore(frameIdOf(key), frameId));
+    chunksWaitingForLocationMap.keySet().removeIf(key -> FrameIds.isAtOrBefore(frameIdOf(key), frameId));
+    frameMergingStateMap.keySet().removeIf(id -> FrameIds.isAtOrBefore(id, frameId));
+    for (VehicleState state : vehicleStateMap.values()) {
+      state.getFrames().keySet().removeIf(id -> FrameIds.isAtOrBefore(id, frameId));
+    }
+  }
+
+  private FrameMergingState getOrCreateFrameMergingState(int frameId) {
+    return frameMergingStateMap.computeIfAbsent(frameId, k -> new FrameMergingState());
+  }
+
+  /**
+   * Merging state of a frame, guarded by its own monitor
+   */
+  private static class FrameMergingState {
+    // Location of the primary vehicle, or null if not received
+    VehicleLocation primaryLocation;
+    // Vehicle ID -> IDs of the chunks waiting for the location of the primary vehicle
+    Map<Integer, Set<Integer>> unmergedChunks = new TreeMap<>();
+  }
+}
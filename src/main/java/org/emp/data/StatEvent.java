@@ -0,0 +1,69 @@
+package org.emp.data;
+
+/**
+ * Types of the statistics records in a trace file
+ *
+ * <p> Each type has a fixed code in the file, so new types should be appended with new codes.
+ */
+public enum StatEvent {
+  // Vehicle: a frame is captured (value: timestamp in milliseconds)
+  FRAME_START(1),
+  // Vehicle: ground removal of a frame (value: duration in milliseconds)
+  GROUND_REMOVAL(2),
+  // Vehicle: partitioning of a frame (value: duration in milliseconds)
+  PARTITIONING(3),
+  // Vehicle: Draco encoding of a chunk (value: duration in milliseconds)
+  DRACO_ENCODING(4),
+  // Vehicle: a chunk is sent (value: timestamp in milliseconds)
+  SEND(5),
+  // Edge: a chunk is received (value: nanoTime)
+  RECEIVE(6),
+  // Edge: Draco decoding of a chunk (value: duration in nanoseconds)
+  DRACO_DECODING(7),
+  // Edge: Draco decoding of a chunk starts (value: nanoTime)
+  DRACO_DECODING_START(8),
+  // Edge: Draco decoding of a chunk ends (value: nanoTime)
+  DRACO_DECODING_END(9),
+  // Edge: merging of a chunk (value: duration in nanoseconds)
+  MERGING(10),
+  // Edge: merging of a chunk starts (value: nanoTime)
+  MERGING_START(11),
+  // Edge: merging of a chunk ends (value: nanoTime)
+  MERGING_END(12),
+  // Edge: all chunks of a frame are merged (value: nanoTime)
+  FRAME_END(13),
+  // Edge: the merged point cloud of a frame is saved (value: duration in nanoseconds)
+  DATA_SAVING(14),
+  // Edge: a vehicle has uploaded up to a chunk of a frame (value: unused)
+  UPLOADING_STATUS(15),
+  // Edge: the partitioning decisions after a frame are sent (value: nanoTime)
+  PARTITION_SENT(16);
+
+  private static final StatEvent[] BY_CODE = new StatEvent[17];
+
+  static {
+    for (StatEvent event : values()) {
+      BY_CODE[event.code] = event;
+    }
+  }
+
+  private final int code;
+
+  StatEvent(int code) {
+    this.code = code;
+  }
+
+  /**
+   * @return  Code of the type in a trace file.
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * @return  The type of the code, or {@code null} if unknown (e.g., written by a newer version).
+   */
+  public static StatEvent fromCode(int code) {
+    return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+  }
+}
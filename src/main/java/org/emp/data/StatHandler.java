@@ -1,101 +1,176 @@
 package org.emp.data;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.utils.LatencyHistogram;
+import org.emp.utils.LongRingTable;
 
 /**
  * A EMP statistics handler to store system statistics during running
+ *
+ * <p> Statistics are written to a binary trace file, read offline with {@code StatTraceReader}.  A
+ * log call on the hot path (per chunk) only offers a fixed-size record to a lock-free
+ * {@code StatRecordRing}, stamped with {@link System#nanoTime()}, and a background
+ * {@code StatTraceWriter} writes the records to the file in batches.  Nothing is kept in memory and
+ * no log message is built per chunk.  Until a trace is started, log calls do nothing but a volatile
+ * read.
+ *
+ * <p> On the edge, timestamps and durations are in nanoseconds from {@link System#nanoTime()}, and
+ * the latencies of the pipeline stages ({@code LatencyStage}) are aggregated into a
+ * {@code LatencyHistogram} each, whose percentiles are printed periodically and on shutdown.  The
+ * {@code [Start]} and {@code [End]} log messages of a frame have wall-clock times in ms since the
+ * epoch on both sides.
  */
 public class StatHandler {
   private static final Logger LOGGER = LogManager.getLogger(StatHandler.class);
+  // Max number of records not written to the trace file yet, beyond which records are dropped
+  private static final int RING_CAPACITY = 1 << 16;
+  // Number of latest frames to keep the milestones of for latency spans
+  private static final int FRAME_HISTORY_LENGTH = 1024;
+  // Percentiles printed for each stage
+  private static final double[] REPORTED_PERCENTILES = {50, 99, 99.9};
 
-  // Frame ID to earliest start time in milliseconds
-  Map<Integer, Integer> frameStartTimeMs = new HashMap<>();
-  // Frame ID to latest end time in milliseconds
-  Map<Integer, Integer> frameEndTimeMs = new HashMap<>();
-  // Each log in the queue represent one piece of result to save
-  // private final Queue<ByteBuffer> logQueue;
-
-  // frameID -> duration >
-  Map<Integer, Long> timeFrameStart;
-  Map<Integer, Long> timeFrameEnd;
-  Map<Integer, Long> timeGroundRemoval;
-  Map<Integer, Long> timePartitioning;
-  Map<Integer, Long> timeDataSaving;
-  // frameID -> < chunkID -> duration/timestamp >
-  Map<Integer, Map<Integer, Long>> timeDracoEncoding;
-  Map<Integer, Map<Integer, Long>> timePointCloudSending;
-  // frameID -> < vehicleID -> < chunkID -> duration/timestamp > >
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timePointCloudReceiving;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeDracoDecoding;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeStartDracoDecoding;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeEndDracoDecoding;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeMerging;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeStartMerging;
-  final Map<Integer, Map<Integer, Map<Integer, Long>>> timeEndMerging;
-  // frameID -> < vehicleID -> chunkID >
-  final Map<Integer, Map<Integer, Integer>> uploadingStatus;
+  // Records to write to the trace file, or null if not tracing
+  private volatile StatRecordRing ring;
+  private StatTraceWriter traceWriter;
+  private Thread traceWriterThread;
+  // frameID -> < vehicleID -> chunkID >, for the frames whose status is not printed yet
+  private final NavigableMap<Integer, Map<Integer, Integer>> uploadingStatus = new TreeMap<>();
+  // Latency histogram of each stage, indexed by the ordinal of the stage
+  private final LatencyHistogram[] latencyHistograms = new LatencyHistogram[LatencyStage.values().length];
+  // frameID -> nanoTime the first chunk of the frame is received
+  private final LongRingTable frameReceivedNanos = new LongRingTable(FRAME_HISTORY_LENGTH);
+  // frameID -> nanoTime all chunks of the frame are merged
+  private final LongRingTable frameCompleteNanos = new LongRingTable(FRAME_HISTORY_LENGTH);
+  // Prints the latency percentiles periodically, or null if not started
+  private ScheduledExecutorService latencyReportExecutor;
 
   public StatHandler() {
-    timeFrameStart = new HashMap<>();
-    timeFrameEnd = new HashMap<>();
-    timeGroundRemoval = new HashMap<>();
-    timePartitioning = new HashMap<>();
-    timeDataSaving = new HashMap<>();
-    timeDracoEncoding = new HashMap<>();
-    timePointCloudSending = new HashMap<>();
-    timePointCloudReceiving = new HashMap<>();
-    timeDracoDecoding = new HashMap<>();
-    timeStartDracoDecoding = new HashMap<>();
-    timeEndDracoDecoding = new HashMap<>();
-    timeMerging = new HashMap<>();
-    timeStartMerging = new HashMap<>();
-    timeEndMerging = new HashMap<>();
-    uploadingStatus = new HashMap<>();
-    // logQueue = new ArrayDeque<>();
-  }
-
-  public void putDataToLogQueue() {
-    // TODO: Convert the handler to a runnable and log results to files
-    // synchronized (logQueue) {
-      // logQueue.add();
-    // }
+    for (int i = 0; i < latencyHistograms.length; i++) {
+      latencyHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Starts writing statistics to a trace file, replacing an existing file.  Does nothing if a trace
+   * has been started.
+   */
+  public synchronized void startTrace(String tracePath) throws IOException {
+    if (ring != null) {
+      return;
+    }
+    StatRecordRing newRing = new StatRecordRing(RING_CAPACITY);
+    traceWriter = new StatTraceWriter(newRing, Paths.get(tracePath));
+    traceWriterThread = new Thread(traceWriter, "stat-trace-writer");
+    traceWriterThread.setDaemon(true);
+    traceWriterThread.start();
+    ring = newRing;
+    LOGGER.info("Writing statistics trace to " + tracePath);
+  }
+
+  /**
+   * Stops the trace, after the records logged so far are written to the file.
+   */
+  public synchronized void stopTrace() {
+    if (ring == null) {
+      return;
+    }
+    ring = null;
+    traceWriter.stopRunning();
+    try {
+      traceWriterThread.join();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+    traceWriter = null;
+    traceWriterThread = null;
+  }
+
+  /**
+   * Starts printing the latency percentiles of the stages periodically.  Does nothing if started.
+   */
+  public synchronized void startLatencyReport(long periodSeconds) {
+    if (latencyReportExecutor != null) {
+      return;
+    }
+    latencyReportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "latency-report");
+      thread.setDaemon(true);
+      return thread;
+    });
+    latencyReportExecutor.scheduleAtFixedRate(this::printEdgeStats, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stopLatencyReport() {
+    if (latencyReportExecutor != null) {
+      latencyReportExecutor.shutdown();
+      latencyReportExecutor = null;
+    }
+  }
+
+  /**
+   * Records the latency of a stage.  Safe to call from any thread.
+   *
+   * @param startNanos  Start of the span, from {@link System#nanoTime()}, or 0 if unknown (e.g., a
+   *                    chunk not received from the network), in which case nothing is recorded.
+   * @param endNanos  End of the span, from {@link System#nanoTime()}.
+   */
+  public void recordLatency(LatencyStage stage, long startNanos, long endNanos) {
+    if (startNanos == 0) {
+      return;
+    }
+    latencyHistograms[stage.ordinal()].record(endNanos - startNanos);
+  }
+
+  /**
+   * @return  Histogram of the latencies of the stage in nanoseconds, since the handler is created.
+   */
+  public LatencyHistogram getLatencyHistogram(LatencyStage stage) {
+    return latencyHistograms[stage.ordinal()];
+  }
+
+  private void record(StatEvent event, int frameId, int vehicleId, int chunkId, long value) {
+    StatRecordRing currentRing = ring;
+    if (currentRing != null) {
+      currentRing.offer(event, frameId, vehicleId, chunkId, System.nanoTime(), value);
+    }
   }
 
   // Vehicle
   public void logFrameStartTime(int frameId, long timestamp) {
-    timeFrameStart.put(frameId, timestamp);
+    record(StatEvent.FRAME_START, frameId, 0, 0, timestamp);
     LOGGER.info("[Start] frame: " + frameId + ", time: " + timestamp);
   }
 
   public void logGroundRemovalTime(int frameId, long duration) {
-    timeGroundRemoval.put(frameId, duration);
+    record(StatEvent.GROUND_REMOVAL, frameId, 0, 0, duration);
     LOGGER.info("[Ground] frame: " + frameId + ", time: " + duration);
   }
 
   public void logPartitioningTime(int frameId, long duration) {
-    timePartitioning.put(frameId, duration);
+    record(StatEvent.PARTITIONING, frameId, 0, 0, duration);
     LOGGER.info("[Partition] frame: " + frameId + ", time: " + duration);
   }
 
   public void logDracoEncodingTime(int frameId, int chunkId, long duration) {
-    Map<Integer, Long> chunkIdToDuration = timeDracoEncoding.computeIfAbsent(frameId, k -> new HashMap<>());
-    chunkIdToDuration.put(chunkId, duration);
-    LOGGER.info("[Encode] frame: " + frameId + ", chunk: " + chunkId + ", time: " + duration);
+    record(StatEvent.DRACO_ENCODING, frameId, 0, chunkId, duration);
   }
 
   public void logMsgEncodingTime(int frameId, String msgType, long duration) {
     //TODO
-    LOGGER.info("[MsgEncode] frame: " + frameId + ", msg encode time: " + duration);
   }
 
   public void logSendTime(int frameId, int chunkId, long timestamp) {
-    Map<Integer, Long> chunkIdToTimestamp = timePointCloudSending.computeIfAbsent(frameId, k -> new HashMap<>());
-    chunkIdToTimestamp.put(chunkId, timestamp);
-    LOGGER.info("[Send] frame: " + frameId + ", chunk: " + chunkId + ", time: " + timestamp);
+    record(StatEvent.SEND, frameId, 0, chunkId, timestamp);
   }
 
   public void printVehicleStats() {
@@ -103,18 +178,17 @@ public class StatHandler {
   }
 
   public void saveVehicleStats() {
-    //TODO
+    stopTrace();
   }
 
   // Edge
   public void logReceiveTime(int frameId, int vehicleId, int chunkId, long timestamp) {
-    synchronized (timePointCloudReceiving) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timePointCloudReceiving.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, timestamp);
+    record(StatEvent.RECEIVE, frameId, vehicleId, chunkId, timestamp);
+    synchronized (frameReceivedNanos) {
+      if (!frameReceivedNanos.contains(frameId)) {
+        frameReceivedNanos.put(frameId, timestamp);
+      }
     }
-    LOGGER.info("[Receive] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + timestamp);
   }
 
   public void logMsgDecodingTime(int frameId, long duration) {
@@ -122,76 +196,70 @@ public class StatHandler {
   }
 
   public void logDracoDecodingTime(int frameId, int vehicleId, int chunkId, long duration) {
-    synchronized (timeDracoDecoding) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeDracoDecoding.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, duration);
-    }
-    LOGGER.info("[Decode] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + duration);
+    record(StatEvent.DRACO_DECODING, frameId, vehicleId, chunkId, duration);
+    latencyHistograms[LatencyStage.DECODING.ordinal()].record(duration);
   }
 
   public void logStartDracoDecodingTime(int frameId, int vehicleId, int chunkId, long timestamp) {
-    synchronized (timeStartDracoDecoding) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeStartDracoDecoding.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, timestamp);
-    }
-    LOGGER.info("[DecodeStart] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + timestamp);
+    record(StatEvent.DRACO_DECODING_START, frameId, vehicleId, chunkId, timestamp);
   }
 
   public void logEndDracoDecodingTime(int frameId, int vehicleId, int chunkId, long timestamp) {
-    synchronized (timeEndDracoDecoding) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeEndDracoDecoding.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, timestamp);
-    }
-    LOGGER.info("[DecodeEnd] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + timestamp);
+    record(StatEvent.DRACO_DECODING_END, frameId, vehicleId, chunkId, timestamp);
   }
 
   public void logMergingTime(int frameId, int vehicleId, int chunkId, long duration) {
-    synchronized (timeMerging) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeMerging.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, duration);
-    }
-    LOGGER.info("[Merge] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + duration);
+    record(StatEvent.MERGING, frameId, vehicleId, chunkId, duration);
+    latencyHistograms[LatencyStage.MERGING.ordinal()].record(duration);
   }
 
   public void logStartMergingTime(int frameId, int vehicleId, int chunkId, long timestamp) {
-    synchronized (timeStartMerging) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeStartMerging.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, timestamp);
-    }
-    LOGGER.info("[MergeStart] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + timestamp);
+    record(StatEvent.MERGING_START, frameId, vehicleId, chunkId, timestamp);
   }
 
   public void logEndMergingTime(int frameId, int vehicleId, int chunkId, long timestamp) {
-    synchronized (timeEndMerging) {
-      Map<Integer, Map<Integer, Long>> vehicleIdToChunkId = timeEndMerging.computeIfAbsent(frameId, k -> new HashMap<>());
-      Map<Integer, Long> chunkIdToTimestamp = vehicleIdToChunkId.computeIfAbsent(vehicleId, k -> new HashMap<>());
-      vehicleIdToChunkId.put(vehicleId, chunkIdToTimestamp);
-      chunkIdToTimestamp.put(chunkId, timestamp);
-    }
-    LOGGER.info("[MergeEnd] frame: " + frameId + ", vehicle: " + vehicleId + ", chunk: " + chunkId + ", time: " + timestamp);
+    record(StatEvent.MERGING_END, frameId, vehicleId, chunkId, timestamp);
   }
 
+  /**
+   * @param timestamp  {@link System#nanoTime()} all chunks of the frame are merged, for the trace and
+   *                   the latencies.  The log message has the wall-clock time in ms instead, like the
+   *                   {@code [Start]} message of the vehicles, so the two can be matched.
+   */
   public void logFrameEndTime(int frameId, long timestamp) {
-    timeFrameEnd.put(frameId, timestamp);
-    LOGGER.info("[End] frame: " + frameId + ", time: " + timestamp);
+    record(StatEvent.FRAME_END, frameId, 0, 0, timestamp);
+    long receivedNanos;
+    synchronized (frameReceivedNanos) {
+      receivedNanos = frameReceivedNanos.get(frameId, 0);
+    }
+    recordLatency(LatencyStage.FRAME_COMPLETE, receivedNanos, timestamp);
+    synchronized (frameCompleteNanos) {
+      frameCompleteNanos.put(frameId, timestamp);
+    }
+    LOGGER.info("[End] frame: " + frameId + ", time: " + System.currentTimeMillis());
+  }
+
+  public void logPartitionSentTime(int frameId, long timestamp) {
+    record(StatEvent.PARTITION_SENT, frameId, 0, 0, timestamp);
+    long completeNanos;
+    synchronized (frameCompleteNanos) {
+      completeNanos = frameCompleteNanos.get(frameId, 0);
+    }
+    long receivedNanos;
+    synchronized (frameReceivedNanos) {
+      receivedNanos = frameReceivedNanos.get(frameId, 0);
+    }
+    recordLatency(LatencyStage.PARTITION_SENT, completeNanos, timestamp);
+    recordLatency(LatencyStage.FRAME_TOTAL, receivedNanos, timestamp);
   }
 
   public void logDataSavingTime(int frameId, long duration) {
-    timeDataSaving.put(frameId, duration);
-    LOGGER.info("[Save] frame: " + frameId + ", time: " + duration);
+    record(StatEvent.DATA_SAVING, frameId, 0, 0, duration);
+    LOGGER.info("[Save] frame: " + frameId + ", time: " + formatMs(duration) + " ms");
   }
 
   public void updateUploadingStatus(int frameId, int vehicleId, int chunkId) {
+    record(StatEvent.UPLOADING_STATUS, frameId, vehicleId, chunkId, 0);
     synchronized (uploadingStatus) {
       Map<Integer, Integer> uploadingStatusCurrentFrame = uploadingStatus.computeIfAbsent(frameId, k -> new HashMap<>());
       uploadingStatusCurrentFrame.put(vehicleId, chunkId);
@@ -199,8 +267,15 @@ public class StatHandler {
     }
   }
 
+  /**
+   * Prints the uploading status of the frame, after which the status of the frame and the frames
+   * before it is dropped.
+   */
   public void printUploadingStatus(int frameId) {
-    LOGGER.info("[ChunkInfo] frame: " + frameId + ", status: " + uploadingStatus.get(frameId));
+    synchronized (uploadingStatus) {
+      LOGGER.info("[ChunkInfo] frame: " + frameId + ", status: " + uploadingStatus.get(frameId));
+      uploadingStatus.headMap(frameId, true).clear();
+    }
   }
 
   public void logReapTime() {
@@ -211,11 +286,38 @@ public class StatHandler {
     //TODO
   }
 
+  /**
+   * Prints the latency percentiles of the stages recorded so far.
+   */
   public void printEdgeStats() {
-    //TODO
+    for (LatencyStage stage : LatencyStage.values()) {
+      LatencyHistogram histogram = latencyHistograms[stage.ordinal()];
+      long count = histogram.getTotalCount();
+      if (count == 0) {
+        continue;
+      }
+      StringBuilder builder = new StringBuilder("[Latency] stage: ").append(stage.getName())
+          .append(", count: ").append(count);
+      for (double percentile : REPORTED_PERCENTILES) {
+        builder.append(", p").append(formatPercentile(percentile)).append(": ")
+            .append(formatMs(histogram.getValueAtPercentile(percentile))).append(" ms");
+      }
+      builder.append(", max: ").append(formatMs(histogram.getMaxValue())).append(" ms");
+      LOGGER.info(builder.toString());
+    }
   }
 
   public void saveEdgeStats() {
-    //TODO
+    stopLatencyReport();
+    stopTrace();
+  }
+
+  private static String formatPercentile(double percentile) {
+    // e.g., 99.9 -> "999", as in p999
+    return String.valueOf(percentile).replace(".0", "").replace(".", "");
+  }
+
+  private static String formatMs(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
   }
 }
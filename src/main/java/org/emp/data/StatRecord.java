@@ -0,0 +1,24 @@
+package org.emp.data;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A statistics record read from a trace file
+ */
+@Data
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Builder
+public class StatRecord {
+  // Type of the record, or null if unknown
+  StatEvent event;
+  int frameId;
+  int vehicleId;
+  int chunkId;
+  // Time of the record, from System.nanoTime() of the process writing the trace
+  long nanoTime;
+  // Timestamp or duration logged, see StatEvent
+  long value;
+}
@@ -0,0 +1,125 @@
+package org.emp.data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free ring of statistics records, written by any number of threads and drained by
+ * a single thread
+ *
+ * <p> Fields of the records are kept in preallocated primitive arrays, so offering a record is a
+ * compare-and-set on the tail plus a few array stores, and allocates nothing.  Each slot carries a
+ * sequence number that tells whether it is free for the producer of a position or filled for the
+ * consumer, so producers never wait for each other or for the consumer: when the ring is full, the
+ * record is dropped and counted.
+ */
+public class StatRecordRing {
+  // Size of a record drained to a buffer: event code, frame ID, vehicle ID, chunk ID (int each),
+  // nanoTime and value (long each)
+  public static final int RECORD_BYTES = 32;
+
+  private final int[] eventCodes;
+  private final int[] frameIds;
+  private final int[] vehicleIds;
+  private final int[] chunkIds;
+  private final long[] nanoTimes;
+  private final long[] values;
+  // Position for which each slot is free (== position) or filled (== position + 1)
+  private final AtomicLongArray sequences;
+  // Capacity - 1, where capacity is a power of two
+  private final int mask;
+  // Position of the next record to offer
+  private final AtomicLong tail = new AtomicLong();
+  // Position of the next record to drain, only accessed by the consumer
+  private long head;
+  // Number of records dropped as the ring was full
+  private final AtomicLong numDropped = new AtomicLong();
+
+  /**
+   * @param capacity  Max number of records not drained yet, a power of two.
+   */
+  public StatRecordRing(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+    }
+    eventCodes = new int[capacity];
+    frameIds = new int[capacity];
+    vehicleIds = new int[capacity];
+    chunkIds = new int[capacity];
+    nanoTimes = new long[capacity];
+    values = new long[capacity];
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    mask = capacity - 1;
+  }
+
+  /**
+   * Offers a record.  Safe to call from any thread.
+   *
+   * @return  {@code true} if added; {@code false} if dropped as the ring is full.
+   */
+  public boolean offer(StatEvent event, int frameId, int vehicleId, int chunkId, long nanoTime, long value) {
+    long position;
+    int slot;
+    while (true) {
+      position = tail.get();
+      slot = (int) position & mask;
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+      } else if (sequence < position) {
+        // The slot still holds the record of the previous lap, which is not drained yet
+        numDropped.incrementAndGet();
+        return false;
+      }
+      // Otherwise, another producer took the position; retry with the new tail
+    }
+    eventCodes[slot] = event.getCode();
+    frameIds[slot] = frameId;
+    vehicleIds[slot] = vehicleId;
+    chunkIds[slot] = chunkId;
+    nanoTimes[slot] = nanoTime;
+    values[slot] = value;
+    sequences.lazySet(slot, position + 1);
+    return true;
+  }
+
+  /**
+   * Moves the records offered so far, oldest first, to the buffer in {@code RECORD_BYTES} each, as
+   * many as fit.  Only to be called from the consumer thread.
+   *
+   * @return  Number of records drained.
+   */
+  public int drainTo(ByteBuffer buffer) {
+    int numDrained = 0;
+    while (buffer.remaining() >= RECORD_BYTES) {
+      int slot = (int) head & mask;
+      if (sequences.get(slot) != head + 1) {
+        // Not offered yet, or its producer is still filling it
+        break;
+      }
+      buffer.putInt(eventCodes[slot]);
+      buffer.putInt(frameIds[slot]);
+      buffer.putInt(vehicleIds[slot]);
+      buffer.putInt(chunkIds[slot]);
+      buffer.putLong(nanoTimes[slot]);
+      buffer.putLong(values[slot]);
+      sequences.lazySet(slot, head + mask + 1);
+      head++;
+      numDrained++;
+    }
+    return numDrained;
+  }
+
+  /**
+   * @return  Number of records dropped so far as the ring was full.
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+}
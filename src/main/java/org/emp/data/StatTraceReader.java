@@ -0,0 +1,245 @@
+package org.emp.data;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An offline reader of the trace files written by {@code StatTraceWriter}, which rebuilds the
+ * latency breakdown of each frame
+ *
+ * To print the breakdown as CSV:
+ * java -cp build/libs/emp-1.0.jar org.emp.data.StatTraceReader -t [trace file]
+ */
+public class StatTraceReader {
+
+  public static void main(String[] args) throws IOException {
+    final Config config = new Config();
+    JCommander.newBuilder().addObject(config).build().parse(args);
+    Map<Integer, FrameLatency> frameLatencies = getFrameLatencies(read(Paths.get(config.tracePath)));
+    System.out.println("frame,chunks,capture_to_sent_ms,receive_to_decoded_ms,decoded_to_merged_ms,"
+        + "merged_to_end_ms,receive_to_end_ms,end_to_partition_sent_ms");
+    for (FrameLatency latency : frameLatencies.values()) {
+      System.out.println(latency.getFrameId() + "," + latency.getNumChunksReceived()
+          + "," + formatMs(latency.getCaptureToSentNanos())
+          + "," + formatMs(latency.getReceiveToDecodedNanos())
+          + "," + formatMs(latency.getDecodedToMergedNanos())
+          + "," + formatMs(latency.getMergedToEndNanos())
+          + "," + formatMs(latency.getReceiveToEndNanos())
+          + "," + formatMs(latency.getEndToPartitionSentNanos()));
+    }
+  }
+
+  /**
+   * Reads all records of a trace file.  A partial record at the end (e.g., the writer was killed)
+   * is ignored.
+   *
+   * @throws IOException if the file cannot be read or is not a trace file of a known version.
+   */
+  public static List<StatRecord> read(Path path) throws IOException {
+    List<StatRecord> records = new ArrayList<>();
+    try (InputStream fileStream = Files.newInputStream(path);
+         DataInputStream input = new DataInputStream(new BufferedInputStream(fileStream))) {
+      if (input.readInt() != StatTraceWriter.MAGIC) {
+        throw new IOException("Not a trace file: " + path);
+      }
+      int version = input.readInt();
+      int recordBytes = input.readInt();
+      if (version != StatTraceWriter.VERSION || recordBytes != StatRecordRing.RECORD_BYTES) {
+        throw new IOException("Unsupported trace file version " + version + " with " + recordBytes
+            + "-byte records: " + path);
+      }
+      // Rest of the header
+      input.readFully(new byte[StatTraceWriter.HEADER_BYTES - 12]);
+
+      byte[] record = new byte[StatRecordRing.RECORD_BYTES];
+      while (true) {
+        try {
+          input.readFully(record);
+        } catch (EOFException e) {
+          break;
+        }
+        records.add(decode(record));
+      }
+    }
+    return records;
+  }
+
+  /**
+   * @return  Frame ID -> latency breakdown of the frame, in ascending order of frame IDs.
+   */
+  public static Map<Integer, FrameLatency> getFrameLatencies(List<StatRecord> records) {
+    Map<Integer, FrameLatency> frameLatencies = new TreeMap<>();
+    for (StatRecord record : records) {
+      if (record.getEvent() == null) {
+        continue;
+      }
+      FrameLatency latency = frameLatencies.computeIfAbsent(record.getFrameId(), FrameLatency::new);
+      long nanoTime = record.getNanoTime();
+      switch (record.getEvent()) {
+        case FRAME_START:
+          latency.captureNanos = earliest(latency.captureNanos, nanoTime);
+          break;
+        case SEND:
+          latency.lastSentNanos = latest(latency.lastSentNanos, nanoTime);
+          break;
+        case RECEIVE:
+          latency.firstReceivedNanos = earliest(latency.firstReceivedNanos, nanoTime);
+          latency.numChunksReceived++;
+          break;
+        case DRACO_DECODING_END:
+          latency.lastDecodedNanos = latest(latency.lastDecodedNanos, nanoTime);
+          break;
+        case MERGING_END:
+          latency.lastMergedNanos = latest(latency.lastMergedNanos, nanoTime);
+          break;
+        case FRAME_END:
+          latency.endNanos = latest(latency.endNanos, nanoTime);
+          break;
+        case PARTITION_SENT:
+          latency.partitionSentNanos = latest(latency.partitionSentNanos, nanoTime);
+          break;
+        default:
+          break;
+      }
+    }
+    return frameLatencies;
+  }
+
+  private static StatRecord decode(byte[] record) {
+    ByteBuffer buffer = ByteBuffer.wrap(record);
+    return StatRecord.builder()
+        .event(StatEvent.fromCode(buffer.getInt()))
+        .frameId(buffer.getInt())
+        .vehicleId(buffer.getInt())
+        .chunkId(buffer.getInt())
+        .nanoTime(buffer.getLong())
+        .value(buffer.getLong())
+        .build();
+  }
+
+  private static long earliest(long nanoTime, long newNanoTime) {
+    return (nanoTime == FrameLatency.MISSING || newNanoTime < nanoTime) ? newNanoTime : nanoTime;
+  }
+
+  private static long latest(long nanoTime, long newNanoTime) {
+    return (nanoTime == FrameLatency.MISSING || newNanoTime > nanoTime) ? newNanoTime : nanoTime;
+  }
+
+  private static String formatMs(long nanos) {
+    return (nanos < 0) ? "" : String.format("%.3f", nanos / 1e6);
+  }
+
+  /**
+   * Milestones of a frame, in nanoTime of the process writing the trace.  Vehicle milestones and
+   * edge milestones come from different traces, since nanoTimes of different processes are not
+   * comparable.
+   */
+  public static class FrameLatency {
+    static final long MISSING = Long.MIN_VALUE;
+
+    private final int frameId;
+    // Number of chunks received on the edge
+    private int numChunksReceived;
+    // Vehicle: frame captured
+    private long captureNanos = MISSING;
+    // Vehicle: last chunk sent
+    private long lastSentNanos = MISSING;
+    // Edge: first chunk received
+    private long firstReceivedNanos = MISSING;
+    // Edge: last chunk decoded
+    private long lastDecodedNanos = MISSING;
+    // Edge: last chunk merged
+    private long lastMergedNanos = MISSING;
+    // Edge: frame complete
+    private long endNanos = MISSING;
+    // Edge: partitioning decisions sent after the frame
+    private long partitionSentNanos = MISSING;
+
+    FrameLatency(int frameId) {
+      this.frameId = frameId;
+    }
+
+    public int getFrameId() {
+      return frameId;
+    }
+
+    public int getNumChunksReceived() {
+      return numChunksReceived;
+    }
+
+    /**
+     * @return  Time from capturing the frame to sending its last chunk, or -1 if not traced.
+     */
+    public long getCaptureToSentNanos() {
+      return between(captureNanos, lastSentNanos);
+    }
+
+    /**
+     * @return  Time from receiving the first chunk to decoding the last one, or -1 if not traced.
+     */
+    public long getReceiveToDecodedNanos() {
+      return between(firstReceivedNanos, lastDecodedNanos);
+    }
+
+    /**
+     * @return  Time from decoding the last chunk to merging the last one, or -1 if not traced.
+     */
+    public long getDecodedToMergedNanos() {
+      return between(lastDecodedNanos, lastMergedNanos);
+    }
+
+    /**
+     * @return  Time from merging the last chunk to completing the frame, or -1 if not traced.
+     */
+    public long getMergedToEndNanos() {
+      return between(lastMergedNanos, endNanos);
+    }
+
+    /**
+     * @return  Time from receiving the first chunk to completing the frame, or -1 if not traced.
+     */
+    public long getReceiveToEndNanos() {
+      return between(firstReceivedNanos, endNanos);
+    }
+
+    /**
+     * @return  Time from completing the frame to sending the partitioning decisions, or -1 if not
+     *          traced.
+     */
+    public long getEndToPartitionSentNanos() {
+      return between(endNanos, partitionSentNanos);
+    }
+
+    private static long between(long from, long to) {
+      return (from == MISSING || to == MISSING) ? -1 : Math.max(to - from, 0);
+    }
+  }
+
+  static class Config {
+    @Parameter(
+        names = {"--trace", "-t"},
+        description = "Path of the trace file to read",
+        required = true
+    )
+    public String tracePath;
+
+    @Parameter(
+        names = {"--help", "-h"},
+        help = true
+    )
+    public boolean help;
+  }
+}
@@ -0,0 +1,106 @@
+package org.emp.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A background writer that drains a {@code StatRecordRing} to an append-only trace file in batches
+ *
+ * <p> A trace file starts with a header of {@code HEADER_BYTES}: magic number, format version,
+ * record size, a reserved int, and a pair of wall-clock time (milliseconds) and nanoTime taken at
+ * the same moment, to map the nanoTimes of the records to wall-clock time.  The records follow,
+ * {@code StatRecordRing.RECORD_BYTES} each, in the order they were offered.  Read it with
+ * {@code StatTraceReader}.
+ */
+public class StatTraceWriter implements Runnable {
+  private static final Logger LOGGER = LogManager.getLogger(StatTraceWriter.class);
+
+  public static final int MAGIC = 0x454D5054;  // "EMPT"
+  public static final int VERSION = 1;
+  public static final int HEADER_BYTES = 32;
+  // Number of records written to the file at once
+  private static final int BATCH_RECORDS = 4096;
+  // Time to wait when the ring is empty
+  private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final StatRecordRing ring;
+  private final FileChannel fileChannel;
+  private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * StatRecordRing.RECORD_BYTES);
+  private volatile boolean running = true;
+  // Number of records written so far
+  private long numWritten;
+
+  /**
+   * Creates the trace file (replacing an existing one) and writes its header.
+   */
+  public StatTraceWriter(StatRecordRing ring, Path path) throws IOException {
+    this.ring = ring;
+    this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(StatRecordRing.RECORD_BYTES);
+    header.putInt(0);
+    header.putLong(System.currentTimeMillis());
+    header.putLong(System.nanoTime());
+    header.flip();
+    writeFully(header);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        if (writeBatch() == 0) {
+          LockSupport.parkNanos(IDLE_WAIT_NS);
+        }
+      }
+      // Write the records offered before stopping
+      int numRecords;
+      do {
+        numRecords = writeBatch();
+      } while (numRecords > 0);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        fileChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    LOGGER.info("Trace writer finished, records written: " + numWritten + ", dropped: " + ring.getNumDropped());
+  }
+
+  /**
+   * Stops writing after the records offered so far are written.
+   */
+  public void stopRunning() {
+    running = false;
+  }
+
+  private int writeBatch() throws IOException {
+    batch.clear();
+    int numRecords = ring.drainTo(batch);
+    if (numRecords > 0) {
+      batch.flip();
+      writeFully(batch);
+      numWritten += numRecords;
+    }
+    return numRecords;
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      fileChannel.write(buffer);
+    }
+  }
+}
@@ -11,6 +11,8 @@ public interface VehicleMessageHandler {
    *
    * @param byteBuffer  The data currently received on the edge.  It can be partial message.
    * @return vehicle ID.
+   * @throws IllegalArgumentException  If the data is not a valid message.  The connection it is
+   *                                   received from is closed.
    */
   int handle(ByteBuffer byteBuffer);
 }
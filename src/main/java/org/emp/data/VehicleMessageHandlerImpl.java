@@ -4,16 +4,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.util.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.emp.network.BandwidthEstimator;
+import org.emp.network.NonBlockingNetworkServer;
 import org.emp.task.DecodingTask;
 import org.emp.task.LocationUpdatingTask;
 import org.emp.task.MergingTask;
 import org.emp.task.TaskScheduler;
+import org.emp.utils.IntLongHashMap;
 
 /**
  * An implementation of {@code VehicleDataHandler} that follows the
@@ -23,6 +24,8 @@ public class VehicleMessageHandlerImpl implements VehicleMessageHandler {
   private static final Logger LOGGER = LogManager.getLogger(VehicleMessageHandlerImpl.class);
 
   public static final int HEADER_BYTES = 13;
+  // Max payload size, so that a message fits in the largest receive buffer of the server
+  public static final int MAX_PAYLOAD_BYTES = NonBlockingNetworkServer.MAX_BYTE_BUFFER_CAPACITY - HEADER_BYTES;
 
   private final TaskScheduler taskScheduler;
   private final SensorDataHandler sensorDataHandler;
@@ -31,8 +34,8 @@ public class VehicleMessageHandlerImpl implements VehicleMessageHandler {
 
   // Vehicle ID -> current ongoing sensor data chunk
   private final Map<Integer, SensorDataChunk> chunkMap = new HashMap<>();
-  // Vehicle ID -> Last received chunk (frame ID, chunk ID, hashed ID)
-  private final Map<Integer, List<Integer>> lastReceivedChunkMap = new HashMap<>();
+  // Vehicle ID -> Last received chunk (frame ID, chunk ID, hashed ID), packed by packLastReceivedChunk
+  private final IntLongHashMap lastReceivedChunkMap = new IntLongHashMap();
 
   /**
    * Constructs {@code VehicleDataHandlerImpl} instance.
@@ -61,102 +64,142 @@ public class VehicleMessageHandlerImpl implements VehicleMessageHandler {
    * Once a full message is received, the handler submits the data to the EMP
    * processing pipeline.
    *
-   * @param byteBuffer  The data currently received on the edge.  It can be partial message.
+   * <p> Messages are parsed in place with a read cursor, so the cost of each message does not
+   * depend on how many messages arrive in one read.  The bytes of the complete messages are
+   * reclaimed by a single compaction after all of them are parsed, which copies the partial
+   * message (if any) to the start of the buffer on every read.
+   *
+   * @param byteBuffer  The data currently received on the edge, from 0 to its position.
+   *                    It can be partial message.
    * @return vehicle ID.
+   * @throws IllegalArgumentException  If the payload size in a header is negative or larger than
+   *                                   {@code MAX_PAYLOAD_BYTES}.
    */
   @Override
   public int handle(ByteBuffer byteBuffer) {
     int returnVehicleId = -1;
-    if (byteBuffer.position() >= HEADER_BYTES) {
+    int end = byteBuffer.position();
+    // Start of the message to parse
+    int offset = 0;
+
+    while (end - offset >= HEADER_BYTES) {
       // Message header fully received
-      int size = byteBuffer.getInt(0);
-      int vehicleId = byteBuffer.getInt(4);
-      returnVehicleId = vehicleId;
-      int frameId = byteBuffer.getShort(8);
-      int chunkId = byteBuffer.getShort(10);
-      char fileType = (char)byteBuffer.get(12);
-      int payloadLength = byteBuffer.position() - HEADER_BYTES;
+      int size = byteBuffer.getInt(offset);
+      if (size < 0 || size > MAX_PAYLOAD_BYTES) {
+        throw new IllegalArgumentException("Invalid payload size: " + size);
+      }
+      int vehicleId = byteBuffer.getInt(offset + 4);
+      if (returnVehicleId < 0) {
+        returnVehicleId = vehicleId;
+      }
+      int frameId = FrameIds.fromHeader(byteBuffer.getShort(offset + 8));
+      int chunkId = byteBuffer.getShort(offset + 10);
+      char fileType = (char)byteBuffer.get(offset + 12);
+      int payloadLength = end - offset - HEADER_BYTES;
 //      LOGGER.info("frame: " + frameId + "; fileType: " + fileType
 //              + "; payload/size: " + payloadLength + "/" + size);
 
       // Update bandwidth estimator when receiving point clouds
       if (fileType == 'P' || fileType == 'R') {
-        List<Integer> lastReceivedChunk = lastReceivedChunkMap.computeIfAbsent(vehicleId,
-                k -> Arrays.asList(frameId, chunkId, 0));
-        int hashedId = lastReceivedChunk.get(2);
-        if (lastReceivedChunk.get(0) != frameId || lastReceivedChunk.get(1) != chunkId) {
+        long lastReceivedChunk = lastReceivedChunkMap.get(vehicleId, packLastReceivedChunk(frameId, chunkId, 0));
+        int hashedId = (int) lastReceivedChunk;
+        if (lastReceivedChunk >>> 32 != packLastReceivedChunk(frameId, chunkId, 0) >>> 32) {
           hashedId += 1;
-          lastReceivedChunk.set(0, frameId);
-          lastReceivedChunk.set(1, chunkId);
-          lastReceivedChunk.set(2, hashedId);
         }
+        lastReceivedChunkMap.put(vehicleId, packLastReceivedChunk(frameId, chunkId, hashedId));
 //        LOGGER.info("vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; hashed: "
 //                + hashedId + "; payload/size: " + payloadLength + "/" + size);
 
-        Map<Integer, List<Integer>> frameSizeMap = new HashMap<>();
-        List<Integer> sizeList = new ArrayList<>();
-        if (payloadLength > size) sizeList.add(size+HEADER_BYTES);
-        else sizeList.add(payloadLength+HEADER_BYTES);
-        sizeList.add(size+HEADER_BYTES);
-        frameSizeMap.put(hashedId, sizeList);
-        bandwidthEstimator.onReceiveData(vehicleId, frameSizeMap);
+        bandwidthEstimator.onReceiveBytes(vehicleId, hashedId, Math.min(payloadLength, size) + HEADER_BYTES,
+            size + HEADER_BYTES, System.nanoTime());
       }
 
-      if (payloadLength >= size) {
-        // A complete message/chunk is received
-        byte[] byteBufferArray = byteBuffer.array();
-        if (fileType == 'P') { // point cloud
-          byte[] bytes = Arrays.copyOfRange(byteBufferArray, HEADER_BYTES, HEADER_BYTES + size);
-          statHandler.logReceiveTime(frameId, vehicleId, chunkId, System.currentTimeMillis());
-          SensorDataChunk chunk = SensorDataChunk.builder().vehicleId(vehicleId).frameId(frameId).
-                  chunkId(chunkId).compressedPointCloud(bytes).build();
-          taskScheduler.submit(new DecodingTask(chunk, sensorDataHandler));
-//          LOGGER.info("[estbw] " + bandwidthEstimator.getEstimatedBW(vehicleId, "ewma"));
-//          LOGGER.info("[ptcl task] vehicle: " + vehicleId + "; frame: " + frameId);
-        }
-        else if (fileType == 'R') { // raw (uncompressed) point cloud
-          int currentPosition = byteBuffer.position();
-          byteBuffer.position(HEADER_BYTES);
-          FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
-          float[] floats = new float[size / 4];
-          floatBuffer.get(floats, 0, size / 4);
-          byteBuffer.position(currentPosition);
-          statHandler.logReceiveTime(frameId, vehicleId, chunkId, System.currentTimeMillis());
-          SensorDataChunk chunk = SensorDataChunk.builder().vehicleId(vehicleId).frameId(frameId).
-                  chunkId(chunkId).decodedPointCloud(floats).build();
-          taskScheduler.submit(new MergingTask(chunk, sensorDataHandler));
-        }
-        else if (fileType == 'O') {  // oxts
-          byte[] bytes = Arrays.copyOfRange(byteBufferArray, HEADER_BYTES, HEADER_BYTES + size);
-          String[] oxtsString = new String(bytes).split(" ");
-          float[] oxts = new float[oxtsString.length];
-          for (int i = 0; i < oxtsString.length; i++) {
-            oxts[i] = Float.parseFloat(oxtsString[i]);
-          }
-          taskScheduler.submit(new LocationUpdatingTask(vehicleId, frameId, oxts, sensorDataHandler));
-          if (vehicleId == 1) { taskScheduler.submit(new MergingTask(frameId, sensorDataHandler)); }
-//          LOGGER.info("[oxts task] vehicle: " + vehicleId + "; frame: " + frameId);
-        }
-        else if (fileType == 'X') {  // empty message after connecting
-        }
-        else {
-          LOGGER.error("Wrong data type received: " + fileType);
-        }
+      if (payloadLength < size) {
+        // Wait for the rest of the message
+        break;
+      }
 
-        // TODO: make this more efficient in the future
-        int oldPosition = byteBuffer.position();
-        byteBuffer.rewind();
-        int offset = HEADER_BYTES + size;
-        byteBuffer.position(oldPosition - offset);
-        for (int i = 0; i < oldPosition - offset; i++) {
-          byteBufferArray[i] = byteBufferArray[i+offset];
-        }
-        handle(byteBuffer);
+      // A complete message/chunk is received
+      ByteBuffer payload = slicePayload(byteBuffer, offset, size);
+      if (fileType == 'P') { // point cloud
+        // The receive buffer is reused, so the payload is copied before leaving the I/O thread
+        byte[] bytes = new byte[size];
+        payload.get(bytes);
+        long receivedNanos = System.nanoTime();
+        statHandler.logReceiveTime(frameId, vehicleId, chunkId, receivedNanos);
+        SensorDataChunk chunk = SensorDataChunk.builder().vehicleId(vehicleId).frameId(frameId).
+                chunkId(chunkId).compressedPointCloud(bytes).receivedNanos(receivedNanos).build();
+        taskScheduler.submit(new DecodingTask(chunk, sensorDataHandler));
+//        LOGGER.info("[estbw] " + bandwidthEstimator.getEstimatedBW(vehicleId, "ewma"));
+//        LOGGER.info("[ptcl task] vehicle: " + vehicleId + "; frame: " + frameId);
+      }
+      else if (fileType == 'R') { // raw (uncompressed) point cloud
+        float[] floats = new float[size / 4];
+        payload.asFloatBuffer().get(floats);
+        long receivedNanos = System.nanoTime();
+        statHandler.logReceiveTime(frameId, vehicleId, chunkId, receivedNanos);
+        SensorDataChunk chunk = SensorDataChunk.builder().vehicleId(vehicleId).frameId(frameId).
+                chunkId(chunkId).decodedPointCloud(floats).receivedNanos(receivedNanos).
+                decodedNanos(receivedNanos).build();
+        taskScheduler.submit(new MergingTask(chunk, sensorDataHandler));
       }
+      else if (fileType == 'O') {  // oxts
+        float[] oxts = parseOxts(payload);
+        // Cleanup merging for the primary vehicle (v1) is chained after the location updating
+        taskScheduler.submit(new LocationUpdatingTask(vehicleId, frameId, oxts, sensorDataHandler));
+//        LOGGER.info("[oxts task] vehicle: " + vehicleId + "; frame: " + frameId);
+      }
+      else if (fileType == 'X') {  // empty message after connecting
+      }
+      else {
+        LOGGER.error("Wrong data type received: " + fileType);
+      }
+
+      offset += HEADER_BYTES + size;
+    }
+
+    if (offset > 0) {
+      // Move the partial message to the start of the buffer
+      byteBuffer.limit(end);
+      byteBuffer.position(offset);
+      byteBuffer.compact();
     }
     return returnVehicleId;
   }
 
+  /**
+   * @return  A view of the payload of the message at {@code offset}, which shares the content
+   *          of the buffer.  The view is only valid until the buffer is compacted.
+   */
+  private static ByteBuffer slicePayload(ByteBuffer byteBuffer, int offset, int size) {
+    ByteBuffer payload = byteBuffer.duplicate();
+    payload.limit(offset + HEADER_BYTES + size);
+    payload.position(offset + HEADER_BYTES);
+    return payload.slice().order(byteBuffer.order());
+  }
+
+  /**
+   * @return  Frame ID and chunk ID (16 bits each, as in the message header) in the upper 32 bits,
+   *          and the hashed ID in the lower 32 bits.
+   */
+  private static long packLastReceivedChunk(int frameId, int chunkId, int hashedId) {
+    return ((long) (frameId & 0xFFFF) << 48) | ((long) (chunkId & 0xFFFF) << 32) | (hashedId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Parses the space-separated ASCII oxts values in the payload.
+   */
+  private static float[] parseOxts(ByteBuffer payload) {
+    byte[] bytes = new byte[payload.remaining()];
+    payload.get(bytes);
+    String[] oxtsString = new String(bytes).split(" ");
+    float[] oxts = new float[oxtsString.length];
+    for (int i = 0; i < oxtsString.length; i++) {
+      oxts[i] = Float.parseFloat(oxtsString[i]);
+    }
+    return oxts;
+  }
+
   /**
    * @return  The mapping of vehicle ID to current ongoing sensor data chunk.
    */
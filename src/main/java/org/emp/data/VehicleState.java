@@ -1,7 +1,6 @@
 package org.emp.data;
 
 import java.util.HashMap;
-import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import lombok.AccessLevel;
@@ -24,21 +23,33 @@ public class VehicleState {
   Set<Integer> neighborIds;
   Set<Integer> neighborInProgressIds;
 
+  /**
+   * @return  ID of the latest frame, across the wraparound of frame IDs, or -1 if none.
+   */
   public int getLatestFrameId() {
-    if (frames == null) { return -1; }
-    else {return Collections.max(frames.keySet()); }
+    int latestFrame = -1;
+    if (frames != null) {
+      for (Integer frameId : frames.keySet()) {
+        if (latestFrame < 0 || !FrameIds.isAtOrBefore(frameId, latestFrame)) {
+          latestFrame = frameId;
+        }
+      }
+    }
+    return latestFrame;
   }
 
+  /**
+   * @return  ID of the latest merged frame, across the wraparound of frame IDs, or -1 if none.
+   */
   public int getLatestMergedFrameId() {
-    if (frames == null) {
-      return -1;
-    }
-    else {
-      int latestFrame = Collections.max(frames.keySet());
-      while (latestFrame > -1 && (frames.get(latestFrame) == null || !frames.get(latestFrame).isMerged())) {
-        latestFrame--;
+    int latestFrame = -1;
+    if (frames != null) {
+      for (Map.Entry<Integer, SensorDataFrame> frame : frames.entrySet()) {
+        if (frame.getValue().isMerged() && (latestFrame < 0 || !FrameIds.isAtOrBefore(frame.getKey(), latestFrame))) {
+          latestFrame = frame.getKey();
+        }
       }
-      return latestFrame;
     }
+    return latestFrame;
   }
 }
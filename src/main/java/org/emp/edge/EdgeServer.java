@@ -2,19 +2,25 @@ package org.emp.edge;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.emp.data.EmpReapSensorDataHandler;
 import org.emp.data.SensorDataHandler;
-import org.emp.data.VehicleMessageHandler;
 import org.emp.data.VehicleMessageHandlerImpl;
 import org.emp.network.BandwidthEstimator;
+import org.emp.network.BandwidthPredictors;
 import org.emp.network.NonBlockingNetworkServer;
+import org.emp.task.BackpressureListener;
+import org.emp.task.MergingTask;
+import org.emp.task.Task.TaskType;
 import org.emp.task.TaskScheduler;
 
 /**
@@ -24,43 +30,77 @@ import org.emp.task.TaskScheduler;
  * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
  *    -cp build/libs/emp-1.0.jar org.emp.edge.EdgeServer \
  *    -p [server port] -t [numThreads] -c [numClients] -a [algorithm index] (-s [save path])
+ *    (-tl [numLocationThreads] -tm [numMergingThreads] -to [numDetectionThreads] -q [queueCapacity])
+ *    (-hw [high watermark] -lw [low watermark] -io [numIoThreads] -mp [merge parallelism])
+ *    (-mtp [metrics port] -cap [session file to capture received messages to])
  */
 public class EdgeServer {
   private static final Logger LOGGER = LogManager.getLogger(EdgeServer.class);
   private final ExecutorService executor = Executors.newFixedThreadPool(2);
   private final NonBlockingNetworkServer networkServer;
   private final TaskScheduler scheduler;
+  // Pool to merge point clouds in parallel, or null if disabled
+  private final ForkJoinPool mergePool;
   private final int port;
   private final int numThreads;
   private final int numClients;
   private final int algorithmId;
   private final String savePath;
+  // Path of the statistics trace file, or null if not tracing
+  private final String tracePath;
+  // Interval in seconds to print the latency percentiles, or 0 to print them only on stop
+  private final long latencyReportInterval;
+  // Path of the session file to capture the received messages to, or null if not capturing
+  private final String capturePath;
+  // Endpoint serving the metrics to scrape, or null if disabled
+  private final MetricsServer metricsServer;
   private Future taskSchedulerFuture;
   private Future networkServerFuture;
 
-  public EdgeServer(int port, int numThreads, int numClients, int algorithmId, String savePath) throws UnknownHostException {
-    this.port = port;
-    this.numThreads = numThreads;
-    this.numClients = numClients;
-    this.algorithmId = algorithmId;
-    this.savePath = savePath;
-    BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();  // TODO: use Singleton Pattern
+  public EdgeServer(Config config) throws IOException {
+    this.port = config.port;
+    this.numThreads = config.numThread;
+    this.numClients = config.numClient;
+    this.algorithmId = config.algorithmId;
+    this.savePath = config.savePath;
+    this.tracePath = config.tracePath;
+    this.latencyReportInterval = config.latencyReportInterval;
+    this.capturePath = config.capturePath;
+    BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(config.bandwidthPredictor);  // TODO: use Singleton Pattern
     SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, algorithmId, savePath);
-    scheduler = TaskScheduler.getInstance(numThreads, sensorDataHandler);
-    VehicleMessageHandler vehicleMessageHandler = new VehicleMessageHandlerImpl(scheduler, sensorDataHandler, bandwidthEstimator);
-    networkServer = new NonBlockingNetworkServer(port, numClients, vehicleMessageHandler);
+    Map<TaskType, Integer> numThreadsMap = new EnumMap<>(TaskType.class);
+    numThreadsMap.put(TaskType.LOCATION_UPDATING, config.numLocationThread);
+    numThreadsMap.put(TaskType.DECODING, config.numThread);
+    numThreadsMap.put(TaskType.MERGING, config.numMergingThread);
+    numThreadsMap.put(TaskType.OBJECT_DETECTION, config.numDetectionThread);
+    scheduler = TaskScheduler.getInstance(numThreadsMap, config.queueCapacity, sensorDataHandler);
+    mergePool = (config.mergeParallelism > 0) ? new ForkJoinPool(config.mergeParallelism) : null;
+    MergingTask.setMergePool(mergePool);
+    TaskScheduler taskScheduler = scheduler;
+    // Each I/O thread of the network server gets its own message handler
+    networkServer = new NonBlockingNetworkServer(port, numClients, config.maxNumConnections, config.numIoThread,
+        () -> new VehicleMessageHandlerImpl(taskScheduler, sensorDataHandler, bandwidthEstimator));
     sensorDataHandler.setNetworkServer(networkServer);
+    // Stop reading from vehicles when the pipeline falls behind, and resume once it catches up
+    scheduler.setBackpressureListener(config.highWatermark, config.lowWatermark, new BackpressureListener() {
+      @Override
+      public void onHighWatermark() {
+        networkServer.pauseReading();
+      }
+
+      @Override
+      public void onLowWatermark() {
+        networkServer.resumeReading();
+      }
+    });
+    metricsServer = (config.metricsPort > 0) ? new MetricsServer(config.metricsPort, scheduler, networkServer,
+        sensorDataHandler, bandwidthEstimator, SensorDataHandler.statHandler) : null;
   }
 
   public static void main(String[] args) throws Exception {
     final Config config = new Config();
     JCommander.newBuilder().addObject(config).build().parse(args);
-    int port = config.port;
-    int numThread = config.numThread;
-    int numClient = config.numClient;
-    int algorithmId = config.algorithmId;
-    String savePath = config.savePath;
-    EdgeServer server = new EdgeServer(port, numThread, numClient, algorithmId, savePath);
+    EdgeServer server = new EdgeServer(config);
     server.start();
 
     CountDownLatch terminateSignal = new CountDownLatch(1);
@@ -73,16 +113,31 @@ public class EdgeServer {
     server.stop();
   }
 
-  public void start() {
+  public void start() throws IOException {
+    if (tracePath != null) {
+      SensorDataHandler.statHandler.startTrace(tracePath);
+    }
+    if (latencyReportInterval > 0) {
+      SensorDataHandler.statHandler.startLatencyReport(latencyReportInterval);
+    }
+    if (capturePath != null) {
+      networkServer.startCapture(capturePath);
+    }
     // Start task scheduler to schedule data processing tasks
     taskSchedulerFuture = executor.submit(scheduler);
     // Start network server to receive data from vehicles
     networkServerFuture = executor.submit(networkServer);
+    if (metricsServer != null) {
+      metricsServer.start();
+    }
     LOGGER.info("Server running on port " + port + ", with " + numThreads + " threads ...");
   }
 
   public void stop() {
     LOGGER.info("Stopping server ...");
+    if (metricsServer != null) {
+      metricsServer.stop();
+    }
     networkServer.stopRunning();
     scheduler.stopRunning();
     while (!networkServerFuture.isDone() || !taskSchedulerFuture.isDone()) {
@@ -92,6 +147,11 @@ public class EdgeServer {
         e.printStackTrace();
       }
     }
+    if (mergePool != null) {
+      mergePool.shutdown();
+    }
+    SensorDataHandler.statHandler.printEdgeStats();
+    SensorDataHandler.statHandler.saveEdgeStats();
     LOGGER.info("Server stopped.");
   }
 
@@ -104,10 +164,70 @@ public class EdgeServer {
 
     @Parameter(
         names = {"--threads", "-t"},
-        description = "Number of threads to use for running pipeline tasks"
+        description = "Number of threads to use for running decoding tasks"
     )
     public int numThread = 16;
 
+    @Parameter(
+        names = {"--location-threads", "-tl"},
+        description = "Number of threads to use for running location updating tasks"
+    )
+    public int numLocationThread = 2;
+
+    @Parameter(
+        names = {"--merging-threads", "-tm"},
+        description = "Number of threads to use for running merging tasks"
+    )
+    public int numMergingThread = 4;
+
+    @Parameter(
+        names = {"--detection-threads", "-to"},
+        description = "Number of threads to use for running object detection tasks"
+    )
+    public int numDetectionThread = 1;
+
+    @Parameter(
+        names = {"--queue-capacity", "-q"},
+        description = "Capacity of the task queue of each pipeline stage"
+    )
+    public int queueCapacity = TaskScheduler.DEFAULT_QUEUE_CAPACITY;
+
+    @Parameter(
+        names = {"--high-watermark", "-hw"},
+        description = "Queue depth of a pipeline stage at which the server stops reading from vehicles"
+    )
+    public int highWatermark = 256;
+
+    @Parameter(
+        names = {"--low-watermark", "-lw"},
+        description = "Queue depth of all pipeline stages at which the server resumes reading from vehicles"
+    )
+    public int lowWatermark = 64;
+
+    @Parameter(
+        names = {"--max-connections", "-mc"},
+        description = "Max number of open vehicle connections, at least the number of clients"
+    )
+    public int maxNumConnections = NonBlockingNetworkServer.DEFAULT_MAX_NUM_CONNECTIONS;
+
+    @Parameter(
+        names = {"--io-threads", "-io"},
+        description = "Number of network I/O threads, among which vehicle connections are distributed"
+    )
+    public int numIoThread = 1;
+
+    @Parameter(
+        names = {"--merge-parallelism", "-mp"},
+        description = "Number of threads to merge point clouds of a frame in parallel (0 to disable)"
+    )
+    public int mergeParallelism = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+        names = {"--bandwidth-predictor", "-bp"},
+        description = "Predictor of vehicle bandwidth for partitioning (naive, ewma, harmonic, rls, holt-winters)"
+    )
+    public String bandwidthPredictor = BandwidthPredictors.NAIVE;
+
     @Parameter(
             names = {"--algorithm", "-a"},
             description = "Index of partitioning algorithm to use"
@@ -126,6 +246,30 @@ public class EdgeServer {
     )
     public String savePath = null;
 
+    @Parameter(
+        names = {"--trace", "-tr"},
+        description = "Path of the binary trace file to write statistics to (read it with StatTraceReader)"
+    )
+    public String tracePath = null;
+
+    @Parameter(
+        names = {"--latency-report-interval", "-lri"},
+        description = "Interval in seconds to print the latency percentiles of the pipeline stages (0: only on stop)"
+    )
+    public long latencyReportInterval = 10;
+
+    @Parameter(
+        names = {"--metrics-port", "-mtp"},
+        description = "Port to serve the metrics on in the Prometheus text format (0 to disable)"
+    )
+    public int metricsPort = 0;
+
+    @Parameter(
+        names = {"--capture", "-cap"},
+        description = "Path of the session file to capture the received messages to (replay it with SessionReplayer)"
+    )
+    public String capturePath = null;
+
     @Parameter(
         names = {"--help", "-h"},
         help = true
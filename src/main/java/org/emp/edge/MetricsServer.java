@@ -0,0 +1,186 @@
+package org.emp.edge;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.data.LatencyStage;
+import org.emp.data.SensorDataHandler;
+import org.emp.data.StatHandler;
+import org.emp.network.BandwidthEstimator;
+import org.emp.network.NonBlockingNetworkServer;
+import org.emp.network.NonBlockingNetworkServer.ConnectionStats;
+import org.emp.task.Task.TaskType;
+import org.emp.task.TaskScheduler;
+import org.emp.utils.LatencyHistogram;
+
+/**
+ * An embedded HTTP endpoint serving the live state of the edge server in the Prometheus text format
+ *
+ * <p> The metrics are read from the components on each scrape, so serving them costs the pipeline
+ * nothing between scrapes.  Rates (e.g., bytes per second of a socket, frames per second) are
+ * exposed as counters, from which Prometheus computes them with {@code rate()}.
+ *
+ * To scrape the metrics:
+ * curl http://[edge address]:[metrics port]/metrics
+ */
+public class MetricsServer {
+  private static final Logger LOGGER = LogManager.getLogger(MetricsServer.class);
+  private static final String PATH = "/metrics";
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  // Quantiles of the stage latencies to expose
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+  private final TaskScheduler scheduler;
+  private final NonBlockingNetworkServer networkServer;
+  private final SensorDataHandler sensorDataHandler;
+  private final BandwidthEstimator bandwidthEstimator;
+  private final StatHandler statHandler;
+
+  /**
+   * Binds the endpoint to the port.  Metrics are served once {@link #start()} is called.
+   *
+   * @param port  Port to serve the metrics on, or 0 for any free port.
+   */
+  public MetricsServer(int port, TaskScheduler scheduler, NonBlockingNetworkServer networkServer,
+                       SensorDataHandler sensorDataHandler, BandwidthEstimator bandwidthEstimator,
+                       StatHandler statHandler) throws IOException {
+    this.scheduler = scheduler;
+    this.networkServer = networkServer;
+    this.sensorDataHandler = sensorDataHandler;
+    this.bandwidthEstimator = bandwidthEstimator;
+    this.statHandler = statHandler;
+    httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+    httpServer.createContext(PATH, this::handle);
+    // Scrapes are served one at a time, on a thread that does not keep the JVM alive
+    executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-server");
+      thread.setDaemon(true);
+      return thread;
+    });
+    httpServer.setExecutor(executor);
+  }
+
+  public void start() {
+    httpServer.start();
+    LOGGER.info("Metrics served on port " + getPort() + PATH);
+  }
+
+  public void stop() {
+    httpServer.stop(0);
+    executor.shutdown();
+  }
+
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return  The current metrics in the Prometheus text format.
+   */
+  String scrape() {
+    StringBuilder builder = new StringBuilder();
+
+    writeHeader(builder, "emp_task_queue_depth", "gauge", "Number of tasks waiting in the queue of a stage");
+    for (Map.Entry<TaskType, Integer> entry : scheduler.getQueueDepths().entrySet()) {
+      writeSample(builder, "emp_task_queue_depth", "stage", getStageName(entry.getKey()), entry.getValue());
+    }
+    writeHeader(builder, "emp_pending_tasks", "gauge", "Number of tasks submitted but not finished");
+    writeSample(builder, "emp_pending_tasks", scheduler.getNumPendingTasks());
+    writeHeader(builder, "emp_network_read_paused", "gauge", "1 if reading from vehicles is paused by backpressure");
+    writeSample(builder, "emp_network_read_paused", networkServer.isReadPaused() ? 1 : 0);
+
+    // One snapshot, so both counters cover the same open connections
+    List<ConnectionStats> connectionStats = networkServer.getConnectionStats();
+    writeHeader(builder, "emp_socket_received_bytes_total", "counter", "Bytes read from the socket of a vehicle");
+    for (ConnectionStats stats : connectionStats) {
+      writeSocketSample(builder, "emp_socket_received_bytes_total", stats, stats.numBytesRead);
+    }
+    writeHeader(builder, "emp_socket_sent_bytes_total", "counter", "Bytes written to the socket of a vehicle");
+    for (ConnectionStats stats : connectionStats) {
+      writeSocketSample(builder, "emp_socket_sent_bytes_total", stats, stats.numBytesWritten);
+    }
+
+    writeHeader(builder, "emp_vehicle_estimated_bandwidth_bps", "gauge",
+        "Bandwidth of a vehicle predicted by the default predictor, in bits per second");
+    for (int vehicleId : bandwidthEstimator.getClientIDs()) {
+      int estimatedKbps = bandwidthEstimator.getEstimatedBW(vehicleId);
+      if (estimatedKbps >= 0) {
+        writeSample(builder, "emp_vehicle_estimated_bandwidth_bps", "vehicle", String.valueOf(vehicleId),
+            estimatedKbps * 1000L);
+      }
+    }
+
+    writeHeader(builder, "emp_frames_completed_total", "counter", "Number of frames completed");
+    writeSample(builder, "emp_frames_completed_total", sensorDataHandler.getNumFramesCompleted());
+
+    writeHeader(builder, "emp_stage_latency_seconds", "summary", "Latency of a stage of the edge pipeline");
+    for (LatencyStage stage : LatencyStage.values()) {
+      LatencyHistogram histogram = statHandler.getLatencyHistogram(stage);
+      String labels = "stage=\"" + stage.getName() + "\"";
+      for (double quantile : QUANTILES) {
+        builder.append("emp_stage_latency_seconds{").append(labels).append(",quantile=\"").append(quantile)
+            .append("\"} ").append(toSeconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+      }
+      builder.append("emp_stage_latency_seconds_sum{").append(labels).append("} ")
+          .append(toSeconds(histogram.getTotalSum())).append('\n');
+      builder.append("emp_stage_latency_seconds_count{").append(labels).append("} ")
+          .append(histogram.getTotalCount()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static void writeSocketSample(StringBuilder builder, String name, ConnectionStats stats, long value) {
+    builder.append(name).append("{socket=\"").append(stats.connectionId).append("\",vehicle=\"")
+        .append(stats.vehicleId).append("\"} ").append(value).append('\n');
+  }
+
+  private static void writeHeader(StringBuilder builder, String name, String type, String help) {
+    builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeSample(StringBuilder builder, String name, long value) {
+    builder.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void writeSample(StringBuilder builder, String name, String label, String labelValue, long value) {
+    builder.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+        .append(value).append('\n');
+  }
+
+  private static String getStageName(TaskType taskType) {
+    return taskType.name().toLowerCase();
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / 1e9;
+  }
+}
@@ -1,7 +1,10 @@
 package org.emp.edge;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.apache.commons.lang3.ArrayUtils;
 
 public class PtClMerger {
@@ -74,6 +77,18 @@ public class PtClMerger {
         return translation;
     }
 
+    // rigid transform (to the perspective of oxts1) as a row-major 3x4 matrix [R | t],
+    // computed once per pair of vehicles and applied to every point by transformPoints
+    float[] rigidTransform(float[] oxts1, float[] oxts2) {
+        float[] rotation = rotate(oxts1, oxts2, false);
+        float[] translation = translate(oxts1, oxts2);
+        return new float[] {
+            rotation[0], rotation[1], rotation[2], translation[0],
+            rotation[4], rotation[5], rotation[6], translation[1],
+            rotation[8], rotation[9], rotation[10], translation[2]
+        };
+    }
+
     public float[] naiveMerge(float[] pointsPrimary, float[] oxtsPrimary,
         List<float[]> pointsSecondary, List<float[]> oxtsSecondary) {
 
@@ -87,9 +102,9 @@ public class PtClMerger {
         float[] concated = pointsPrimary;
 
         for(int i = 0; i < pointsSecondary.size(); i++){
-            float[] rotationT = rotate(oxtsPrimary, oxtsSecondary.get(i), true);
-            float[] translation = translate(oxtsPrimary, oxtsSecondary.get(i));
-            float[] result = matrixMulAdd(pointsSecondary.get(i), pointsSecondary.get(i).length/4, 4, rotationT, 4, 4, translation);
+            float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary.get(i));
+            float[] result = new float[pointsSecondary.get(i).length];
+            transformPoints(pointsSecondary.get(i), 0, pointsSecondary.get(i).length / 4, transform, result, 0);
             concated = ArrayUtils.addAll(concated, result);
         }
 
@@ -101,9 +116,9 @@ public class PtClMerger {
         float[] concated = new float[0];
 
         for(int i = 0; i < pointsSecondary.size(); i++) {
-            float[] rotationT = rotate(oxtsPrimary, oxtsSecondary.get(i), true);
-            float[] translation = translate(oxtsPrimary, oxtsSecondary.get(i));
-            float[] result = matrixMulAdd(pointsSecondary.get(i), pointsSecondary.get(i).length / 4, 4, rotationT, 4, 4, translation);
+            float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary.get(i));
+            float[] result = new float[pointsSecondary.get(i).length];
+            transformPoints(pointsSecondary.get(i), 0, pointsSecondary.get(i).length / 4, transform, result, 0);
             concated = ArrayUtils.addAll(concated, result);
         }
 
@@ -122,15 +137,12 @@ public class PtClMerger {
         FloatBuffer concated = FloatBuffer.allocate(totalSize*4);
         int offset = 0;
 
-        for (float point : pointsPrimary) {
-            concated.put(point);
-        }
+        concated.put(pointsPrimary);
         offset += pointsPrimary.length;
 
         for(int i = 0; i < pointsSecondary.size(); i++){
-            float[] rotationT = rotate(oxtsPrimary, oxtsSecondary.get(i), true);
-            float[] translation = translate(oxtsPrimary, oxtsSecondary.get(i));
-            matrixMulAddFB(pointsSecondary.get(i), pointsSecondary.get(i).length/4, 4, rotationT, 4, 4, translation, concated, offset);
+            float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary.get(i));
+            transformPoints(pointsSecondary.get(i), 0, pointsSecondary.get(i).length/4, transform, concated, offset);
             offset += pointsSecondary.get(i).length;
         }
 
@@ -141,15 +153,93 @@ public class PtClMerger {
 
         for(int i = 0; i < pointsSecondary.size(); i++){
             // System.out.println("offset: "+ offset);
-            float[] rotationT = rotate(oxtsPrimary, oxtsSecondary.get(i), true);
-            float[] translation = translate(oxtsPrimary, oxtsSecondary.get(i));
-            matrixMulAddFB(pointsSecondary.get(i), pointsSecondary.get(i).length/4, 4, rotationT, 4, 4, translation, result, offset);
+            float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary.get(i));
+            transformPoints(pointsSecondary.get(i), 0, pointsSecondary.get(i).length/4, transform, result, offset);
             offset += pointsSecondary.get(i).length;
         }
 
         return offset;
     }
 
+    /**
+     * Merges a secondary point cloud that is already in its region of the result (e.g., decoded
+     * straight into it), by transforming the points in place.
+     *
+     * @param offset  Index in {@code result} of the first point.
+     * @param size  Number of floats of the points.
+     */
+    public void fbMergeInPlace(float[] oxtsPrimary, float[] oxtsSecondary, FloatBuffer result, int offset, int size) {
+        float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary);
+        transformPoints(result, offset, size / 4, transform);
+    }
+
+    /**
+     * Same as {@link #fbMergeNoPrimary(float[], List, List, FloatBuffer, int)}, but the points are
+     * transformed in parallel.  Each secondary point cloud is split into ranges of points, which
+     * are transformed by the fork-join pool into disjoint regions of the result.  The calling thread
+     * waits until all the points are merged.
+     *
+     * @param pool  Fork-join pool to transform the points.
+     * @return  The offset after the merged points.
+     */
+    public int fbMergeNoPrimary(float[] oxtsPrimary, List<float[]> pointsSecondary, List<float[]> oxtsSecondary,
+                                FloatBuffer result, int offset, ForkJoinPool pool) {
+        List<TransformAction> actions = new ArrayList<>();
+        for(int i = 0; i < pointsSecondary.size(); i++){
+            float[] transform = rigidTransform(oxtsPrimary, oxtsSecondary.get(i));
+            float[] points = pointsSecondary.get(i);
+            actions.add(new TransformAction(points, 0, points.length/4, transform, result, offset));
+            offset += points.length;
+        }
+        if (offset > result.limit()) {
+            throw new IndexOutOfBoundsException("Cannot merge up to " + offset + " into buffer of limit " + result.limit());
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(actions);
+            }
+        });
+        return offset;
+    }
+
+    // Max number of points transformed by one fork-join task
+    private static final int MAX_POINTS_PER_TASK = 16384;
+
+    /**
+     * Transforms a range of points, splitting it in halves until each part is small enough
+     */
+    private static class TransformAction extends RecursiveAction {
+        private final float[] src;
+        private final int srcOffset;
+        private final int numPoints;
+        private final float[] transform;
+        private final FloatBuffer dst;
+        private final int dstOffset;
+
+        TransformAction(float[] src, int srcOffset, int numPoints, float[] transform, FloatBuffer dst, int dstOffset) {
+            this.src = src;
+            this.srcOffset = srcOffset;
+            this.numPoints = numPoints;
+            this.transform = transform;
+            this.dst = dst;
+            this.dstOffset = dstOffset;
+        }
+
+        @Override
+        protected void compute() {
+            if (numPoints <= MAX_POINTS_PER_TASK) {
+                transformPoints(src, srcOffset, numPoints, transform, dst, dstOffset);
+                return;
+            }
+            int half = numPoints / 2;
+            invokeAll(
+                new TransformAction(src, srcOffset, half, transform, dst, dstOffset),
+                new TransformAction(src, srcOffset + half * 4, numPoints - half, transform, dst, dstOffset + half * 4));
+        }
+    }
+
     private float[] matrixMultiplication(float[] matA, int rowA, int colA, float[] matB, int rowB, int colB){
         float[] result = new float[rowA*colB];
 
@@ -166,32 +256,98 @@ public class PtClMerger {
         return result;
     }
 
-    private float[] matrixMulAdd(float[] matA, int rowA, int colA, float[] matB, int rowB, int colB, float[] matC){
-        float[] result = new float[rowA*colB];
+    // Number of floats transformed at a time before copying them to a buffer without a backing array
+    private static final int TRANSFORM_BLOCK_FLOATS = 4096;
+
+    /**
+     * Applies a rigid transform to the points: (x, y, z) is rotated and translated, and the
+     * intensity is copied unchanged.
+     *
+     * @param src  Points of four floats (x, y, z, intensity) each.
+     * @param srcOffset  Index in {@code src} of the first point.
+     * @param numPoints  Number of points to transform.
+     * @param transform  Row-major 3x4 matrix [R | t] from {@link #rigidTransform}.
+     * @param dst  Array to write the transformed points to.
+     * @param dstOffset  Index in {@code dst} of the first transformed point.
+     */
+    static void transformPoints(float[] src, int srcOffset, int numPoints, float[] transform,
+                                float[] dst, int dstOffset) {
+        final float r00 = transform[0], r01 = transform[1], r02 = transform[2], tx = transform[3];
+        final float r10 = transform[4], r11 = transform[5], r12 = transform[6], ty = transform[7];
+        final float r20 = transform[8], r21 = transform[9], r22 = transform[10], tz = transform[11];
+
+        int end = srcOffset + numPoints * 4;
+        for (int s = srcOffset, d = dstOffset; s < end; s += 4, d += 4) {
+            float x = src[s];
+            float y = src[s + 1];
+            float z = src[s + 2];
+            dst[d] = x * r00 + y * r01 + z * r02 + tx;
+            dst[d + 1] = x * r10 + y * r11 + z * r12 + ty;
+            dst[d + 2] = x * r20 + y * r21 + z * r22 + tz;
+            dst[d + 3] = src[s + 3];
+        }
+    }
 
-        for(int i = 0; i < rowA; i++){
-            for(int j = 0; j < colB; j++){
-                float temp = 0.0f;
-                for(int k = 0; k < colA; k++){
-                    temp += matA[i*colA+k] * matB[k*colB+j];
-                }
-                result[i*colB+j] = temp + matC[j];
-            }
+    /**
+     * Applies a rigid transform to the points and writes them to a buffer, e.g., a merged point
+     * cloud.  See {@link #transformPoints(float[], int, int, float[], float[], int)}.
+     *
+     * @param dst  Buffer to write the transformed points to.  Its position is not changed.
+     * @param dstOffset  Index in {@code dst} of the first transformed point.
+     */
+    static void transformPoints(float[] src, int srcOffset, int numPoints, float[] transform,
+                                FloatBuffer dst, int dstOffset) {
+        if (dstOffset + numPoints * 4 > dst.limit()) {
+            throw new IndexOutOfBoundsException(
+                "Cannot write " + numPoints + " points at " + dstOffset + " to buffer of limit " + dst.limit());
+        }
+        if (dst.hasArray()) {
+            transformPoints(src, srcOffset, numPoints, transform, dst.array(), dst.arrayOffset() + dstOffset);
+            return;
         }
 
-        return result;
+        // Transform a block into an array, then copy it to the buffer in bulk
+        float[] block = new float[Math.min(TRANSFORM_BLOCK_FLOATS, numPoints * 4)];
+        FloatBuffer region = dst.duplicate();
+        region.position(dstOffset);
+        int blockPoints = block.length / 4;
+        for (int i = 0; i < numPoints; i += blockPoints) {
+            int n = Math.min(blockPoints, numPoints - i);
+            transformPoints(src, srcOffset + i * 4, n, transform, block, 0);
+            region.put(block, 0, n * 4);
+        }
     }
 
-    private void matrixMulAddFB(float[] matA, int rowA, int colA, float[] matB, int rowB, int colB, float[] matC, FloatBuffer fb, int offset){
-        for(int i = 0; i < rowA; i++){
-            for(int j = 0; j < colB; j++){
-                float temp = 0.0f;
-                for(int k = 0; k < colA; k++){
-                    temp += matA[i*colA+k] * matB[k*colB+j];
-                }
-                // result[i*colB+j] = temp + matC[j];
-                fb.put(offset+i*colB+j, temp + matC[j]);
-            }
+    /**
+     * Applies a rigid transform to the points in a buffer in place.  See
+     * {@link #transformPoints(float[], int, int, float[], float[], int)}.
+     *
+     * @param points  Buffer of the points.  Its position is not changed.
+     * @param offset  Index in {@code points} of the first point.
+     */
+    static void transformPoints(FloatBuffer points, int offset, int numPoints, float[] transform) {
+        if (offset + numPoints * 4 > points.limit()) {
+            throw new IndexOutOfBoundsException(
+                "Cannot transform " + numPoints + " points at " + offset + " in buffer of limit " + points.limit());
+        }
+        if (points.hasArray()) {
+            // Each point is read before it is written, so the array can be both source and destination
+            int arrayOffset = points.arrayOffset() + offset;
+            transformPoints(points.array(), arrayOffset, numPoints, transform, points.array(), arrayOffset);
+            return;
+        }
+
+        // Copy a block into an array, transform it there, then copy it back in bulk
+        float[] block = new float[Math.min(TRANSFORM_BLOCK_FLOATS, numPoints * 4)];
+        FloatBuffer region = points.duplicate();
+        int blockPoints = block.length / 4;
+        for (int i = 0; i < numPoints; i += blockPoints) {
+            int n = Math.min(blockPoints, numPoints - i);
+            region.position(offset + i * 4);
+            region.get(block, 0, n * 4);
+            transformPoints(block, 0, n, transform, block, 0);
+            region.position(offset + i * 4);
+            region.put(block, 0, n * 4);
         }
     }
-}
\ No newline at end of file
+}
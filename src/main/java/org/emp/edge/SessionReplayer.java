@@ -0,0 +1,275 @@
+package org.emp.edge;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.data.EmpReapSensorDataHandler;
+import org.emp.data.SensorDataHandler;
+import org.emp.data.VehicleMessageHandler;
+import org.emp.data.VehicleMessageHandlerImpl;
+import org.emp.network.BandwidthEstimator;
+import org.emp.network.BandwidthPredictors;
+import org.emp.network.NonBlockingNetworkServer;
+import org.emp.network.SessionReader;
+import org.emp.task.BackpressureListener;
+import org.emp.task.TaskScheduler;
+
+/**
+ * A driver that replays a session captured by {@code EdgeServer} (with {@code --capture}) into the
+ * edge pipeline in-process, to profile or regression-test the edge without network or dataset
+ *
+ * <p> Each recorded connection gets a receive buffer of its own.  A message is fed to the handler
+ * in two reads, its header when its first byte was read and the rest when it was complete, so the
+ * handler sees the same partial messages (and the bandwidth estimator the same chunk durations) as
+ * when it was recorded.  At recorded speed, each read is delayed to the same offset from the first
+ * read of the replay as from the first read of the recording; otherwise, messages are fed as fast
+ * as possible.  Feeding is paused while the pipeline is overloaded, as the edge server pauses
+ * reading from sockets.  Messages the pipeline sends to vehicles are discarded.
+ *
+ * To replay a session:
+ * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
+ *    -cp build/libs/emp-1.0.jar org.emp.edge.SessionReplayer \
+ *    -f [session file] -c [numClients] (-r) (-t [numThreads] -a [algorithm index] -bp [predictor])
+ */
+public class SessionReplayer implements BackpressureListener {
+  private static final Logger LOGGER = LogManager.getLogger(SessionReplayer.class);
+  // Initial receive buffer size for each recorded connection
+  private static final int INITIAL_BUFFER_CAPACITY = 512 * 1024; // 512KB
+
+  private final VehicleMessageHandler vehicleMessageHandler;
+  // Connection index -> receive buffer of the connection
+  private final Map<Integer, ByteBuffer> receiveByteBuffers = new HashMap<>();
+  // Number of bytes fed to the handler so far
+  private long numBytesReplayed;
+  // Whether feeding is paused as the pipeline is overloaded
+  private boolean isPaused;
+  private final Object pauseLock = new Object();
+
+  public SessionReplayer(VehicleMessageHandler vehicleMessageHandler) {
+    this.vehicleMessageHandler = vehicleMessageHandler;
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Config config = new Config();
+    JCommander.newBuilder().addObject(config).build().parse(args);
+
+    BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(config.bandwidthPredictor);
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, config.algorithmId, null);
+    DiscardingNetworkServer networkServer = new DiscardingNetworkServer(config.numClient);
+    sensorDataHandler.setNetworkServer(networkServer);
+    TaskScheduler scheduler = TaskScheduler.getInstance(config.numThread, sensorDataHandler);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future schedulerFuture = executor.submit(scheduler);
+    SessionReplayer replayer = new SessionReplayer(
+        new VehicleMessageHandlerImpl(scheduler, sensorDataHandler, bandwidthEstimator));
+    scheduler.setBackpressureListener(config.highWatermark, config.lowWatermark, replayer);
+
+    long startNanos = System.nanoTime();
+    long numMessages;
+    try (SessionReader reader = new SessionReader(Paths.get(config.sessionPath))) {
+      numMessages = replayer.replay(reader, config.atRecordedSpeed);
+    }
+    // Wait for the pipeline to finish the replayed messages
+    scheduler.stopRunning();
+    schedulerFuture.get();
+    executor.shutdown();
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    long numFrames = sensorDataHandler.getNumFramesCompleted();
+    LOGGER.info(String.format("Replayed %d messages (%d bytes) in %.3f s: %d frames completed, %.2f fps, "
+            + "%d messages to vehicles discarded", numMessages, replayer.getNumBytesReplayed(), seconds,
+        numFrames, numFrames / seconds, networkServer.getNumDiscarded()));
+    SensorDataHandler.statHandler.printEdgeStats();
+  }
+
+  /**
+   * Feeds the messages of a session to the handler on the calling thread.
+   *
+   * @param atRecordedSpeed  Whether to keep the recorded timing, or feed as fast as possible.
+   * @return  Number of messages replayed.
+   */
+  public long replay(SessionReader reader, boolean atRecordedSpeed) throws IOException {
+    long numMessages = 0;
+    // Offset of the recorded nanoTimes from the replay
+    long timeOffset = 0;
+    while (reader.next()) {
+      if (numMessages == 0) {
+        timeOffset = System.nanoTime() - reader.getFirstByteNanos();
+      }
+      ByteBuffer message = reader.getMessage();
+      ByteBuffer byteBuffer = getReceiveByteBuffer(reader.getConnectionIndex(), message.remaining());
+      int headerBytes = Math.min(VehicleMessageHandlerImpl.HEADER_BYTES, message.remaining());
+
+      awaitResumed();
+      if (atRecordedSpeed) {
+        waitUntil(reader.getFirstByteNanos() + timeOffset);
+      }
+      message.limit(headerBytes);
+      byteBuffer.put(message);
+      vehicleMessageHandler.handle(byteBuffer);
+
+      if (atRecordedSpeed) {
+        waitUntil(reader.getArrivalNanos() + timeOffset);
+      }
+      message.limit(message.capacity());
+      byteBuffer.put(message);
+      vehicleMessageHandler.handle(byteBuffer);
+
+      numBytesReplayed += message.capacity();
+      numMessages++;
+    }
+    return numMessages;
+  }
+
+  public long getNumBytesReplayed() {
+    return numBytesReplayed;
+  }
+
+  @Override
+  public void onHighWatermark() {
+    synchronized (pauseLock) {
+      isPaused = true;
+    }
+  }
+
+  @Override
+  public void onLowWatermark() {
+    synchronized (pauseLock) {
+      isPaused = false;
+      pauseLock.notifyAll();
+    }
+  }
+
+  private void awaitResumed() throws InterruptedIOException {
+    synchronized (pauseLock) {
+      while (isPaused) {
+        try {
+          pauseLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while the pipeline is overloaded");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return  The receive buffer of the connection, grown if needed to take a message of the length
+   *          after the partial message it holds.
+   */
+  private ByteBuffer getReceiveByteBuffer(int connectionIndex, int length) {
+    ByteBuffer byteBuffer = receiveByteBuffers.get(connectionIndex);
+    if (byteBuffer == null || byteBuffer.remaining() < length) {
+      int position = (byteBuffer == null) ? 0 : byteBuffer.position();
+      int capacity = INITIAL_BUFFER_CAPACITY;
+      while (capacity < position + length) {
+        capacity *= 2;
+      }
+      ByteBuffer grownByteBuffer = ByteBuffer.allocateDirect(capacity);
+      if (byteBuffer != null) {
+        byteBuffer.flip();
+        grownByteBuffer.put(byteBuffer);
+      }
+      byteBuffer = grownByteBuffer;
+      receiveByteBuffers.put(connectionIndex, byteBuffer);
+    }
+    return byteBuffer;
+  }
+
+  private static void waitUntil(long nanoTime) {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+
+  /**
+   * A network server that is never run, which discards the messages the pipeline sends to vehicles
+   */
+  private static class DiscardingNetworkServer extends NonBlockingNetworkServer {
+    private final AtomicLong numDiscarded = new AtomicLong();
+
+    DiscardingNetworkServer(int numClients) throws UnknownHostException {
+      super(0, numClients, (VehicleMessageHandler) null);
+    }
+
+    @Override
+    public void putDataToSendByteBufferQueue(int vehicleId, byte[] data) {
+      numDiscarded.incrementAndGet();
+    }
+
+    long getNumDiscarded() {
+      return numDiscarded.get();
+    }
+  }
+
+  static class Config {
+    @Parameter(
+        names = {"--file", "-f"},
+        description = "Path of the session file captured by the edge server",
+        required = true
+    )
+    public String sessionPath;
+
+    @Parameter(
+        names = {"--recorded-speed", "-r"},
+        description = "Replay at the recorded speed instead of as fast as possible"
+    )
+    public boolean atRecordedSpeed = false;
+
+    @Parameter(
+        names = {"--clients", "-c"},
+        description = "Number of vehicles in the session"
+    )
+    public int numClient = 1;
+
+    @Parameter(
+        names = {"--threads", "-t"},
+        description = "Number of threads for each type of tasks"
+    )
+    public int numThread = 1;
+
+    @Parameter(
+        names = {"--high-watermark", "-hw"},
+        description = "Queue depth of a pipeline stage at which feeding is paused"
+    )
+    public int highWatermark = 256;
+
+    @Parameter(
+        names = {"--low-watermark", "-lw"},
+        description = "Queue depth of all pipeline stages at which feeding is resumed"
+    )
+    public int lowWatermark = 64;
+
+    @Parameter(
+        names = {"--algorithm", "-a"},
+        description = "Index of partitioning algorithm to use"
+    )
+    public int algorithmId = 1;
+
+    @Parameter(
+        names = {"--bandwidth-predictor", "-bp"},
+        description = "Predictor of vehicle bandwidth for partitioning (naive, ewma, harmonic, rls, holt-winters)"
+    )
+    public String bandwidthPredictor = BandwidthPredictors.NAIVE;
+
+    @Parameter(
+        names = {"--help", "-h"},
+        help = true
+    )
+    public Boolean help = false;
+  }
+}
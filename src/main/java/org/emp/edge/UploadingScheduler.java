@@ -2,6 +2,7 @@ package org.emp.edge;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.emp.data.FrameIds;
 import org.emp.data.StatHandler;
 import org.emp.data.VehicleState;
 
@@ -110,7 +111,7 @@ public class UploadingScheduler{
         LOGGER.debug("vehicle number: " + vehicleStateMap.keySet().size());
         for (Integer vehicleId : vehicleStateMap.keySet()) {
             int latestFrameId = vehicleStateMap.get(vehicleId).getLatestMergedFrameId();
-            if (latestFrameId >= frameId) {
+            if (latestFrameId >= 0 && FrameIds.isAtOrBefore(frameId, latestFrameId)) {
                 numReceived++;
             }
             else {
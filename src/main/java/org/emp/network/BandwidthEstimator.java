@@ -1,333 +1,260 @@
 package org.emp.network;
 
-import static java.lang.Math.min;
-
-import org.apache.commons.math3.util.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.emp.utils.LongRingTable;
 
 
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * A bandwidth estimation module that measures frame arrival time to predict future bandwidth
+ *
+ * <p> Each vehicle has a state object of its own, guarded by its own monitor, so the network server
+ * may call the estimator from multiple I/O threads and threads serving different vehicles never
+ * contend.  The chunk being received from a vehicle is tracked in its state, since a vehicle sends
+ * its chunks one after another on a single connection.  Updating it on a read is a few arithmetic
+ * operations and allocates nothing.
+ *
+ * <p> The bandwidth measured for each chunk is added to a window of the latest samples of the
+ * vehicle, from which a {@code BandwidthPredictor} selected by name predicts the bandwidth.  The
+ * predictors in {@code BandwidthPredictors} are registered by default, and more can be registered.
+ *
+ * <p> History is bounded: the measured bandwidth of a vehicle is kept in a ring of its latest
+ * {@code MAX_FRAME_HISTORY} chunks, where a new chunk overwrites the one {@code MAX_FRAME_HISTORY}
+ * chunks before it.  Memory therefore depends only on the number of vehicles, not on how long the
+ * server runs, and querying a chunk that has left the ring throws.
  */
 public class BandwidthEstimator {
 
     private static final Logger LOGGER = LogManager.getLogger(BandwidthEstimator.class);
-    // Measured bandwidth for each frame of each client in kbps
-    private Map<Integer, Map<Integer, Integer>> measuredBW;
-    // Timestamp and received size for starting receiving each frame of each client
-    private Map<Integer, Map<Integer, Pair<Long, Integer>>> startTimestamp;
-    // Timestamp for finishing receiving each frame of each client
-    private Map<Integer, Map<Integer, Long>> finishTimestamp;
-    // Expected size of each frame of each client
-    private Map<Integer, Map<Integer, Integer>> clientToFrame;
-    // The last frame received on each connection
-    private Map<Integer, Integer> lastFrame;
-    // The smoothed BW for each client
-    private Map<Integer, Integer> ewmaBW;
+    // Number of latest frames of each client to keep the measured BW of, a power of two
+    public static final int MAX_FRAME_HISTORY = 256;
+    // Vehicle IDs are 16 bits, as in the keys of the sensor data
+    private static final int MAX_CLIENT_ID = 0xFFFF;
     // Length of the moving averaging window
-    private int MOVING_AVERAGE_LEN = 25;
-    // Stores samples (BW, time) in moving average window
-    private BlockingQueue<Long[]> BWsamples;
-    // Time (in msec) adjustment reference for EWMA samples
-    private int MAX_WINDOW_TIME_IN_MS = 30000;
+    private static final int MOVING_AVERAGE_LEN = 25;
+    // Max time (in nsec) between the oldest and the latest sample in the window
+    private static final long MAX_WINDOW_TIME_IN_NS = 30000L * 1000000;
+    // Client ID -> state of the client, or null if nothing is received from it.  Replaced by a copy
+    // (under the lock of the estimator) whenever a client shows up.
+    private volatile ClientState[] clientStates;
+    // Name -> predictor
+    private final Map<String, BandwidthPredictor> predictors;
+    // Name of the predictor used by getEstimatedBW(clientID)
+    private final String defaultPredictor;
 
     public BandwidthEstimator() {
-        measuredBW = new HashMap<>();
-        startTimestamp = new HashMap<>();
-        finishTimestamp = new HashMap<>();
-        clientToFrame = new HashMap<>();
-        lastFrame = new HashMap<>();
-        ewmaBW = new HashMap<>();
-        BWsamples = new ArrayBlockingQueue<>(MOVING_AVERAGE_LEN);
-        LOGGER.info("Init BandwidthEstimator");
-    }
-
-    /**
-     * Called when a server reads data (partial or more than one frame) from socket buffers
-     *
-     * @param clientID the ID of the vehicle client
-     * @param frameSizeMap maps each frame to a list which is the partially received and total expected frame size
-     */
-    public void onReceiveData(int clientID, Map<Integer, List<Integer>> frameSizeMap) {
-        long currTime = System.currentTimeMillis();
-        for (Integer frameID : frameSizeMap.keySet()) {
-            int readSize = frameSizeMap.get(frameID).get(0);
-            int frameSize = frameSizeMap.get(frameID).get(1);
-            if (clientToFrame.containsKey(frameID)) {
-                clientToFrame.get(clientID).put(frameID, frameSizeMap.get(frameID).get(1));
-            } else {
-                Map<Integer, Integer> frameIdToSize = new HashMap<>();
-                frameIdToSize.put(frameID, frameSize);
-                clientToFrame.put(clientID, frameIdToSize);
-//                LOGGER.info(clientToFrame);
-            }
-
-            if (getStartTime(clientID, frameID) == -1) {
-                // new frame
-                setStartTime(clientID, frameID, currTime, readSize);
-            }
-
-            if (frameSizeMap.get(frameID).get(0).equals(frameSizeMap.get(frameID).get(1))) {
-                // if the received size is equals the expected size, the frame is done
-                if (frameID > getLastFrame(clientID)) {
-                    lastFrame.put(clientID, frameID);
-                }
-                setFinishTime(clientID, frameID, currTime);
-                measureBW(clientID, frameID);
-            }
-        }
+        this(BandwidthPredictors.NAIVE);
     }
 
     /**
-     * Bandwidth prediction (kbps) per measurement result
-     *
-     * @param clientID ID of the client
-     * @param algo algorithm used to predict bandwidth
+     * @param defaultPredictor name of the predictor used by {@link #getEstimatedBW(int)}
      */
-    public int getEstimatedBW(int clientID, String algo) {
-        int BW = -1;
-        switch (algo) {
-            case "naive":
-                // Naive approach: Use latest past to predict future
-                BW = getMeasuredBW(clientID, getLastFrame(clientID));
-                break;
-            case "ewma":
-                // exponentially weighted moving average
-                BW = ewmaBW.get(clientID);
-                break;
-            case "rls":
-                // TODO: Recursive least square
-                break;
-            default:
-                LOGGER.info("No such algo yet");
+    public BandwidthEstimator(String defaultPredictor) {
+        clientStates = new ClientState[16];
+        predictors = new ConcurrentHashMap<>();
+        registerPredictor(BandwidthPredictors.NAIVE, BandwidthPredictors.NAIVE_PREDICTOR);
+        registerPredictor(BandwidthPredictors.EWMA, BandwidthPredictors.EWMA_PREDICTOR);
+        registerPredictor(BandwidthPredictors.HARMONIC, BandwidthPredictors.HARMONIC_PREDICTOR);
+        registerPredictor(BandwidthPredictors.RLS, BandwidthPredictors.RLS_PREDICTOR);
+        registerPredictor(BandwidthPredictors.HOLT_WINTERS, BandwidthPredictors.HOLT_WINTERS_PREDICTOR);
+        if (!predictors.containsKey(defaultPredictor)) {
+            throw new IllegalArgumentException("No such bandwidth predictor: " + defaultPredictor);
         }
-        return BW;
+        this.defaultPredictor = defaultPredictor;
+        LOGGER.info("Init BandwidthEstimator with predictor " + defaultPredictor);
     }
 
     /**
-     * Bandwidth measurement (kbps) per frame timing
+     * Registers a predictor, replacing the one with the same name if any
      *
-     * @param clientID ID of the client
-     * @param frameID ID of the frame
+     * @param name name to select the predictor by
+     * @param predictor the predictor, which should keep no state between calls
      */
-    public void measureBW(int clientID, int frameID) {
-        long startTime = getStartTime(clientID, frameID);
-        long finishTime = getFinishTime(clientID, frameID);
-        long duration = finishTime - startTime;
-        int size = getFrameSize(clientID, frameID) - getStartSize(clientID, frameID);
-//        LOGGER.info(size + " " + duration + " " + startTime + " " + finishTime);
-        if (duration > 0 /*duration > 10 && size > 50*/) {
-            // ignore small frames
-            setMeasuredBW(clientID, frameID, (int) (size * 8 / duration));
-            updateEwmaBW(clientID, getMeasuredBW(clientID, getLastFrame(clientID)));
-        }
+    public void registerPredictor(String name, BandwidthPredictor predictor) {
+        predictors.put(name, predictor);
     }
 
     /**
-     * Update the ewmaBW when getting a new BW sample
+     * Called when a server reads (part of) a chunk from socket buffers
      *
-     * @param clientID ID of the client
-     * @param newBW the new BW sample
+     * @param clientID the ID of the vehicle client, from 0 to 65535
+     * @param chunkSeq sequence number of the chunk, which changes whenever the client sends a new chunk
+     * @param receivedBytes number of bytes of the chunk received so far
+     * @param totalBytes expected size of the chunk in bytes
+     * @param nanoTime time of the read, from {@link System#nanoTime()}
      */
-    public void updateEwmaBW(int clientID, int newBW) {
-        double ewma = 0.0;
-        try {
-            if (BWsamples.size() == MOVING_AVERAGE_LEN) {
-                BWsamples.take();
+    public void onReceiveBytes(int clientID, int chunkSeq, int receivedBytes, int totalBytes, long nanoTime) {
+        ClientState state = getOrCreateClientState(clientID);
+        synchronized (state) {
+            if (!state.receiving || state.chunkSeq != chunkSeq) {
+                // new chunk
+                state.receiving = true;
+                state.chunkSeq = chunkSeq;
+                state.startNanos = nanoTime;
+                state.startBytes = receivedBytes;
             }
-            Long[] bwAndTime = {(long) newBW, System.currentTimeMillis()};
-            BWsamples.put(bwAndTime);
-            Iterator iter = BWsamples.iterator();
-            int cnt = 0;
-            long lastTime = 0;
-            while (iter.hasNext()) {
-                Object obj = iter.next();
-//                LOGGER.info("OBJ: " + obj);
-                Long[] bwNTime = (Long[]) obj;
-                if (cnt == 0) {
-                    ewma = (double) bwNTime[0];
-                    lastTime = bwNTime[1];
+
+            if (receivedBytes >= totalBytes) {
+                // if the received size reaches the expected size, the chunk is done
+                state.receiving = false;
+                if (chunkSeq > state.lastFrame) {
+                    state.lastFrame = chunkSeq;
                 }
-                else {
-                    long currTime = bwNTime[1];
-                    // Give less weight to stale BW samples
-                    double alpha = 0.75 + 0.25 * (currTime - lastTime) / MAX_WINDOW_TIME_IN_MS;
-                    alpha = min(alpha, 1);
-                    ewma = (1 - alpha) * ewma + alpha * (double) bwNTime[0];
-//                    LOGGER.info("alpha=" + alpha + " old=" + ewma + " new=" + (double) bwNTime[0]);
-                    lastTime = currTime;
+                long duration = nanoTime - state.startNanos;
+                if (duration > 0) {
+                    // A chunk received in a single read has no duration to measure
+                    int bandwidth = (int) ((totalBytes - state.startBytes) * 8L * 1000000 / duration);
+                    if ((long) state.lastFrame - chunkSeq < MAX_FRAME_HISTORY) {
+                        // A chunk out of the history would overwrite a newer one in the ring
+                        state.measuredBW.put(chunkSeq, bandwidth);
+                    }
+                    state.samples.add(nanoTime, bandwidth);
                 }
-                cnt++;
             }
         }
-        catch(Exception e) {
-            System.out.println(e);
-        }
-//        LOGGER.info("EWMA: " + ewma);
-        ewmaBW.put(clientID, (int) ewma);
     }
 
     /**
-     * Get the startTimestamp of a frame of a client
+     * Bandwidth prediction (kbps) with the default predictor
      *
      * @param clientID ID of the client
-     * @param frameID ID of the frame
-     * @return startTimestamp
+     * @return the predicted bandwidth, or -1 if nothing is measured for the client
      */
-    public long getStartTime(int clientID, int frameID) {
-        if (!startTimestamp.containsKey(clientID)) {
-            return -1;
-        }
-        else if (!startTimestamp.get(clientID).containsKey(frameID)) {
-            return -1;
-        }
-        else {
-            return startTimestamp.get(clientID).get(frameID).getKey();
-        }
+    public int getEstimatedBW(int clientID) {
+        return getEstimatedBW(clientID, defaultPredictor);
     }
 
     /**
-     * Get the first piece of a frame of a client
+     * Bandwidth prediction (kbps) per measurement result
      *
      * @param clientID ID of the client
-     * @param frameID ID of the frame
-     * @return startTimestamp
+     * @param algo name of the predictor used to predict bandwidth
+     * @return the predicted bandwidth, or -1 if nothing is measured for the client or there is no such predictor
      */
-    public int getStartSize(int clientID, int frameID) {
-        if (!startTimestamp.containsKey(clientID)) {
+    public int getEstimatedBW(int clientID, String algo) {
+        BandwidthPredictor predictor = predictors.get(algo);
+        if (predictor == null) {
+            LOGGER.info("No such algo yet: " + algo);
             return -1;
         }
-        else if (!startTimestamp.get(clientID).containsKey(frameID)) {
+        ClientState state = getClientState(clientID);
+        if (state == null) {
             return -1;
         }
-        else {
-            return startTimestamp.get(clientID).get(frameID).getValue();
+        synchronized (state) {
+            return state.samples.isEmpty() ? -1 : predictor.predict(state.samples);
         }
     }
 
     /**
-     * Get the finishTimestamp of a frame of a client
+     * Get the measuredBW
      *
      * @param clientID ID of the client
      * @param frameID ID of the frame
-     * @return finishTimestamp the timestamp the server finishes receiving the frame
+     * @return the bandwidth measured, or -1 if not measured
+     * @throws IllegalArgumentException if the frame is {@code MAX_FRAME_HISTORY} or more frames
+     *         before the last received frame, whose history is no longer kept
      */
-    public long getFinishTime(int clientID, int frameID) {
-        if (!finishTimestamp.containsKey(clientID)) {
-            return -1;
-        }
-        else if (!finishTimestamp.get(clientID).containsKey(frameID)) {
+    public int getMeasuredBW(int clientID, int frameID) {
+        ClientState state = getClientState(clientID);
+        if (state == null) {
             return -1;
         }
-        else {
-            return finishTimestamp.get(clientID).get(frameID);
+        synchronized (state) {
+            if (state.lastFrame >= 0 && (long) state.lastFrame - frameID >= MAX_FRAME_HISTORY) {
+                throw new IllegalArgumentException("Frame " + frameID + " of client " + clientID
+                    + " is out of the history of the latest " + MAX_FRAME_HISTORY + " frames (last: "
+                    + state.lastFrame + ")");
+            }
+            return (int) state.measuredBW.get(frameID, -1);
         }
     }
 
     /**
-     * Set the startTimestamp of a frame of a client
+     * Get the last received frame
      *
      * @param clientID ID of the client
-     * @param frameID ID of the frame
+     * @return the frameID of the latest frame
      */
-    public void setStartTime(int clientID, int frameID, long timestamp, int readSize) {
-        if (startTimestamp.containsKey(clientID)) {
-            startTimestamp.get(clientID).put(frameID, new Pair(timestamp, readSize));
+    public int getLastFrame(int clientID) {
+        ClientState state = getClientState(clientID);
+        if (state == null) {
+            return -1;
         }
-        else {
-            Map<Integer, Pair<Long, Integer>> frameIdToTimestamp = new HashMap<>();
-            frameIdToTimestamp.put(frameID, new Pair(timestamp, readSize));
-            startTimestamp.put(clientID, frameIdToTimestamp);
+        synchronized (state) {
+            return state.lastFrame;
         }
     }
 
     /**
-     * Set the finishTimestamp of a frame of a client
-     *
-     * @param clientID ID of the client
-     * @param frameID ID of the frame
+     * @return  IDs of the clients that data has been received from, in ascending order.
      */
-    public void setFinishTime(int clientID, int frameID, long timestamp) {
-        if (finishTimestamp.containsKey(clientID)) {
-            finishTimestamp.get(clientID).put(frameID, timestamp);
+    public int[] getClientIDs() {
+        ClientState[] states = clientStates;
+        int numClients = 0;
+        for (ClientState state : states) {
+            if (state != null) {
+                numClients++;
+            }
         }
-        else {
-            Map<Integer, Long> frameIdToTimestamp = new HashMap<>();
-            frameIdToTimestamp.put(frameID, timestamp);
-            finishTimestamp.put(clientID, frameIdToTimestamp);
+        int[] clientIDs = new int[numClients];
+        for (int clientID = 0, i = 0; clientID < states.length; clientID++) {
+            if (states[clientID] != null) {
+                clientIDs[i++] = clientID;
+            }
         }
+        return clientIDs;
     }
 
-    /**
-     * Get the full size of a frame
-     *
-     * @param clientID ID of the client
-     * @param frameID ID of the frame
-     * @return the frame size
-     */
-    public int getFrameSize(int clientID, int frameID) {
-//        LOGGER.info(clientID + " " + frameID);
-        int frameSize = clientToFrame.get(clientID).get(frameID);
-//        LOGGER.info("frameSize=" + frameSize);
-        return frameSize;
+    private ClientState getClientState(int clientID) {
+        ClientState[] states = clientStates;
+        return (clientID >= 0 && clientID < states.length) ? states[clientID] : null;
     }
 
-    /**
-     * Set the measuredBW
-     *
-     * @param clientID ID of the client
-     * @param frameID ID of the frame
-     * @param BW the bandwidth to set
-     */
-    public void setMeasuredBW(int clientID, int frameID, int BW) {
-        if (measuredBW.containsKey(clientID)) {
-            measuredBW.get(clientID).put(frameID, BW);
+    private ClientState getOrCreateClientState(int clientID) {
+        ClientState state = getClientState(clientID);
+        if (state != null) {
+            return state;
         }
-        else {
-            Map<Integer, Integer> frameIdToBW = new HashMap<>();
-            frameIdToBW.put(frameID, BW);
-            measuredBW.put(clientID, frameIdToBW);
+        if (clientID < 0 || clientID > MAX_CLIENT_ID) {
+            throw new IllegalArgumentException("Client ID out of range: " + clientID);
         }
-    }
-
-    /**
-     * Get the measuredBW
-     *
-     * @param clientID ID of the client
-     * @param frameID ID of the frame
-     * @return the bandwidth measured
-     */
-    public int getMeasuredBW(int clientID, int frameID) {
-        if (!measuredBW.containsKey(clientID)) {
-            return -1;
-        }
-        else if (!measuredBW.get(clientID).containsKey(frameID)) {
-            return -1;
-        }
-        else {
-            return measuredBW.get(clientID).get(frameID);
+        synchronized (this) {
+            ClientState[] states = clientStates;
+            if (clientID < states.length && states[clientID] != null) {
+                return states[clientID];
+            }
+            // Copied rather than updated in place, so that readers without the lock only see
+            // states published through the volatile array
+            states = Arrays.copyOf(states, Math.max(states.length, clientID + 1));
+            states[clientID] = new ClientState();
+            clientStates = states;
+            return states[clientID];
         }
     }
 
     /**
-     * Get the last received frame
-     *
-     * @param clientID ID of the client
-     * @return the frameID of the latest frame
+     * State of a client, which takes the same space however many chunks it sends
      */
-    public int getLastFrame(int clientID) {
-        if (!lastFrame.containsKey(clientID)) {
-            return -1;
-        }
-        else {
-            return lastFrame.get(clientID);
-        }
+    private static class ClientState {
+        // Whether a chunk is being received
+        boolean receiving;
+        // Sequence number of the chunk being (or last) received
+        int chunkSeq;
+        // Time of the first read of the chunk
+        long startNanos;
+        // Received size of the chunk at its first read
+        int startBytes;
+        // The last frame received on the connection
+        int lastFrame = -1;
+        // Measured bandwidth for each of the latest frames in kbps
+        final LongRingTable measuredBW = new LongRingTable(MAX_FRAME_HISTORY);
+        // Latest bandwidth samples
+        final BandwidthSampleWindow samples = new BandwidthSampleWindow(MOVING_AVERAGE_LEN, MAX_WINDOW_TIME_IN_NS);
     }
 
 }
@@ -0,0 +1,16 @@
+package org.emp.network;
+
+/**
+ * Predicts the bandwidth of a vehicle from its latest samples
+ *
+ * <p> A predictor is shared by all vehicles and may be called from multiple threads at once, so
+ * it should keep no state between calls.  Anything it needs (e.g., smoothed level and trend) is
+ * computed from the samples in the window.
+ */
+public interface BandwidthPredictor {
+  /**
+   * @param samples  Latest samples of the vehicle, which are not empty.
+   * @return  Predicted bandwidth in kbps.
+   */
+  int predict(BandwidthSampleWindow samples);
+}
@@ -0,0 +1,114 @@
+package org.emp.network;
+
+/**
+ * The bandwidth predictors registered with every {@code BandwidthEstimator}
+ */
+public final class BandwidthPredictors {
+  public static final String NAIVE = "naive";
+  public static final String EWMA = "ewma";
+  public static final String HARMONIC = "harmonic";
+  public static final String RLS = "rls";
+  public static final String HOLT_WINTERS = "holt-winters";
+
+  // Time (in nsec) adjustment reference for EWMA samples
+  private static final long EWMA_WINDOW_TIME_IN_NS = 30000L * 1000000;
+  // Forgetting factor of RLS, which weighs the sample k steps ago by its k-th power
+  private static final double RLS_FORGETTING_FACTOR = 0.95;
+  // Initial covariance of RLS, large for a weak prior
+  private static final double RLS_INITIAL_COVARIANCE = 100;
+  // Smoothing factors of the level and the trend of Holt-Winters
+  private static final double HOLT_WINTERS_LEVEL_ALPHA = 0.5;
+  private static final double HOLT_WINTERS_TREND_BETA = 0.3;
+
+  /**
+   * Naive approach: Use latest past to predict future
+   */
+  public static final BandwidthPredictor NAIVE_PREDICTOR = samples -> samples.getBandwidth(samples.size() - 1);
+
+  /**
+   * Exponentially weighted moving average, which gives less weight to stale samples
+   */
+  public static final BandwidthPredictor EWMA_PREDICTOR = samples -> {
+    double ewma = samples.getBandwidth(0);
+    for (int i = 1; i < samples.size(); i++) {
+      long interval = samples.getNanoTime(i) - samples.getNanoTime(i - 1);
+      double alpha = Math.min(0.75 + 0.25 * interval / EWMA_WINDOW_TIME_IN_NS, 1);
+      ewma = (1 - alpha) * ewma + alpha * samples.getBandwidth(i);
+    }
+    return (int) ewma;
+  };
+
+  /**
+   * Harmonic mean, which is robust to a few samples much higher than the rest
+   */
+  public static final BandwidthPredictor HARMONIC_PREDICTOR = samples -> {
+    double sumOfInverses = 0;
+    for (int i = 0; i < samples.size(); i++) {
+      int bandwidth = samples.getBandwidth(i);
+      if (bandwidth <= 0) {
+        return 0;
+      }
+      sumOfInverses += 1.0 / bandwidth;
+    }
+    return (int) Math.round(samples.size() / sumOfInverses);
+  };
+
+  /**
+   * Recursive least squares fit of a first-order autoregressive model, i.e., the next sample is a
+   * linear function of the current one
+   */
+  public static final BandwidthPredictor RLS_PREDICTOR = BandwidthPredictors::predictRls;
+
+  /**
+   * Holt-Winters double exponential smoothing, which follows the level and the trend of the samples.
+   * Chunk arrivals have no period, so there is no seasonal component.
+   */
+  public static final BandwidthPredictor HOLT_WINTERS_PREDICTOR = samples -> {
+    double level = samples.getBandwidth(0);
+    double trend = (samples.size() > 1) ? samples.getBandwidth(1) - level : 0;
+    for (int i = 1; i < samples.size(); i++) {
+      double previousLevel = level;
+      level = HOLT_WINTERS_LEVEL_ALPHA * samples.getBandwidth(i)
+          + (1 - HOLT_WINTERS_LEVEL_ALPHA) * (level + trend);
+      trend = HOLT_WINTERS_TREND_BETA * (level - previousLevel) + (1 - HOLT_WINTERS_TREND_BETA) * trend;
+    }
+    return (int) Math.max(level + trend, 0);
+  };
+
+  private BandwidthPredictors() {
+  }
+
+  private static int predictRls(BandwidthSampleWindow samples) {
+    int latest = samples.getBandwidth(samples.size() - 1);
+    if (samples.size() < 3) {
+      return latest;
+    }
+    // Samples are scaled by the latest one to keep the covariance well-conditioned
+    double scale = Math.max(latest, 1);
+    // Weights of the model x[t] = w0 + w1 * x[t-1], starting from "no change"
+    double w0 = 0;
+    double w1 = 1;
+    // Covariance of the weights (symmetric)
+    double p00 = RLS_INITIAL_COVARIANCE;
+    double p01 = 0;
+    double p11 = RLS_INITIAL_COVARIANCE;
+    for (int i = 1; i < samples.size(); i++) {
+      double x = samples.getBandwidth(i - 1) / scale;
+      double y = samples.getBandwidth(i) / scale;
+      // Gain k = P * phi / (lambda + phi' * P * phi), where phi = (1, x)
+      double pPhi0 = p00 + p01 * x;
+      double pPhi1 = p01 + p11 * x;
+      double denominator = RLS_FORGETTING_FACTOR + pPhi0 + pPhi1 * x;
+      double k0 = pPhi0 / denominator;
+      double k1 = pPhi1 / denominator;
+      double error = y - (w0 + w1 * x);
+      w0 += k0 * error;
+      w1 += k1 * error;
+      // P = (P - k * phi' * P) / lambda
+      p00 = (p00 - k0 * pPhi0) / RLS_FORGETTING_FACTOR;
+      p01 = (p01 - k0 * pPhi1) / RLS_FORGETTING_FACTOR;
+      p11 = (p11 - k1 * pPhi1) / RLS_FORGETTING_FACTOR;
+    }
+    return (int) Math.max((w0 + w1 * (latest / scale)) * scale, 0);
+  }
+}
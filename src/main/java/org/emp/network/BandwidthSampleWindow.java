@@ -0,0 +1,84 @@
+package org.emp.network;
+
+/**
+ * A window of the latest bandwidth samples of a vehicle, oldest first
+ *
+ * <p> Samples are kept in a ring of fixed capacity, timestamped with {@link System#nanoTime()}.
+ * Adding a sample drops the oldest one when the ring is full, and the ones older than the time
+ * span of the window relative to the new sample.  Not thread-safe.
+ */
+public class BandwidthSampleWindow {
+  // Time of each sample
+  private final long[] nanoTimes;
+  // Bandwidth of each sample in kbps
+  private final int[] bandwidths;
+  // Max time between the oldest and the latest sample
+  private final long spanNanos;
+  // Slot of the oldest sample
+  private int head;
+  private int size;
+
+  /**
+   * @param capacity  Max number of samples.
+   * @param spanNanos  Max time between the oldest and the latest sample.
+   */
+  public BandwidthSampleWindow(int capacity, long spanNanos) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.nanoTimes = new long[capacity];
+    this.bandwidths = new int[capacity];
+    this.spanNanos = spanNanos;
+  }
+
+  /**
+   * Adds the latest sample.
+   *
+   * @param nanoTime  Time of the sample, no earlier than that of the previous sample.
+   * @param bandwidth  Bandwidth in kbps.
+   */
+  public void add(long nanoTime, int bandwidth) {
+    if (size == nanoTimes.length) {
+      head = (head + 1) % nanoTimes.length;
+      size--;
+    }
+    int slot = (head + size) % nanoTimes.length;
+    nanoTimes[slot] = nanoTime;
+    bandwidths[slot] = bandwidth;
+    size++;
+    while (nanoTime - nanoTimes[head] > spanNanos) {
+      head = (head + 1) % nanoTimes.length;
+      size--;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param index  Index of the sample, from 0 (oldest) to {@code size() - 1} (latest).
+   */
+  public long getNanoTime(int index) {
+    return nanoTimes[slotOf(index)];
+  }
+
+  /**
+   * @param index  Index of the sample, from 0 (oldest) to {@code size() - 1} (latest).
+   * @return  Bandwidth of the sample in kbps.
+   */
+  public int getBandwidth(int index) {
+    return bandwidths[slotOf(index)];
+  }
+
+  private int slotOf(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    return (head + index) % nanoTimes.length;
+  }
+}
@@ -0,0 +1,113 @@
+package org.emp.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of direct byte buffers
+ *
+ * <p> Buffer capacities are rounded up to powers of two, and each capacity class keeps at most
+ * {@code maxPooledBuffersPerClass} released buffers for reuse.  Released buffers beyond the
+ * limit are left to the garbage collector.
+ */
+public class ByteBufferPool {
+  // Capacity of the smallest buffer handed out by the pool
+  private final int minCapacity;
+  // Capacity of the largest buffer handed out by the pool
+  private final int maxCapacity;
+  // Max number of released buffers kept for each capacity class
+  private final int maxPooledBuffersPerClass;
+  // Capacity class index -> released buffers of the class
+  private final Queue<ByteBuffer>[] pooledBuffers;
+  // Capacity class index -> number of released buffers of the class
+  private final AtomicInteger[] numPooledBuffers;
+
+  @SuppressWarnings("unchecked")
+  public ByteBufferPool(int minCapacity, int maxCapacity, int maxPooledBuffersPerClass) {
+    if (Integer.bitCount(minCapacity) != 1 || Integer.bitCount(maxCapacity) != 1
+        || minCapacity > maxCapacity) {
+      throw new IllegalArgumentException(
+          "Invalid capacities (min: " + minCapacity + ", max: " + maxCapacity + ")");
+    }
+    this.minCapacity = minCapacity;
+    this.maxCapacity = maxCapacity;
+    this.maxPooledBuffersPerClass = maxPooledBuffersPerClass;
+    int numClasses = Integer.numberOfTrailingZeros(maxCapacity)
+        - Integer.numberOfTrailingZeros(minCapacity) + 1;
+    pooledBuffers = new Queue[numClasses];
+    numPooledBuffers = new AtomicInteger[numClasses];
+    for (int i = 0; i < numClasses; i++) {
+      pooledBuffers[i] = new ConcurrentLinkedQueue<>();
+      numPooledBuffers[i] = new AtomicInteger(0);
+    }
+  }
+
+  public int getMaxCapacity() {
+    return maxCapacity;
+  }
+
+  /**
+   * Takes a cleared buffer from the pool, or allocates one if the pool has none.
+   *
+   * @param capacity  Minimum capacity of the buffer.
+   * @return  A direct buffer with a capacity of at least {@code capacity}.
+   */
+  public ByteBuffer acquire(int capacity) {
+    if (capacity > maxCapacity) {
+      throw new IllegalArgumentException(
+          "Requested capacity " + capacity + " exceeds the max capacity " + maxCapacity);
+    }
+    int classIndex = getClassIndex(capacity);
+    ByteBuffer byteBuffer = pooledBuffers[classIndex].poll();
+    if (byteBuffer == null) {
+      return ByteBuffer.allocateDirect(minCapacity << classIndex);
+    }
+    numPooledBuffers[classIndex].decrementAndGet();
+    byteBuffer.clear();
+    return byteBuffer;
+  }
+
+  /**
+   * Returns a buffer acquired from this pool for reuse.  The buffer should not be used afterwards.
+   *
+   * @param byteBuffer  The buffer to return.
+   */
+  public void release(ByteBuffer byteBuffer) {
+    int capacity = byteBuffer.capacity();
+    if (!byteBuffer.isDirect() || Integer.bitCount(capacity) != 1
+        || capacity < minCapacity || capacity > maxCapacity) {
+      return;
+    }
+    int classIndex = getClassIndex(capacity);
+    if (numPooledBuffers[classIndex].incrementAndGet() <= maxPooledBuffersPerClass) {
+      pooledBuffers[classIndex].add(byteBuffer);
+    } else {
+      numPooledBuffers[classIndex].decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a buffer with at least twice the capacity, which holds the data of the given buffer
+   * (from 0 to its position), and releases the given buffer.
+   *
+   * @param byteBuffer  The buffer to grow.
+   * @return  The new buffer, positioned after the copied data.
+   */
+  public ByteBuffer grow(ByteBuffer byteBuffer) {
+    ByteBuffer newByteBuffer = acquire(Math.min(byteBuffer.capacity() * 2, maxCapacity));
+    byteBuffer.flip();
+    newByteBuffer.put(byteBuffer);
+    release(byteBuffer);
+    return newByteBuffer;
+  }
+
+  private int getClassIndex(int capacity) {
+    if (capacity <= minCapacity) {
+      return 0;
+    }
+    int roundedCapacity = Integer.highestOneBit(capacity - 1) << 1;
+    return Integer.numberOfTrailingZeros(roundedCapacity) - Integer.numberOfTrailingZeros(minCapacity);
+  }
+}
@@ -14,6 +14,9 @@ import org.emp.data.EdgeMessageHandler;
 
 /**
  * A non-blocking network client that connects to the edge server
+ *
+ * <p> The client thread blocks in the selector until data arrives or there is data to send, so many
+ * clients can run in one process (e.g., {@code LoadGenerator}) without spinning.
  */
 public class NonBlockingNetworkClient implements Runnable {
     private static final Logger LOGGER = LogManager.getLogger(NonBlockingNetworkClient.class);
@@ -29,8 +32,10 @@ public class NonBlockingNetworkClient implements Runnable {
     // Byte buffer to store received data
     private final ByteBuffer receiveByteBuffer;
     SocketChannel clientSocketChannel;
-    // Should the server run.  When false, the server stops receiving data and exits.
-    private boolean shouldRun;
+    // Selector of the socket, or null until the client connects
+    private volatile Selector socketSelector;
+    // Should the client run.  When false, the client sends the remaining data and exits.
+    private volatile boolean shouldRun;
 
     public NonBlockingNetworkClient(String serverIp, int serverPort, int clientPort, EdgeMessageHandler edgeMessageHandler)
         throws UnknownHostException {
@@ -44,6 +49,7 @@ public class NonBlockingNetworkClient implements Runnable {
 
     public void stopRunning() {
         shouldRun = false;
+        wakeupSelector();
     }
 
     public ByteBuffer getReceiveByteBuffer() {
@@ -61,12 +67,27 @@ public class NonBlockingNetworkClient implements Runnable {
         synchronized (sendByteBufferQueue) {
             sendByteBufferQueue.add(ByteBuffer.wrap(data));
         }
+        wakeupSelector();
+    }
+
+    private boolean hasSendData() {
+        synchronized (sendByteBufferQueue) {
+            return !sendByteBufferQueue.isEmpty();
+        }
+    }
+
+    private void wakeupSelector() {
+        Selector selector = socketSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     @Override
     public void run() {
         try {
             Selector socketSelector = Selector.open();
+            this.socketSelector = socketSelector;
             clientSocketChannel = SocketChannel.open();
             clientSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
             clientSocketChannel.bind(clientAddress);
@@ -74,17 +95,21 @@ public class NonBlockingNetworkClient implements Runnable {
             clientSocketChannel.connect(serverAddress);
             LOGGER.info("Client connected to the edge server");
             clientSocketChannel.configureBlocking(false);
-            clientSocketChannel.register(socketSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-
-            while (shouldRun || !sendByteBufferQueue.isEmpty()) {
-                if (socketSelector.selectNow() <= 0) {
+            SelectionKey clientSelectionKey = clientSocketChannel.register(socketSelector, SelectionKey.OP_READ);
+
+            while ((shouldRun || hasSendData()) && clientSocketChannel.isOpen()) {
+                // Wait for the socket to be writable only when there is data to send.  Data put after
+                // this check wakes up the selector, so the select below returns right away.
+                clientSelectionKey.interestOps(
+                    hasSendData() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                if (socketSelector.select() <= 0) {
                     continue;
                 }
 
                 Set<SelectionKey> selectionKeys = socketSelector.selectedKeys();
                 for (SelectionKey selectionKey : selectionKeys) {
                     // Send data
-                    if (selectionKey.isWritable() && !sendByteBufferQueue.isEmpty()) {
+                    if (selectionKey.isValid() && selectionKey.isWritable() && hasSendData()) {
                         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
                         synchronized (sendByteBufferQueue) {
@@ -100,7 +125,7 @@ public class NonBlockingNetworkClient implements Runnable {
                     }
 
                     // Receive data
-                    if (selectionKey.isReadable()) {
+                    if (selectionKey.isValid() && selectionKey.isReadable()) {
                         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
                         int readBytes = socketChannel.read(receiveByteBuffer);
                         LOGGER.debug("Client Read: " + readBytes);
@@ -117,6 +142,8 @@ public class NonBlockingNetworkClient implements Runnable {
 
                 socketSelector.selectedKeys().clear();
             }
+            this.socketSelector = null;
+            socketSelector.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
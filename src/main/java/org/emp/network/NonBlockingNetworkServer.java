@@ -3,19 +3,27 @@ package org.emp.network;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.emp.data.VehicleMessageHandler;
@@ -23,213 +31,612 @@ import org.emp.data.VehicleMessageHandlerImpl;
 
 /**
  * A non-blocking network server that receives data from multiple network connections
+ *
+ * <p> The server follows the reactor pattern: the thread running the server accepts new
+ * connections and assigns each of them to one of the I/O threads in a round-robin manner.
+ * Each I/O thread has its own selector and its own {@code VehicleMessageHandler} instance,
+ * and reads from / writes to the sockets assigned to it.
+ *
+ * <p> Each connection gets a unique ID in the accepted order.  Only the open connections are kept
+ * and counted against the max number of connections, so a vehicle can reconnect.
  */
 public class NonBlockingNetworkServer implements Runnable {
   private static final Logger LOGGER = LogManager.getLogger(NonBlockingNetworkServer.class);
-  // Maximum number of clients to accept
-  private static final int MAX_NUM_CLIENTS = 32;
-  // Buffer size for each client connection
-  private static final int BYTE_BUFFER_CAPACITY = 4 * 1024 * 1024; // 4MB
+  // Initial receive buffer size for each client connection
+  private static final int MIN_BYTE_BUFFER_CAPACITY = 512 * 1024; // 512KB
+  // Max receive buffer size for each client connection, i.e., the largest message to receive
+  public static final int MAX_BYTE_BUFFER_CAPACITY = 64 * 1024 * 1024; // 64MB
+  // Max number of released receive buffers of each size to keep for new connections
+  private static final int MAX_POOLED_BUFFERS_PER_SIZE = 8;
+  // Default max number of open connections
+  public static final int DEFAULT_MAX_NUM_CONNECTIONS = 64;
 
   // Server address
   private final InetSocketAddress serverAddress;
-  // The handler to process receive vehicle data
-  private final VehicleMessageHandler vehicleMessageHandler;
+  // Creates the handler to process received vehicle data, one instance per I/O thread
+  private final Supplier<VehicleMessageHandler> vehicleMessageHandlerFactory;
+  // Number of I/O threads to read from and write to the sockets
+  private final int numIoThreads;
   // Should the server run.  When false, the server stops receiving data and exits.
-  private boolean shouldRun;
-  // Number of clients accepted
-  private int numClients;
-  // Max number of clients
+  private volatile boolean shouldRun;
+  // Selector to accept connections, which blocks until a client connects or it is woken up
+  private volatile Selector acceptSelector;
+  // I/O reactors, each of which runs on its own thread
+  private final List<IoReactor> ioReactors;
+  // Should the server stop reading from the sockets, so that TCP flow control pushes back on vehicles
+  private volatile boolean isReadPaused;
+  // ID of the next connection to accept
+  private int nextConnectionId;
+  // Number of vehicles to wait for before broadcasting the "start" signal
   public final int maxNumClients;
+  // Max number of open connections; connections beyond it are closed right away
+  private final int maxNumConnections;
   // The server has broadcast the "start" signal or not
-  private boolean isStarted;
-  // A list of existing socket channel
-  private List<SocketChannel> socketChannelList;
-  // A list of byte buffer to store received data
-  private List<ByteBuffer> receiveByteBufferList;
-  // A list of byte buffer queue for storing the data to send.
-  // Each byte buffer in the queue represent one chunk of data to send
-  // For the same index, the elements in `receiveByteBufferList` and `sendByteBufferList`
-  // are for the same socket
-  private final List<Queue<ByteBuffer>> sendByteBufferQueueList;
-  // The mapping of the socket channel to the index of ByteBuffer in the `receiveByteBufferList`
-  private Map<SocketChannel, Integer> socketToBufferIndexMap;
-  // The mapping of vehicle ID to the index of ByteBuffer in the `sendByteBufferList`
-  private Map<Integer, Integer> vehicleIdToBufferIndexMap;
+  private final AtomicBoolean isStarted;
+  // Connection ID -> open connection, removed once closed
+  private final Map<Integer, Connection> connectionMap;
+  // Pool of direct buffers to store received data
+  private final ByteBufferPool receiveByteBufferPool;
+  // The mapping of vehicle ID to the connection of the vehicle
+  private final Map<Integer, Connection> vehicleIdToConnectionMap;
+  // Records the received messages to a session file, or null if not capturing
+  private volatile SessionRecorder sessionRecorder;
 
   public NonBlockingNetworkServer(int port, int maxNumClients, VehicleMessageHandler vehicleMessageHandler)
       throws UnknownHostException {
+    this(port, maxNumClients, DEFAULT_MAX_NUM_CONNECTIONS, 1, () -> vehicleMessageHandler);
+  }
+
+  /**
+   * Constructs {@code NonBlockingNetworkServer} instance.
+   *
+   * @param port  Server port.
+   * @param maxNumClients  Number of vehicles to wait for, connected and identified by a message,
+   *                       before broadcasting the "start" signal.
+   * @param maxNumConnections  Max number of open connections, at least {@code maxNumClients}.
+   * @param numIoThreads  Number of I/O threads to read from and write to the sockets.
+   * @param vehicleMessageHandlerFactory  Creates the handler to process received vehicle data.
+   *                                      It is called once for each I/O thread.
+   */
+  public NonBlockingNetworkServer(int port, int maxNumClients, int maxNumConnections, int numIoThreads,
+                                  Supplier<VehicleMessageHandler> vehicleMessageHandlerFactory)
+      throws UnknownHostException {
+    if (numIoThreads < 1) {
+      throw new IllegalArgumentException("Invalid number of I/O threads: " + numIoThreads);
+    }
+    if (maxNumConnections < maxNumClients) {
+      throw new IllegalArgumentException("Max number of connections " + maxNumConnections
+          + " is less than the number of vehicles to wait for: " + maxNumClients);
+    }
     serverAddress = new InetSocketAddress(port);
-    this.vehicleMessageHandler = vehicleMessageHandler;
+    this.vehicleMessageHandlerFactory = vehicleMessageHandlerFactory;
+    this.numIoThreads = numIoThreads;
     shouldRun = true;
-    numClients = 0;
+    nextConnectionId = 0;
     this.maxNumClients = maxNumClients;
-    isStarted = false;
-    socketChannelList = new ArrayList<>(MAX_NUM_CLIENTS);
-    receiveByteBufferList = IntStream.range(0, MAX_NUM_CLIENTS).boxed()
-        .map(i -> ByteBuffer.allocate(BYTE_BUFFER_CAPACITY)).collect(Collectors.toList());
-    sendByteBufferQueueList = IntStream.range(0, MAX_NUM_CLIENTS).boxed()
-        .map(i -> new ArrayDeque<ByteBuffer>()).collect(Collectors.toList());
-    socketToBufferIndexMap = new HashMap<>();
-    vehicleIdToBufferIndexMap = new HashMap<>();
+    this.maxNumConnections = maxNumConnections;
+    isStarted = new AtomicBoolean(false);
+    connectionMap = new ConcurrentSkipListMap<>();
+    receiveByteBufferPool = new ByteBufferPool(
+        MIN_BYTE_BUFFER_CAPACITY, MAX_BYTE_BUFFER_CAPACITY, MAX_POOLED_BUFFERS_PER_SIZE);
+    vehicleIdToConnectionMap = new ConcurrentHashMap<>();
+    ioReactors = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Records every message received from now on, with its arrival time, to a session file to replay
+   * with {@code SessionReplayer}.  The file is closed when the server finishes.
+   *
+   * <p> The capture relies on the message handler to consume all complete messages in the receive
+   * buffer on each call, as {@code VehicleMessageHandlerImpl} does.
+   *
+   * @param path  Path of the session file, which is replaced if it exists.
+   */
+  public void startCapture(String path) throws IOException {
+    sessionRecorder = new SessionRecorder(Paths.get(path));
+    LOGGER.info("Capturing received messages to " + path);
   }
 
   public void stopRunning() {
     shouldRun = false;
+    wakeupSelector(acceptSelector);
+    for (IoReactor ioReactor : ioReactors) {
+      wakeupSelector(ioReactor.selector);
+    }
+  }
+
+  /**
+   * Stops reading data from all client sockets until {@link #resumeReading()} is called.
+   * Data to send is still sent.
+   */
+  public void pauseReading() {
+    isReadPaused = true;
+    for (IoReactor ioReactor : ioReactors) {
+      ioReactor.requestReadInterestUpdate();
+    }
   }
 
+  /**
+   * Resumes reading data from all client sockets.
+   */
+  public void resumeReading() {
+    isReadPaused = false;
+    for (IoReactor ioReactor : ioReactors) {
+      ioReactor.requestReadInterestUpdate();
+    }
+  }
+
+  public boolean isReadPaused() {
+    return isReadPaused;
+  }
+
+  /**
+   * @return  Number of open connections.
+   */
   public int getNumClients() {
-    return numClients;
+    return connectionMap.size();
+  }
+
+  public int getNumIoThreads() {
+    return numIoThreads;
   }
 
-  public ByteBuffer getReceiveByteBuffer(int i) {
-    return receiveByteBufferList.get(i);
+  /**
+   * @param connectionId  ID of an open connection.
+   * @return  The buffer storing the data received on the connection.
+   */
+  public ByteBuffer getReceiveByteBuffer(int connectionId) {
+    return getConnection(connectionId).receiveByteBuffer;
+  }
+
+  /**
+   * @return  Statistics of the open connections, in the accepted order.
+   */
+  public List<ConnectionStats> getConnectionStats() {
+    List<ConnectionStats> connectionStats = new ArrayList<>();
+    for (Connection connection : connectionMap.values()) {
+      connectionStats.add(new ConnectionStats(
+          connection.id, connection.vehicleId, connection.numBytesRead, connection.numBytesWritten));
+    }
+    return Collections.unmodifiableList(connectionStats);
+  }
+
+  private Connection getConnection(int connectionId) {
+    Connection connection = connectionMap.get(connectionId);
+    if (connection == null) {
+      throw new IllegalArgumentException("No open connection: " + connectionId);
+    }
+    return connection;
   }
 
   /**
-   * Puts the data to send into a {@link ByteBuffer} instance and add it to the queue
+   * Puts the data to send into a {@link ByteBuffer} instance and add it to the queue.
+   * The I/O thread of the connection is woken up to start sending the data.
    *
    * @param vehicleId  Vehicle ID.
    * @param data  The byte array to send.
    */
   public void putDataToSendByteBufferQueue(int vehicleId, byte[] data) {
-    Integer bufferIndex = vehicleIdToBufferIndexMap.get(vehicleId);
+    Connection connection = vehicleIdToConnectionMap.get(vehicleId);
 
-    if (bufferIndex == null) {
+    if (connection == null) {
       throw new IllegalStateException("Cannot find the buffer for vehicle: " + vehicleId);
     }
 
-    synchronized (sendByteBufferQueueList) {
-      Queue<ByteBuffer> queue = sendByteBufferQueueList.get(bufferIndex);
-      queue.add(ByteBuffer.wrap(data));
+    synchronized (connection.sendByteBufferQueue) {
+      connection.sendByteBufferQueue.add(ByteBuffer.wrap(data));
+    }
+    connection.ioReactor.requestWrite(connection);
+  }
+
+  private static void wakeupSelector(Selector selector) {
+    if (selector != null) {
+      selector.wakeup();
     }
   }
 
   @Override
   public void run() {
     ServerSocketChannel serverSocketChannel = null;
-    
+    ExecutorService ioExecutor = Executors.newFixedThreadPool(numIoThreads);
+
     try {
-      Selector socketSelector = Selector.open();
+      for (int i = 0; i < numIoThreads; i++) {
+        IoReactor ioReactor = new IoReactor(i, Selector.open(), vehicleMessageHandlerFactory.get());
+        ioReactors.add(ioReactor);
+        ioExecutor.submit(ioReactor);
+      }
+
+      Selector selector = Selector.open();
+      acceptSelector = selector;
       serverSocketChannel = ServerSocketChannel.open();
       serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
       serverSocketChannel.configureBlocking(false);
       serverSocketChannel.bind(serverAddress);
-      serverSocketChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-      boolean hasSendData = true;
-      while (shouldRun || hasSendData) {
-        if (socketSelector.selectNow() <= 0) {
+      while (shouldRun) {
+        // Block until a client connects or the selector is woken up
+        if (selector.select() <= 0) {
           continue;
         }
 
-        Set<SelectionKey> selectionKeys = socketSelector.selectedKeys();
-        for (SelectionKey selectionKey : selectionKeys) {
-          // Accept a new connection from a client
+        for (SelectionKey selectionKey : selector.selectedKeys()) {
+          // Accept a new connection from a client and assign it to an I/O thread
           if (selectionKey.isAcceptable()) {
             SocketChannel socketChannel = serverSocketChannel.accept();
+            if (socketChannel == null) {
+              continue;
+            }
+            if (connectionMap.size() >= maxNumConnections) {
+              // Refuse the connection before it takes a receive buffer and an I/O thread
+              LOGGER.warn("Connection refused, " + maxNumConnections + " connections open already: "
+                  + socketChannel.getRemoteAddress());
+              socketChannel.close();
+              continue;
+            }
             socketChannel.configureBlocking(false);
-            socketChannel.register(
-                socketSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            socketChannelList.add(socketChannel);
-            socketToBufferIndexMap.put(socketChannel, numClients);
-            numClients++;
-            LOGGER.info("Connection accepted: " + socketChannel.getRemoteAddress());
+            int connectionId = nextConnectionId++;
+            IoReactor ioReactor = ioReactors.get(connectionId % numIoThreads);
+            // The receive buffer is allocated on accept and grows when a larger message arrives
+            Connection connection = new Connection(
+                connectionId, socketChannel, receiveByteBufferPool.acquire(MIN_BYTE_BUFFER_CAPACITY), ioReactor);
+            connectionMap.put(connectionId, connection);
+            ioReactor.addConnection(connection);
+            LOGGER.info("Connection accepted: " + socketChannel.getRemoteAddress()
+                + " (I/O thread " + ioReactor.id + ")");
           }
+        }
+        selector.selectedKeys().clear();
+      }
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
 
-          // Read data from a socket when available
-          if (selectionKey.isReadable()) {
-            SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-            Integer bufferIndex = socketToBufferIndexMap.get(socketChannel);
+    if (serverSocketChannel != null && serverSocketChannel.isOpen()) {
+      try {
+        serverSocketChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
 
-            if (bufferIndex == null) {
-              throw new IllegalStateException(
-                  "Cannot find the buffer for: " + socketChannel.getLocalAddress());
-            }
+    // Wait for the I/O threads to finish sending the remaining data
+    shouldRun = false;
+    for (IoReactor ioReactor : ioReactors) {
+      wakeupSelector(ioReactor.selector);
+    }
+    ioExecutor.shutdown();
+    try {
+      while (!ioExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+        LOGGER.info("Waiting for I/O threads to finish ...");
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
 
-            ByteBuffer byteBuffer = receiveByteBufferList.get(bufferIndex);
-            int numBytes = socketChannel.read(byteBuffer);
-            LOGGER.debug("Socket " + bufferIndex + " Read: " + numBytes);
+    SessionRecorder recorder = sessionRecorder;
+    if (recorder != null) {
+      sessionRecorder = null;
+      try {
+        recorder.close();
+        LOGGER.info("Messages captured: " + recorder.getNumRecorded());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
 
-            if (numBytes < 0) {
-              SocketAddress socketAddress = socketChannel.getLocalAddress();
-              socketChannel.close();
-              LOGGER.info("Connection closed: " + socketAddress);
-            }
+    for (Connection connection : connectionMap.values()) {
+      closeConnection(connection);
+    }
 
-            // TODO: only process vehicle ID for a handshake message
-            int vehicleId = vehicleMessageHandler.handle(byteBuffer);
-            if (vehicleId >= 0) {
-              vehicleIdToBufferIndexMap.put(vehicleId, bufferIndex);
-              if (numClients >= maxNumClients && !isStarted) {
-                byte[] startMsg = VehicleMessageHandlerImpl.encodeMessage(new byte[]{}, 0, 'S');
-                for (Integer vId : vehicleIdToBufferIndexMap.keySet()) {
-                  LOGGER.info("Notify vehicle: " + vId + " to start");
-                  putDataToSendByteBufferQueue(vId, startMsg);
-                }
-                isStarted = true;
-              }
-              LOGGER.debug(
-                  "Vehicle to buffer index mapping added: " + vehicleId + " -> " + bufferIndex);
-            }
-          }
+    LOGGER.info("Server finished.");
+  }
 
-          if (selectionKey.isWritable()) {
-            SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-            Integer bufferIndex = socketToBufferIndexMap.get(socketChannel);
+  /**
+   * Closes a connection and frees its slot and receive buffer, on the I/O thread of the connection
+   * or once the I/O threads finish.
+   */
+  private void closeConnection(Connection connection) {
+    if (!connectionMap.remove(connection.id, connection)) {
+      return;
+    }
+    try {
+      connection.socketChannel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    vehicleIdToConnectionMap.remove(connection.vehicleId, connection);
+    receiveByteBufferPool.release(connection.receiveByteBuffer);
+    connection.receiveByteBuffer = ByteBuffer.allocate(0);
+  }
 
-            if (bufferIndex == null) {
-              throw new IllegalStateException(
-                  "Cannot find the buffer for: " + socketChannel.getLocalAddress());
-            }
+  /**
+   * Called on an I/O thread when a message from a vehicle is handled.
+   */
+  private void onVehicleIdentified(int vehicleId, Connection connection) {
+    connection.vehicleId = vehicleId;
+    if (vehicleIdToConnectionMap.put(vehicleId, connection) == null) {
+      LOGGER.debug("Vehicle to connection mapping added: " + vehicleId + " -> " + connection.id);
+    }
+    // Wait until every vehicle is identified, so that vehicles connecting at once all get the signal
+    if (vehicleIdToConnectionMap.size() >= maxNumClients && isStarted.compareAndSet(false, true)) {
+      byte[] startMsg = VehicleMessageHandlerImpl.encodeMessage(new byte[]{}, 0, 'S');
+      for (Integer vId : vehicleIdToConnectionMap.keySet()) {
+        LOGGER.info("Notify vehicle: " + vId + " to start");
+        putDataToSendByteBufferQueue(vId, startMsg);
+      }
+    }
+  }
 
-            synchronized (sendByteBufferQueueList) {
-              Queue<ByteBuffer> queue = sendByteBufferQueueList.get(bufferIndex);
-              if (!queue.isEmpty()) {
-                ByteBuffer byteBuffer = queue.peek();
-                int writeBytes = socketChannel.write(byteBuffer);
-                LOGGER.debug("Socket " + bufferIndex + " Write: " + writeBytes
-                    + " Buffer remaining: " + byteBuffer.remaining());
+  /**
+   * Statistics of a connection
+   */
+  public static class ConnectionStats {
+    // ID of the connection, in the accepted order
+    public final int connectionId;
+    // ID of the vehicle on the connection, or -1 if no message is handled yet
+    public final int vehicleId;
+    public final long numBytesRead;
+    public final long numBytesWritten;
+
+    ConnectionStats(int connectionId, int vehicleId, long numBytesRead, long numBytesWritten) {
+      this.connectionId = connectionId;
+      this.vehicleId = vehicleId;
+      this.numBytesRead = numBytesRead;
+      this.numBytesWritten = numBytesWritten;
+    }
+  }
+
+  /**
+   * A connection from a vehicle, owned by one I/O thread
+   */
+  private static class Connection {
+    // Unique ID of the connection, in the accepted order
+    final int id;
+    final SocketChannel socketChannel;
+    // Byte buffer to store received data, replaced by a larger one when it is full
+    volatile ByteBuffer receiveByteBuffer;
+    // Byte buffer queue for storing the data to send.
+    // Each byte buffer in the queue represent one chunk of data to send
+    final Queue<ByteBuffer> sendByteBufferQueue;
+    // The I/O thread that reads from and writes to the socket
+    final IoReactor ioReactor;
+    // ID of the vehicle on the connection, or -1 if unknown yet
+    volatile int vehicleId = -1;
+    // Bytes read from / written to the socket, only updated by the I/O thread
+    volatile long numBytesRead;
+    volatile long numBytesWritten;
+    // nanoTime the first byte of the partial message in the receive buffer is read, for capturing
+    long partialMessageNanos;
+
+    Connection(int id, SocketChannel socketChannel, ByteBuffer receiveByteBuffer, IoReactor ioReactor) {
+      this.id = id;
+      this.socketChannel = socketChannel;
+      this.receiveByteBuffer = receiveByteBuffer;
+      this.sendByteBufferQueue = new ArrayDeque<>();
+      this.ioReactor = ioReactor;
+    }
+  }
+
+  /**
+   * An I/O thread with its own selector and vehicle message handler
+   */
+  private class IoReactor implements Runnable {
+    final int id;
+    final Selector selector;
+    final VehicleMessageHandler vehicleMessageHandler;
+    // Connections assigned to this I/O thread
+    final List<Connection> connections = new ArrayList<>();
+    // Connections accepted but not registered with the selector yet
+    final Queue<Connection> newConnections = new ConcurrentLinkedQueue<>();
+    // Connections that have new data to send, for which OP_WRITE is to be enabled
+    final Queue<Connection> pendingWriteConnections = new ConcurrentLinkedQueue<>();
+    // Has `isReadPaused` changed since the interest sets of the sockets were last updated
+    volatile boolean isReadInterestChanged;
+
+    IoReactor(int id, Selector selector, VehicleMessageHandler vehicleMessageHandler) {
+      this.id = id;
+      this.selector = selector;
+      this.vehicleMessageHandler = vehicleMessageHandler;
+    }
+
+    void addConnection(Connection connection) {
+      newConnections.add(connection);
+      selector.wakeup();
+    }
+
+    void requestWrite(Connection connection) {
+      pendingWriteConnections.add(connection);
+      selector.wakeup();
+    }
+
+    void requestReadInterestUpdate() {
+      isReadInterestChanged = true;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        boolean hasSendData = true;
+        while (shouldRun || hasSendData) {
+          registerNewConnections();
+          if (isReadInterestChanged) {
+            updateReadInterest();
+          }
+          enableWriteInterest();
 
-                if (!byteBuffer.hasRemaining()) {
-                  queue.poll();
+          // Block until a socket is ready or the selector is woken up
+          if (selector.select() > 0) {
+            Set<SelectionKey> selectionKeys = selector.selectedKeys();
+            for (SelectionKey selectionKey : selectionKeys) {
+              Connection connection = (Connection) selectionKey.attachment();
+              try {
+                // Read data from a socket when available
+                if (selectionKey.isValid() && selectionKey.isReadable()) {
+                  read(connection);
                 }
+                if (selectionKey.isValid() && selectionKey.isWritable()) {
+                  write(connection, selectionKey);
+                }
+              } catch (IOException e) {
+                // E.g., the connection is reset, which does not affect the other connections
+                LOGGER.warn("Closing socket " + connection.id + " on error: " + e.getMessage());
+                closeConnection(connection);
               }
             }
+            selectionKeys.clear();
           }
-        }
-        socketSelector.selectedKeys().clear();
 
-        hasSendData = false;
-        for (Queue<ByteBuffer> queue : sendByteBufferQueueList) {
-          if (!queue.isEmpty()) {
-            hasSendData = true;
-            break;
+          hasSendData = false;
+          connections.removeIf(connection -> !connection.socketChannel.isOpen());
+          for (Connection connection : connections) {
+            if (!connection.sendByteBufferQueue.isEmpty()) {
+              hasSendData = true;
+              break;
+            }
           }
         }
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-    } catch (IOException e) {
-      e.printStackTrace();
+      LOGGER.info("I/O thread " + id + " finished.");
     }
-    
-    if (serverSocketChannel != null && serverSocketChannel.isOpen()) {
+
+    private void read(Connection connection) throws IOException {
+      SocketChannel socketChannel = connection.socketChannel;
+      ByteBuffer byteBuffer = connection.receiveByteBuffer;
+      int numBytes = socketChannel.read(byteBuffer);
+      LOGGER.debug("Socket " + connection.id + " Read: " + numBytes);
+
+      if (numBytes > 0) {
+        connection.numBytesRead += numBytes;
+        SessionRecorder recorder = sessionRecorder;
+        if (recorder != null) {
+          capture(recorder, connection, byteBuffer, numBytes, System.nanoTime());
+        }
+      }
+      if (numBytes < 0) {
+        SocketAddress socketAddress = socketChannel.getRemoteAddress();
+        LOGGER.info("Connection closed: " + socketAddress);
+        closeConnection(connection);
+        return;
+      }
+
+      // TODO: only process vehicle ID for a handshake message
+      int vehicleId;
       try {
-        serverSocketChannel.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+        vehicleId = vehicleMessageHandler.handle(byteBuffer);
+      } catch (IllegalArgumentException e) {
+        // Drop the malformed data and the connection, but keep serving the others
+        LOGGER.error("Malformed message from socket " + connection.id + ", closing the connection: "
+            + e.getMessage());
+        closeConnection(connection);
+        return;
+      }
+      if (vehicleId >= 0) {
+        onVehicleIdentified(vehicleId, connection);
+      }
+
+      if (!byteBuffer.hasRemaining()) {
+        // The buffer is filled up by a partial message larger than the buffer
+        if (byteBuffer.capacity() >= receiveByteBufferPool.getMaxCapacity()) {
+          LOGGER.error("Message too large from socket " + connection.id + ", closing the connection");
+          closeConnection(connection);
+          return;
+        }
+        connection.receiveByteBuffer = receiveByteBufferPool.grow(byteBuffer);
+        LOGGER.debug("Socket " + connection.id + " receive buffer grows to "
+            + connection.receiveByteBuffer.capacity());
       }
     }
 
-    for (SocketChannel socketChannel : socketChannelList) {
-      if (socketChannel.isOpen()) {
-        try {
-          socketChannel.close();
-        } catch (IOException e) {
-          e.printStackTrace();
+    /**
+     * Records the messages completed by the latest read.  Since the handler consumes the complete
+     * messages on each read, the complete messages in the buffer are the ones not recorded yet.
+     */
+    private void capture(SessionRecorder recorder, Connection connection, ByteBuffer byteBuffer,
+                         int numBytes, long nanoTime) throws IOException {
+      int end = byteBuffer.position();
+      // Bytes in the buffer before the read, i.e., the start of the partial message
+      int numBytesBefore = end - numBytes;
+      int offset = 0;
+      while (end - offset >= VehicleMessageHandlerImpl.HEADER_BYTES) {
+        int length = VehicleMessageHandlerImpl.HEADER_BYTES + byteBuffer.getInt(offset);
+        if (length < VehicleMessageHandlerImpl.HEADER_BYTES || end - offset < length) {
+          break;
         }
+        long firstByteNanos = (offset < numBytesBefore) ? connection.partialMessageNanos : nanoTime;
+        recorder.record(connection.id, firstByteNanos, nanoTime, byteBuffer, offset, length);
+        offset += length;
+      }
+      if (offset >= numBytesBefore && offset < end) {
+        // A new partial message starts in this read
+        connection.partialMessageNanos = nanoTime;
       }
     }
 
-    LOGGER.info("Server finished.");
+    private void write(Connection connection, SelectionKey selectionKey) throws IOException {
+      synchronized (connection.sendByteBufferQueue) {
+        Queue<ByteBuffer> queue = connection.sendByteBufferQueue;
+        if (!queue.isEmpty()) {
+          ByteBuffer byteBuffer = queue.peek();
+          int writeBytes = connection.socketChannel.write(byteBuffer);
+          connection.numBytesWritten += writeBytes;
+          LOGGER.debug("Socket " + connection.id + " Write: " + writeBytes
+              + " Buffer remaining: " + byteBuffer.remaining());
+
+          if (!byteBuffer.hasRemaining()) {
+            queue.poll();
+          }
+        }
+        if (queue.isEmpty()) {
+          selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    private void registerNewConnections() throws IOException {
+      Connection connection;
+      while ((connection = newConnections.poll()) != null) {
+        // OP_WRITE is only enabled when there is data to send
+        connection.socketChannel.register(
+            selector, isReadPaused ? 0 : SelectionKey.OP_READ, connection);
+        connections.add(connection);
+      }
+    }
+
+    /**
+     * Adds OP_WRITE to the interest set of the sockets that have new data to send.
+     */
+    private void enableWriteInterest() {
+      Connection connection;
+      while ((connection = pendingWriteConnections.poll()) != null) {
+        SelectionKey selectionKey = connection.socketChannel.keyFor(selector);
+        if (selectionKey != null && selectionKey.isValid()) {
+          selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    /**
+     * Adds or removes OP_READ from the interest set of every socket per `isReadPaused`.
+     */
+    private void updateReadInterest() {
+      isReadInterestChanged = false;
+      boolean shouldRead = !isReadPaused;
+      for (SelectionKey selectionKey : selector.keys()) {
+        if (selectionKey.isValid()) {
+          int interestOps = selectionKey.interestOps();
+          selectionKey.interestOps(shouldRead ?
+              interestOps | SelectionKey.OP_READ : interestOps & ~SelectionKey.OP_READ);
+        }
+      }
+      LOGGER.info("I/O thread " + id + (shouldRead ?
+          ": resume reading from vehicles" : ": pause reading from vehicles"));
+    }
   }
 }
@@ -0,0 +1,99 @@
+package org.emp.network;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A reader of the session files written by {@code SessionRecorder}, one record at a time
+ *
+ * <p> The message of the current record is kept in an array reused for the next record, which only
+ * grows until it fits the largest message.
+ */
+public class SessionReader implements AutoCloseable {
+  private final DataInputStream input;
+  // nanoTime of the recording process when the session started
+  private final long startNanos;
+  private byte[] message = new byte[0];
+  private int connectionIndex;
+  private int length;
+  private long firstByteNanos;
+  private long arrivalNanos;
+
+  /**
+   * @throws IOException if the file cannot be read or is not a session file of a known version.
+   */
+  public SessionReader(Path path) throws IOException {
+    input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+    try {
+      if (input.readInt() != SessionRecorder.MAGIC) {
+        throw new IOException("Not a session file: " + path);
+      }
+      int version = input.readInt();
+      if (version != SessionRecorder.VERSION) {
+        throw new IOException("Unsupported session file version " + version + ": " + path);
+      }
+      input.readInt();
+      // Wall-clock time of the start, not needed to replay
+      input.readLong();
+      startNanos = input.readLong();
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the next record.  A partial record at the end (e.g., the recorder was killed) is ignored.
+   *
+   * @return  {@code true} if a record is read; {@code false} at the end of the session.
+   */
+  public boolean next() throws IOException {
+    try {
+      connectionIndex = input.readInt();
+      length = input.readInt();
+      firstByteNanos = input.readLong();
+      arrivalNanos = input.readLong();
+      if (length > message.length) {
+        message = new byte[length];
+      }
+      input.readFully(message, 0, length);
+      return true;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public int getConnectionIndex() {
+    return connectionIndex;
+  }
+
+  public long getFirstByteNanos() {
+    return firstByteNanos;
+  }
+
+  public long getArrivalNanos() {
+    return arrivalNanos;
+  }
+
+  /**
+   * @return  A read-only view of the message of the current record, header included, which is
+   *          only valid until the next record is read.
+   */
+  public ByteBuffer getMessage() {
+    return ByteBuffer.wrap(message, 0, length).slice().asReadOnlyBuffer();
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
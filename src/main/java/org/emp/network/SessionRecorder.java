@@ -0,0 +1,91 @@
+package org.emp.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A writer of session files, which hold the framed messages received from vehicles with their
+ * arrival times, to replay them later without network or dataset
+ *
+ * <p> A session file starts with a header of {@code HEADER_BYTES}: magic number, format version, a
+ * reserved int, and a pair of wall-clock time (milliseconds) and nanoTime taken at the same moment.
+ * Each record follows with a header of {@code RECORD_HEADER_BYTES}: index of the connection in the
+ * accepted order, length of the message, nanoTime the first byte of the message is read, and
+ * nanoTime the message is complete; then the message itself, header included.  Records are in the
+ * order the messages complete.  Read it with {@code SessionReader}.
+ *
+ * <p> Records are written on the calling (I/O) thread under the lock of the recorder, so capturing
+ * slows down receiving and is meant for testing rather than production.
+ */
+public class SessionRecorder implements AutoCloseable {
+  public static final int MAGIC = 0x454D5053;  // "EMPS"
+  public static final int VERSION = 1;
+  public static final int HEADER_BYTES = 28;
+  public static final int RECORD_HEADER_BYTES = 24;
+
+  private final FileChannel fileChannel;
+  private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+  // Number of messages recorded so far
+  private long numRecorded;
+
+  /**
+   * Creates the session file (replacing an existing one) and writes its header.
+   */
+  public SessionRecorder(Path path) throws IOException {
+    fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(0);
+    header.putLong(System.currentTimeMillis());
+    header.putLong(System.nanoTime());
+    header.flip();
+    writeFully(header);
+  }
+
+  /**
+   * Records a message.  Safe to call from multiple threads.
+   *
+   * @param connectionIndex  Index of the connection in the accepted order.
+   * @param firstByteNanos  nanoTime the first byte of the message is read.
+   * @param arrivalNanos  nanoTime the message is complete.
+   * @param buffer  Buffer holding the message, which is left unchanged.
+   * @param offset  Offset of the message in the buffer.
+   * @param length  Length of the message, header included.
+   */
+  public synchronized void record(int connectionIndex, long firstByteNanos, long arrivalNanos,
+                                  ByteBuffer buffer, int offset, int length) throws IOException {
+    recordHeader.clear();
+    recordHeader.putInt(connectionIndex);
+    recordHeader.putInt(length);
+    recordHeader.putLong(firstByteNanos);
+    recordHeader.putLong(arrivalNanos);
+    recordHeader.flip();
+    writeFully(recordHeader);
+
+    ByteBuffer message = buffer.duplicate();
+    message.limit(offset + length);
+    message.position(offset);
+    writeFully(message);
+    numRecorded++;
+  }
+
+  public synchronized long getNumRecorded() {
+    return numRecorded;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    fileChannel.close();
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      fileChannel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package org.emp.task;
+
+/**
+ * A listener notified when the task queues of the processing pipeline pass the watermarks,
+ * which is used to push the load back to the data sources (e.g., stop reading from sockets).
+ */
+public interface BackpressureListener {
+  /**
+   * Called when the queue of a pipeline stage rises to the high watermark.
+   */
+  void onHighWatermark();
+
+  /**
+   * Called when the queues of all pipeline stages drain to the low watermark.
+   */
+  void onLowWatermark();
+}
@@ -2,16 +2,32 @@ package org.emp.task;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.emp.data.LatencyStage;
+import org.emp.data.MergeTarget;
 import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
+import org.emp.utils.DracoCodecPool;
 import org.emp.utils.DracoHelper;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 /**
  * A task to decode compressed sensor data.
+ *
+ * <p> If the chunk can be merged right away, i.e., it is from the primary vehicle or the locations
+ * it is merged with have been received, it is decoded straight into its region of the merged point
+ * cloud, and the merging task only transforms it in place.  Otherwise it is decoded into an array
+ * kept until it is merged.
  */
 public class DecodingTask extends Task {
   private static final Logger LOGGER = LogManager.getLogger(DecodingTask.class);
-  private final DracoHelper dracoHelper = new DracoHelper();
+  // Initial capacity of the direct buffer to pass the encoded data to Draco, which grows as needed
+  private static final int INITIAL_ENCODED_BUFFER_CAPACITY = 256 * 1024; // 256KB
+  // Direct buffer of each decoding thread to pass the encoded data to Draco
+  private static final ThreadLocal<ByteBuffer> encodedBuffer =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_ENCODED_BUFFER_CAPACITY));
   private final SensorDataChunk dataChunk;
   private final SensorDataHandler sensorDataHandler;
 
@@ -28,21 +44,77 @@ public class DecodingTask extends Task {
       int vehicleId = dataChunk.getVehicleId();
       int frameId = dataChunk.getFrameId();
       int chunkId = dataChunk.getChunkId();
-      long tDracoDecode1 = System.currentTimeMillis();
+      long tDracoDecode1 = System.nanoTime();
       sensorDataHandler.statHandler.logStartDracoDecodingTime(frameId, vehicleId, chunkId, tDracoDecode1);
 
-      dataChunk.setDecodedPointCloud((compressedPointCloud.length > 0) ?
-              dracoHelper.decode(compressedPointCloud) : new float[0]);
+      MergeTarget mergeTarget = canMergeRightAway(vehicleId, frameId) ?
+          sensorDataHandler.getMergeTarget(frameId) : null;
+      if (compressedPointCloud.length == 0) {
+        dataChunk.setDecodedPointCloud(new float[0]);
+      }
+      else if (mergeTarget != null && mergeTarget.acquire()) {
+        try {
+          decodeIntoMergeTarget(compressedPointCloud, mergeTarget);
+        } finally {
+          mergeTarget.release();
+        }
+      }
+      else {
+        dataChunk.setDecodedPointCloud(DracoCodecPool.getInstance().get().decode(compressedPointCloud));
+      }
       sensorDataHandler.saveDataChunk(dataChunk);
 
-      long tDracoDecode2 = System.currentTimeMillis();
+      long tDracoDecode2 = System.nanoTime();
+      dataChunk.setDecodedNanos(tDracoDecode2);
+      sensorDataHandler.statHandler.recordLatency(LatencyStage.RECEIVE_TO_DECODED, dataChunk.getReceivedNanos(), tDracoDecode2);
       sensorDataHandler.statHandler.logEndDracoDecodingTime(frameId, vehicleId, chunkId, tDracoDecode2);
       sensorDataHandler.statHandler.logDracoDecodingTime(frameId, vehicleId, chunkId, tDracoDecode2-tDracoDecode1);
-      LOGGER.info("vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+      LOGGER.debug("vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
     }
     return new DecodingTaskResult(dataChunk);
   }
 
+  /**
+   * @return  {@code true} if the chunk is merged as soon as it is decoded, i.e., it is from the
+   *          primary vehicle, or the locations of the primary vehicle and its vehicle for the frame
+   *          have been received.  Once received, the locations stay until the frame is released.
+   */
+  private boolean canMergeRightAway(int vehicleId, int frameId) {
+    return vehicleId == 1 || (sensorDataHandler.shouldRunMerging(frameId)
+        && sensorDataHandler.hasVehicleLocation(vehicleId, frameId));
+  }
+
+  /**
+   * Decodes the chunk straight into a region of the merged point cloud reserved for its points.
+   * The caller has acquired {@code mergeTarget}.
+   */
+  private void decodeIntoMergeTarget(byte[] compressedPointCloud, MergeTarget mergeTarget) {
+    DracoHelper dracoHelper = DracoCodecPool.getInstance().get();
+    ByteBuffer encoded = encodedBuffer.get();
+    if (encoded.capacity() < compressedPointCloud.length) {
+      encoded = ByteBuffer.allocateDirect(Math.max(compressedPointCloud.length, encoded.capacity() * 2));
+      encodedBuffer.set(encoded);
+    }
+    encoded.clear();
+    encoded.put(compressedPointCloud).flip();
+
+    // The region is reserved once the number of points is known, within the same native call
+    FloatBuffer region = mergeTarget.getBuffer().duplicate();
+    int numFloats;
+    try {
+      numFloats = dracoHelper.decode(encoded, region, mergeTarget::reserve);
+    } catch (BufferOverflowException e) {
+      // The merged point cloud is full, so nothing is reserved and the chunk is kept in an array
+      LOGGER.warn("Merged point cloud full; vehicle: " + dataChunk.getVehicleId() + "; frame: "
+          + dataChunk.getFrameId() + "; chunk: " + dataChunk.getChunkId());
+      dataChunk.setDecodedPointCloud(dracoHelper.decode(compressedPointCloud));
+      return;
+    }
+    dataChunk.setMergeTarget(mergeTarget);
+    dataChunk.setMergeOffset(region.position() - numFloats);
+    dataChunk.setMergeSize(numFloats);
+  }
+
   /**
    * TaskResult from a decoding task, which contains a sensor data chunk
    */
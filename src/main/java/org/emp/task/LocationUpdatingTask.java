@@ -3,9 +3,12 @@ package org.emp.task;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.emp.data.EmpReapSensorDataHandler;
+import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
 import org.emp.data.VehicleLocation;
 
+import java.util.List;
+
 /**
  * A task to upload vehicle locations.
  */
@@ -30,21 +33,42 @@ public class LocationUpdatingTask extends Task {
         VehicleLocation location = VehicleLocation.builder().oxtsData(oxts).build();
         sensorDataHandler.updateVehicleLocation(vehicleId, frameId, location);
         LOGGER.info("vehicle: " + vehicleId + "; frame: " + frameId);
-        return new LocationUpdatingTaskResult();
+        if (vehicleId == 1) {
+            return new LocationUpdatingTaskResult(frameId, null);
+        }
+        return new LocationUpdatingTaskResult(null, sensorDataHandler.popChunksWaitingForVehicleLocation(vehicleId, frameId));
     }
 
     /**
      * TaskResult from a location_updating task
      */
     public class LocationUpdatingTaskResult extends TaskResult {
+        // ID of the frame whose chunks wait for cleanup merging, or null if not the primary vehicle
+        private final Integer frameIdForCleanup;
+        // Chunks of the vehicle that waited for the location, or null if none
+        private final List<SensorDataChunk> chunksToMerge;
 
-        public LocationUpdatingTaskResult() {
+        public LocationUpdatingTaskResult(Integer frameIdForCleanup, List<SensorDataChunk> chunksToMerge) {
             super(TaskType.LOCATION_UPDATING);
+            this.frameIdForCleanup = frameIdForCleanup;
+            this.chunksToMerge = chunksToMerge;
+        }
+
+        /**
+         * @return  Chunks of a secondary vehicle that arrived before its location, to merge now, or
+         *          {@code null} if none.
+         */
+        public List<SensorDataChunk> getChunksToMerge() {
+            return chunksToMerge;
         }
 
+        /**
+         * @return  ID of the frame to run cleanup merging for, once the location of the primary
+         *          vehicle is in place, or {@code null} if the location is of another vehicle.
+         */
         @Override
         Object getResult() {
-            return null;
+            return frameIdForCleanup;
         }
     }
 }
\ No newline at end of file
@@ -1,20 +1,24 @@
 package org.emp.task;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.emp.data.LatencyStage;
+import org.emp.data.MergeTarget;
 import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
 import org.emp.edge.PtClMerger;
 
 import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A task to merge sensor data chunk or frame into a central view.
  */
 public class MergingTask extends Task {
   private static final Logger LOGGER = LogManager.getLogger(MergingTask.class);
+  // Pool to transform the points of cleanup merging in parallel, or null to transform them on the task thread
+  private static volatile ForkJoinPool mergePool;
   private final PtClMerger merger = new PtClMerger();
   private SensorDataChunk dataChunk;
   private int frameIdForCleanup;
@@ -36,6 +40,16 @@ public class MergingTask extends Task {
     this.frameIdForCleanup = frameIdForCleanup;
   }
 
+  /**
+   * Sets the pool to transform the points of cleanup merging in parallel.  The pool is sized
+   * separately from the merging executor, since one cleanup merging covers all vehicles of a frame.
+   *
+   * @param pool  The fork-join pool, or {@code null} to transform the points on the task thread.
+   */
+  public static void setMergePool(ForkJoinPool pool) {
+    mergePool = pool;
+  }
+
   @Override
   public TaskResult call() throws Exception {
     if (isImmediateMerging) {  // immediate merging
@@ -46,48 +60,109 @@ public class MergingTask extends Task {
       int frameId = dataChunk.getFrameId();
       int chunkId = dataChunk.getChunkId();
       LOGGER.debug("[Immediate] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
-      if (vehicleId == 1) {  // No need to merge point cloud from the primary vehicle
-        long t1 = System.currentTimeMillis();
+      if (dataChunk.getMergeTarget() != null) {  // decoded straight into the merged point cloud
+        long t1 = System.nanoTime();
         sensorDataHandler.statHandler.logStartMergingTime(frameId, vehicleId, chunkId, t1);
 
-        float[] pointsPrimary = dataChunk.getDecodedPointCloud();
-        FloatBuffer mergedPointCloud = sensorDataHandler.getMergedPointCloud(frameId);
-        int offset = sensorDataHandler.updateMergedPointCloudOffset(frameId, pointsPrimary.length);
-        LOGGER.debug("[Offset] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; offset: " + offset + "; size: " + pointsPrimary.length);
+        MergeTarget mergeTarget = dataChunk.getMergeTarget();
+        if (!mergeTarget.acquire()) {  // the frame has been finished and released
+          LOGGER.debug("[Immediate][Late] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+          return new MergingTaskResult();
+        }
+        try {
+          // The locations were received before decoding, so the points of a secondary vehicle are
+          // transformed in place
+          if (vehicleId != 1) {
+            float[] oxtsPrimary = sensorDataHandler.getPrimaryLocation(frameId).getOxtsData();
+            float[] oxtsSecondary = sensorDataHandler.getVehicleLocation(vehicleId, frameId).getOxtsData();
+            merger.fbMergeInPlace(oxtsPrimary, oxtsSecondary, mergeTarget.getBuffer(),
+                dataChunk.getMergeOffset(), dataChunk.getMergeSize());
+          }
+        } finally {
+          mergeTarget.release();
+        }
+
+        sensorDataHandler.saveMergedPointCloud(frameId, Collections.singleton(vehicleId));
+        long t2 = System.nanoTime();
+        sensorDataHandler.statHandler.logEndMergingTime(frameId, vehicleId, chunkId, t2);
+        sensorDataHandler.statHandler.logMergingTime(frameId, vehicleId, chunkId, t2-t1);
+        sensorDataHandler.statHandler.recordLatency(LatencyStage.DECODED_TO_MERGED, dataChunk.getDecodedNanos(), t2);
+        LOGGER.debug("[Immediate][Yes] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+      }
+      else if (vehicleId == 1) {  // No need to merge point cloud from the primary vehicle
+        long t1 = System.nanoTime();
+        sensorDataHandler.statHandler.logStartMergingTime(frameId, vehicleId, chunkId, t1);
 
-        for (int i = 0; i < pointsPrimary.length; i++) {
-          mergedPointCloud.put(offset + i, pointsPrimary[i]);
+        float[] pointsPrimary = dataChunk.getDecodedPointCloud();
+        MergeTarget mergeTarget = sensorDataHandler.getMergeTarget(frameId);
+        if (mergeTarget == null || !mergeTarget.acquire()) {  // the frame has been finished and released
+          LOGGER.debug("[Immediate][Late] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+          return new MergingTaskResult();
+        }
+        try {
+          int offset = mergeTarget.reserve(pointsPrimary.length);
+          if (offset < 0) {
+            LOGGER.error("[Immediate][Full] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; size: " + pointsPrimary.length);
+            return new MergingTaskResult();
+          }
+          LOGGER.debug("[Offset] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; offset: " + offset + "; size: " + pointsPrimary.length);
+
+          // Bulk copy into the reserved region of the merged point cloud
+          FloatBuffer mergedRegion = mergeTarget.getBuffer().duplicate();
+          mergedRegion.position(offset);
+          mergedRegion.put(pointsPrimary);
+        } finally {
+          mergeTarget.release();
         }
 
         sensorDataHandler.saveMergedPointCloud(frameId, Collections.singleton(vehicleId));
-        long t2 = System.currentTimeMillis();
+        long t2 = System.nanoTime();
         sensorDataHandler.statHandler.logEndMergingTime(frameId, vehicleId, chunkId, t2);
         sensorDataHandler.statHandler.logMergingTime(frameId, vehicleId, chunkId, t2-t1);
-        LOGGER.info("[Immediate][Yes] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+        sensorDataHandler.statHandler.recordLatency(LatencyStage.DECODED_TO_MERGED, dataChunk.getDecodedNanos(), t2);
+        LOGGER.debug("[Immediate][Yes] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+      }
+      else if (sensorDataHandler.waitForVehicleLocation(dataChunk)) {
+        // if the location of the vehicle is not received (e.g., a raw chunk skips decoding), the chunk is
+        // merged again after the location updating
+        LOGGER.debug("[Immediate][Wait] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
       }
-      else if (sensorDataHandler.shouldRunMerging(frameId)) {  // flag indicating the primary location has been received
-        long t1 = System.currentTimeMillis();
+      else if (sensorDataHandler.pushUnmergedData(vehicleId, frameId, chunkId)) {
+        // if the primary location is not received, save the data to a space (sensorDataHandler) for future merging
+        LOGGER.debug("[Immediate][No] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+      }
+      else {  // the primary location has been received
+        long t1 = System.nanoTime();
         sensorDataHandler.statHandler.logStartMergingTime(frameId, vehicleId, chunkId, t1);
 
-        float[] oxtsPrimary = sensorDataHandler.getPrimaryLocation(frameId).getOxtsData();
-        float[] points = dataChunk.getDecodedPointCloud();
-        List<float[]> pointsSecondary = Collections.singletonList(points);
-        List<float[]> oxtsSecondary = Collections.singletonList(sensorDataHandler.getVehicleLocation(vehicleId, frameId).getOxtsData());
-        FloatBuffer mergedPointCloud = sensorDataHandler.getMergedPointCloud(frameId);
-        int offset = sensorDataHandler.updateMergedPointCloudOffset(frameId, points.length);
-        LOGGER.debug("[Offset] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; offset: " + offset + "; size: " + points.length);
+        MergeTarget mergeTarget = sensorDataHandler.getMergeTarget(frameId);
+        if (mergeTarget == null || !mergeTarget.acquire()) {  // the frame has been finished and released
+          LOGGER.debug("[Immediate][Late] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+          return new MergingTaskResult();
+        }
+        try {
+          float[] oxtsPrimary = sensorDataHandler.getPrimaryLocation(frameId).getOxtsData();
+          float[] points = dataChunk.getDecodedPointCloud();
+          List<float[]> pointsSecondary = Collections.singletonList(points);
+          List<float[]> oxtsSecondary = Collections.singletonList(sensorDataHandler.getVehicleLocation(vehicleId, frameId).getOxtsData());
+          int offset = mergeTarget.reserve(points.length);
+          if (offset < 0) {
+            LOGGER.error("[Immediate][Full] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; size: " + points.length);
+            return new MergingTaskResult();
+          }
+          LOGGER.debug("[Offset] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId + "; offset: " + offset + "; size: " + points.length);
 
-        merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, mergedPointCloud, offset);
+          merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, mergeTarget.getBuffer(), offset);
+        } finally {
+          mergeTarget.release();
+        }
 
         sensorDataHandler.saveMergedPointCloud(frameId, Collections.singleton(vehicleId));
-        long t2 = System.currentTimeMillis();
+        long t2 = System.nanoTime();
         sensorDataHandler.statHandler.logEndMergingTime(frameId, vehicleId, chunkId, t2);
         sensorDataHandler.statHandler.logMergingTime(frameId, vehicleId, chunkId, t2-t1);
-        LOGGER.info("[Immediate][Yes] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
-      }
-      else {  // if not received, save the data to a space (sensorDataHandler) for future merging
-        sensorDataHandler.pushUnmergedData(vehicleId, frameId, chunkId);
-        LOGGER.info("[Immediate][No] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
+        sensorDataHandler.statHandler.recordLatency(LatencyStage.DECODED_TO_MERGED, dataChunk.getDecodedNanos(), t2);
+        LOGGER.debug("[Immediate][Yes] vehicle: " + vehicleId + "; frame: " + frameId + "; chunk: " + chunkId);
       }
     }
     else {  // cleanup merging
@@ -100,26 +175,45 @@ public class MergingTask extends Task {
         Set<Integer> vehicleIds = new HashSet<>();
         int dataSize = 0;
         for (Integer vehicleId : indexMap.keySet()) {
-          float[] concated = new float[0];
+          // Each chunk is merged as is, in the order of the chunks, instead of being concatenated first
+          float[] oxts = sensorDataHandler.getVehicleLocation(vehicleId, frameIdForCleanup).getOxtsData();
           for (Integer chunkId : indexMap.get(vehicleId)) {
-            concated = ArrayUtils.addAll(concated, sensorDataHandler.getDataChunk(vehicleId, frameIdForCleanup, chunkId));
+            float[] chunk = sensorDataHandler.getDataChunk(vehicleId, frameIdForCleanup, chunkId);
+            pointsSecondary.add(chunk);
+            oxtsSecondary.add(oxts);
+            dataSize += chunk.length;
           }
-          pointsSecondary.add(concated);
-          oxtsSecondary.add(sensorDataHandler.getVehicleLocation(vehicleId, frameIdForCleanup).getOxtsData());
           vehicleIds.add(vehicleId);
-          dataSize += concated.length;
         }
-        FloatBuffer mergedPointCloud = sensorDataHandler.getMergedPointCloud(frameIdForCleanup);
-        int offset = sensorDataHandler.updateMergedPointCloudOffset(frameIdForCleanup, dataSize);
-        LOGGER.debug("[Offset] frame: " + frameIdForCleanup + "; offset: " + offset + "; size: " + dataSize);
+        MergeTarget mergeTarget = sensorDataHandler.getMergeTarget(frameIdForCleanup);
+        if (mergeTarget == null || !mergeTarget.acquire()) {  // the frame has been finished and released
+          LOGGER.debug("[Cleanup][Late] frame: " + frameIdForCleanup);
+          return new MergingTaskResult();
+        }
+        try {
+          FloatBuffer mergedPointCloud = mergeTarget.getBuffer();
+          int offset = mergeTarget.reserve(dataSize);
+          if (offset < 0) {
+            LOGGER.error("[Cleanup][Full] frame: " + frameIdForCleanup + "; size: " + dataSize);
+            return new MergingTaskResult();
+          }
+          LOGGER.debug("[Offset] frame: " + frameIdForCleanup + "; offset: " + offset + "; size: " + dataSize);
 
-        merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, mergedPointCloud, offset);
+          ForkJoinPool pool = mergePool;
+          if (pool != null) {
+            merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, mergedPointCloud, offset, pool);
+          } else {
+            merger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, mergedPointCloud, offset);
+          }
+        } finally {
+          mergeTarget.release();
+        }
 
         sensorDataHandler.saveMergedPointCloud(frameIdForCleanup, vehicleIds);
-        LOGGER.info("[Cleanup][Yes] frame: " + frameIdForCleanup);
+        LOGGER.debug("[Cleanup][Yes] frame: " + frameIdForCleanup);
       }
       else {
-        LOGGER.info("[Cleanup][No] frame: " + frameIdForCleanup);
+        LOGGER.debug("[Cleanup][No] frame: " + frameIdForCleanup);
       }
     }
 
@@ -4,9 +4,19 @@ package org.emp.task;
  * A task to carry out object detection for received sensor data.
  */
 public class ObjectDetectionTask extends Task {
+  // ID of the frame to detect objects in
+  private final int frameId;
 
-  public ObjectDetectionTask() {
+  public ObjectDetectionTask(int frameId) {
     super(TaskType.OBJECT_DETECTION);
+    this.frameId = frameId;
+  }
+
+  /**
+   * @return  ID of the frame to detect objects in.
+   */
+  int getFrameId() {
+    return frameId;
   }
 
   @Override
@@ -23,9 +33,12 @@ public class ObjectDetectionTask extends Task {
       super(TaskType.OBJECT_DETECTION);
     }
 
+    /**
+     * @return  ID of the frame, which can be released afterwards.
+     */
     @Override
     Object getResult() {
-      return null;
+      return frameId;
     }
   }
 }
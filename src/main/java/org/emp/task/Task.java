@@ -14,6 +14,10 @@ public abstract class Task implements Callable<TaskResult> {
     this.taskType = taskType;
   }
 
+  TaskType getTaskType() {
+    return taskType;
+  }
+
   public enum TaskType {
     // Update the current location of a vehicle
     LOCATION_UPDATING,
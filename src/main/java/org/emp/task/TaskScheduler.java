@@ -1,117 +1,381 @@
 package org.emp.task;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.emp.data.SensorDataFrame;
+import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
+import org.emp.task.Task.TaskType;
 
 /**
  * A task scheduler to chain different tasks together into a processing pipeline
+ *
+ * <p> Each submitted task carries a completion hook which submits the following task
+ * (DECODING -> MERGING -> OBJECT_DETECTION) as soon as the task finishes, so no thread
+ * polls for finished tasks.  Updating the location of the primary vehicle is followed by the
+ * cleanup merging of the chunks of the frame that arrived before it.  Once the object detection
+ * of a frame finishes, successfully or not, the frame is released from the sensor data handler.
+ *
+ * <p> Each {@code TaskType} runs on its own thread pool with a bounded queue, so a burst of
+ * one type of task (e.g., decoding) does not starve the others (e.g., location updating).
+ * A stage never runs on the thread submitting to it, and no task is dropped: when a stage queue
+ * is full, the submitting thread waits for room in the queue.  The completion hooks run on
+ * pipeline threads, so an I/O thread only waits when its own submission does not fit.
+ * When a {@code BackpressureListener} is set, it is notified once a stage queue rises to the
+ * high watermark and again once all stage queues drain to the low watermark, so the sources are
+ * normally paused well before a queue is full.
  */
 public class TaskScheduler implements Runnable {
   private static final Logger LOGGER = LogManager.getLogger(TaskScheduler.class);
+  // Default capacity of the task queue of each pipeline stage
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
 
   // Singleton TaskScheduler instance
   private static TaskScheduler instance;
-  // ExecutorService instance to run different Task
-  private final ExecutorService executor;
-  private final List<Future<TaskResult>> listFutures;
+  // Whether the current thread is a thread of a stage executor
+  private static final ThreadLocal<Boolean> IS_PIPELINE_THREAD = ThreadLocal.withInitial(() -> false);
+  // Task type -> executor running the tasks of that pipeline stage
+  private final Map<TaskType, ThreadPoolExecutor> executors;
   private final SensorDataHandler sensorDataHandler;
+  // Number of tasks submitted but not finished yet
+  private final AtomicInteger numPendingTasks;
+  // Lock to wait on until the scheduler stops and all pending tasks finish
+  private final Object pendingTasksLock = new Object();
+  // Lock to serialize the frame completion check and frame release, which are not thread-safe
+  private final Object objectDetectionLock = new Object();
   // Should the task scheduler run.  When false, the scheduler stops and exits.
-  private boolean shouldRun;
+  private volatile boolean shouldRun;
+  // Listener to notify when the stage queues pass the watermarks
+  private volatile BackpressureListener backpressureListener;
+  // Queue depth of a stage at which the listener is notified to hold back new tasks
+  private int highWatermark;
+  // Queue depth of all stages at which the listener is notified to resume
+  private int lowWatermark;
+  // Whether the high watermark has been reached and the low watermark not yet.  Switched under
+  // watermarkLock together with the listener call.
+  private volatile boolean isOverloaded;
+  private final Object watermarkLock = new Object();
 
   /**
    * Constructs {@code TaskScheduler} instance.
-   * @param numThreads  Number of threads to run concurrently.
+   * @param numThreadsMap  Task type -> number of threads to run concurrently for the type.
+   *                       A type without an entry gets one thread.
+   * @param queueCapacity  Capacity of the task queue of each pipeline stage.  When a queue is
+   *                       full, the submitting thread waits for room.
    * @param sensorDataHandler  Sensor data handler.
    */
-  private TaskScheduler(int numThreads, SensorDataHandler sensorDataHandler) {
-    executor = Executors.newFixedThreadPool(numThreads);
-    listFutures = new LinkedList<>();
+  TaskScheduler(Map<TaskType, Integer> numThreadsMap, int queueCapacity,
+                SensorDataHandler sensorDataHandler) {
+    executors = new EnumMap<>(TaskType.class);
+    for (TaskType taskType : TaskType.values()) {
+      int numThreads = numThreadsMap.getOrDefault(taskType, 1);
+      executors.put(taskType, new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueCapacity), newPipelineThreadFactory(taskType), TaskScheduler::rejectTask));
+    }
+    numPendingTasks = new AtomicInteger(0);
     shouldRun = true;
     this.sensorDataHandler = sensorDataHandler;
   }
 
   /**
-   * @param numThreads  Number of threads to run concurrently for tasks.
+   * @param numThreads  Number of threads to run concurrently for each type of tasks.
    * @return  The singleton {@code TaskScheduler} instance.
    */
   public static TaskScheduler getInstance(
       int numThreads, SensorDataHandler sensorDataHandler) {
+    Map<TaskType, Integer> numThreadsMap = new EnumMap<>(TaskType.class);
+    for (TaskType taskType : TaskType.values()) {
+      numThreadsMap.put(taskType, numThreads);
+    }
+    return getInstance(numThreadsMap, DEFAULT_QUEUE_CAPACITY, sensorDataHandler);
+  }
+
+  /**
+   * @param numThreadsMap  Task type -> number of threads to run concurrently for the type.
+   * @param queueCapacity  Capacity of the task queue of each pipeline stage.
+   * @return  The singleton {@code TaskScheduler} instance.
+   */
+  public static TaskScheduler getInstance(
+      Map<TaskType, Integer> numThreadsMap, int queueCapacity, SensorDataHandler sensorDataHandler) {
     if (instance == null) {
-      instance = new TaskScheduler(numThreads, sensorDataHandler);
+      instance = new TaskScheduler(numThreadsMap, queueCapacity, sensorDataHandler);
     }
     return instance;
   }
 
   /**
-   * Submits a task for execution.
+   * Sets the listener to notify when the stage queues pass the watermarks.  The listener is called
+   * under a lock on the submitting or finishing thread, so it should return quickly.
+   *
+   * @param highWatermark  Queue depth of any stage at which {@code onHighWatermark} is called.
+   * @param lowWatermark  Queue depth of all stages at which {@code onLowWatermark} is called.
+   * @param listener  The listener.
+   */
+  public void setBackpressureListener(int highWatermark, int lowWatermark, BackpressureListener listener) {
+    if (lowWatermark < 0 || lowWatermark >= highWatermark) {
+      throw new IllegalArgumentException(
+          "Invalid watermarks (low: " + lowWatermark + ", high: " + highWatermark + ")");
+    }
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.backpressureListener = listener;
+  }
+
+  /**
+   * @return  {@code true} if the high watermark has been reached and the queues have not
+   *          drained to the low watermark yet; {@code false} otherwise.
+   */
+  public boolean isOverloaded() {
+    return isOverloaded;
+  }
+
+  /**
+   * Submits a task for execution.  The following task in the pipeline is submitted
+   * once this task finishes.  Waits for room if the queue of the stage is full.
    * @param task  The {@code Task} instance to execute.
    */
   public void submit(Task task) {
-    Future<TaskResult> future = executor.submit(task);
-    synchronized (listFutures) {
-      listFutures.add(future);
+    numPendingTasks.incrementAndGet();
+    ThreadPoolExecutor executor = executors.get(task.getTaskType());
+    try {
+      CompletableFuture.supplyAsync(() -> callTask(task), executor)
+          .whenCompleteAsync((taskResult, throwable) -> onTaskFinished(task, taskResult, throwable),
+              onPipelineThread(executor));
+    } catch (RejectedExecutionException e) {
+      // Only if the stage is shut down or the thread is interrupted while waiting for room
+      LOGGER.error("Task type: " + task.getTaskType() + " rejected: " + e.getMessage());
+      finishPendingTask();
     }
+    checkWatermarks();
   }
 
-  @Override
-  public void run() {
-    while (shouldRun || listFutures.size() > 0) {
-      List<Task> newTasks = new ArrayList<>();
-
-      synchronized (listFutures) {
-        ListIterator<Future<TaskResult>> iterator = listFutures.listIterator();
-        while (iterator.hasNext()) {
-          Future<TaskResult> future = iterator.next();
-          if (future.isDone()) {
-            try {
-              TaskResult taskResult = future.get();
-              if (taskResult != null) {
-                LOGGER.debug("Finished task type: " + taskResult.getTaskType());
-                switch (taskResult.getTaskType()) {
-                  case DECODING:
-                    newTasks.add(new MergingTask(taskResult.getResult(), sensorDataHandler));
-                    break;
-                  case MERGING:
-                    if (sensorDataHandler.shouldRunObjectDetection()) {
-                      newTasks.add(new ObjectDetectionTask());
-                    }
-                    break;
-                  case OBJECT_DETECTION:
-                    break;
-                  default:
-                }
+  /**
+   * @return  Number of tasks submitted but not finished yet.
+   */
+  public int getNumPendingTasks() {
+    return numPendingTasks.get();
+  }
+
+  /**
+   * @param taskType  Type of the pipeline stage.
+   * @return  Number of tasks waiting in the queue of the stage.
+   */
+  public int getQueueDepth(TaskType taskType) {
+    return executors.get(taskType).getQueue().size();
+  }
+
+  /**
+   * @return  Task type -> number of tasks waiting in the queue of the stage.
+   */
+  public Map<TaskType, Integer> getQueueDepths() {
+    Map<TaskType, Integer> queueDepths = new EnumMap<>(TaskType.class);
+    for (TaskType taskType : TaskType.values()) {
+      queueDepths.put(taskType, getQueueDepth(taskType));
+    }
+    return Collections.unmodifiableMap(queueDepths);
+  }
+
+  /**
+   * Notifies the backpressure listener if the stage queues pass the watermarks.
+   */
+  private void checkWatermarks() {
+    BackpressureListener listener = backpressureListener;
+    if (listener == null) {
+      return;
+    }
+
+    // The depth is read and the state switched under the lock, so a check that sees the queues
+    // drained cannot be overtaken by a stale check that pauses the sources after it.  The depth is
+    // read again after each switch, as the queues may have passed the other watermark meanwhile
+    // and the checks of the threads that moved them may have returned already.
+    synchronized (watermarkLock) {
+      while (true) {
+        int maxQueueDepth = getMaxQueueDepth();
+        if (!isOverloaded && maxQueueDepth >= highWatermark) {
+          isOverloaded = true;
+          LOGGER.info("Pipeline overloaded, queue depths: " + getQueueDepths());
+          listener.onHighWatermark();
+        }
+        else if (isOverloaded && maxQueueDepth <= lowWatermark) {
+          isOverloaded = false;
+          LOGGER.info("Pipeline drained, queue depths: " + getQueueDepths());
+          listener.onLowWatermark();
+        }
+        else {
+          break;
+        }
+      }
+    }
+  }
+
+  private int getMaxQueueDepth() {
+    int maxQueueDepth = 0;
+    for (ThreadPoolExecutor executor : executors.values()) {
+      maxQueueDepth = Math.max(maxQueueDepth, executor.getQueue().size());
+    }
+    return maxQueueDepth;
+  }
+
+  /**
+   * @return  A thread factory of a stage executor, whose threads are marked as pipeline threads.
+   */
+  private static ThreadFactory newPipelineThreadFactory(TaskType taskType) {
+    AtomicInteger threadIndex = new AtomicInteger(0);
+    return runnable -> new Thread(() -> {
+      IS_PIPELINE_THREAD.set(true);
+      runnable.run();
+    }, "pipeline-" + taskType.name().toLowerCase() + "-" + threadIndex.getAndIncrement());
+  }
+
+  /**
+   * @return  An executor running the completion hook of a task of the stage on a pipeline
+   *          thread: on the thread finishing the task, or on a thread of the stage if the task
+   *          finished before the hook was attached by a thread outside the pipeline.
+   */
+  private static Executor onPipelineThread(ThreadPoolExecutor executor) {
+    return runnable -> {
+      if (IS_PIPELINE_THREAD.get()) {
+        runnable.run();
+      } else {
+        executor.execute(runnable);
+      }
+    };
+  }
+
+  /**
+   * Handles a task rejected as the queue of its stage is full, by waiting for room in the queue.
+   * A pipeline thread, which chains the following task of a finished one, so holds back its own
+   * stage; the stages form no cycle, so the wait ends.  An I/O thread so stops reading until the
+   * stage catches up.
+   */
+  private static void rejectTask(Runnable runnable, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("Stage shut down");
+    }
+    try {
+      executor.getQueue().put(runnable);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException(e);
+    }
+  }
+
+  private TaskResult callTask(Task task) {
+    try {
+      return task.call();
+    } catch (Exception e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * Completion hook of a task, which chains the following task into the pipeline.
+   *
+   * @param task  The finished task.
+   * @param taskResult  Result of the finished task, or {@code null} if the task failed.
+   * @param throwable  The exception thrown by the task, or {@code null} if the task succeeded.
+   */
+  private void onTaskFinished(Task task, TaskResult taskResult, Throwable throwable) {
+    try {
+      if (throwable != null) {
+        throwable.printStackTrace();
+        if (task instanceof ObjectDetectionTask) {
+          // Still release the frame, so that its merged point cloud and state are freed
+          releaseFrame(((ObjectDetectionTask) task).getFrameId());
+        }
+      } else if (taskResult != null) {
+        LOGGER.debug("Finished task type: " + taskResult.getTaskType());
+        switch (taskResult.getTaskType()) {
+          case DECODING:
+            submit(new MergingTask(taskResult.getResult(), sensorDataHandler));
+            break;
+          case MERGING:
+            int frameId;
+            boolean shouldRunObjectDetection;
+            synchronized (objectDetectionLock) {
+              frameId = sensorDataHandler.getCurrentFrameId();
+              shouldRunObjectDetection = sensorDataHandler.shouldRunObjectDetection();
+            }
+            if (shouldRunObjectDetection) {
+              submit(new ObjectDetectionTask(frameId));
+            }
+            break;
+          case LOCATION_UPDATING:
+            Object frameIdForCleanup = taskResult.getResult();
+            if (frameIdForCleanup != null) {
+              submit(new MergingTask((int) frameIdForCleanup, sensorDataHandler));
+            }
+            List<SensorDataChunk> chunksToMerge =
+                ((LocationUpdatingTask.LocationUpdatingTaskResult) taskResult).getChunksToMerge();
+            if (chunksToMerge != null) {
+              for (SensorDataChunk chunk : chunksToMerge) {
+                submit(new MergingTask(chunk, sensorDataHandler));
               }
-            } catch (InterruptedException | ExecutionException | IOException e) {
-              e.printStackTrace();
             }
-
-            // Remove the {@code TaskResult} instance for a finished task
-            iterator.remove();
             break;
-          }
+          case OBJECT_DETECTION:
+            releaseFrame((int) taskResult.getResult());
+            break;
+          default:
         }
       }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      checkWatermarks();
+      finishPendingTask();
+    }
+  }
+
+  private void releaseFrame(int frameId) {
+    synchronized (objectDetectionLock) {
+      sensorDataHandler.releaseFrame(frameId);
+    }
+  }
+
+  private void finishPendingTask() {
+    if (numPendingTasks.decrementAndGet() == 0) {
+      synchronized (pendingTasksLock) {
+        pendingTasksLock.notifyAll();
+      }
+    }
+  }
 
-      for (Task newTask : newTasks) {
-        submit(newTask);
+  /**
+   * Blocks until the scheduler is stopped and all pending tasks finish.
+   */
+  @Override
+  public void run() {
+    synchronized (pendingTasksLock) {
+      while (shouldRun || numPendingTasks.get() > 0) {
+        try {
+          pendingTasksLock.wait();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+          return;
+        }
       }
     }
   }
 
   public void stopRunning() {
     shouldRun = false;
+    synchronized (pendingTasksLock) {
+      pendingTasksLock.notifyAll();
+    }
   }
 }
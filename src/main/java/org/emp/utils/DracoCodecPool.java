@@ -0,0 +1,65 @@
+package org.emp.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of {@code DracoHelper} instances, one per thread
+ *
+ * <p> Each thread gets its own {@code DracoHelper}, so the native codec context is reused by all
+ * the encoding and decoding calls of the thread instead of being created for each call.
+ */
+public class DracoCodecPool implements AutoCloseable {
+  // Singleton DracoCodecPool instance
+  private static DracoCodecPool instance;
+  // DracoHelper instance of each thread
+  private final ThreadLocal<DracoHelper> threadLocalHelper;
+  // All DracoHelper instances created by the pool, to free them on close
+  private final Queue<DracoHelper> helpers;
+
+  public DracoCodecPool() {
+    helpers = new ConcurrentLinkedQueue<>();
+    threadLocalHelper = ThreadLocal.withInitial(() -> {
+      DracoHelper helper = new DracoHelper();
+      helpers.add(helper);
+      return helper;
+    });
+  }
+
+  /**
+   * @return  The shared {@code DracoCodecPool} instance.
+   */
+  public static synchronized DracoCodecPool getInstance() {
+    if (instance == null) {
+      instance = new DracoCodecPool();
+    }
+    return instance;
+  }
+
+  /**
+   * @return  The {@code DracoHelper} instance of the calling thread.
+   */
+  public DracoHelper get() {
+    return threadLocalHelper.get();
+  }
+
+  /**
+   * @return  Number of {@code DracoHelper} instances created, i.e., the number of threads using
+   *          the pool.
+   */
+  public int size() {
+    return helpers.size();
+  }
+
+  /**
+   * Frees the native codec contexts.  It should only be called after all threads using the
+   * pool are done.
+   */
+  @Override
+  public void close() {
+    DracoHelper helper;
+    while ((helper = helpers.poll()) != null) {
+      helper.close();
+    }
+  }
+}
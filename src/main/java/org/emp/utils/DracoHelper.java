@@ -1,13 +1,39 @@
 package org.emp.utils;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.function.IntUnaryOperator;
+
 /**
  * Helper class to encode and decode point cloud data using Draco library
+ *
+ * <p> Besides the array-based methods, the helper provides overloads working on direct buffers.
+ * The native code reads from and writes to the memory of the buffers, so no Java array is
+ * created or copied, and the decoded points can be written straight to their final place
+ * (e.g., the reserved region of a merged point cloud).
+ *
+ * <p> Each instance owns a native codec context (encoder, decoder and encoding buffer), which is
+ * reused across calls and freed by {@link #close()}.  An instance is not thread-safe; use
+ * {@link DracoCodecPool} to get one instance per thread.
  */
-public class DracoHelper {
+public class DracoHelper implements AutoCloseable {
   static {
     System.loadLibrary("EmpNative");
   }
 
+  // Pointer to the native codec context
+  private long nativeCodec;
+
+  private native long createNativeObject();
+
+  private native void deleteNativeObject(long nativeCodec);
+
+  public DracoHelper() {
+    nativeCodec = createNativeObject();
+  }
+
   /**
    * Encodes point cloud data using Draco.
    *
@@ -16,6 +42,7 @@ public class DracoHelper {
    * @param cl  cl value
    * @param qb  qb value
    * @return  Encoded data in byte array.
+   * @throws IllegalArgumentException  If the data cannot be encoded.
    */
   public native byte[] encode(float[] data, int cl, int qb);
 
@@ -25,6 +52,211 @@ public class DracoHelper {
    * @param data  Encoded data in byte array.
    * @return  A float array of size 4 * n, with n as the number of points.  Each point has
    * four float: the coordinate (x, y, z) and the intensity.
+   * @throws IllegalArgumentException  If the data cannot be decoded.
    */
   public native float[] decode(byte[] data);
+
+  /**
+   * Encodes point cloud data in a direct buffer using Draco.
+   *
+   * @param data  A direct buffer in native byte order, holding 4 * n floats from its position
+   *              to its limit, with n as the number of points.  The position is moved to the
+   *              limit.
+   * @param cl  cl value
+   * @param qb  qb value
+   * @param result  A direct buffer to write the encoded data to, from its position.
+   *                The position is advanced by the number of bytes written.
+   * @return  Number of bytes written.
+   * @throws BufferOverflowException  If {@code result} does not have enough space remaining.
+   * @throws IllegalArgumentException  If the data cannot be encoded.
+   */
+  public int encode(FloatBuffer data, int cl, int qb, ByteBuffer result) {
+    checkDirect(data);
+    checkDirect(result);
+    if (data.remaining() % 4 != 0) {
+      throw new IllegalArgumentException("Number of floats is not a multiple of 4: " + data.remaining());
+    }
+    int numBytes = encodeDirect(data, data.position(), data.remaining(), cl, qb,
+        result, result.position(), result.remaining());
+    if (numBytes == -1) {
+      throw new BufferOverflowException();
+    }
+    if (numBytes < 0) {
+      throw new IllegalArgumentException("Cannot encode " + data.remaining() + " floats");
+    }
+    data.position(data.limit());
+    result.position(result.position() + numBytes);
+    return numBytes;
+  }
+
+  /**
+   * Decodes point cloud data in a direct buffer using Draco.
+   *
+   * @param data  A direct buffer holding the encoded data from its position to its limit.
+   *              The position is moved to the limit.
+   * @param result  A direct buffer in native byte order to write the decoded points to, from its
+   *                position.  Each point has four float: the coordinate (x, y, z) and the
+   *                intensity.  The position is advanced by the number of floats written.
+   * @return  Number of floats written, i.e., 4 * n, with n as the number of points.
+   * @throws BufferOverflowException  If {@code result} does not have enough space remaining.
+   *                                  Nothing is written in this case.
+   * @throws IllegalArgumentException  If the data cannot be decoded.
+   */
+  public int decode(ByteBuffer data, FloatBuffer result) {
+    checkDirect(data);
+    checkDirect(result);
+    int numFloats = decodeDirect(data, data.position(), data.remaining(),
+        result, result.position(), result.remaining());
+    if (numFloats == -1) {
+      throw new BufferOverflowException();
+    }
+    if (numFloats < 0) {
+      throw new IllegalArgumentException("Cannot decode " + data.remaining() + " bytes");
+    }
+    data.position(data.limit());
+    result.position(result.position() + numFloats);
+    return numFloats;
+  }
+
+  /**
+   * Decodes point cloud data in a direct buffer using Draco, into a region of {@code result}
+   * reserved once the number of points is known, e.g., the region of a chunk in a merged point
+   * cloud.  Decoding, reserving and writing take a single native call.
+   *
+   * @param data  A direct buffer holding the encoded data from its position to its limit.
+   *              The position is moved to the limit.
+   * @param result  A direct buffer in native byte order to write the decoded points to.
+   *                See {@link #decode(ByteBuffer, FloatBuffer)} for the format.  The position is
+   *                moved to the end of the region written.
+   * @param reserve  Called once with the number of floats decoded, and returns the offset of the
+   *                 region reserved for them in {@code result}, or -1 if it cannot be reserved.
+   * @return  Number of floats written, i.e., 4 * n, with n as the number of points.  The region
+   *          starts at the position of {@code result} minus this number.
+   * @throws BufferOverflowException  If the region cannot be reserved.  Nothing is written in this
+   *                                  case.
+   * @throws IllegalArgumentException  If the data cannot be decoded, in which case
+   *                                   {@code reserve} is not called.
+   * @throws IllegalStateException  If the reserved region is beyond the limit of {@code result}.
+   */
+  public int decode(ByteBuffer data, FloatBuffer result, IntUnaryOperator reserve) {
+    checkDirect(data);
+    checkDirect(result);
+    long region = decodeReservedDirect(data, data.position(), data.remaining(), result, result.limit(), reserve);
+    if (region == -1) {
+      throw new BufferOverflowException();
+    }
+    if (region == -2) {
+      throw new IllegalArgumentException("Cannot decode " + data.remaining() + " bytes");
+    }
+    if (region < 0) {
+      throw new IllegalStateException("Reserved region beyond the limit " + result.limit());
+    }
+    int offset = (int) (region >>> 32);
+    int numFloats = (int) region;
+    data.position(data.limit());
+    result.position(offset + numFloats);
+    return numFloats;
+  }
+
+  /**
+   * Decodes multiple chunks of point cloud data in direct buffers using Draco, e.g., all chunks of
+   * one frame from one vehicle, into one region of {@code result} reserved for all their points.
+   * Decoding, reserving and writing take a single native call for all the chunks.
+   *
+   * @param data  Direct buffers holding the encoded data of each chunk from their position to their
+   *              limit.  The positions are moved to the limits.
+   * @param result  A direct buffer in native byte order to write the decoded points to.
+   *                See {@link #decode(ByteBuffer, FloatBuffer)} for the format.  The position is
+   *                moved to the end of the region written.
+   * @param reserve  Called once with the number of floats decoded from all the chunks, and returns
+   *                 the offset of the region reserved for them in {@code result}, or -1 if it
+   *                 cannot be reserved.
+   * @return  Number of floats written for each chunk, in the same order as {@code data}.  The
+   *          chunks are written one after another from the start of the region.
+   * @throws BufferOverflowException  If the region cannot be reserved.  Nothing is written in this
+   *                                  case.
+   * @throws IllegalArgumentException  If a chunk cannot be decoded, in which case {@code reserve}
+   *                                   is not called.
+   * @throws IllegalStateException  If the reserved region is beyond the limit of {@code result}.
+   */
+  public int[] decode(ByteBuffer[] data, FloatBuffer result, IntUnaryOperator reserve) {
+    int[] offsets = new int[data.length];
+    int[] lengths = new int[data.length];
+    for (int i = 0; i < data.length; i++) {
+      checkDirect(data[i]);
+      offsets[i] = data[i].position();
+      lengths[i] = data[i].remaining();
+    }
+    checkDirect(result);
+    int[] numFloats = new int[data.length];
+    long region = decodeBatchReservedDirect(data, offsets, lengths, result, result.limit(), reserve, numFloats);
+    if (region == -1) {
+      throw new BufferOverflowException();
+    }
+    if (region == -2) {
+      throw new IllegalArgumentException("Cannot decode " + data.length + " chunks");
+    }
+    if (region < 0) {
+      throw new IllegalStateException("Reserved region beyond the limit " + result.limit());
+    }
+    for (ByteBuffer chunk : data) {
+      chunk.position(chunk.limit());
+    }
+    result.position((int) (region >>> 32) + (int) region);
+    return numFloats;
+  }
+
+  /**
+   * Frees the native codec context.  The instance cannot be used afterwards.
+   */
+  @Override
+  public void close() {
+    if (nativeCodec != 0) {
+      deleteNativeObject(nativeCodec);
+      nativeCodec = 0;
+    }
+  }
+
+  private static void checkDirect(ByteBuffer byteBuffer) {
+    if (!byteBuffer.isDirect()) {
+      throw new IllegalArgumentException("Not a direct buffer");
+    }
+  }
+
+  private static void checkDirect(FloatBuffer floatBuffer) {
+    if (!floatBuffer.isDirect() || floatBuffer.order() != ByteOrder.nativeOrder()) {
+      throw new IllegalArgumentException("Not a direct buffer in native byte order");
+    }
+  }
+
+  /**
+   * @return  Number of bytes written, -1 if the result buffer is too small, or -2 if the data
+   *          cannot be encoded.
+   */
+  private native int encodeDirect(FloatBuffer data, int offset, int length, int cl, int qb,
+                                  ByteBuffer result, int resultOffset, int resultLength);
+
+  /**
+   * @return  Number of floats written, -1 if the result buffer is too small, or -2 if the data
+   *          cannot be decoded.
+   */
+  private native int decodeDirect(ByteBuffer data, int offset, int length,
+                                  FloatBuffer result, int resultOffset, int resultLength);
+
+  /**
+   * @return  Offset of the region written in the upper 32 bits and number of floats written in the
+   *          lower 32 bits, -1 if the region cannot be reserved, -2 if the data cannot be decoded,
+   *          or -3 if the reserved region is beyond {@code resultLimit}.
+   */
+  private native long decodeReservedDirect(ByteBuffer data, int offset, int length,
+                                           FloatBuffer result, int resultLimit, IntUnaryOperator reserve);
+
+  /**
+   * Writes the number of floats of each chunk to {@code numFloats}.
+   *
+   * @return  See {@link #decodeReservedDirect}, for all the chunks.
+   */
+  private native long decodeBatchReservedDirect(ByteBuffer[] data, int[] offsets, int[] lengths,
+                                                FloatBuffer result, int resultLimit, IntUnaryOperator reserve,
+                                                int[] numFloats);
 }
@@ -0,0 +1,59 @@
+package org.emp.utils;
+
+/**
+ * A hash map from primitive int keys to primitive long values
+ *
+ * <p> Keys are widened to long and stored in a {@link LongLongHashMap}, so nothing is boxed.
+ * Not thread-safe.
+ */
+public class IntLongHashMap {
+  private final LongLongHashMap map;
+
+  public IntLongHashMap() {
+    map = new LongLongHashMap();
+  }
+
+  /**
+   * @param expectedSize  Number of entries to hold without resizing.
+   */
+  public IntLongHashMap(int expectedSize) {
+    map = new LongLongHashMap(expectedSize);
+  }
+
+  /**
+   * @return  The value of the key, or {@code defaultValue} if the key is absent.
+   */
+  public long get(int key, long defaultValue) {
+    return map.get(key, defaultValue);
+  }
+
+  public boolean containsKey(int key) {
+    return map.containsKey(key);
+  }
+
+  /**
+   * Associates the value with the key, replacing the previous value if any.
+   */
+  public void put(int key, long value) {
+    map.put(key, value);
+  }
+
+  /**
+   * @return  {@code true} if the key was present; {@code false} otherwise.
+   */
+  public boolean remove(int key) {
+    return map.remove(key);
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  public void clear() {
+    map.clear();
+  }
+}
@@ -0,0 +1,103 @@
+package org.emp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with bounded relative error, in the manner of HDR
+ * histograms
+ *
+ * <p> Values below {@code SUB_BUCKET_COUNT} are counted exactly.  Above that, each power of two is
+ * split into {@code SUB_BUCKET_COUNT} linear sub-buckets, so a value is reported with a relative
+ * error below 1 / {@code SUB_BUCKET_COUNT} (under 1%) whatever its magnitude.  Memory is fixed,
+ * and recording a value is an index computation and an atomic increment, so any number of threads
+ * may record at once without locking.
+ */
+public class LatencyHistogram {
+  // Bits of precision below the leading one bit of a value
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  // Values at or above 2^MAX_EXPONENT ns (about 2.4 hours) are counted as the largest value
+  private static final int MAX_EXPONENT = 43;
+  public static final long MAX_TRACKABLE_VALUE = (1L << MAX_EXPONENT) - 1;
+
+  private final AtomicLongArray counts =
+      new AtomicLongArray(SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalSum = new AtomicLong();
+  private final AtomicLong maxValue = new AtomicLong();
+
+  /**
+   * Records a value.  Negative values are recorded as 0, and values above
+   * {@code MAX_TRACKABLE_VALUE} as {@code MAX_TRACKABLE_VALUE}.
+   */
+  public void record(long value) {
+    value = Math.min(Math.max(value, 0), MAX_TRACKABLE_VALUE);
+    counts.incrementAndGet(indexOf(value));
+    totalCount.incrementAndGet();
+    totalSum.addAndGet(value);
+    long max;
+    while (value > (max = maxValue.get())) {
+      if (maxValue.compareAndSet(max, value)) {
+        break;
+      }
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return  Sum of the recorded values (as clamped).
+   */
+  public long getTotalSum() {
+    return totalSum.get();
+  }
+
+  public long getMaxValue() {
+    return maxValue.get();
+  }
+
+  /**
+   * @param percentile  Percentile from 0 to 100 (e.g., 99.9).
+   * @return  The value at the percentile, i.e., the highest value equivalent to (within the
+   *          precision of) the value that {@code percentile}% of the recorded values are at or
+   *          below, or 0 if nothing is recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = totalCount.get();
+    if (total == 0) {
+      return 0;
+    }
+    long targetCount = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * total), 1);
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+      if (count >= targetCount) {
+        return Math.min(highestEquivalentValue(i), maxValue.get());
+      }
+    }
+    // Counts recorded after the total was read
+    return maxValue.get();
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowestValue = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+    return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -0,0 +1,149 @@
+package org.emp.utils;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to primitive long values
+ *
+ * <p> Entries are stored in parallel arrays with open addressing and linear probing, so neither
+ * keys nor values are boxed and updating an existing key allocates nothing.  Removal shifts the
+ * following entries back instead of leaving tombstones.  Not thread-safe.
+ */
+public class LongLongHashMap {
+  private static final int MIN_CAPACITY = 16;
+  // Max ratio of entries to slots before the table doubles
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private long[] values;
+  // Whether each slot holds an entry
+  private boolean[] used;
+  // Capacity - 1, where capacity is a power of two
+  private int mask;
+  private int size;
+  // Number of entries at which the table doubles
+  private int resizeThreshold;
+
+  public LongLongHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize  Number of entries to hold without resizing.
+   */
+  public LongLongHashMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * @return  The value of the key, or {@code defaultValue} if the key is absent.
+   */
+  public long get(long key, long defaultValue) {
+    int slot = findSlot(key);
+    return (slot < 0) ? defaultValue : values[slot];
+  }
+
+  public boolean containsKey(long key) {
+    return findSlot(key) >= 0;
+  }
+
+  /**
+   * Associates the value with the key, replacing the previous value if any.
+   */
+  public void put(long key, long value) {
+    int slot = slotOf(key);
+    while (used[slot]) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    used[slot] = true;
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > resizeThreshold) {
+      resize();
+    }
+  }
+
+  /**
+   * @return  {@code true} if the key was present; {@code false} otherwise.
+   */
+  public boolean remove(long key) {
+    int slot = findSlot(key);
+    if (slot < 0) {
+      return false;
+    }
+    // Shift back the following entries of the probe sequence which can move into the hole
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (used[next]) {
+      int idealSlot = slotOf(keys[next]);
+      if (((next - idealSlot) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    used[hole] = false;
+    size--;
+    return true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private int findSlot(long key) {
+    int slot = slotOf(key);
+    while (used[slot]) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int slotOf(long key) {
+    // Fibonacci hashing spreads sequential keys (e.g., packed IDs) across the table
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(oldKeys.length << 1);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.emp.utils;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size table from sequence numbers (e.g., frame IDs) to primitive long values, which keeps
+ * the entries of the latest sequence numbers
+ *
+ * <p> Sequence number {@code seq} lives in slot {@code seq mod capacity}, so an entry is overwritten
+ * by the entry {@code capacity} sequence numbers later, and the table never grows however long the
+ * sequence runs.  Not thread-safe.
+ */
+public class LongRingTable {
+  // Marks an empty slot
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  // Sequence number of the entry in each slot, or EMPTY
+  private final long[] sequences;
+  private final long[] values;
+  // Capacity - 1, where capacity is a power of two
+  private final int mask;
+
+  /**
+   * @param capacity  Number of latest sequence numbers to keep, a power of two.
+   */
+  public LongRingTable(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+    }
+    sequences = new long[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+    Arrays.fill(sequences, EMPTY);
+  }
+
+  /**
+   * Puts the value of the sequence number, overwriting the entry it shares the slot with.
+   *
+   * @param seq  Sequence number, other than {@code Long.MIN_VALUE}.
+   */
+  public void put(long seq, long value) {
+    int slot = (int) (seq & mask);
+    sequences[slot] = seq;
+    values[slot] = value;
+  }
+
+  /**
+   * @return  The value of the sequence number, or {@code defaultValue} if it has not been put or
+   *          has been overwritten.
+   */
+  public long get(long seq, long defaultValue) {
+    int slot = (int) (seq & mask);
+    return (sequences[slot] == seq) ? values[slot] : defaultValue;
+  }
+
+  public boolean contains(long seq) {
+    return sequences[(int) (seq & mask)] == seq;
+  }
+
+  public int capacity() {
+    return sequences.length;
+  }
+}
@@ -7,6 +7,8 @@ import org.emp.utils.DataUtils;
 import java.io.*;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class DataLoader implements Runnable {
     private static final Logger LOGGER = LogManager.getLogger(DataLoader.class);
@@ -14,7 +16,8 @@ public class DataLoader implements Runnable {
     private static final long FIXED_WAIT = 2000;
     private long frameRate = 100;
     public Queue<dataElement> _prepareSet = new LinkedList<>();
-    public Queue<dataElement> _dataSet = new LinkedList<>();
+    // Frames loaded at the frame rate, taken by the vehicle thread
+    public BlockingQueue<dataElement> _dataSet = new LinkedBlockingQueue<>();
     private final int[] frameIDs;
     private final String pointCloudPath;
     private final String oxtsPath;
@@ -44,6 +47,7 @@ public class DataLoader implements Runnable {
             if(frameIDs[i] == 1) {
                 dataElement popedData = _prepareSet.poll();
                 popedData.timestamp = System.currentTimeMillis();
+                popedData.captureNanos = System.nanoTime();
                 LOGGER.debug("Frame " + popedData.idx + " loaded");
                 _dataSet.offer(popedData);
                 long t_r2 = System.currentTimeMillis();
@@ -101,6 +105,8 @@ public class DataLoader implements Runnable {
         public String oxts;
         public String idx;
         public long timestamp = System.currentTimeMillis();
+        // Time the frame is loaded, from System.nanoTime()
+        public long captureNanos = System.nanoTime();
     }
 
 }
@@ -0,0 +1,444 @@
+package org.emp.vehicle;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.data.EdgeMessageHandler;
+import org.emp.data.EdgeMessageHandlerImpl;
+import org.emp.network.NonBlockingNetworkClient;
+import org.emp.utils.DracoHelper;
+import org.emp.utils.LatencyHistogram;
+import org.emp.utils.VoronoiAdapt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.emp.data.EdgeMessageHandlerImpl.encodeMessage;
+
+/**
+ * A load generator that runs many synthetic vehicles against the edge server from one process, to
+ * measure how the edge scales with the number of vehicles
+ *
+ * <p> Each vehicle has a connection and a thread of its own, and follows the protocol of the
+ * dataset vehicles: it registers, waits for the "start" signal, and sends a frame (oxts, then point
+ * cloud) once the edge has finished the previous one.  The point cloud is sent whole (chunk 5) in
+ * full mode, or partitioned by the latest mask of the edge in partitioned mode, either Draco
+ * encoded ('P') or raw ('R').  Point clouds are taken from a pool generated up front (see
+ * {@link SyntheticSensorData}) so that generating data does not limit the load; in full Draco mode,
+ * they are encoded up front too.
+ *
+ * <p> Frames are captured at the frame rate.  A frame that cannot be sent at its capture time
+ * because the edge is still busy is sent once the edge is done, so the latency of a frame, from
+ * its capture to the "finish" signal of the edge, includes the time it waited.  Frames the edge
+ * skips are counted but not sent.
+ *
+ * To run the load generator (the edge server is started with {@code -c [number of vehicles]}, and
+ * with {@code -a 1} in full mode or {@code -a 4} in partitioned mode, whose masks the vehicles adapt):
+ * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
+ *    -cp build/libs/emp-1.0.jar org.emp.vehicle.LoadGenerator \
+ *    -i [server ip address] -p [server port number] -v [number of vehicles] -n [number of frames] \
+ *    -r [frame rate] -pts [points per frame] -t [P|R] -m [full|partitioned]
+ */
+public class LoadGenerator {
+    private static final Logger LOGGER = LogManager.getLogger(LoadGenerator.class);
+    public static final String FULL = "full";
+    public static final String PARTITIONED = "partitioned";
+    // Chunk ID of a whole point cloud
+    private static final int FULL_CHUNK_ID = 5;
+    // Draco compression level and quantization bits, as the dataset vehicles use
+    private static final int COMPRESSION_LEVEL = 10;
+    private static final int QUANTIZATION_BITS = 12;
+    // How long to wait for the edge to start, and to finish a frame
+    private static final long START_TIMEOUT_MS = 60000;
+    private static final long FRAME_TIMEOUT_MS = 10000;
+
+    private final Config config;
+    // Point clouds shared by the vehicles, and their Draco encoding in full Draco mode
+    private final float[][] pointClouds;
+    private final byte[][] encodedPointClouds;
+    // Latencies of the frames of all vehicles (ns)
+    private final LatencyHistogram totalLatencies = new LatencyHistogram();
+
+    public LoadGenerator(Config config) {
+        if (!"P".equals(config.type) && !"R".equals(config.type)) {
+            throw new IllegalArgumentException("Unknown point cloud type: " + config.type);
+        }
+        if (!FULL.equals(config.mode) && !PARTITIONED.equals(config.mode)) {
+            throw new IllegalArgumentException("Unknown chunking mode: " + config.mode);
+        }
+        if (config.numFrames > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Number of frames must not exceed " + Short.MAX_VALUE);
+        }
+        this.config = config;
+
+        pointClouds = new float[Math.max(1, config.numDistinctFrames)][];
+        for (int i = 0; i < pointClouds.length; i++) {
+            pointClouds[i] = SyntheticSensorData.generatePointCloud(config.pointsPerFrame, i);
+        }
+        if ("P".equals(config.type) && FULL.equals(config.mode)) {
+            encodedPointClouds = new byte[pointClouds.length][];
+            try (DracoHelper dracoHelper = new DracoHelper()) {
+                for (int i = 0; i < pointClouds.length; i++) {
+                    encodedPointClouds[i] = dracoHelper.encode(pointClouds[i], COMPRESSION_LEVEL, QUANTIZATION_BITS);
+                }
+            }
+        } else {
+            encodedPointClouds = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator.Config config = new LoadGenerator.Config();
+        JCommander.newBuilder().addObject(config).build().parse(args);
+        LoadGenerator loadGenerator = new LoadGenerator(config);
+        List<SyntheticVehicle> vehicles = loadGenerator.run();
+        loadGenerator.report(vehicles);
+    }
+
+    /**
+     * Connects the vehicles, drives them through all frames, and disconnects them.
+     *
+     * @return  The vehicles, with their statistics.
+     */
+    public List<SyntheticVehicle> run() throws IOException, InterruptedException {
+        List<SyntheticVehicle> vehicles = new ArrayList<>();
+        List<Thread> vehicleThreads = new ArrayList<>();
+        for (int vehicleId = 1; vehicleId <= config.numVehicles; vehicleId++) {
+            SyntheticVehicle vehicle = new SyntheticVehicle(vehicleId);
+            vehicles.add(vehicle);
+            vehicleThreads.add(new Thread(vehicle, "vehicle-" + vehicleId));
+        }
+        LOGGER.info("Running " + config.numVehicles + " vehicles ...");
+        for (Thread vehicleThread : vehicleThreads) {
+            vehicleThread.start();
+        }
+        for (Thread vehicleThread : vehicleThreads) {
+            vehicleThread.join();
+        }
+        return vehicles;
+    }
+
+    /**
+     * Logs the frame rate and the latency of each vehicle, and of all vehicles.
+     */
+    public void report(List<SyntheticVehicle> vehicles) {
+        long numFinished = 0;
+        long numSkipped = 0;
+        double totalFps = 0;
+        for (SyntheticVehicle vehicle : vehicles) {
+            LOGGER.info(String.format("[Vehicle %d] frames sent: %d, finished: %d, skipped: %d; %.2f fps; "
+                    + "latency p50: %.2f ms, p99: %.2f ms, max: %.2f ms; %d bytes sent",
+                vehicle.vehicleId, vehicle.numSent, vehicle.numFinished, vehicle.numSkipped, vehicle.getFps(),
+                toMillis(vehicle.latencies.getValueAtPercentile(50)),
+                toMillis(vehicle.latencies.getValueAtPercentile(99)),
+                toMillis(vehicle.latencies.getMaxValue()), vehicle.numBytesSent));
+            numFinished += vehicle.numFinished;
+            numSkipped += vehicle.numSkipped;
+            totalFps += vehicle.getFps();
+        }
+        LOGGER.info(String.format("[All %d vehicles] frames finished: %d, skipped: %d; %.2f fps in total; "
+                + "latency p50: %.2f ms, p99: %.2f ms, p99.9: %.2f ms, max: %.2f ms",
+            vehicles.size(), numFinished, numSkipped, totalFps,
+            toMillis(totalLatencies.getValueAtPercentile(50)), toMillis(totalLatencies.getValueAtPercentile(99)),
+            toMillis(totalLatencies.getValueAtPercentile(99.9)), toMillis(totalLatencies.getMaxValue())));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static byte[] toRawBytes(float[] pointCloud) {
+        // Big-endian, as the edge reads raw point clouds
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4 * pointCloud.length);
+        byteBuffer.asFloatBuffer().put(pointCloud);
+        return byteBuffer.array();
+    }
+
+    /**
+     * A synthetic vehicle, which drives its connection on its own thread and handles the messages
+     * from the edge on the network thread of the connection
+     */
+    public class SyntheticVehicle implements Runnable, EdgeMessageHandler {
+        private final int vehicleId;
+        private final EdgeMessageHandlerImpl edgeMessageHandler = new EdgeMessageHandlerImpl();
+        // Latencies of the frames of the vehicle (ns)
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private NonBlockingNetworkClient client;
+        private DracoHelper dracoHelper;
+        private VoronoiAdapt partitioner;
+        // Frame the edge expects as handled by the vehicle, and frame in flight and its capture time,
+        // guarded by the vehicle
+        private int frameToSend;
+        private int sentFrameId = -1;
+        private long sentCaptureNanos;
+        private boolean sentFrameFinished;
+        // Statistics
+        private long numSent;
+        private long numSkipped;
+        private long numBytesSent;
+        private volatile long numFinished;
+        private long startNanos;
+        private volatile long lastFinishedNanos;
+
+        SyntheticVehicle(int vehicleId) {
+            this.vehicleId = vehicleId;
+        }
+
+        @Override
+        public void handle(ByteBuffer byteBuffer) throws IOException, ClassNotFoundException {
+            edgeMessageHandler.handle(byteBuffer);
+            synchronized (this) {
+                frameToSend = edgeMessageHandler.getFrameToSent();
+                if (sentFrameId >= 0 && !sentFrameFinished && frameToSend > sentFrameId) {
+                    long latency = System.nanoTime() - sentCaptureNanos;
+                    latencies.record(latency);
+                    totalLatencies.record(latency);
+                    sentFrameFinished = true;
+                    lastFinishedNanos = System.nanoTime();
+                    numFinished++;
+                }
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            int clientPort = (config.clientPortBase == 0) ? 0 : config.clientPortBase + vehicleId;
+            Thread networkThread = null;
+            try {
+                client = new NonBlockingNetworkClient(config.serverIp, config.serverPort, clientPort, this);
+                networkThread = new Thread(client, "vehicle-" + vehicleId + "-network");
+                networkThread.start();
+                client.putDataToSendByteBufferQueue(encodeMessage(new byte[0], vehicleId, -1, FULL_CHUNK_ID, 'X'));
+                if ("P".equals(config.type) && PARTITIONED.equals(config.mode)) {
+                    dracoHelper = new DracoHelper();
+                }
+                partitioner = new VoronoiAdapt();
+
+                // Wait for the "start" signal
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+                    while (!edgeMessageHandler.isReady() && System.currentTimeMillis() < deadline) {
+                        wait(deadline - System.currentTimeMillis());
+                    }
+                }
+                if (!edgeMessageHandler.isReady()) {
+                    throw new IllegalStateException("Vehicle " + vehicleId + " is not started by the edge");
+                }
+
+                long periodNanos = (config.frameRate > 0) ? TimeUnit.SECONDS.toNanos(1) / config.frameRate : 0;
+                startNanos = System.nanoTime();
+                for (int frameId = 0; frameId < config.numFrames; frameId++) {
+                    waitUntil(startNanos + frameId * periodNanos);
+                    int frameToSend = startFrame(frameId, periodNanos);
+                    if (frameToSend < frameId) {
+                        throw new IllegalStateException(
+                            "Vehicle " + vehicleId + " timed out waiting for the edge to finish frame " + (frameId - 1));
+                    }
+                    if (frameToSend > frameId) {
+                        LOGGER.debug("[Vehicle " + vehicleId + "] frame " + frameId + " skipped");
+                        numSkipped++;
+                        continue;
+                    }
+                    sendFrame(frameId);
+                }
+                waitForFrameToSend(config.numFrames);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (client != null) {
+                    client.stopRunning();
+                }
+                if (dracoHelper != null) {
+                    dracoHelper.close();
+                }
+            }
+            if (networkThread != null) {
+                try {
+                    networkThread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Waits until the edge expects a frame at or after the frame, or it does not finish a frame
+         * within {@code FRAME_TIMEOUT_MS}.
+         *
+         * @return  The frame the edge expects.
+         */
+        private synchronized int waitForFrameToSend(int frameId) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_TIMEOUT_MS);
+            long remaining;
+            while (frameToSend < frameId && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return frameToSend;
+        }
+
+        /**
+         * Waits until the edge expects the frame, and marks the frame as in flight if it does.  A
+         * "finish" signal handled after this counts for the frame.
+         *
+         * @param periodNanos  Period of the frames, or 0 if a frame is captured once the edge expects it.
+         * @return  The frame the edge expects.
+         */
+        private synchronized int startFrame(int frameId, long periodNanos) throws InterruptedException {
+            int frameToSend = waitForFrameToSend(frameId);
+            if (frameToSend == frameId) {
+                sentFrameId = frameId;
+                sentCaptureNanos = (periodNanos > 0) ? startNanos + frameId * periodNanos : System.nanoTime();
+                sentFrameFinished = false;
+            }
+            return frameToSend;
+        }
+
+        private void sendFrame(int frameId) {
+            String oxts = SyntheticSensorData.generateOxts(vehicleId, config.numVehicles,
+                (double) (sentCaptureNanos - startNanos) / TimeUnit.SECONDS.toNanos(1));
+            send(encodeMessage(oxts.getBytes(), vehicleId, frameId, FULL_CHUNK_ID, 'O'));
+
+            int pointCloudIndex = (frameId + vehicleId) % pointClouds.length;
+            List<float[]> mask = edgeMessageHandler.getMask();
+            if (PARTITIONED.equals(config.mode) && mask != null) {
+                List<float[]> chunkList = partitioner.voronoiMaskAdapt(pointClouds[pointCloudIndex], mask);
+                // Stop sending chunks once the edge has finished the frame
+                for (int chunkId = 0; chunkId < chunkList.size() && frameId == edgeMessageHandler.getFrameToSent(); chunkId++) {
+                    float[] chunk = chunkList.get(chunkId);
+                    sendPointCloud(frameId, chunkId, (chunk == null) ? new float[0] : chunk);
+                }
+            } else if (encodedPointClouds != null) {
+                send(encodeMessage(encodedPointClouds[pointCloudIndex], vehicleId, frameId, FULL_CHUNK_ID, 'P'));
+            } else {
+                sendPointCloud(frameId, FULL_CHUNK_ID, pointClouds[pointCloudIndex]);
+            }
+            numSent++;
+        }
+
+        private void sendPointCloud(int frameId, int chunkId, float[] pointCloud) {
+            byte[] payload;
+            if ("R".equals(config.type)) {
+                payload = toRawBytes(pointCloud);
+            } else {
+                payload = (pointCloud.length == 0)
+                    ? new byte[0] : dracoHelper.encode(pointCloud, COMPRESSION_LEVEL, QUANTIZATION_BITS);
+            }
+            send(encodeMessage(payload, vehicleId, frameId, chunkId, config.type.charAt(0)));
+        }
+
+        private void send(byte[] message) {
+            numBytesSent += message.length;
+            client.putDataToSendByteBufferQueue(message);
+        }
+
+        public int getVehicleId() {
+            return vehicleId;
+        }
+
+        public long getNumSent() {
+            return numSent;
+        }
+
+        public long getNumFinished() {
+            return numFinished;
+        }
+
+        public long getNumSkipped() {
+            return numSkipped;
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * @return  Frames finished per second, from the start to the last frame finished.
+         */
+        public double getFps() {
+            long finished = numFinished;
+            long elapsedNanos = lastFinishedNanos - startNanos;
+            return (finished == 0 || elapsedNanos <= 0) ? 0 : finished * 1e9 / elapsedNanos;
+        }
+    }
+
+    static class Config {
+        @Parameter(
+                names = {"--serverip", "-i"},
+                description = "Server ip address to use"
+        )
+        public String serverIp = "127.0.0.1";
+
+        @Parameter(
+                names = {"--serverport", "-p"},
+                description = "Server port number to use"
+        )
+        public int serverPort = 31904;
+
+        @Parameter(
+                names = {"--clientport", "-c"},
+                description = "Base client port number (vehicle i uses base + i), or 0 for any free ports"
+        )
+        public int clientPortBase = 0;
+
+        @Parameter(
+                names = {"--vehicles", "-v"},
+                description = "Number of vehicles to run, with IDs from 1"
+        )
+        public int numVehicles = 1;
+
+        @Parameter(
+                names = {"--frames", "-n"},
+                description = "Number of frames each vehicle sends"
+        )
+        public int numFrames = 100;
+
+        @Parameter(
+                names = {"--framerate", "-r"},
+                description = "Frame rate of each vehicle, or 0 to send each frame as soon as the edge is done"
+        )
+        public int frameRate = 10;
+
+        @Parameter(
+                names = {"--points", "-pts"},
+                description = "Number of points of each point cloud"
+        )
+        public int pointsPerFrame = 60000;
+
+        @Parameter(
+                names = {"--distinct-frames", "-df"},
+                description = "Number of distinct point clouds generated up front and shared by the vehicles"
+        )
+        public int numDistinctFrames = 10;
+
+        @Parameter(
+                names = {"--type", "-t"},
+                description = "Type of point cloud messages: P (Draco encoded) or R (raw)"
+        )
+        public String type = "P";
+
+        @Parameter(
+                names = {"--mode", "-m"},
+                description = "Chunking mode: full (whole point clouds) or partitioned (by the mask of the edge)"
+        )
+        public String mode = FULL;
+
+        @Parameter(
+                names = {"--help", "-h"},
+                help = true
+        )
+        public Boolean help = false;
+    }
+}
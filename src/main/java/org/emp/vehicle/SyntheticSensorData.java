@@ -0,0 +1,92 @@
+package org.emp.vehicle;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generators of synthetic vehicle sensor data, to load the edge with more vehicles than a dataset has
+ *
+ * <p> Vehicles drive counterclockwise on a circular road around the origin, spaced evenly along it,
+ * so their views overlap like the vehicles of the dataset.  Point clouds mimic a rotating LiDAR
+ * mounted at {@code SENSOR_HEIGHT} in the vehicle frame (x forward, y left, z up), with 4 floats
+ * per point (x, y, z, intensity): downward beams hit the ground or the surrounding obstacles, and
+ * upward beams hit the obstacles.  Both are deterministic in their arguments.
+ */
+public class SyntheticSensorData {
+    // Height of the LiDAR above the ground (m)
+    public static final float SENSOR_HEIGHT = 1.73f;
+    // Number of beams of the LiDAR and their range of elevation (degrees)
+    private static final int NUM_BEAMS = 64;
+    private static final double MIN_ELEVATION = -24.8;
+    private static final double MAX_ELEVATION = 2.0;
+    // Maximum range of the LiDAR (m)
+    private static final double MAX_RANGE = 80.0;
+    // Standard deviation of the range noise (m)
+    private static final double RANGE_NOISE = 0.02;
+    // Speed of the vehicles (m/s) and distance between consecutive vehicles on the road (m)
+    private static final double SPEED = 10.0;
+    private static final double SPACING = 15.0;
+    private static final double MIN_ROAD_RADIUS = 30.0;
+
+    private SyntheticSensorData() {}
+
+    /**
+     * Generates the oxts of a vehicle at a time.
+     *
+     * @param vehicleId  ID of the vehicle, from 1 to the number of vehicles.
+     * @param numVehicles  Number of vehicles on the road.
+     * @param seconds  Time since the start of the drive.
+     * @return  Oxts in the format of the dataset: "x y z roll pitch yaw".
+     */
+    public static String generateOxts(int vehicleId, int numVehicles, double seconds) {
+        double radius = Math.max(MIN_ROAD_RADIUS, SPACING * numVehicles / (2 * Math.PI));
+        double angle = 2 * Math.PI * (vehicleId - 1) / numVehicles + SPEED * seconds / radius;
+        double x = radius * Math.cos(angle);
+        double y = radius * Math.sin(angle);
+        // Heading along the tangent of the road, in (-pi, pi]
+        double yaw = Math.atan2(Math.cos(angle), -Math.sin(angle));
+        return String.format(Locale.ROOT, "%.3f %.3f %.3f %.5f %.5f %.5f", x, y, 0.0, 0.0, 0.0, yaw);
+    }
+
+    /**
+     * Generates a point cloud of one LiDAR sweep.
+     *
+     * @param numPoints  Number of points of the point cloud.
+     * @param seed  Seed of the shape of the obstacles and of the noise.
+     * @return  Point cloud of {@code 4 * numPoints} floats.
+     */
+    public static float[] generatePointCloud(int numPoints, long seed) {
+        if (numPoints < 0) {
+            throw new IllegalArgumentException("Number of points must not be negative: " + numPoints);
+        }
+        Random random = new Random(seed);
+        // Distance to the obstacles varies with the azimuth, like buildings and parked cars would
+        double obstaclePhase = 2 * Math.PI * random.nextDouble();
+        double obstacleDistance = 15.0 + 10.0 * random.nextDouble();
+
+        float[] pointCloud = new float[4 * numPoints];
+        int numAzimuths = (numPoints + NUM_BEAMS - 1) / NUM_BEAMS;
+        for (int i = 0; i < numPoints; i++) {
+            int beam = i / numAzimuths;
+            double elevation = Math.toRadians(
+                MIN_ELEVATION + (MAX_ELEVATION - MIN_ELEVATION) * beam / (NUM_BEAMS - 1));
+            double azimuth = 2 * Math.PI * (i % numAzimuths) / numAzimuths;
+
+            double wallRange = obstacleDistance
+                + 5.0 * Math.sin(3 * azimuth + obstaclePhase)
+                + 2.0 * Math.sin(11 * azimuth + 2 * obstaclePhase);
+            double range = wallRange / Math.cos(elevation);
+            if (elevation < 0) {
+                range = Math.min(range, SENSOR_HEIGHT / Math.sin(-elevation));
+            }
+            range = Math.min(range, MAX_RANGE) + RANGE_NOISE * random.nextGaussian();
+
+            double horizontal = range * Math.cos(elevation);
+            pointCloud[4 * i] = (float) (horizontal * Math.cos(azimuth));
+            pointCloud[4 * i + 1] = (float) (horizontal * Math.sin(azimuth));
+            pointCloud[4 * i + 2] = (float) (range * Math.sin(elevation));
+            pointCloud[4 * i + 3] = random.nextFloat();
+        }
+        return pointCloud;
+    }
+}
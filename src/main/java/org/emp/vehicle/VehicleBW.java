@@ -26,7 +26,7 @@ import static org.emp.data.EdgeMessageHandlerImpl.encodeMessage;
  * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
  *    -cp build/libs/emp-1.0.jar org.emp.vehicle.VehicleBW \
  *    -i [server ip address] -p [server port number] -c [client port number] \
- *    -v [vehicle ID] -d [data path] -r [frame rate]
+ *    -v [vehicle ID] -d [data path] -r [frame rate] (-tr [trace path])
  */
 public class VehicleBW {
     private static final Logger LOGGER = LogManager.getLogger(VehicleBW.class);
@@ -57,6 +57,11 @@ public class VehicleBW {
         DracoHelper dracoHelper = new DracoHelper();
         VoronoiAdapt partitioner = new VoronoiAdapt();
         StatHandler statHandler = new StatHandler();
+        if (config.tracePath != null) {
+            statHandler.startTrace(config.tracePath);
+        }
+        // The vehicle runs until it is killed, so the statistics are saved on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(statHandler::saveVehicleStats));
 
         // Load data
         DataLoader dataLoader = new DataLoader(frameIDs, ptclPath, oxtsPath, egoPath, frameRate);
@@ -196,5 +201,11 @@ public class VehicleBW {
                 description = "Frame loading rate of the data loader"
         )
         public int frameRate = 100;
+
+        @Parameter(
+                names = {"--trace", "-tr"},
+                description = "Path of the binary trace file to write statistics to (read it with StatTraceReader)"
+        )
+        public String tracePath = null;
     }
 }
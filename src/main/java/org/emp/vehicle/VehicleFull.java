@@ -25,7 +25,7 @@ import static org.emp.data.EdgeMessageHandlerImpl.encodeMessage;
  * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
  *    -cp build/libs/emp-1.0.jar org.emp.vehicle.VehicleFull \
  *    -i [server ip address] -p [server port number] -c [client port number] \
- *    -v [vehicle ID] -d [data path] -r [frame rate]
+ *    -v [vehicle ID] -d [data path] -r [frame rate] (-tr [trace path])
  */
 public class VehicleFull {
     private static final Logger LOGGER = LogManager.getLogger(VehicleFull.class);
@@ -55,6 +55,11 @@ public class VehicleFull {
         GroundDetector groundDetector = new GroundDetector();
         DracoHelper dracoHelper = new DracoHelper();
         StatHandler statHandler = new StatHandler();
+        if (config.tracePath != null) {
+            statHandler.startTrace(config.tracePath);
+        }
+        // The vehicle runs until it is killed, so the statistics are saved on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(statHandler::saveVehicleStats));
 
         // Load data
         DataLoader dataLoader = new DataLoader(frameIDs, ptclPath, oxtsPath, egoPath, frameRate);
@@ -185,5 +190,11 @@ public class VehicleFull {
                 description = "Frame loading rate of the data loader"
         )
         public int frameRate = 100;
+
+        @Parameter(
+                names = {"--trace", "-tr"},
+                description = "Path of the binary trace file to write statistics to (read it with StatTraceReader)"
+        )
+        public String tracePath = null;
     }
 }
@@ -0,0 +1,251 @@
+package org.emp.vehicle;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.data.EdgeMessageHandlerImpl;
+import org.emp.data.StatHandler;
+import org.emp.network.NonBlockingNetworkClient;
+import org.emp.utils.DracoCodecPool;
+import org.emp.utils.GroundDetector;
+import org.emp.utils.LatencyHistogram;
+import org.emp.utils.VoronoiAdapt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.emp.data.EdgeMessageHandlerImpl.encodeMessage;
+
+/**
+ * A pipelined runtime of the REAP vehicle, which processes the frames of a {@code DataLoader} in
+ * stages running concurrently
+ *
+ * <p> A ground removal thread removes the ground of each frame as soon as it is loaded, and hands
+ * it over to the sending stage, on the thread calling {@link #run(int)}.  The sending stage waits
+ * until the edge asks for the frame, sends its oxts, partitions it by the latest mask of the edge,
+ * and encodes the chunks on a pool of encoding threads.  The chunks are sent in order of their
+ * IDs, i.e., of their priority, each as soon as it and the chunks before it are encoded, until the
+ * edge finishes the frame.  Thus the ground of frame N + 1 is removed while frame N is encoded and
+ * sent.  Partitioning stays in the sending stage, since it needs the mask the edge sends after
+ * finishing the previous frame.
+ *
+ * <p> The latency of a frame is measured from its loading to its last chunk being put in the send
+ * queue of the network client.
+ */
+public class VehiclePipeline implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger(VehiclePipeline.class);
+    // Chunk ID of a whole point cloud
+    private static final int FULL_CHUNK_ID = 5;
+    // Draco compression level and quantization bits
+    private static final int COMPRESSION_LEVEL = 10;
+    private static final int QUANTIZATION_BITS = 12;
+    // Interval to check whether ground removal has failed, while waiting for a frame (ms)
+    private static final long GROUND_REMOVAL_CHECK_INTERVAL_MS = 100;
+
+    private final int vehicleId;
+    private final float vehicleHeight;
+    private final BlockingQueue<DataLoader.dataElement> loadedFrames;
+    private final EdgeMessageHandlerImpl edgeMessageHandler;
+    private final NonBlockingNetworkClient networkClient;
+    private final StatHandler statHandler;
+    private final VoronoiAdapt partitioner = new VoronoiAdapt();
+    // Frames whose ground is removed, at most one ahead of the frame being sent
+    private final BlockingQueue<GroundRemovedFrame> groundRemovedFrames = new ArrayBlockingQueue<>(1);
+    private final ExecutorService encodingExecutor;
+    // DracoHelper of each encoding thread
+    private final DracoCodecPool codecPool = new DracoCodecPool();
+    // Latencies of the frames sent (ns)
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * @param vehicleId  ID of the vehicle in the messages to the edge.
+     * @param vehicleHeight  Height of the LiDAR of the vehicle, for ground removal.
+     * @param loadedFrames  Queue the frames are loaded to, i.e., {@code DataLoader._dataSet}.
+     * @param numEncodingThreads  Number of threads encoding the chunks of a frame.
+     */
+    public VehiclePipeline(int vehicleId, float vehicleHeight, BlockingQueue<DataLoader.dataElement> loadedFrames,
+                           EdgeMessageHandlerImpl edgeMessageHandler, NonBlockingNetworkClient networkClient,
+                           StatHandler statHandler, int numEncodingThreads) {
+        if (numEncodingThreads < 1) {
+            throw new IllegalArgumentException("Number of encoding threads must be positive: " + numEncodingThreads);
+        }
+        this.vehicleId = vehicleId;
+        this.vehicleHeight = vehicleHeight;
+        this.loadedFrames = loadedFrames;
+        this.edgeMessageHandler = edgeMessageHandler;
+        this.networkClient = networkClient;
+        this.statHandler = statHandler;
+        this.encodingExecutor = Executors.newFixedThreadPool(numEncodingThreads);
+    }
+
+    /**
+     * Processes frames until the given number of frames is sent or skipped.
+     *
+     * @throws ExecutionException  If ground removal or encoding fails, with the failure as the cause.
+     */
+    public void run(int numFrames) throws InterruptedException, ExecutionException {
+        FutureTask<Void> groundRemoval = new FutureTask<>(() -> removeGround(numFrames), null);
+        Thread groundRemovalThread = new Thread(groundRemoval, "ground-removal");
+        groundRemovalThread.start();
+        try {
+            for (int i = 0; i < numFrames; i++) {
+                sendFrame(takeGroundRemovedFrame(groundRemoval));
+            }
+        } finally {
+            groundRemovalThread.interrupt();
+            groundRemovalThread.join();
+        }
+        LOGGER.info(String.format("[Latency] frames: %d, p50: %.2f ms, p99: %.2f ms, max: %.2f ms",
+            latencies.getTotalCount(), latencies.getValueAtPercentile(50) / 1e6,
+            latencies.getValueAtPercentile(99) / 1e6, latencies.getMaxValue() / 1e6));
+    }
+
+    /**
+     * @return  Latencies of the frames sent so far (ns).
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Stops the encoding threads, after the chunks being encoded, and frees their codecs.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        encodingExecutor.shutdown();
+        encodingExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        codecPool.close();
+    }
+
+    /**
+     * Removes the ground of the loaded frames, on the ground removal thread.
+     */
+    private void removeGround(int numFrames) {
+        GroundDetector groundDetector = new GroundDetector();
+        try {
+            for (int i = 0; i < numFrames; i++) {
+                DataLoader.dataElement loadedFrame = loadedFrames.take();
+                long tGround1 = System.currentTimeMillis();
+                groundDetector.groundDetectorRANSAC(loadedFrame.points, false, vehicleHeight, false);
+                long tGround2 = System.currentTimeMillis();
+                groundRemovedFrames.put(new GroundRemovedFrame(
+                    loadedFrame, groundDetector.getObjectPoints(), tGround2 - tGround1));
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Waits for the next frame whose ground is removed.
+     *
+     * @throws ExecutionException  If ground removal has failed, with the failure as the cause.
+     */
+    private GroundRemovedFrame takeGroundRemovedFrame(Future<Void> groundRemoval)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            GroundRemovedFrame frame = groundRemovedFrames.poll(GROUND_REMOVAL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                return frame;
+            }
+            if (groundRemoval.isDone()) {
+                // Rethrows the failure, if any
+                groundRemoval.get();
+                // The last frame may have been put after the poll above
+                frame = groundRemovedFrames.poll();
+                if (frame != null) {
+                    return frame;
+                }
+                throw new IllegalStateException("Ground removal stopped before all frames were processed");
+            }
+        }
+    }
+
+    private void sendFrame(GroundRemovedFrame frame) throws InterruptedException, ExecutionException {
+        int frameId = Integer.parseInt(frame.loadedFrame.idx);
+        LOGGER.info("Waiting on frame: " + frameId);
+        if (edgeMessageHandler.awaitFrameToSent(frameId) != frameId) {
+            LOGGER.info("[Skip] frame: " + frameId);
+            return;
+        }
+        LOGGER.info("Preparing for frame: " + frameId);
+        statHandler.logFrameStartTime(frameId, System.currentTimeMillis());
+
+        // Send oxts
+        byte[] oxtsWithHeader = encodeMessage(frame.loadedFrame.oxts.getBytes(), vehicleId, frameId, FULL_CHUNK_ID, 'O');
+        networkClient.putDataToSendByteBufferQueue(oxtsWithHeader);
+        statHandler.logGroundRemovalTime(frameId, frame.groundRemovalTime);
+
+        // Partition and send point cloud
+        List<float[]> mask = edgeMessageHandler.getMask();
+        if (mask != null) {
+            long tPartition1 = System.currentTimeMillis();
+            List<float[]> chunkList = partitioner.voronoiMaskAdapt(frame.objectPoints, mask);
+            long tPartition2 = System.currentTimeMillis();
+            statHandler.logPartitioningTime(frameId, tPartition2 - tPartition1);
+
+            List<Future<byte[]>> encodedChunks = new ArrayList<>(chunkList.size());
+            for (int chunkId = 0; chunkId < chunkList.size(); chunkId++) {
+                encodedChunks.add(encodeChunk(frameId, chunkId, chunkList.get(chunkId)));
+            }
+            int chunkId = 0;
+            for (; chunkId < encodedChunks.size() && frameId == edgeMessageHandler.getFrameToSent(); chunkId++) {
+                byte[] encodedPtclWithHeader = encodeMessage(encodedChunks.get(chunkId).get(), vehicleId, frameId, chunkId, 'P');
+                statHandler.logSendTime(frameId, chunkId, System.currentTimeMillis());
+                networkClient.putDataToSendByteBufferQueue(encodedPtclWithHeader);
+            }
+            // The edge has finished the frame, so the remaining chunks are not needed
+            for (; chunkId < encodedChunks.size(); chunkId++) {
+                encodedChunks.get(chunkId).cancel(false);
+            }
+        }
+        else {
+            byte[] encodedPtcl = encodeChunk(frameId, FULL_CHUNK_ID, frame.objectPoints).get();
+            byte[] encodedPtclWithHeader = encodeMessage(encodedPtcl, vehicleId, frameId, FULL_CHUNK_ID, 'P');
+            statHandler.logSendTime(frameId, FULL_CHUNK_ID, System.currentTimeMillis());
+            networkClient.putDataToSendByteBufferQueue(encodedPtclWithHeader);
+        }
+        latencies.record(System.nanoTime() - frame.loadedFrame.captureNanos);
+    }
+
+    /**
+     * Encodes a chunk on the pool of encoding threads.
+     *
+     * @param chunk  Points of the chunk, or null if the chunk is empty.
+     */
+    private Future<byte[]> encodeChunk(int frameId, int chunkId, float[] chunk) {
+        return encodingExecutor.submit(() -> {
+            if (chunk == null || chunk.length == 0) {
+                return new byte[0];
+            }
+            long tDracoEncode1 = System.currentTimeMillis();
+            byte[] encodedPtcl = codecPool.get().encode(chunk, COMPRESSION_LEVEL, QUANTIZATION_BITS);
+            long tDracoEncode2 = System.currentTimeMillis();
+            statHandler.logDracoEncodingTime(frameId, chunkId, tDracoEncode2 - tDracoEncode1);
+            return encodedPtcl;
+        });
+    }
+
+    /**
+     * A loaded frame whose ground is removed
+     */
+    private static class GroundRemovedFrame {
+        private final DataLoader.dataElement loadedFrame;
+        private final float[] objectPoints;
+        // Time of ground removal (ms)
+        private final long groundRemovalTime;
+
+        GroundRemovedFrame(DataLoader.dataElement loadedFrame, float[] objectPoints, long groundRemovalTime) {
+            this.loadedFrame = loadedFrame;
+            this.objectPoints = objectPoints;
+            this.groundRemovalTime = groundRemovalTime;
+        }
+    }
+}
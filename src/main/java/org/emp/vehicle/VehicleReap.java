@@ -7,26 +7,27 @@ import org.apache.logging.log4j.Logger;
 import org.emp.data.EdgeMessageHandlerImpl;
 import org.emp.data.StatHandler;
 import org.emp.network.NonBlockingNetworkClient;
-import org.emp.utils.DracoHelper;
-import org.emp.utils.GroundDetector;
-import org.emp.utils.VoronoiAdapt;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 
 import static org.emp.data.EdgeMessageHandlerImpl.encodeMessage;
 
 /**
  * A class for running the vehicle processing
  *
+ * <p> Frames are processed by a {@code VehiclePipeline}: ground removal of a frame overlaps with
+ * encoding and sending of the previous one, and the chunks are encoded in parallel.  The vehicle
+ * stops after all frames of the dataset are sent or skipped.
+ *
  * To run the vehicle client:
  * java -Dlog4j.configurationFile=src/main/resources/log4j2-config.xml \
  *    -cp build/libs/emp-1.0.jar org.emp.vehicle.VehicleReap \
  *    -i [server ip address] -p [server port number] -c [client port number] \
- *    -v [vehicle ID] -d [data path] -r [frame rate]
+ *    -v [vehicle ID] -d [data path] -r [frame rate] (-e [number of encoding threads]) \
+ *    (-tr [trace path])
  */
 public class VehicleReap {
     private static final Logger LOGGER = LogManager.getLogger(VehicleReap.class);
@@ -53,14 +54,15 @@ public class VehicleReap {
         orderPath = dataPath + "order/";
         configureFrames();
 
-        GroundDetector groundDetector = new GroundDetector();
-        DracoHelper dracoHelper = new DracoHelper();
-        VoronoiAdapt partitioner = new VoronoiAdapt();
         StatHandler statHandler = new StatHandler();
+        if (config.tracePath != null) {
+            statHandler.startTrace(config.tracePath);
+        }
 
         // Load data
         DataLoader dataLoader = new DataLoader(frameIDs, ptclPath, oxtsPath, egoPath, frameRate);
         dataLoader.prepareDataFromFile();
+        int numFrames = dataLoader._prepareSet.size();
         float height = dataLoader.vehicleHeight;
         Thread loaderThread = new Thread(dataLoader);
 
@@ -73,69 +75,20 @@ public class VehicleReap {
         LOGGER.info("Client running ...");
 
         // Wait for the "start" signal
-        while (!edgeMessageHandler.isReady()) {
-            Thread.sleep(1);
-        }
+        edgeMessageHandler.awaitReady();
         loaderThread.start();
 
-        while (true) {
-            Queue dataSetQueue = dataLoader._dataSet;
-            if (dataSetQueue.size() > 0) {
-                DataLoader.dataElement myDataElement = (DataLoader.dataElement) dataSetQueue.remove();
-                int frameId = Integer.parseInt(myDataElement.idx);
-                float[] ptcl = myDataElement.points;
-                String oxts = myDataElement.oxts;
-
-                LOGGER.info("Waiting on frame: " + frameId);
-                while (edgeMessageHandler.getFrameToSent() != frameId) {
-                    Thread.sleep(1);
-                }
-                LOGGER.info("Preparing for frame: " + frameId);
-                statHandler.logFrameStartTime(frameId, System.currentTimeMillis());
-
-                // Send oxts
-                byte[] oxtsBytes = oxts.getBytes();
-                byte[] oxtsWithHeader = encodeMessage(oxtsBytes, Integer.parseInt(vehicleID), frameId, 5, 'O');
-                nonBlockingNetworkClient.putDataToSendByteBufferQueue(oxtsWithHeader);
-
-                // Remove ground
-                Long tGround1 = System.currentTimeMillis();
-                groundDetector.groundDetectorRANSAC(ptcl, false, height, false);
-                ptcl = groundDetector.getObjectPoints();
-                Long tGround2 = System.currentTimeMillis();
-                statHandler.logGroundRemovalTime(frameId, tGround2-tGround1);
-
-                // Partition and send point cloud
-                List<float[]> mask = edgeMessageHandler.getMask();
-                if (mask != null) {
-                    Long tPartition1 = System.currentTimeMillis();
-                    List<float[]> chunkList = partitioner.voronoiMaskAdapt(ptcl, mask);
-                    Long tPartition2 = System.currentTimeMillis();
-                    statHandler.logPartitioningTime(frameId, tPartition2-tPartition1);
-
-                    for (int chunkId = 0; chunkId < chunkList.size() && frameId == edgeMessageHandler.getFrameToSent(); chunkId++) {
-                        float[] chunk = chunkList.get(chunkId);
-                        Long tDracoEncode1 = System.currentTimeMillis();
-                        byte[] encodedPtcl = (chunk.length == 0) ? new byte[0] : dracoHelper.encode(chunk, 10, 12);
-                        Long tDracoEncode2 = System.currentTimeMillis();
-                        statHandler.logDracoEncodingTime(frameId, chunkId, tDracoEncode2-tDracoEncode1);
-
-                        byte[] encodedPtclWithHeader = encodeMessage(encodedPtcl, Integer.parseInt(vehicleID), frameId, chunkId, 'P');
-
-                        statHandler.logSendTime(frameId, chunkId, System.currentTimeMillis());
-                        nonBlockingNetworkClient.putDataToSendByteBufferQueue(encodedPtclWithHeader);
-                    }
-                }
-                else {
-                    byte[] encodedPtcl = dracoHelper.encode(ptcl, 10, 12);
-                    byte[] encodedPtclWithHeader = encodeMessage(encodedPtcl, Integer.parseInt(vehicleID), frameId, 5, 'P');
-
-                    statHandler.logSendTime(frameId, 5, System.currentTimeMillis());
-                    nonBlockingNetworkClient.putDataToSendByteBufferQueue(encodedPtclWithHeader);
-                }
-            }
-            Thread.sleep(1); // otherwise won't be looping
+        try (VehiclePipeline pipeline = new VehiclePipeline(Integer.parseInt(vehicleID), height, dataLoader._dataSet,
+                edgeMessageHandler, nonBlockingNetworkClient, statHandler, config.numEncodingThreads)) {
+            pipeline.run(numFrames);
+        } finally {
+            statHandler.saveVehicleStats();
         }
+
+        // Send the remaining data and stop
+        nonBlockingNetworkClient.stopRunning();
+        networkThread.join();
+        loaderThread.join();
     }
 
     public static void configureFrames() throws Exception {
@@ -205,5 +158,17 @@ public class VehicleReap {
                 description = "Frame loading rate of the data loader"
         )
         public int frameRate = 100;
+
+        @Parameter(
+                names = {"--encoding-threads", "-e"},
+                description = "Number of threads encoding the chunks of a frame"
+        )
+        public int numEncodingThreads = 4;
+
+        @Parameter(
+                names = {"--trace", "-tr"},
+                description = "Path of the binary trace file to write statistics to (read it with StatTraceReader)"
+        )
+        public String tracePath = null;
     }
 }
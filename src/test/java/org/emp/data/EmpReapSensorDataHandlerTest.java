@@ -0,0 +1,143 @@
+package org.emp.data;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.emp.network.BandwidthEstimator;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+public class EmpReapSensorDataHandlerTest extends EmpUnitTest {
+  BandwidthEstimator bandwidthEstimator = mock(BandwidthEstimator.class);
+
+  @Test
+  public void testGetMergeTarget_isDirectAndSharedWithinFrame() {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+
+    MergeTarget mergeTarget = sensorDataHandler.getMergeTarget(0);
+    assertThat(mergeTarget.getBuffer().isDirect()).isTrue();
+    assertThat(sensorDataHandler.getMergeTarget(0)).isSameInstanceAs(mergeTarget);
+    assertThat(sensorDataHandler.getMergeTarget(1)).isNotSameInstanceAs(mergeTarget);
+  }
+
+  @Test
+  public void testMergeTarget_reservesDisjointRegionsConcurrently() throws InterruptedException {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+    int numThreads = 8;
+    int numReservations = 1000;
+    int[][] offsets = new int[numThreads][numReservations];
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      int threadIndex = i;
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < numReservations; j++) {
+          offsets[threadIndex][j] = sensorDataHandler.getMergeTarget(0).reserve(4);
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Set<Integer> uniqueOffsets = new HashSet<>();
+    for (int[] threadOffsets : offsets) {
+      for (int offset : threadOffsets) {
+        uniqueOffsets.add(offset);
+      }
+    }
+    assertThat(uniqueOffsets).hasSize(numThreads * numReservations);
+    assertThat(sensorDataHandler.getMergeTarget(0).getSize()).isEqualTo(numThreads * numReservations * 4);
+  }
+
+  @Test
+  public void testMergeTarget_refusesRegionBeyondCapacity() {
+    MergeTarget mergeTarget = new MergeTarget(FloatBuffer.allocate(10));
+
+    assertThat(mergeTarget.reserve(8)).isEqualTo(0);
+    assertThat(mergeTarget.reserve(4)).isEqualTo(-1);
+    assertThat(mergeTarget.getSize()).isEqualTo(8);
+    assertThat(mergeTarget.reserve(2)).isEqualTo(8);
+    assertThat(mergeTarget.getSize()).isEqualTo(10);
+  }
+
+  @Test
+  public void testReleaseFrame_evictsFrameState() {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+    VehicleLocation location = VehicleLocation.builder().oxtsData(new float[6]).build();
+    for (int frameId = 0; frameId < 3; frameId++) {
+      sensorDataHandler.saveDataChunk(SensorDataChunk.builder().vehicleId(2).frameId(frameId).chunkId(1)
+          .decodedPointCloud(new float[4]).build());
+      // Pushed before the primary location is received
+      sensorDataHandler.pushUnmergedData(2, frameId, 1);
+      sensorDataHandler.updateVehicleLocation(1, frameId, location);
+      sensorDataHandler.getMergeTarget(frameId).reserve(4);
+    }
+
+    sensorDataHandler.releaseFrame(1);
+
+    for (int frameId = 0; frameId <= 1; frameId++) {
+      assertThat(sensorDataHandler.getMergeTarget(frameId)).isNull();
+      assertThat(sensorDataHandler.getPrimaryLocation(frameId)).isNull();
+      assertThat(sensorDataHandler.shouldRunMerging(frameId)).isFalse();
+      assertThat(sensorDataHandler.popUnmergedData(frameId)).isNull();
+    }
+    assertThat(sensorDataHandler.getMergeTarget(2)).isNotNull();
+    assertThat(sensorDataHandler.shouldRunMerging(2)).isTrue();
+    assertThat(sensorDataHandler.getDataChunk(2, 2, 1)).hasLength(4);
+    assertThat(sensorDataHandler.popUnmergedData(2)).isEqualTo(
+        Collections.singletonMap(2, Collections.singleton(1)));
+    assertThat(sensorDataHandler.getMergeTarget(2).getSize()).isEqualTo(4);
+  }
+
+  @Test
+  public void testReleaseFrame_reusesMergedPointCloudOnceWritersFinish() {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+    MergeTarget writing = sensorDataHandler.getMergeTarget(0);
+    FloatBuffer released = writing.getBuffer();
+    assertThat(writing.acquire()).isTrue();
+    sensorDataHandler.releaseFrame(0);
+
+    // No new writer once released, and the buffer is held back while the writer is in progress
+    assertThat(writing.acquire()).isFalse();
+    assertThat(sensorDataHandler.getMergeTarget(0)).isNull();
+    assertThat(sensorDataHandler.getMergeTarget(1).getBuffer()).isNotSameInstanceAs(released);
+
+    writing.release();
+    MergeTarget reused = sensorDataHandler.getMergeTarget(2);
+    assertThat(reused.getBuffer()).isSameInstanceAs(released);
+    assertThat(reused.getBuffer().position()).isEqualTo(0);
+    assertThat(reused.getSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void testReleaseFrame_reusesMergedPointCloudWithoutWriters() {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+    FloatBuffer released = sensorDataHandler.getMergeTarget(0).getBuffer();
+    sensorDataHandler.releaseFrame(0);
+
+    assertThat(sensorDataHandler.getMergeTarget(1).getBuffer()).isSameInstanceAs(released);
+  }
+
+  @Test
+  public void testReleaseFrame_acrossFrameIdWraparound() {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(bandwidthEstimator, 0, null);
+    // Frames are released in order, so step to the end of the frame IDs
+    for (int frameId : new int[] {20000, 40000, 60000, 65534}) {
+      sensorDataHandler.releaseFrame(frameId);
+    }
+    assertThat(sensorDataHandler.getMergeTarget(65535)).isNotNull();
+    MergeTarget next = sensorDataHandler.getMergeTarget(0);
+
+    sensorDataHandler.releaseFrame(65535);
+
+    assertThat(sensorDataHandler.getMergeTarget(65535)).isNull();
+    assertThat(sensorDataHandler.getMergeTarget(0)).isSameInstanceAs(next);
+    assertThat(next.acquire()).isTrue();
+  }
+}
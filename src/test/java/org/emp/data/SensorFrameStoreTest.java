@@ -0,0 +1,140 @@
+package org.emp.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+public class SensorFrameStoreTest extends EmpUnitTest {
+
+  @Test
+  public void testKey_roundTrips() {
+    long key = SensorFrameStore.key(65535, Integer.MAX_VALUE, 5);
+    assertThat(SensorFrameStore.vehicleIdOf(key)).isEqualTo(65535);
+    assertThat(SensorFrameStore.frameIdOf(key)).isEqualTo(Integer.MAX_VALUE);
+    assertThat(SensorFrameStore.chunkIdOf(key)).isEqualTo(5);
+    assertThat(SensorFrameStore.key(1, 2, 3)).isNotEqualTo(SensorFrameStore.key(1, 3, 2));
+  }
+
+  @Test
+  public void testSaveChunk_keepsFirstChunk() {
+    SensorFrameStore frameStore = new SensorFrameStore();
+    SensorDataChunk first = SensorDataChunk.builder().vehicleId(2).frameId(3).chunkId(1).build();
+    SensorDataChunk second = SensorDataChunk.builder().vehicleId(2).frameId(3).chunkId(1).build();
+
+    assertThat(frameStore.saveChunk(first)).isTrue();
+    assertThat(frameStore.saveChunk(second)).isFalse();
+    assertThat(frameStore.getChunk(2, 3, 1)).isSameInstanceAs(first);
+    assertThat(frameStore.getFrame(2, 3).getChunks().get(1)).isSameInstanceAs(first);
+    assertThat(frameStore.getChunk(2, 3, 2)).isNull();
+  }
+
+  @Test
+  public void testPushUnmerged_rejectedAfterPrimaryLocation() {
+    SensorFrameStore frameStore = new SensorFrameStore();
+    assertThat(frameStore.pushUnmerged(2, 0, 1)).isTrue();
+    assertThat(frameStore.pushUnmerged(3, 0, 1)).isTrue();
+
+    frameStore.setPrimaryLocation(0, VehicleLocation.builder().oxtsData(new float[6]).build());
+
+    assertThat(frameStore.pushUnmerged(2, 0, 2)).isFalse();
+    Map<Integer, Set<Integer>> unmerged = frameStore.popUnmerged(0);
+    assertThat(unmerged.keySet()).containsExactly(2, 3);
+    assertThat(unmerged.get(2)).containsExactly(1);
+    // Each chunk is popped once
+    assertThat(frameStore.popUnmerged(0)).isNull();
+  }
+
+  @Test
+  public void testPushUnmerged_eachChunkMergedExactlyOnce() throws InterruptedException {
+    SensorFrameStore frameStore = new SensorFrameStore();
+    int numThreads = 4;
+    int numChunks = 10000;
+    // Chunk key -> number of times the chunk is merged
+    Map<Long, Integer> numMerges = new ConcurrentHashMap<>();
+    CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      int vehicleId = i + 2;
+      threads[i] = new Thread(() -> {
+        try {
+          startLatch.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int chunkId = 0; chunkId < numChunks; chunkId++) {
+          if (!frameStore.pushUnmerged(vehicleId, 0, chunkId)) {  // immediate merging
+            numMerges.merge(SensorFrameStore.key(vehicleId, 0, chunkId), 1, Integer::sum);
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    startLatch.countDown();
+    frameStore.setPrimaryLocation(0, VehicleLocation.builder().oxtsData(new float[6]).build());
+    Map<Integer, Set<Integer>> unmerged = frameStore.popUnmerged(0);  // cleanup merging
+    if (unmerged != null) {
+      for (Map.Entry<Integer, Set<Integer>> entry : unmerged.entrySet()) {
+        for (int chunkId : entry.getValue()) {
+          numMerges.merge(SensorFrameStore.key(entry.getKey(), 0, chunkId), 1, Integer::sum);
+        }
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(numMerges).hasSize(numThreads * numChunks);
+    assertThat(new HashSet<>(numMerges.values())).containsExactly(1);
+    assertThat(frameStore.popUnmerged(0)).isNull();
+  }
+
+  @Test
+  public void testWaitForVehicleLocation() {
+    SensorFrameStore frameStore = new SensorFrameStore();
+    SensorDataChunk first = SensorDataChunk.builder().vehicleId(2).frameId(0).chunkId(0).build();
+    SensorDataChunk second = SensorDataChunk.builder().vehicleId(2).frameId(0).chunkId(1).build();
+    assertThat(frameStore.popChunksWaitingForVehicleLocation(2, 0)).isNull();
+
+    // Chunks wait until the location of their vehicle is set
+    assertThat(frameStore.waitForVehicleLocation(first)).isTrue();
+    assertThat(frameStore.waitForVehicleLocation(second)).isTrue();
+    frameStore.setVehicleLocation(2, 0, VehicleLocation.builder().oxtsData(new float[6]).build());
+    assertThat(frameStore.popChunksWaitingForVehicleLocation(2, 0)).containsExactly(first, second).inOrder();
+    assertThat(frameStore.popChunksWaitingForVehicleLocation(2, 0)).isNull();
+
+    // Then they no longer wait
+    assertThat(frameStore.waitForVehicleLocation(
+        SensorDataChunk.builder().vehicleId(2).frameId(0).chunkId(2).build())).isFalse();
+    assertThat(frameStore.waitForVehicleLocation(
+        SensorDataChunk.builder().vehicleId(3).frameId(0).chunkId(0).build())).isTrue();
+    assertThat(frameStore.popChunksWaitingForVehicleLocation(2, 0)).isNull();
+  }
+
+  @Test
+  public void testEvict_removesFrameAndEarlierFrames() {
+    SensorFrameStore frameStore = new SensorFrameStore();
+    for (int frameId = 0; frameId < 3; frameId++) {
+      frameStore.saveChunk(SensorDataChunk.builder().vehicleId(2).frameId(frameId).chunkId(1).build());
+      frameStore.setPrimaryLocation(frameId, VehicleLocation.builder().oxtsData(new float[6]).build());
+    }
+
+    frameStore.evict(1);
+
+    for (int frameId = 0; frameId <= 1; frameId++) {
+      assertThat(frameStore.getChunk(2, frameId, 1)).isNull();
+      assertThat(frameStore.getFrame(2, frameId)).isNull();
+      assertThat(frameStore.getPrimaryLocation(frameId)).isNull();
+    }
+    assertThat(frameStore.getChunk(2, 2, 1)).isNotNull();
+    assertThat(frameStore.getFrame(2, 2)).isNotNull();
+    assertThat(frameStore.getPrimaryLocation(2)).isNotNull();
+  }
+}
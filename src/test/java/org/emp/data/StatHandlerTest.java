@@ -0,0 +1,84 @@
+package org.emp.data;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.emp.data.StatTraceReader.FrameLatency;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StatHandlerTest extends EmpUnitTest {
+
+  @Test
+  public void testTrace_readBackWithLatencyBreakdown(@TempDir Path tempDir) throws IOException {
+    Path tracePath = tempDir.resolve("edge.trace");
+    StatHandler statHandler = new StatHandler();
+    // Not traced
+    statHandler.logReceiveTime(0, 1, 1, 0);
+
+    statHandler.startTrace(tracePath.toString());
+    for (int chunkId = 1; chunkId <= 2; chunkId++) {
+      statHandler.logReceiveTime(1, 2, chunkId, 0);
+      statHandler.logEndDracoDecodingTime(1, 2, chunkId, 0);
+      statHandler.logEndMergingTime(1, 2, chunkId, 0);
+    }
+    statHandler.logFrameEndTime(1, 0);
+    statHandler.logReceiveTime(2, 2, 1, 0);
+    statHandler.saveEdgeStats();
+    // Not traced
+    statHandler.logReceiveTime(3, 1, 1, 0);
+
+    List<StatRecord> records = StatTraceReader.read(tracePath);
+    assertThat(records).hasSize(8);
+    assertThat(records.get(0).getEvent()).isEqualTo(StatEvent.RECEIVE);
+    assertThat(records.get(0).getVehicleId()).isEqualTo(2);
+    assertThat(records.get(0).getChunkId()).isEqualTo(1);
+    for (int i = 1; i < records.size(); i++) {
+      assertThat(records.get(i).getNanoTime()).isAtLeast(records.get(i - 1).getNanoTime());
+    }
+
+    Map<Integer, FrameLatency> frameLatencies = StatTraceReader.getFrameLatencies(records);
+    assertThat(frameLatencies.keySet()).containsExactly(1, 2).inOrder();
+    FrameLatency latency = frameLatencies.get(1);
+    assertThat(latency.getNumChunksReceived()).isEqualTo(2);
+    assertThat(latency.getReceiveToDecodedNanos()).isAtLeast(0);
+    assertThat(latency.getDecodedToMergedNanos()).isAtLeast(0);
+    assertThat(latency.getReceiveToEndNanos()).isAtLeast(latency.getMergedToEndNanos());
+    assertThat(latency.getCaptureToSentNanos()).isEqualTo(-1);
+    assertThat(frameLatencies.get(2).getReceiveToEndNanos()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testLatencyHistograms_frameSpans() {
+    StatHandler statHandler = new StatHandler();
+    statHandler.logReceiveTime(1, 1, 1, 1000);
+    statHandler.logReceiveTime(1, 2, 1, 3000);
+    statHandler.logDracoDecodingTime(1, 2, 1, 500);
+    statHandler.logFrameEndTime(1, 11000);
+    statHandler.logPartitionSentTime(1, 12000);
+    // No milestones of the frame
+    statHandler.logPartitionSentTime(2, 13000);
+    statHandler.recordLatency(LatencyStage.RECEIVE_TO_DECODED, 0, 13000);
+
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.DECODING).getMaxValue()).isEqualTo(500);
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.FRAME_COMPLETE).getMaxValue()).isEqualTo(10000);
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.PARTITION_SENT).getMaxValue()).isEqualTo(1000);
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.FRAME_TOTAL).getTotalCount()).isEqualTo(1);
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.FRAME_TOTAL).getMaxValue()).isEqualTo(11000);
+    assertThat(statHandler.getLatencyHistogram(LatencyStage.RECEIVE_TO_DECODED).getTotalCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRead_notTraceFile(@TempDir Path tempDir) throws IOException {
+    Path path = tempDir.resolve("not.trace");
+    Files.write(path, new byte[64]);
+    assertThrows(IOException.class, () -> StatTraceReader.read(path));
+  }
+}
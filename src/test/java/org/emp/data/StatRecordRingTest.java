@@ -0,0 +1,92 @@
+package org.emp.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+public class StatRecordRingTest extends EmpUnitTest {
+
+  @Test
+  public void testDrainTo_recordsInOrder() {
+    StatRecordRing ring = new StatRecordRing(8);
+    ring.offer(StatEvent.RECEIVE, 1, 2, 3, 100, 200);
+    ring.offer(StatEvent.MERGING_END, 1, 2, 3, 101, 201);
+
+    ByteBuffer buffer = ByteBuffer.allocate(4 * StatRecordRing.RECORD_BYTES);
+    assertThat(ring.drainTo(buffer)).isEqualTo(2);
+    buffer.flip();
+    assertThat(buffer.getInt()).isEqualTo(StatEvent.RECEIVE.getCode());
+    assertThat(buffer.getInt()).isEqualTo(1);
+    assertThat(buffer.getInt()).isEqualTo(2);
+    assertThat(buffer.getInt()).isEqualTo(3);
+    assertThat(buffer.getLong()).isEqualTo(100);
+    assertThat(buffer.getLong()).isEqualTo(200);
+    assertThat(buffer.getInt()).isEqualTo(StatEvent.MERGING_END.getCode());
+    assertThat(ring.drainTo(ByteBuffer.allocate(StatRecordRing.RECORD_BYTES))).isEqualTo(0);
+  }
+
+  @Test
+  public void testOffer_dropsWhenFull() {
+    StatRecordRing ring = new StatRecordRing(4);
+    for (int i = 0; i < 6; i++) {
+      assertThat(ring.offer(StatEvent.RECEIVE, i, 0, 0, i, 0)).isEqualTo(i < 4);
+    }
+    assertThat(ring.getNumDropped()).isEqualTo(2);
+
+    // Room again after draining
+    assertThat(ring.drainTo(ByteBuffer.allocate(2 * StatRecordRing.RECORD_BYTES))).isEqualTo(2);
+    assertThat(ring.offer(StatEvent.RECEIVE, 6, 0, 0, 6, 0)).isTrue();
+  }
+
+  @Test
+  public void testOffer_concurrentProducersEachRecordDrainedOnce() throws InterruptedException {
+    StatRecordRing ring = new StatRecordRing(1024);
+    int numThreads = 4;
+    int numRecords = 100000;
+    CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      int vehicleId = i;
+      threads[i] = new Thread(() -> {
+        try {
+          startLatch.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int frameId = 0; frameId < numRecords; frameId++) {
+          // Retry, since the test needs every record
+          while (!ring.offer(StatEvent.RECEIVE, frameId, vehicleId, 0, 0, 0)) {
+            Thread.yield();
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    startLatch.countDown();
+    Set<Long> drained = new HashSet<>();
+    ByteBuffer buffer = ByteBuffer.allocate(64 * StatRecordRing.RECORD_BYTES);
+    while (drained.size() < numThreads * numRecords) {
+      buffer.clear();
+      int numDrained = ring.drainTo(buffer);
+      buffer.flip();
+      for (int i = 0; i < numDrained; i++) {
+        buffer.getInt();
+        int frameId = buffer.getInt();
+        int vehicleId = buffer.getInt();
+        buffer.position(buffer.position() + StatRecordRing.RECORD_BYTES - 12);
+        assertThat(drained.add(SensorFrameStore.key(vehicleId, frameId, 0))).isTrue();
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(ring.drainTo(buffer)).isEqualTo(0);
+  }
+}
@@ -1,6 +1,7 @@
 package org.emp.data;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -14,6 +15,7 @@ import java.util.Map;
 
 import org.emp.network.BandwidthEstimator;
 import org.emp.task.DecodingTask;
+import org.emp.task.LocationUpdatingTask;
 import org.emp.task.Task;
 import org.emp.task.TaskScheduler;
 import org.emp.utils.EmpUnitTest;
@@ -124,6 +126,45 @@ public class VehicleMessageHandlerImplTest extends EmpUnitTest {
     assertThat(handler.getChunkMap()).isEqualTo(expectedMap);
   }
 
+  @Test
+  public void testManyCompleteMessagesAndPartialMessageInOneRead() {
+    VehicleMessageHandlerImpl handler = new VehicleMessageHandlerImpl(taskScheduler, sensorDataHandler, bandwidthEstimator);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BYTE_BUFFER_CAPACITY);
+    int numMessages = 1000;
+    byte[] oxts = "1.5 2.5 3.5".getBytes();
+    for (int i = 0; i < numMessages; i++) {
+      addMessage(buffer, 2, i, 0, 'O', oxts);
+    }
+    // Partial message with 10 out of 100 bytes of the payload
+    addMessage(buffer, 2, numMessages, 1, 'P', new byte[10]);
+    buffer.putInt(buffer.position() - 10 - VehicleMessageHandlerImpl.HEADER_BYTES, 100);
+
+    assertThat(handler.handle(buffer)).isEqualTo(2);
+
+    ArgumentCaptor<Task> submittedTask = ArgumentCaptor.forClass(Task.class);
+    verify(taskScheduler, times(numMessages)).submit(submittedTask.capture());
+    submittedTask.getAllValues().forEach(e -> assertThat(e).isInstanceOf(LocationUpdatingTask.class));
+    // Only the partial message is left, at the start of the buffer
+    assertThat(buffer.position()).isEqualTo(VehicleMessageHandlerImpl.HEADER_BYTES + 10);
+    assertThat(buffer.getInt(0)).isEqualTo(100);
+    assertThat(buffer.getShort(8)).isEqualTo((short) numMessages);
+  }
+
+  @Test
+  public void testInvalidPayloadSize() {
+    VehicleMessageHandlerImpl handler = new VehicleMessageHandlerImpl(taskScheduler, sensorDataHandler, bandwidthEstimator);
+    ByteBuffer negativeSize = ByteBuffer.allocate(BYTE_BUFFER_CAPACITY);
+    addMessage(negativeSize, 2, 0, 0, 'P', new byte[10]);
+    negativeSize.putInt(0, -1);
+    assertThrows(IllegalArgumentException.class, () -> handler.handle(negativeSize));
+
+    ByteBuffer tooLarge = ByteBuffer.allocate(BYTE_BUFFER_CAPACITY);
+    addMessage(tooLarge, 2, 0, 0, 'P', new byte[10]);
+    tooLarge.putInt(0, VehicleMessageHandlerImpl.MAX_PAYLOAD_BYTES + 1);
+    assertThrows(IllegalArgumentException.class, () -> handler.handle(tooLarge));
+    verify(taskScheduler, never()).submit(any());
+  }
+
   private VehicleMessageHandlerImpl prepareVehicleDataHandler(
       int[] sizes, int[] vehicleIds, int[] frameIds, int[] chunkIds, int[] types,
       int[] payloadSizes) {
@@ -162,4 +203,14 @@ public class VehicleMessageHandlerImplTest extends EmpUnitTest {
     byteBuffer.put((byte) type);
     byteBuffer.put(new byte[payloadSize]);
   }
+
+  private void addMessage(
+      ByteBuffer byteBuffer, int vehicleId, int frameId, int chunkId, char type, byte[] payload) {
+    byteBuffer.putInt(payload.length);
+    byteBuffer.putInt(vehicleId);
+    byteBuffer.putShort((short) frameId);
+    byteBuffer.putShort((short) chunkId);
+    byteBuffer.put((byte) type);
+    byteBuffer.put(payload);
+  }
 }
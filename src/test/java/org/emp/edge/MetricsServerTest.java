@@ -0,0 +1,99 @@
+package org.emp.edge;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.emp.data.LatencyStage;
+import org.emp.data.SensorDataHandler;
+import org.emp.data.StatHandler;
+import org.emp.data.VehicleMessageHandler;
+import org.emp.network.BandwidthEstimator;
+import org.emp.network.NonBlockingNetworkServer;
+import org.emp.task.Task.TaskType;
+import org.emp.task.TaskScheduler;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricsServerTest extends EmpUnitTest {
+  TaskScheduler scheduler = mock(TaskScheduler.class);
+  SensorDataHandler sensorDataHandler = mock(SensorDataHandler.class);
+  BandwidthEstimator bandwidthEstimator = mock(BandwidthEstimator.class);
+  StatHandler statHandler = new StatHandler();
+  NonBlockingNetworkServer networkServer;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    networkServer = new NonBlockingNetworkServer(0, 1, mock(VehicleMessageHandler.class));
+    Map<TaskType, Integer> queueDepths = new EnumMap<>(TaskType.class);
+    for (TaskType taskType : TaskType.values()) {
+      queueDepths.put(taskType, 0);
+    }
+    queueDepths.put(TaskType.DECODING, 3);
+    when(scheduler.getQueueDepths()).thenReturn(queueDepths);
+    when(scheduler.getNumPendingTasks()).thenReturn(5);
+    when(sensorDataHandler.getNumFramesCompleted()).thenReturn(7L);
+    when(bandwidthEstimator.getClientIDs()).thenReturn(new int[]{1, 2});
+    when(bandwidthEstimator.getEstimatedBW(1)).thenReturn(800);
+    when(bandwidthEstimator.getEstimatedBW(2)).thenReturn(-1);
+    statHandler.recordLatency(LatencyStage.DECODING, 1000, 2001000);
+  }
+
+  @Test
+  public void testScrape() throws IOException {
+    MetricsServer metricsServer = new MetricsServer(
+        0, scheduler, networkServer, sensorDataHandler, bandwidthEstimator, statHandler);
+    try {
+      String metrics = metricsServer.scrape();
+      assertThat(metrics).contains("# TYPE emp_task_queue_depth gauge\n");
+      assertThat(metrics).contains("emp_task_queue_depth{stage=\"decoding\"} 3\n");
+      assertThat(metrics).contains("emp_task_queue_depth{stage=\"merging\"} 0\n");
+      assertThat(metrics).contains("emp_pending_tasks 5\n");
+      assertThat(metrics).contains("emp_network_read_paused 0\n");
+      assertThat(metrics).contains("emp_frames_completed_total 7\n");
+      assertThat(metrics).contains("emp_vehicle_estimated_bandwidth_bps{vehicle=\"1\"} 800000\n");
+      // Nothing predicted for the vehicle yet
+      assertThat(metrics).doesNotContain("vehicle=\"2\"");
+      assertThat(metrics).contains("emp_stage_latency_seconds{stage=\"decoding\",quantile=\"0.5\"} 0.002");
+      assertThat(metrics).contains("emp_stage_latency_seconds_sum{stage=\"decoding\"} 0.002\n");
+      assertThat(metrics).contains("emp_stage_latency_seconds_count{stage=\"decoding\"} 1\n");
+      assertThat(metrics).contains("emp_stage_latency_seconds_count{stage=\"merging\"} 0\n");
+    } finally {
+      metricsServer.stop();
+    }
+  }
+
+  @Test
+  public void testServeOverHttp() throws IOException {
+    MetricsServer metricsServer = new MetricsServer(
+        0, scheduler, networkServer, sensorDataHandler, bandwidthEstimator, statHandler);
+    metricsServer.start();
+    try {
+      URL url = new URL("http://localhost:" + metricsServer.getPort() + "/metrics");
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      assertThat(connection.getResponseCode()).isEqualTo(200);
+      assertThat(connection.getContentType()).startsWith("text/plain; version=0.0.4");
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (InputStream input = connection.getInputStream()) {
+        byte[] buffer = new byte[4096];
+        int numBytes;
+        while ((numBytes = input.read(buffer)) > 0) {
+          body.write(buffer, 0, numBytes);
+        }
+      }
+      assertThat(new String(body.toByteArray(), StandardCharsets.UTF_8)).contains("emp_pending_tasks 5\n");
+    } finally {
+      metricsServer.stop();
+    }
+  }
+}
@@ -3,11 +3,15 @@ package org.emp.edge;
 import org.emp.utils.TestUtils;
 import static com.google.common.truth.Truth.assertThat;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 
@@ -150,4 +154,172 @@ public class PtClMergerTest extends EmpUnitTest{
         LOGGER.info("count = " + count);
         assertThat(count == 0).isTrue();
     }
+
+    @Test
+    public void testTransformPointsToDirectBuffer() {
+        float[] oxtsPrimary = {1.0f, 2.0f, 0.5f, 0.01f, -0.02f, 0.3f};
+        float[] oxtsSecondary = {-4.0f, 7.0f, 0.2f, 0.03f, 0.01f, 1.2f};
+        int numPoints = 5000;
+        float[] points = new float[numPoints * 4];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = (i % 97) * 0.5f - 20.0f;
+        }
+
+        PtClMerger myMerger = new PtClMerger();
+        float[] expected = referenceTransform(oxtsPrimary, oxtsSecondary, points);
+
+        // A direct buffer has no backing array, so the points are copied in blocks
+        int offset = 8;
+        FloatBuffer result = ByteBuffer.allocateDirect((offset + points.length) * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        int end = myMerger.fbMergeNoPrimary(oxtsPrimary, Collections.singletonList(points),
+            Collections.singletonList(oxtsSecondary), result, offset);
+
+        assertThat(end).isEqualTo(offset + points.length);
+        assertThat(result.position()).isEqualTo(0);
+        for (int i = 0; i < points.length; i++) {
+            assertThat(result.get(offset + i)).isWithin(0.001f).of(expected[i]);
+        }
+        // Intensity is not transformed
+        for (int i = 3; i < points.length; i += 4) {
+            assertThat(result.get(offset + i)).isEqualTo(points[i]);
+        }
+    }
+
+    @Test
+    public void testMergeHandComputedPoints() {
+        float[] points = {1.0f, 2.0f, 3.0f, 0.7f};
+        PtClMerger myMerger = new PtClMerger();
+
+        // Secondary vehicle turned 90 degrees left: (x, y, z) -> (-y, x, z), then translated by
+        // its offset (10, 5, 1) from the primary vehicle, which heads north
+        float[] oxtsPrimary = {0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f};
+        float[] oxtsSecondary = {10.0f, 5.0f, 1.0f, 0.0f, 0.0f, (float) (Math.PI / 2)};
+        FloatBuffer result = FloatBuffer.allocate(points.length);
+        myMerger.fbMergeNoPrimary(oxtsPrimary, Collections.singletonList(points),
+            Collections.singletonList(oxtsSecondary), result, 0);
+        float[] expected = {8.0f, 6.0f, 4.0f, 0.7f};
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(result.get(i)).isWithin(0.0001f).of(expected[i]);
+        }
+
+        // Same heading, so no rotation, but the offset (10, 5, 1) is seen from a primary vehicle
+        // heading west: (5, -10, 1)
+        oxtsPrimary = new float[]{0.0f, 0.0f, 0.0f, 0.0f, 0.0f, (float) (Math.PI / 2)};
+        result = FloatBuffer.allocate(points.length);
+        myMerger.fbMergeNoPrimary(oxtsPrimary, Collections.singletonList(points),
+            Collections.singletonList(oxtsSecondary), result, 0);
+        expected = new float[]{6.0f, -8.0f, 4.0f, 0.7f};
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(result.get(i)).isWithin(0.0001f).of(expected[i]);
+        }
+    }
+
+    @Test
+    public void testMergeInPlaceMatchesMergeIntoRegion() {
+        float[] oxtsPrimary = {1.0f, 2.0f, 0.5f, 0.01f, -0.02f, 0.3f};
+        float[] oxtsSecondary = {-4.0f, 7.0f, 0.2f, 0.03f, 0.01f, 1.2f};
+        int numPoints = 5000;
+        float[] points = new float[numPoints * 4];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = (i % 97) * 0.5f - 20.0f;
+        }
+
+        PtClMerger myMerger = new PtClMerger();
+        int offset = 8;
+        FloatBuffer expected = FloatBuffer.allocate(offset + points.length);
+        myMerger.fbMergeNoPrimary(oxtsPrimary, Collections.singletonList(points),
+            Collections.singletonList(oxtsSecondary), expected, offset);
+
+        // With and without a backing array
+        FloatBuffer[] results = {
+            FloatBuffer.allocate(offset + points.length),
+            ByteBuffer.allocateDirect((offset + points.length) * 4).order(ByteOrder.nativeOrder()).asFloatBuffer()};
+        for (FloatBuffer result : results) {
+            result.position(offset);
+            result.put(points);
+            result.position(0);
+            myMerger.fbMergeInPlace(oxtsPrimary, oxtsSecondary, result, offset, points.length);
+
+            assertThat(result.position()).isEqualTo(0);
+            for (int i = offset; i < offset + points.length; i++) {
+                assertThat(result.get(i)).isEqualTo(expected.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMergeMatchesSequentialMerge() {
+        float[] oxtsPrimary = {1.0f, 2.0f, 0.5f, 0.01f, -0.02f, 0.3f};
+        List<float[]> pointsSecondary = new ArrayList<>();
+        List<float[]> oxtsSecondary = new ArrayList<>();
+        int size = 0;
+        for (int v = 0; v < 5; v++) {
+            // Clouds of different sizes, some split into many tasks and some not split at all
+            float[] points = new float[(1000 + v * 20000) * 4];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = ((i + v) % 101) * 0.25f - 12.0f;
+            }
+            pointsSecondary.add(points);
+            oxtsSecondary.add(new float[]{-4.0f + v, 7.0f - v, 0.2f, 0.03f, 0.01f, 0.4f * v});
+            size += points.length;
+        }
+
+        PtClMerger myMerger = new PtClMerger();
+        int offset = 12;
+        FloatBuffer expected = FloatBuffer.allocate(offset + size);
+        int expectedEnd = myMerger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, expected, offset);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FloatBuffer result = ByteBuffer.allocateDirect((offset + size) * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            int end = myMerger.fbMergeNoPrimary(oxtsPrimary, pointsSecondary, oxtsSecondary, result, offset, pool);
+
+            assertThat(end).isEqualTo(expectedEnd);
+            for (int i = offset; i < end; i++) {
+                assertThat(result.get(i)).isEqualTo(expected.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Transforms the points as the merger did before the precomputed rigid transform, in double
+     * and independently of {@code PtClMerger}: (x, y, z) is rotated by Rz(dYaw) * Ry(dPitch) *
+     * Rx(dRoll) and translated by the offset of the secondary vehicle seen from the heading of the
+     * primary vehicle.  The intensity is kept.
+     */
+    private static float[] referenceTransform(float[] oxtsPrimary, float[] oxtsSecondary, float[] points) {
+        double dYaw = (double) oxtsSecondary[5] - oxtsPrimary[5];
+        double dPitch = (double) oxtsSecondary[4] - oxtsPrimary[4];
+        double dRoll = (double) oxtsSecondary[3] - oxtsPrimary[3];
+        double cy = Math.cos(dYaw), sy = Math.sin(dYaw);
+        double cp = Math.cos(dPitch), sp = Math.sin(dPitch);
+        double cr = Math.cos(dRoll), sr = Math.sin(dRoll);
+        double[][] rotation = {
+            {cy * cp, cy * sp * sr - sy * cr, cy * sp * cr + sy * sr},
+            {sy * cp, sy * sp * sr + cy * cr, sy * sp * cr - cy * sr},
+            {-sp, cp * sr, cp * cr}
+        };
+        double da = (double) oxtsSecondary[0] - oxtsPrimary[0];
+        double db = (double) oxtsSecondary[1] - oxtsPrimary[1];
+        double yaw = oxtsPrimary[5];
+        double[] translation = {
+            da * Math.cos(yaw) + db * Math.sin(yaw),
+            -da * Math.sin(yaw) + db * Math.cos(yaw),
+            (double) oxtsSecondary[2] - oxtsPrimary[2]
+        };
+
+        float[] result = new float[points.length];
+        for (int i = 0; i < points.length; i += 4) {
+            for (int row = 0; row < 3; row++) {
+                result[i + row] = (float) (rotation[row][0] * points[i] + rotation[row][1] * points[i + 1]
+                    + rotation[row][2] * points[i + 2] + translation[row]);
+            }
+            result[i + 3] = points[i + 3];
+        }
+        return result;
+    }
 }
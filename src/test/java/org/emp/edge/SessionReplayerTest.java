@@ -0,0 +1,112 @@
+package org.emp.edge;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.emp.data.VehicleMessageHandler;
+import org.emp.data.VehicleMessageHandlerImpl;
+import org.emp.network.SessionReader;
+import org.emp.network.SessionRecorder;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SessionReplayerTest extends EmpUnitTest {
+  private static final long RECORDED_SPAN_NS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  @Test
+  public void testReplay_asFastAsPossible(@TempDir Path tempDir) throws IOException {
+    Path path = recordSession(tempDir);
+    ConsumingHandler handler = new ConsumingHandler();
+
+    long numMessages;
+    try (SessionReader reader = new SessionReader(path)) {
+      numMessages = new SessionReplayer(handler).replay(reader, false);
+    }
+
+    assertThat(numMessages).isEqualTo(3);
+    // Each message is fed as its header, then as a whole
+    assertThat(handler.positions).containsExactly(
+        13, 13 + 100, 13, 13 + 20, 13, 0).inOrder();
+    assertThat(handler.vehicleIds).containsExactly(1, 2, 1).inOrder();
+    // The two connections have their own buffers
+    assertThat(handler.buffers.get(0)).isSameInstanceAs(handler.buffers.get(4));
+    assertThat(handler.buffers.get(0)).isNotSameInstanceAs(handler.buffers.get(2));
+  }
+
+  @Test
+  public void testReplay_atRecordedSpeed(@TempDir Path tempDir) throws IOException {
+    Path path = recordSession(tempDir);
+    ConsumingHandler handler = new ConsumingHandler();
+
+    long startNanos = System.nanoTime();
+    try (SessionReader reader = new SessionReader(path)) {
+      new SessionReplayer(handler).replay(reader, true);
+    }
+
+    assertThat(System.nanoTime() - startNanos).isAtLeast(RECORDED_SPAN_NS);
+    assertThat(handler.vehicleIds).hasSize(3);
+  }
+
+  /**
+   * Records three messages over {@code RECORDED_SPAN_NS}: two from vehicle 1 on connection 0 and
+   * one from vehicle 2 on connection 1.
+   */
+  private static Path recordSession(Path tempDir) throws IOException {
+    Path path = tempDir.resolve("edge.session");
+    long nanoTime = 1000000000L;
+    try (SessionRecorder recorder = new SessionRecorder(path)) {
+      record(recorder, 0, nanoTime, nanoTime + RECORDED_SPAN_NS / 2, encodeVehicleMessage(1, 100));
+      record(recorder, 1, nanoTime, nanoTime + RECORDED_SPAN_NS / 2, encodeVehicleMessage(2, 20));
+      record(recorder, 0, nanoTime + RECORDED_SPAN_NS, nanoTime + RECORDED_SPAN_NS, encodeVehicleMessage(1, 0));
+    }
+    return path;
+  }
+
+  private static void record(SessionRecorder recorder, int connectionIndex, long firstByteNanos,
+                             long arrivalNanos, byte[] message) throws IOException {
+    recorder.record(connectionIndex, firstByteNanos, arrivalNanos, ByteBuffer.wrap(message), 0, message.length);
+  }
+
+  private static byte[] encodeVehicleMessage(int vehicleId, int payloadSize) {
+    ByteBuffer message = ByteBuffer.allocate(VehicleMessageHandlerImpl.HEADER_BYTES + payloadSize);
+    message.putInt(payloadSize);
+    message.putInt(vehicleId);
+    message.putShort((short) 0);
+    message.putShort((short) 0);
+    message.put((byte) 'P');
+    Arrays.fill(message.array(), VehicleMessageHandlerImpl.HEADER_BYTES, message.capacity(), (byte) 7);
+    return message.array();
+  }
+
+  /**
+   * A handler that consumes each complete message, as {@code VehicleMessageHandlerImpl} does
+   */
+  private static class ConsumingHandler implements VehicleMessageHandler {
+    final List<Integer> positions = new ArrayList<>();
+    final List<ByteBuffer> buffers = new ArrayList<>();
+    final List<Integer> vehicleIds = new ArrayList<>();
+
+    @Override
+    public int handle(ByteBuffer byteBuffer) {
+      int position = byteBuffer.position();
+      positions.add(position);
+      buffers.add(byteBuffer);
+      if (position >= VehicleMessageHandlerImpl.HEADER_BYTES
+          && position >= VehicleMessageHandlerImpl.HEADER_BYTES + byteBuffer.getInt(0)) {
+        int vehicleId = byteBuffer.getInt(4);
+        vehicleIds.add(vehicleId);
+        byteBuffer.clear();
+        return vehicleId;
+      }
+      return -1;
+    }
+  }
+}
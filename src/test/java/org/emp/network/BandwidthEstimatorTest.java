@@ -1,27 +1,20 @@
 package org.emp.network;
 
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CountDownLatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.emp.utils.EmpUnitTest;
 import org.junit.jupiter.api.Test;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class BandwidthEstimatorTest extends EmpUnitTest {
 
     private static final Logger LOGGER = LogManager.getLogger(BandwidthEstimatorTest.class);
 
     public void receiveData(int clientID, int frameID, int receiveSize, int frameSize, BandwidthEstimator bandwidthEstimator) {
-        Map<Integer, List<Integer>> frameSizeMap = new HashMap<>();
-        List<Integer> sizeList = new ArrayList<>();
-        // First read: frame 0 1000 out of 50000 bytes
-        sizeList.add(receiveSize);
-        sizeList.add(frameSize);
-        frameSizeMap.put(frameID, sizeList);
-        bandwidthEstimator.onReceiveData(clientID, frameSizeMap);
+        bandwidthEstimator.onReceiveBytes(clientID, frameID, receiveSize, frameSize, System.nanoTime());
     }
 
     public void sleep(int ms) {
@@ -64,4 +57,131 @@ public class BandwidthEstimatorTest extends EmpUnitTest {
 
     }
 
+    @Test
+    public void testOnReceiveBytes_measuresEachClientSeparately() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        // Client 1: 8000 bytes in 8 ms after the first read, i.e., 8000 kbps
+        bandwidthEstimator.onReceiveBytes(1, 0, 1000, 9000, 0);
+        bandwidthEstimator.onReceiveBytes(2, 0, 1000, 9000, 0);
+        bandwidthEstimator.onReceiveBytes(1, 0, 5000, 9000, 4000000);
+        bandwidthEstimator.onReceiveBytes(1, 0, 9000, 9000, 8000000);
+        // Client 2: 8000 bytes in 16 ms
+        bandwidthEstimator.onReceiveBytes(2, 0, 9000, 9000, 16000000);
+
+        assertThat(bandwidthEstimator.getMeasuredBW(1, 0)).isEqualTo(8000);
+        assertThat(bandwidthEstimator.getMeasuredBW(2, 0)).isEqualTo(4000);
+        assertThat(bandwidthEstimator.getLastFrame(1)).isEqualTo(0);
+        assertThat(bandwidthEstimator.getEstimatedBW(1, "naive")).isEqualTo(8000);
+    }
+
+    @Test
+    public void testOnReceiveBytes_singleReadChunkNotMeasured() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        bandwidthEstimator.onReceiveBytes(1, 0, 9000, 9000, 0);
+
+        assertThat(bandwidthEstimator.getLastFrame(1)).isEqualTo(0);
+        assertThat(bandwidthEstimator.getMeasuredBW(1, 0)).isEqualTo(-1);
+        assertThat(bandwidthEstimator.getEstimatedBW(3, "naive")).isEqualTo(-1);
+        assertThat(bandwidthEstimator.getEstimatedBW(3, "ewma")).isEqualTo(-1);
+    }
+
+    @Test
+    public void testOnReceiveBytes_clientIdOutOfRange() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        assertThrows(IllegalArgumentException.class,
+            () -> bandwidthEstimator.onReceiveBytes(-1, 0, 1000, 9000, 0));
+    }
+
+    @Test
+    public void testGetEstimatedBW_samplesOfEachClientSeparately() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(BandwidthPredictors.EWMA);
+        for (int frameID = 0; frameID < 10; frameID++) {
+            long nanoTime = frameID * 100000000L;
+            // 8000 kbps for client 1 and 800 kbps for client 2
+            bandwidthEstimator.onReceiveBytes(1, frameID, 0, 1000, nanoTime);
+            bandwidthEstimator.onReceiveBytes(1, frameID, 1000, 1000, nanoTime + 1000000);
+            bandwidthEstimator.onReceiveBytes(2, frameID, 0, 1000, nanoTime);
+            bandwidthEstimator.onReceiveBytes(2, frameID, 1000, 1000, nanoTime + 10000000);
+        }
+
+        assertThat(bandwidthEstimator.getEstimatedBW(1)).isEqualTo(8000);
+        assertThat(bandwidthEstimator.getEstimatedBW(2)).isEqualTo(800);
+        assertThat(bandwidthEstimator.getEstimatedBW(2, BandwidthPredictors.HARMONIC)).isEqualTo(800);
+        assertThat(bandwidthEstimator.getEstimatedBW(2, "no-such-predictor")).isEqualTo(-1);
+    }
+
+    @Test
+    public void testRegisterPredictor() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        bandwidthEstimator.registerPredictor("min", samples -> {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < samples.size(); i++) {
+                min = Math.min(min, samples.getBandwidth(i));
+            }
+            return min;
+        });
+        bandwidthEstimator.onReceiveBytes(1, 0, 0, 1000, 0);
+        bandwidthEstimator.onReceiveBytes(1, 0, 1000, 1000, 1000000);
+        bandwidthEstimator.onReceiveBytes(1, 1, 0, 1000, 10000000);
+        bandwidthEstimator.onReceiveBytes(1, 1, 1000, 1000, 12000000);
+
+        assertThat(bandwidthEstimator.getEstimatedBW(1, "min")).isEqualTo(4000);
+        assertThrows(IllegalArgumentException.class, () -> new BandwidthEstimator("no-such-predictor"));
+    }
+
+    @Test
+    public void testOnReceiveBytes_concurrentClients() throws InterruptedException {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        int numClients = 64;
+        int numFrames = 1000;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[numClients];
+        for (int i = 0; i < numClients; i++) {
+            // Client IDs spread out, so that the states of the clients are created concurrently
+            int clientID = i * 97;
+            threads[i] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int frameID = 0; frameID < numFrames; frameID++) {
+                    long nanoTime = frameID * 10000000L;
+                    bandwidthEstimator.onReceiveBytes(clientID, frameID, 0, 1000, nanoTime);
+                    bandwidthEstimator.onReceiveBytes(clientID, frameID, 1000, 1000, nanoTime + 1000000);
+                    bandwidthEstimator.getEstimatedBW(clientID, BandwidthPredictors.RLS);
+                }
+            });
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < numClients; i++) {
+            assertThat(bandwidthEstimator.getLastFrame(i * 97)).isEqualTo(numFrames - 1);
+            assertThat(bandwidthEstimator.getEstimatedBW(i * 97)).isEqualTo(8000);
+        }
+    }
+
+    @Test
+    public void testGetMeasuredBW_historyBounded() {
+        BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+        int numFrames = BandwidthEstimator.MAX_FRAME_HISTORY * 100;
+        for (int frameID = 0; frameID < numFrames; frameID++) {
+            long nanoTime = frameID * 10000000L;
+            bandwidthEstimator.onReceiveBytes(1, frameID, 0, 1000, nanoTime);
+            bandwidthEstimator.onReceiveBytes(1, frameID, 1000, 1000, nanoTime + 1000000);
+        }
+
+        int oldestFrameID = numFrames - BandwidthEstimator.MAX_FRAME_HISTORY;
+        assertThat(bandwidthEstimator.getMeasuredBW(1, numFrames - 1)).isEqualTo(8000);
+        assertThat(bandwidthEstimator.getMeasuredBW(1, oldestFrameID)).isEqualTo(8000);
+        // Not received yet
+        assertThat(bandwidthEstimator.getMeasuredBW(1, numFrames)).isEqualTo(-1);
+        assertThrows(IllegalArgumentException.class, () -> bandwidthEstimator.getMeasuredBW(1, oldestFrameID - 1));
+        assertThrows(IllegalArgumentException.class, () -> bandwidthEstimator.getMeasuredBW(1, 0));
+    }
+
 }
@@ -0,0 +1,87 @@
+package org.emp.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+public class BandwidthPredictorsTest extends EmpUnitTest {
+  private static final long SECOND_IN_NS = 1000000000L;
+
+  private static BandwidthSampleWindow window(int... bandwidths) {
+    BandwidthSampleWindow samples = new BandwidthSampleWindow(25, 30 * SECOND_IN_NS);
+    for (int i = 0; i < bandwidths.length; i++) {
+      samples.add(i * SECOND_IN_NS / 10, bandwidths[i]);
+    }
+    return samples;
+  }
+
+  @Test
+  public void testWindow_dropsOldestWhenFull() {
+    BandwidthSampleWindow samples = new BandwidthSampleWindow(3, 30 * SECOND_IN_NS);
+    for (int i = 1; i <= 5; i++) {
+      samples.add(i, i * 100);
+    }
+
+    assertThat(samples.size()).isEqualTo(3);
+    assertThat(samples.getBandwidth(0)).isEqualTo(300);
+    assertThat(samples.getBandwidth(2)).isEqualTo(500);
+    assertThat(samples.getNanoTime(0)).isEqualTo(3);
+    assertThrows(IndexOutOfBoundsException.class, () -> samples.getBandwidth(3));
+  }
+
+  @Test
+  public void testWindow_dropsSamplesOlderThanSpan() {
+    BandwidthSampleWindow samples = new BandwidthSampleWindow(25, 10 * SECOND_IN_NS);
+    samples.add(0, 100);
+    samples.add(5 * SECOND_IN_NS, 200);
+    samples.add(12 * SECOND_IN_NS, 300);
+
+    assertThat(samples.size()).isEqualTo(2);
+    assertThat(samples.getBandwidth(0)).isEqualTo(200);
+  }
+
+  @Test
+  public void testConstantBandwidth_predictedByAll() {
+    BandwidthSampleWindow samples = window(5000, 5000, 5000, 5000, 5000, 5000);
+    assertThat(BandwidthPredictors.NAIVE_PREDICTOR.predict(samples)).isEqualTo(5000);
+    assertThat(BandwidthPredictors.EWMA_PREDICTOR.predict(samples)).isEqualTo(5000);
+    assertThat(BandwidthPredictors.HARMONIC_PREDICTOR.predict(samples)).isEqualTo(5000);
+    assertThat(BandwidthPredictors.RLS_PREDICTOR.predict(samples)).isWithin(1).of(5000);
+    assertThat(BandwidthPredictors.HOLT_WINTERS_PREDICTOR.predict(samples)).isEqualTo(5000);
+  }
+
+  @Test
+  public void testSingleSample_predictedByAll() {
+    BandwidthSampleWindow samples = window(3000);
+    assertThat(BandwidthPredictors.NAIVE_PREDICTOR.predict(samples)).isEqualTo(3000);
+    assertThat(BandwidthPredictors.EWMA_PREDICTOR.predict(samples)).isEqualTo(3000);
+    assertThat(BandwidthPredictors.HARMONIC_PREDICTOR.predict(samples)).isEqualTo(3000);
+    assertThat(BandwidthPredictors.RLS_PREDICTOR.predict(samples)).isEqualTo(3000);
+    assertThat(BandwidthPredictors.HOLT_WINTERS_PREDICTOR.predict(samples)).isEqualTo(3000);
+  }
+
+  @Test
+  public void testHarmonicMean() {
+    assertThat(BandwidthPredictors.HARMONIC_PREDICTOR.predict(window(1000, 4000, 4000))).isEqualTo(2000);
+    assertThat(BandwidthPredictors.HARMONIC_PREDICTOR.predict(window(1000, 0))).isEqualTo(0);
+  }
+
+  @Test
+  public void testLinearTrend_followedByTrendPredictors() {
+    BandwidthSampleWindow samples = window(1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000);
+    assertThat(BandwidthPredictors.HOLT_WINTERS_PREDICTOR.predict(samples)).isWithin(100).of(9000);
+    assertThat(BandwidthPredictors.RLS_PREDICTOR.predict(samples)).isWithin(100).of(9000);
+    // Averages lag behind
+    assertThat(BandwidthPredictors.EWMA_PREDICTOR.predict(samples)).isLessThan(8000);
+    assertThat(BandwidthPredictors.HARMONIC_PREDICTOR.predict(samples)).isLessThan(8000);
+  }
+
+  @Test
+  public void testDroppingBandwidth_notPredictedNegative() {
+    BandwidthSampleWindow samples = window(8000, 4000, 1000, 10);
+    assertThat(BandwidthPredictors.HOLT_WINTERS_PREDICTOR.predict(samples)).isAtLeast(0);
+    assertThat(BandwidthPredictors.RLS_PREDICTOR.predict(samples)).isAtLeast(0);
+  }
+}
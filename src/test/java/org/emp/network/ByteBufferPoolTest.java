@@ -0,0 +1,55 @@
+package org.emp.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+public class ByteBufferPoolTest extends EmpUnitTest {
+  private static final int MIN_CAPACITY = 1024;
+  private static final int MAX_CAPACITY = 8 * 1024;
+
+  @Test
+  public void testAcquire_roundsUpToPowerOfTwo() {
+    ByteBufferPool pool = new ByteBufferPool(MIN_CAPACITY, MAX_CAPACITY, 2);
+
+    assertThat(pool.acquire(1).capacity()).isEqualTo(MIN_CAPACITY);
+    assertThat(pool.acquire(MIN_CAPACITY + 1).capacity()).isEqualTo(2 * MIN_CAPACITY);
+    assertThat(pool.acquire(MAX_CAPACITY).capacity()).isEqualTo(MAX_CAPACITY);
+    assertThat(pool.acquire(MIN_CAPACITY).isDirect()).isTrue();
+    assertThrows(IllegalArgumentException.class, () -> pool.acquire(MAX_CAPACITY + 1));
+  }
+
+  @Test
+  public void testRelease_reusesBuffer() {
+    ByteBufferPool pool = new ByteBufferPool(MIN_CAPACITY, MAX_CAPACITY, 1);
+    ByteBuffer byteBuffer = pool.acquire(MIN_CAPACITY);
+    byteBuffer.putInt(1);
+    pool.release(byteBuffer);
+
+    ByteBuffer reused = pool.acquire(MIN_CAPACITY);
+    assertThat(reused).isSameInstanceAs(byteBuffer);
+    assertThat(reused.position()).isEqualTo(0);
+    assertThat(reused.limit()).isEqualTo(MIN_CAPACITY);
+    // The pool is empty again
+    assertThat(pool.acquire(MIN_CAPACITY)).isNotSameInstanceAs(byteBuffer);
+  }
+
+  @Test
+  public void testGrow_keepsData() {
+    ByteBufferPool pool = new ByteBufferPool(MIN_CAPACITY, MAX_CAPACITY, 2);
+    ByteBuffer byteBuffer = pool.acquire(MIN_CAPACITY);
+    for (int i = 0; i < MIN_CAPACITY; i++) {
+      byteBuffer.put((byte) i);
+    }
+
+    ByteBuffer grown = pool.grow(byteBuffer);
+    assertThat(grown.capacity()).isEqualTo(2 * MIN_CAPACITY);
+    assertThat(grown.position()).isEqualTo(MIN_CAPACITY);
+    for (int i = 0; i < MIN_CAPACITY; i++) {
+      assertThat(grown.get(i)).isEqualTo((byte) i);
+    }
+  }
+}
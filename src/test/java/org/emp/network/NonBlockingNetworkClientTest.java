@@ -23,7 +23,8 @@ public class NonBlockingNetworkClientTest extends EmpUnitTest {
     int serverPort = 31904;
     int clientPort = 50000;
     TestVehicleMessageHandler vehicleMessageHandler = new TestVehicleMessageHandler();
-    NonBlockingNetworkServer server = new NonBlockingNetworkServer(serverPort, 1, vehicleMessageHandler);
+    // Waits for one more vehicle than connects, so no "start" signal is mixed into the data
+    NonBlockingNetworkServer server = new NonBlockingNetworkServer(serverPort, 2, vehicleMessageHandler);
     LOGGER.info("Start non-blocking network server ...");
     Future serverFuture = executor.submit(server);
 
@@ -62,6 +63,12 @@ public class NonBlockingNetworkClientTest extends EmpUnitTest {
       e.printStackTrace();
     }
 
+    // Verify data sent by client, while the connection is open
+    assertThat(server.getNumClients()).isEqualTo(1);
+    ByteBuffer serverReceiveByteBuffer = server.getReceiveByteBuffer(0);
+    assertThat(serverReceiveByteBuffer.position()).isEqualTo(sendBytes * numMessages);
+    sendDataGenerator.verify(serverReceiveByteBuffer, sendBytes);
+
     LOGGER.info("Stop non-blocking network client ...");
     client.stopRunning();
     LOGGER.info("Stop non-blocking network server ...");
@@ -84,12 +91,6 @@ public class NonBlockingNetworkClientTest extends EmpUnitTest {
     }
 
     LOGGER.info("Verifying results");
-    // Verify data sent by client
-    assertThat(server.getNumClients()).isEqualTo(1);
-    ByteBuffer serverReceiveByteBuffer = server.getReceiveByteBuffer(0);
-    assertThat(serverReceiveByteBuffer.position()).isEqualTo(sendBytes * numMessages);
-    sendDataGenerator.verify(serverReceiveByteBuffer, sendBytes);
-
     // Verify data received by client
     ByteBuffer clientReceiveBuffer = client.getReceiveByteBuffer();
     assertThat(clientReceiveBuffer.position()).isEqualTo(receiveBytes * numMessages);
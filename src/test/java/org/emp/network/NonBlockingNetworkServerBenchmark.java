@@ -0,0 +1,115 @@
+package org.emp.network;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.emp.data.VehicleMessageHandlerImpl;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the CPU time the edge server burns while no vehicle is sending, and how long the
+ * 'D' (finish) and 'M' (mask) messages take from being queued on the edge to being received by
+ * a vehicle.
+ */
+public class NonBlockingNetworkServerBenchmark extends EmpUnitTest {
+  private static final Logger LOGGER = LogManager.getLogger(NonBlockingNetworkServerBenchmark.class);
+  private static final int PORT = 31907;
+  private static final byte VEHICLE_ID = 1;
+  // Duration to measure the CPU time of the idle server
+  private static final long IDLE_DURATION_MS = 5000;
+  private static final int NUM_MESSAGES = 500;
+  // Gap between two messages, so that the server is idle when a message is queued, as between frames
+  private static final long MESSAGE_INTERVAL_MS = 5;
+
+  @Test
+  public void runIdleCpuAndSendLatency() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    // The vehicle ID is the first byte of the data received from a vehicle
+    NonBlockingNetworkServer server = new NonBlockingNetworkServer(PORT, 1,
+        byteBuffer -> byteBuffer.position() > 0 ? byteBuffer.get(0) : -1);
+    Future serverFuture = executor.submit(server);
+    Thread.sleep(200);
+
+    try (SocketChannel vehicle = SocketChannel.open(new InetSocketAddress("localhost", PORT))) {
+      vehicle.write(ByteBuffer.wrap(new byte[]{VEHICLE_ID}));
+      // The start signal is sent once the vehicle is identified
+      readMessage(vehicle, VehicleMessageHandlerImpl.encodeMessage(new byte[]{}, 0, 'S').length);
+
+      Thread.sleep(500);
+      long cpuStart = getProcessCpuTimeNanos();
+      long start = System.nanoTime();
+      Thread.sleep(IDLE_DURATION_MS);
+      double idleCpuPercent = 100.0 * (getProcessCpuTimeNanos() - cpuStart) / (System.nanoTime() - start);
+
+      byte[] finishMsg = VehicleMessageHandlerImpl.encodeMessage(new byte[]{}, 0, 'D');
+      List<float[]> decision = Collections.nCopies(4, new float[8]);
+      byte[] maskMsg = VehicleMessageHandlerImpl.encodeMessage(
+          VehicleMessageHandlerImpl.floatArrayListToByteArray(decision), 0, 'M');
+      List<Double> finishLatencyMsList = measureSendLatency(server, vehicle, finishMsg);
+      List<Double> maskLatencyMsList = measureSendLatency(server, vehicle, maskMsg);
+
+      LOGGER.info("Avg. process CPU while idle: " + idleCpuPercent + "% of a core over "
+          + IDLE_DURATION_MS + " ms");
+      logLatency("'D'", finishLatencyMsList);
+      logLatency("'M'", maskLatencyMsList);
+    } finally {
+      server.stopRunning();
+      serverFuture.get();
+      executor.shutdown();
+    }
+  }
+
+  private List<Double> measureSendLatency(NonBlockingNetworkServer server, SocketChannel vehicle,
+                                          byte[] message) throws IOException, InterruptedException {
+    List<Double> latencyMsList = new ArrayList<>();
+    for (int i = 0; i < NUM_MESSAGES; i++) {
+      Thread.sleep(MESSAGE_INTERVAL_MS);
+      long start = System.nanoTime();
+      server.putDataToSendByteBufferQueue(VEHICLE_ID, message);
+      byte[] received = readMessage(vehicle, message.length);
+      latencyMsList.add((System.nanoTime() - start) / 1e6);
+      assertThat(received).isEqualTo(message);
+    }
+    return latencyMsList;
+  }
+
+  private static byte[] readMessage(SocketChannel vehicle, int length) throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+    while (byteBuffer.hasRemaining()) {
+      if (vehicle.read(byteBuffer) < 0) {
+        throw new IOException("Connection closed by the server");
+      }
+    }
+    return byteBuffer.array();
+  }
+
+  private static long getProcessCpuTimeNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+        .getProcessCpuTime();
+  }
+
+  private static void logLatency(String messageType, List<Double> latencyMsList) {
+    double[] latencyMs = latencyMsList.stream().mapToDouble(x -> x).toArray();
+    Arrays.sort(latencyMs);
+    LOGGER.info("Avg. latency of " + messageType + " messages: " +
+        Arrays.stream(latencyMs).average() + " ms, stddev: " +
+        new StandardDeviation().evaluate(latencyMs) + " ms, p99: " +
+        latencyMs[(int) Math.ceil(latencyMs.length * 0.99) - 1] + " ms"
+    );
+  }
+}
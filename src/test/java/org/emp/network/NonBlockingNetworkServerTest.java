@@ -1,10 +1,12 @@
 package org.emp.network;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -12,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -25,6 +28,43 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
   private static final Logger LOGGER = LogManager.getLogger(NonBlockingNetworkServerTest.class);
   private static final int NUM_RECEIVED_MESSAGES = 3;
 
+  @Test
+  public void testNonBlockingNetworkServer_closesOnlyMalformedConnection() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    int port = 31906;
+    TestVehicleMessageHandler validHandler = new TestVehicleMessageHandler();
+    // Messages starting with a negative byte are malformed
+    NonBlockingNetworkServer server = new NonBlockingNetworkServer(port, 2, byteBuffer -> {
+      if (byteBuffer.position() > 0 && byteBuffer.get(0) < 0) {
+        throw new IllegalArgumentException("Malformed");
+      }
+      return validHandler.handle(byteBuffer);
+    });
+    Future serverFuture = executor.submit(server);
+    Thread.sleep(200);
+
+    try (Socket malformed = new Socket(InetAddress.getByName("localhost"), port);
+         Socket valid = new Socket(InetAddress.getByName("localhost"), port)) {
+      malformed.setSoTimeout(5000);
+      malformed.getOutputStream().write(new byte[]{-1, 0, 0, 0});
+      // The malformed connection is closed by the server
+      assertThat(malformed.getInputStream().read()).isEqualTo(-1);
+
+      // The other connection is still served
+      valid.getOutputStream().write(new byte[]{1, 2, 3, 4});
+      for (int i = 0; i < 500 && validHandler.getMaxPosition() < 4; i++) {
+        Thread.sleep(10);
+      }
+      assertThat(validHandler.getMaxPosition()).isEqualTo(4);
+      // Only the open connection is counted
+      assertThat(server.getNumClients()).isEqualTo(1);
+    } finally {
+      server.stopRunning();
+      serverFuture.get();
+      executor.shutdown();
+    }
+  }
+
   private byte[] prepareReceiveData() {
     int size = 512;
     byte[] expectedReceiveData = new byte[size];
@@ -33,18 +73,21 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
   }
 
   @Test
-  public void testNonBlockingNetworkServer() throws UnknownHostException {
+  public void testNonBlockingNetworkServer() throws Exception {
     int numThreads = 6;
     ExecutorService executor = Executors.newFixedThreadPool(numThreads);
     int port = 31904;
     TestVehicleMessageHandler handler = new TestVehicleMessageHandler();
-    NonBlockingNetworkServer server = new NonBlockingNetworkServer(port, 2, handler);
     // Number of clients to emulate
     int numClients = numThreads - 1;
+    // Waits for one more vehicle than connects, so no "start" signal is mixed into the data
+    NonBlockingNetworkServer server = new NonBlockingNetworkServer(port, numClients + 1, handler);
     // Number of bytes to send from each client
     Integer[] numBytes = IntStream.range(0, numClients).boxed()
         .map(i -> (i + 1) * 512000).toArray(Integer[]::new);
     byte[] expectedReceiveData = prepareReceiveData();
+    // The clients keep their connections open until the server side is verified
+    CountDownLatch closeLatch = new CountDownLatch(1);
 
     LOGGER.info("Start non-blocking network server ...");
     Future serverFuture = executor.submit(server);
@@ -52,7 +95,7 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
     List<Future> clientFutures = new ArrayList<>();
     for (int i = 0; i < numClients; i++) {
       clientFutures.add(executor.submit(
-          new TestClientRunnable(i, port, numBytes[i], 5, prepareReceiveData())));
+          new TestClientRunnable(i, port, numBytes[i], 5, expectedReceiveData, closeLatch)));
       // Create wait time to ensure the server accepts the clients in the original order
       // for verification
       try {
@@ -77,37 +120,103 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
       }
     }
 
-    for (Future future : clientFutures) {
-      while (!future.isDone()) {
-        try {
-          Thread.sleep(1);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-      }
-    }
-
-    LOGGER.info("Stop non-blocking network server ...");
-    server.stopRunning();
-    while (!serverFuture.isDone()) {
-      try {
-        Thread.sleep(1);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+    // Wait until the server reads all data sent by the clients
+    for (int i = 0; i < numClients; i++) {
+      for (int j = 0; j < 500 && getNumBytesRead(server, i) < numBytes[i]; j++) {
+        Thread.sleep(10);
       }
     }
 
     LOGGER.info("Verifying results");
     assertThat(server.getNumClients()).isEqualTo(numClients);
+    List<NonBlockingNetworkServer.ConnectionStats> connectionStats = server.getConnectionStats();
     for (int i = 0; i < numClients; i++) {
       TestDataGenerator testDataGenerator = new TestDataGenerator(i);
       ByteBuffer byteBuffer = server.getReceiveByteBuffer(i);
       // Verify data size
       assertThat(byteBuffer.position()).isEqualTo(numBytes[i]);
+      assertThat(connectionStats.get(i).connectionId).isEqualTo(i);
+      assertThat(connectionStats.get(i).numBytesRead).isEqualTo((long) numBytes[i]);
       // Verify content
       testDataGenerator.verify(byteBuffer);
     }
     assertThat(handler.getMaxPosition()).isEqualTo(numBytes[numClients-1]);
+
+    closeLatch.countDown();
+    for (Future future : clientFutures) {
+      future.get();
+    }
+    // The closed connections are not counted any more
+    for (int j = 0; j < 500 && server.getNumClients() > 0; j++) {
+      Thread.sleep(10);
+    }
+    assertThat(server.getNumClients()).isEqualTo(0);
+
+    LOGGER.info("Stop non-blocking network server ...");
+    server.stopRunning();
+    serverFuture.get();
+  }
+
+  private static long getNumBytesRead(NonBlockingNetworkServer server, int connectionId) {
+    for (NonBlockingNetworkServer.ConnectionStats stats : server.getConnectionStats()) {
+      if (stats.connectionId == connectionId) {
+        return stats.numBytesRead;
+      }
+    }
+    return 0;
+  }
+
+  @Test
+  public void testNonBlockingNetworkServer_refusesConnectionsBeyondMax() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    int port = 31905;
+    int maxNumConnections = 2;
+    NonBlockingNetworkServer server = new NonBlockingNetworkServer(
+        port, 1, maxNumConnections, 1, TestVehicleMessageHandler::new);
+    Future serverFuture = executor.submit(server);
+    Thread.sleep(200);
+
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      for (int i = 0; i <= maxNumConnections; i++) {
+        sockets.add(connect(port));
+      }
+      // The connection beyond the max is closed by the server
+      assertThat(sockets.get(maxNumConnections).getInputStream().read()).isEqualTo(-1);
+      assertThat(server.getNumClients()).isEqualTo(maxNumConnections);
+
+      // Closing a connection frees its slot for a new one
+      sockets.get(0).close();
+      for (int i = 0; i < 500 && server.getNumClients() >= maxNumConnections; i++) {
+        Thread.sleep(10);
+      }
+      sockets.add(connect(port));
+      for (int i = 0; i < 500 && server.getNumClients() < maxNumConnections; i++) {
+        Thread.sleep(10);
+      }
+      assertThat(server.getNumClients()).isEqualTo(maxNumConnections);
+      // The new connection gets a new ID, as the refused one got none
+      assertThat(server.getConnectionStats().get(1).connectionId).isEqualTo(maxNumConnections);
+    } finally {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      server.stopRunning();
+      serverFuture.get();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testNonBlockingNetworkServer_maxConnectionsBelowClients() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new NonBlockingNetworkServer(0, 3, 2, 1, TestVehicleMessageHandler::new));
+  }
+
+  private static Socket connect(int port) throws IOException {
+    Socket socket = new Socket(InetAddress.getByName("localhost"), port);
+    socket.setSoTimeout(5000);
+    return socket;
   }
 
   /**
@@ -120,14 +229,17 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
     byte[] data;
     int batches;
     byte[] expectedReceiveData;
+    // Released once the client may close its connection
+    CountDownLatch closeLatch;
 
-    public TestClientRunnable(int id, int port, int bytes, int batches, byte[] expectedReceiveData)
-        throws UnknownHostException {
+    public TestClientRunnable(int id, int port, int bytes, int batches, byte[] expectedReceiveData,
+                              CountDownLatch closeLatch) throws UnknownHostException {
       this.id = id;
       serverAddress = new InetSocketAddress(InetAddress.getByName("localhost"), port);
       data = new TestDataGenerator(id).generate(bytes);
       this.batches = batches;
       this.expectedReceiveData = expectedReceiveData;
+      this.closeLatch = closeLatch;
     }
 
     @Override
@@ -166,7 +278,7 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
         // Receive data
         ByteBuffer readBuffer = ByteBuffer.allocate(10240);
         int receiveBytes = 0;
-        while (receiveBytes < expectedReceiveData.length) {
+        while (receiveBytes < expectedReceiveData.length * NUM_RECEIVED_MESSAGES) {
           int bytes = socketChannel.read(readBuffer);
           if (bytes >= 0) {
             receiveBytes += bytes;
@@ -182,8 +294,11 @@ public class NonBlockingNetworkServerTest extends EmpUnitTest {
               expectedReceiveData[i % expectedReceiveData.length]);
         }
         LOGGER.debug("Vehicle " + id + " received data verified.");
+        closeLatch.await();
       } catch (IOException e) {
         e.printStackTrace();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
 
       if (socketChannel != null && socketChannel.isOpen()) {
@@ -0,0 +1,80 @@
+package org.emp.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SessionRecorderTest extends EmpUnitTest {
+
+  @Test
+  public void testRecord_readBack(@TempDir Path tempDir) throws IOException {
+    Path path = tempDir.resolve("edge.session");
+    byte[] message1 = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+    byte[] message2 = new byte[]{21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33};
+    // Two messages in one buffer, after 5 bytes of something else
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+    buffer.position(5);
+    buffer.put(message1);
+    buffer.put(message2);
+    int position = buffer.position();
+
+    try (SessionRecorder recorder = new SessionRecorder(path)) {
+      recorder.record(0, 100, 200, buffer, 5, message1.length);
+      recorder.record(1, 300, 300, buffer, 5 + message1.length, message2.length);
+      assertThat(recorder.getNumRecorded()).isEqualTo(2);
+    }
+    assertThat(buffer.position()).isEqualTo(position);
+
+    try (SessionReader reader = new SessionReader(path)) {
+      assertThat(reader.next()).isTrue();
+      assertThat(reader.getConnectionIndex()).isEqualTo(0);
+      assertThat(reader.getFirstByteNanos()).isEqualTo(100);
+      assertThat(reader.getArrivalNanos()).isEqualTo(200);
+      assertThat(reader.getMessage()).isEqualTo(ByteBuffer.wrap(message1));
+
+      assertThat(reader.next()).isTrue();
+      assertThat(reader.getConnectionIndex()).isEqualTo(1);
+      assertThat(reader.getFirstByteNanos()).isEqualTo(300);
+      assertThat(reader.getMessage()).isEqualTo(ByteBuffer.wrap(message2));
+
+      assertThat(reader.next()).isFalse();
+    }
+  }
+
+  @Test
+  public void testRead_partialRecordIgnored(@TempDir Path tempDir) throws IOException {
+    Path path = tempDir.resolve("edge.session");
+    byte[] message = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+    try (SessionRecorder recorder = new SessionRecorder(path)) {
+      recorder.record(0, 100, 200, ByteBuffer.wrap(message), 0, message.length);
+      recorder.record(0, 300, 400, ByteBuffer.wrap(message), 0, message.length);
+    }
+    // The recorder is killed in the middle of the second message
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 2);
+    }
+
+    try (SessionReader reader = new SessionReader(path)) {
+      assertThat(reader.next()).isTrue();
+      assertThat(reader.getArrivalNanos()).isEqualTo(200);
+      assertThat(reader.next()).isFalse();
+    }
+  }
+
+  @Test
+  public void testRead_notSessionFile(@TempDir Path tempDir) throws IOException {
+    Path path = tempDir.resolve("not.session");
+    Files.write(path, new byte[64]);
+    assertThrows(IOException.class, () -> new SessionReader(path));
+  }
+}
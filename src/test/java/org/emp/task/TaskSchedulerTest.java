@@ -1,10 +1,20 @@
 package org.emp.task;
 
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import org.emp.data.EmpReapSensorDataHandler;
 import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
+import org.emp.network.BandwidthEstimator;
+import org.emp.task.Task.TaskType;
 import org.emp.utils.EmpUnitTest;
 import org.emp.utils.TestUtils;
 import org.junit.jupiter.api.Test;
@@ -26,4 +36,150 @@ public class TaskSchedulerTest extends EmpUnitTest {
       Thread.sleep(10);
     }
   }
+
+  @Test
+  public void testSubmit_fullQueueWaitsForRoomInsteadOfDroppingTask() throws Exception {
+    TaskScheduler taskScheduler = new TaskScheduler(
+        new EnumMap<>(TaskType.class), 1, TestUtils.getNoopSensorDataHandler());
+    Future future = executor.submit(taskScheduler);
+    CountDownLatch releaseLatch = new CountDownLatch(1);
+    List<Thread> taskThreads = new CopyOnWriteArrayList<>();
+
+    // The first task blocks the only thread of the stage, the second fills its queue, and the
+    // submitter waits for room for the third
+    Thread submitter = new Thread(() -> {
+      for (int i = 0; i < 3; i++) {
+        taskScheduler.submit(new BlockingTask(releaseLatch, taskThreads));
+      }
+    });
+    submitter.start();
+    submitter.join(200);
+    assertThat(submitter.isAlive()).isTrue();
+
+    releaseLatch.countDown();
+    submitter.join();
+    taskScheduler.stopRunning();
+    future.get();
+    assertThat(taskThreads).hasSize(3);
+    assertThat(taskThreads).doesNotContain(submitter);
+  }
+
+  @Test
+  public void testSubmit_failedObjectDetectionReleasesFrame() throws Exception {
+    SensorDataHandler sensorDataHandler = new EmpReapSensorDataHandler(mock(BandwidthEstimator.class), 0, null);
+    TaskScheduler taskScheduler = new TaskScheduler(new EnumMap<>(TaskType.class), 16, sensorDataHandler);
+    Future future = executor.submit(taskScheduler);
+    assertThat(sensorDataHandler.getMergeTarget(7)).isNotNull();
+
+    taskScheduler.submit(new ObjectDetectionTask(7) {
+      @Override
+      public TaskResult call() {
+        throw new IllegalStateException("Detection failed");
+      }
+    });
+    taskScheduler.stopRunning();
+    future.get();
+
+    assertThat(sensorDataHandler.getMergeTarget(7)).isNull();
+  }
+
+  @Test
+  public void testBackpressure_pausesAndResumes() throws Exception {
+    TaskScheduler taskScheduler = new TaskScheduler(
+        new EnumMap<>(TaskType.class), 16, TestUtils.getNoopSensorDataHandler());
+    List<String> events = new CopyOnWriteArrayList<>();
+    taskScheduler.setBackpressureListener(2, 0, new RecordingListener(events));
+    Future future = executor.submit(taskScheduler);
+    CountDownLatch releaseLatch = new CountDownLatch(1);
+    List<Thread> taskThreads = new CopyOnWriteArrayList<>();
+
+    // One task runs and two wait in the queue
+    for (int i = 0; i < 3; i++) {
+      taskScheduler.submit(new BlockingTask(releaseLatch, taskThreads));
+    }
+    assertThat(taskScheduler.isOverloaded()).isTrue();
+    assertThat(events).containsExactly("high");
+
+    releaseLatch.countDown();
+    taskScheduler.stopRunning();
+    future.get();
+    assertThat(taskScheduler.isOverloaded()).isFalse();
+    assertThat(events).containsExactly("high", "low").inOrder();
+  }
+
+  @Test
+  public void testBackpressure_resumesAfterConcurrentSubmits() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      TaskScheduler taskScheduler = new TaskScheduler(
+          new EnumMap<>(TaskType.class), 1024, TestUtils.getNoopSensorDataHandler());
+      List<String> events = new CopyOnWriteArrayList<>();
+      taskScheduler.setBackpressureListener(2, 1, new RecordingListener(events));
+      Future future = executor.submit(taskScheduler);
+
+      Thread[] submitters = new Thread[4];
+      for (int i = 0; i < submitters.length; i++) {
+        submitters[i] = new Thread(() -> {
+          for (int j = 0; j < 500; j++) {
+            taskScheduler.submit(new ObjectDetectionTask(0));
+          }
+        });
+        submitters[i].start();
+      }
+      for (Thread submitter : submitters) {
+        submitter.join();
+      }
+      taskScheduler.stopRunning();
+      future.get();
+
+      // Once all tasks finish, the sources are never left paused
+      assertThat(taskScheduler.isOverloaded()).isFalse();
+      for (int i = 0; i < events.size(); i++) {
+        assertThat(events.get(i)).isEqualTo((i % 2 == 0) ? "high" : "low");
+      }
+      assertThat(events.size() % 2).isEqualTo(0);
+    }
+  }
+
+  /**
+   * A backpressure listener that records the watermarks passed
+   */
+  static class RecordingListener implements BackpressureListener {
+    private final List<String> events;
+
+    RecordingListener(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void onHighWatermark() {
+      events.add("high");
+    }
+
+    @Override
+    public void onLowWatermark() {
+      events.add("low");
+    }
+  }
+
+  /**
+   * An object detection task that blocks until a latch is released
+   */
+  static class BlockingTask extends Task {
+    private final CountDownLatch releaseLatch;
+    // Threads running the tasks
+    private final List<Thread> taskThreads;
+
+    BlockingTask(CountDownLatch releaseLatch, List<Thread> taskThreads) {
+      super(TaskType.OBJECT_DETECTION);
+      this.releaseLatch = releaseLatch;
+      this.taskThreads = taskThreads;
+    }
+
+    @Override
+    public TaskResult call() throws Exception {
+      taskThreads.add(Thread.currentThread());
+      releaseLatch.await();
+      return new ObjectDetectionTask(0).call();
+    }
+  }
 }
@@ -1,8 +1,16 @@
 package org.emp.utils;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -26,4 +34,159 @@ public class DracoHelperTest extends EmpUnitTest {
 
     assertThat(decodedData).isEqualTo(expectedPoints);
   }
+
+  @Test
+  public void testEncodeAndDecodeDirectBuffers() throws IOException {
+    String originalDataFileName = "src/test/resources/point_cloud_sample_data_original.bin";
+    String decodedDataFileName = "src/test/resources/point_cloud_sample_data_after_decoding.bin";
+    float[] points = TestUtils.readPointCloudFromFile(originalDataFileName);
+    float[] expectedPoints = TestUtils.readPointCloudFromFile(decodedDataFileName);
+
+    DracoHelper helper = new DracoHelper();
+    FloatBuffer data = ByteBuffer.allocateDirect(points.length * 4)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    data.put(points).flip();
+    ByteBuffer encodedData = ByteBuffer.allocateDirect(points.length * 4);
+
+    // Encode point cloud data
+    int numBytes = helper.encode(data, 10, 14, encodedData);
+    assertThat(encodedData.position()).isEqualTo(numBytes);
+    assertThat(numBytes).isEqualTo(helper.encode(points, 10, 14).length);
+
+    // Decode point cloud data, after an offset in the result buffer
+    int offset = 8;
+    encodedData.flip();
+    FloatBuffer decodedData = ByteBuffer.allocateDirect((offset + expectedPoints.length) * 4)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    decodedData.position(offset);
+    int numFloats = helper.decode(encodedData, decodedData);
+
+    assertThat(numFloats).isEqualTo(expectedPoints.length);
+    float[] decodedPoints = new float[numFloats];
+    decodedData.position(offset);
+    decodedData.get(decodedPoints);
+    assertThat(decodedPoints).isEqualTo(expectedPoints);
+  }
+
+  @Test
+  public void testDecodeIntoReservedRegion() throws IOException {
+    float[] points = TestUtils.readPointCloudFromFile(
+        "src/test/resources/point_cloud_sample_data_original.bin");
+    float[] expectedPoints = TestUtils.readPointCloudFromFile(
+        "src/test/resources/point_cloud_sample_data_after_decoding.bin");
+    DracoHelper helper = new DracoHelper();
+    byte[] encodedBytes = helper.encode(points, 10, 14);
+    ByteBuffer encodedData = ByteBuffer.allocateDirect(encodedBytes.length);
+    encodedData.put(encodedBytes).flip();
+
+    // Reserve the region after an offset, as in a merged point cloud
+    int offset = 8;
+    FloatBuffer decodedData = ByteBuffer.allocateDirect((offset + expectedPoints.length) * 4)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    int[] reservedSize = new int[1];
+    int numFloats = helper.decode(encodedData, decodedData, size -> {
+      reservedSize[0] = size;
+      return offset;
+    });
+    assertThat(numFloats).isEqualTo(expectedPoints.length);
+    assertThat(reservedSize[0]).isEqualTo(numFloats);
+    assertThat(encodedData.hasRemaining()).isFalse();
+    assertThat(decodedData.position()).isEqualTo(offset + numFloats);
+    float[] decodedPoints = new float[numFloats];
+    decodedData.position(offset);
+    decodedData.get(decodedPoints);
+    assertThat(decodedPoints).isEqualTo(expectedPoints);
+  }
+
+  @Test
+  public void testDecodeBatchIntoReservedRegion() throws IOException {
+    float[] points = TestUtils.readPointCloudFromFile(
+        "src/test/resources/point_cloud_sample_data_original.bin");
+    DracoHelper helper = new DracoHelper();
+    // Split the point cloud into two chunks, as a vehicle uploads them
+    int splitIndex = points.length / 8 * 4;
+    float[][] chunks = {Arrays.copyOfRange(points, 0, splitIndex), Arrays.copyOfRange(points, splitIndex, points.length)};
+    ByteBuffer[] encodedData = new ByteBuffer[chunks.length];
+    float[][] expectedChunks = new float[chunks.length][];
+    int totalNumFloats = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      byte[] encodedBytes = helper.encode(chunks[i], 10, 14);
+      encodedData[i] = ByteBuffer.allocateDirect(encodedBytes.length);
+      encodedData[i].put(encodedBytes).flip();
+      expectedChunks[i] = helper.decode(encodedBytes);
+      totalNumFloats += expectedChunks[i].length;
+    }
+
+    int offset = 8;
+    FloatBuffer decodedData = ByteBuffer.allocateDirect((offset + totalNumFloats) * 4)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    List<Integer> reservedSizes = new ArrayList<>();
+    int[] numFloats = helper.decode(encodedData, decodedData, size -> {
+      reservedSizes.add(size);
+      return offset;
+    });
+    // A single region is reserved for all the chunks
+    assertThat(reservedSizes).containsExactly(totalNumFloats);
+    assertThat(decodedData.position()).isEqualTo(offset + totalNumFloats);
+    decodedData.position(offset);
+    for (int i = 0; i < chunks.length; i++) {
+      assertThat(numFloats[i]).isEqualTo(expectedChunks[i].length);
+      assertThat(encodedData[i].hasRemaining()).isFalse();
+      float[] decodedPoints = new float[numFloats[i]];
+      decodedData.get(decodedPoints);
+      assertThat(decodedPoints).isEqualTo(expectedChunks[i]);
+    }
+  }
+
+  @Test
+  public void testDecodeIntoReservedRegion_cannotReserve() throws IOException {
+    float[] points = TestUtils.readPointCloudFromFile(
+        "src/test/resources/point_cloud_sample_data_original.bin");
+    DracoHelper helper = new DracoHelper();
+    byte[] encodedBytes = helper.encode(points, 10, 14);
+    ByteBuffer encodedData = ByteBuffer.allocateDirect(encodedBytes.length);
+    encodedData.put(encodedBytes).flip();
+    FloatBuffer decodedData = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    assertThrows(BufferOverflowException.class, () -> helper.decode(encodedData, decodedData, size -> -1));
+    // A region beyond the limit of the result is not written
+    encodedData.rewind();
+    assertThrows(IllegalStateException.class, () -> helper.decode(encodedData, decodedData, size -> 0));
+    assertThat(decodedData.position()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDecodeInvalidData() {
+    DracoHelper helper = new DracoHelper();
+    byte[] invalidBytes = "not a draco point cloud".getBytes();
+    assertThrows(IllegalArgumentException.class, () -> helper.decode(invalidBytes));
+
+    ByteBuffer encodedData = ByteBuffer.allocateDirect(invalidBytes.length);
+    encodedData.put(invalidBytes).flip();
+    FloatBuffer decodedData = ByteBuffer.allocateDirect(1024)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    assertThrows(IllegalArgumentException.class, () -> helper.decode(encodedData, decodedData));
+    encodedData.rewind();
+    int[] numReservations = new int[1];
+    assertThrows(IllegalArgumentException.class, () -> helper.decode(encodedData, decodedData, size -> {
+      numReservations[0]++;
+      return 0;
+    }));
+    assertThat(numReservations[0]).isEqualTo(0);
+  }
+
+  @Test
+  public void testDecodeDirectBuffer_resultTooSmall() throws IOException {
+    float[] points = TestUtils.readPointCloudFromFile(
+        "src/test/resources/point_cloud_sample_data_original.bin");
+    DracoHelper helper = new DracoHelper();
+    byte[] encodedBytes = helper.encode(points, 10, 14);
+    ByteBuffer encodedData = ByteBuffer.allocateDirect(encodedBytes.length);
+    encodedData.put(encodedBytes).flip();
+    FloatBuffer decodedData = ByteBuffer.allocateDirect(16)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    assertThrows(BufferOverflowException.class, () -> helper.decode(encodedData, decodedData));
+    assertThat(decodedData.position()).isEqualTo(0);
+  }
 }
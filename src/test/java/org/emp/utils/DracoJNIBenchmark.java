@@ -3,17 +3,31 @@ package org.emp.utils;
 import static com.google.common.truth.Truth.assertThat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.emp.data.MergeTarget;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 public class DracoJNIBenchmark extends EmpUnitTest {
   private static final Logger LOGGER = LogManager.getLogger(DracoJNIBenchmark.class);
+  // Number of chunks each point cloud is split into, as the vehicles upload them
+  private static final int NUM_CHUNKS = 4;
+  private final DracoCodecPool codecPool = new DracoCodecPool();
+
+  @AfterEach
+  public void tearDown() {
+    codecPool.close();
+  }
 
   @Test
   public void runEncodeAndDecodeWithValidation() throws IOException {
@@ -33,6 +47,118 @@ public class DracoJNIBenchmark extends EmpUnitTest {
     runEncodeAndDecodeTestGTA(10, 12);
   }
 
+  @Test
+  public void runChunkDecodeWithAndWithoutContextReuse() throws IOException {
+    String pathPrefix = "src/test/resources/benchmark_data/2011_09_26/2011_09_26_drive_";
+    List<String> originalDataFilenames = constructBenchmarkDataPaths(pathPrefix, 0, 108,
+        "0001_sync/velodyne_points/data/");
+
+    List<Double> newHelperTimeMsList = new ArrayList<>();
+    List<Double> pooledHelperTimeMsList = new ArrayList<>();
+    List<Double> copiedTimeMsList = new ArrayList<>();
+    List<Double> mergedTimeMsList = new ArrayList<>();
+    List<Double> batchMergedTimeMsList = new ArrayList<>();
+
+    for (String filename : originalDataFilenames) {
+      float[] points = TestUtils.readPointCloudFromFile(filename);
+      DracoHelper helper = codecPool.get();
+
+      // Encode the point cloud in chunks
+      byte[][] encodedChunks = new byte[NUM_CHUNKS][];
+      int chunkSize = (points.length / 4 + NUM_CHUNKS - 1) / NUM_CHUNKS * 4;
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        int from = Math.min(i * chunkSize, points.length);
+        int to = Math.min(from + chunkSize, points.length);
+        encodedChunks[i] = helper.encode(Arrays.copyOfRange(points, from, to), 10, 14);
+      }
+
+      // Decode each chunk with a new helper, as one decoding task per chunk used to do
+      float[][] expectedChunks = new float[NUM_CHUNKS][];
+      long start = System.nanoTime();
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        try (DracoHelper newHelper = new DracoHelper()) {
+          expectedChunks[i] = newHelper.decode(encodedChunks[i]);
+        }
+      }
+      newHelperTimeMsList.add((System.nanoTime() - start) / 1e6);
+
+      // Decode each chunk with the helper of this thread
+      start = System.nanoTime();
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        helper.decode(encodedChunks[i]);
+      }
+      pooledHelperTimeMsList.add((System.nanoTime() - start) / 1e6);
+
+      // Decode each chunk into an array and copy it into a merged point cloud, as the decoding and
+      // merging tasks used to do
+      FloatBuffer merged = ByteBuffer.allocateDirect(points.length * 4)
+          .order(ByteOrder.nativeOrder()).asFloatBuffer();
+      MergeTarget mergeTarget = new MergeTarget(merged);
+      start = System.nanoTime();
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        float[] decodedChunk = helper.decode(encodedChunks[i]);
+        FloatBuffer region = merged.duplicate();
+        region.position(mergeTarget.reserve(decodedChunk.length));
+        region.put(decodedChunk);
+      }
+      copiedTimeMsList.add((System.nanoTime() - start) / 1e6);
+      assertMergedChunks(merged, mergeTarget.getSize(), expectedChunks);
+
+      // Decode each chunk straight into a merged point cloud in one native call, as the decoding
+      // tasks do
+      ByteBuffer[] encoded = new ByteBuffer[NUM_CHUNKS];
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        encoded[i] = ByteBuffer.allocateDirect(encodedChunks[i].length);
+        encoded[i].put(encodedChunks[i]).flip();
+      }
+      mergeTarget = new MergeTarget(merged);
+      start = System.nanoTime();
+      for (int i = 0; i < NUM_CHUNKS; i++) {
+        helper.decode(encoded[i], merged.duplicate(), mergeTarget::reserve);
+      }
+      mergedTimeMsList.add((System.nanoTime() - start) / 1e6);
+      assertMergedChunks(merged, mergeTarget.getSize(), expectedChunks);
+
+      // Decode all chunks straight into a merged point cloud in a single native call
+      for (ByteBuffer chunk : encoded) {
+        chunk.rewind();
+      }
+      mergeTarget = new MergeTarget(merged);
+      start = System.nanoTime();
+      helper.decode(encoded, merged.duplicate(), mergeTarget::reserve);
+      batchMergedTimeMsList.add((System.nanoTime() - start) / 1e6);
+      assertMergedChunks(merged, mergeTarget.getSize(), expectedChunks);
+    }
+
+    LOGGER.info("Number of point cloud samples: " + originalDataFilenames.size()
+        + ", chunks per sample: " + NUM_CHUNKS);
+    logDecodingTime("with a new helper per chunk", NUM_CHUNKS, newHelperTimeMsList);
+    logDecodingTime("with a pooled helper", NUM_CHUNKS, pooledHelperTimeMsList);
+    logDecodingTime("into arrays copied to a merged point cloud", NUM_CHUNKS, copiedTimeMsList);
+    logDecodingTime("into a merged point cloud per chunk", NUM_CHUNKS, mergedTimeMsList);
+    logDecodingTime("into a merged point cloud in a batch", 1, batchMergedTimeMsList);
+  }
+
+  private static void assertMergedChunks(FloatBuffer merged, int size, float[][] expectedChunks) {
+    FloatBuffer mergedPoints = merged.duplicate();
+    mergedPoints.limit(size);
+    mergedPoints.position(0);
+    for (float[] expectedChunk : expectedChunks) {
+      float[] decodedChunk = new float[expectedChunk.length];
+      mergedPoints.get(decodedChunk);
+      assertThat(decodedChunk).isEqualTo(expectedChunk);
+    }
+    assertThat(mergedPoints.hasRemaining()).isFalse();
+  }
+
+  private static void logDecodingTime(String description, int numNativeCalls, List<Double> timeMsList) {
+    LOGGER.info("Avg. decoding time " + description + " (" + numNativeCalls + " native calls per sample): " +
+        timeMsList.stream().mapToDouble(x -> x).average() + " ms, stddev: " +
+        new StandardDeviation().evaluate(timeMsList.stream().mapToDouble(x -> x).toArray())
+        + " ms"
+    );
+  }
+
   private List<String> constructBenchmarkDataPaths(
       String pathPrefix, int startIndexInclusive, int endIndexExclusive, String customPath) {
     return IntStream.range(startIndexInclusive, endIndexExclusive).mapToObj(
@@ -95,7 +221,7 @@ public class DracoJNIBenchmark extends EmpUnitTest {
 
       float[] points = TestUtils.readPointCloudFromFile(originalDataFilenames.get(i));
 
-      DracoHelper helper = new DracoHelper();
+      DracoHelper helper = codecPool.get();
 
       // Encode point cloud data
       Long start = System.currentTimeMillis();
@@ -193,7 +319,7 @@ public class DracoJNIBenchmark extends EmpUnitTest {
 
       float[] points = TestUtils.readPointCloudFromFile(originalDataFilenames.get(i));
 
-      DracoHelper helper = new DracoHelper();
+      DracoHelper helper = codecPool.get();
 
       // Encode point cloud data
       Long start = System.currentTimeMillis();
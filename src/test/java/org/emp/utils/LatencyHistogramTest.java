@@ -0,0 +1,78 @@
+package org.emp.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest extends EmpUnitTest {
+
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertThat(histogram.getTotalCount()).isEqualTo(0);
+    assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+  }
+
+  @Test
+  public void testPercentilesWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 1 us, 2 us, ..., 10 ms
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value * 1000);
+    }
+
+    assertThat(histogram.getTotalCount()).isEqualTo(10000);
+    assertThat(histogram.getMaxValue()).isEqualTo(10000000);
+    assertThat((double) histogram.getValueAtPercentile(50)).isWithin(5000000 * 0.01).of(5000000);
+    assertThat((double) histogram.getValueAtPercentile(99)).isWithin(9900000 * 0.01).of(9900000);
+    assertThat((double) histogram.getValueAtPercentile(99.9)).isWithin(9990000 * 0.01).of(9990000);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10000000);
+  }
+
+  @Test
+  public void testSmallValuesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(3);
+    histogram.record(100);
+
+    assertThat(histogram.getValueAtPercentile(0)).isEqualTo(0);
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(3);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(100);
+  }
+
+  @Test
+  public void testLargeValuesClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    assertThat(histogram.getMaxValue()).isEqualTo(LatencyHistogram.MAX_TRACKABLE_VALUE);
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(LatencyHistogram.MAX_TRACKABLE_VALUE);
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    int numThreads = 4;
+    int numValues = 10000;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      threads.add(new Thread(() -> {
+        for (int value = 1; value <= numValues; value++) {
+          histogram.record(value);
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(histogram.getTotalCount()).isEqualTo(numThreads * numValues);
+    assertThat(histogram.getMaxValue()).isEqualTo(numValues);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(numValues);
+  }
+}
@@ -0,0 +1,55 @@
+package org.emp.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class LongLongHashMapTest extends EmpUnitTest {
+
+  @Test
+  public void testPutGetRemove() {
+    LongLongHashMap map = new LongLongHashMap();
+    assertThat(map.get(1, -1)).isEqualTo(-1);
+
+    map.put(1, 10);
+    map.put(Long.MIN_VALUE, 20);
+    map.put(1, 11);
+    assertThat(map.size()).isEqualTo(2);
+    assertThat(map.get(1, -1)).isEqualTo(11);
+    assertThat(map.get(Long.MIN_VALUE, -1)).isEqualTo(20);
+
+    assertThat(map.remove(1)).isTrue();
+    assertThat(map.remove(1)).isFalse();
+    assertThat(map.containsKey(1)).isFalse();
+    assertThat(map.size()).isEqualTo(1);
+
+    map.clear();
+    assertThat(map.isEmpty()).isTrue();
+    assertThat(map.containsKey(Long.MIN_VALUE)).isFalse();
+  }
+
+  @Test
+  public void testMatchesHashMapUnderRandomOperations() {
+    LongLongHashMap map = new LongLongHashMap();
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 200000; i++) {
+      // A small key range, so that keys are often updated and removed, and probe sequences collide
+      long key = random.nextInt(2048) - 1024;
+      if (random.nextInt(3) == 0) {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key) != null);
+      } else {
+        map.put(key, i);
+        expected.put(key, (long) i);
+      }
+    }
+
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (long key = -1024; key < 1024; key++) {
+      assertThat(map.get(key, -1)).isEqualTo(expected.getOrDefault(key, -1L));
+    }
+  }
+}
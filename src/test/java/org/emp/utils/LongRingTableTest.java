@@ -0,0 +1,40 @@
+package org.emp.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class LongRingTableTest extends EmpUnitTest {
+
+  @Test
+  public void testKeepsLatestSequenceNumbers() {
+    LongRingTable table = new LongRingTable(4);
+    for (int seq = 0; seq < 10; seq++) {
+      table.put(seq, seq * 100);
+    }
+
+    for (int seq = 0; seq < 6; seq++) {
+      assertThat(table.contains(seq)).isFalse();
+      assertThat(table.get(seq, -1)).isEqualTo(-1);
+    }
+    for (int seq = 6; seq < 10; seq++) {
+      assertThat(table.get(seq, -1)).isEqualTo(seq * 100);
+    }
+    // Not put yet, although its slot is taken
+    assertThat(table.contains(10)).isFalse();
+  }
+
+  @Test
+  public void testNegativeSequenceNumbers() {
+    LongRingTable table = new LongRingTable(4);
+    table.put(-1, 1);
+    assertThat(table.get(-1, 0)).isEqualTo(1);
+    assertThat(table.contains(3)).isFalse();
+  }
+
+  @Test
+  public void testCapacityNotPowerOfTwo() {
+    assertThrows(IllegalArgumentException.class, () -> new LongRingTable(3));
+  }
+}
@@ -5,8 +5,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.emp.data.MergeTarget;
 import org.emp.data.SensorDataChunk;
 import org.emp.data.SensorDataHandler;
 import org.emp.data.VehicleLocation;
@@ -107,8 +109,23 @@ public final class TestUtils {
       }
 
       @Override
-      public void pushUnmergedData(int vehicleId, int frameId, int chunkId) {
+      public boolean hasVehicleLocation(int vehicleId, int frameId) {
+        return false;
+      }
+
+      @Override
+      public boolean waitForVehicleLocation(SensorDataChunk dataChunk) {
+        return false;
+      }
+
+      @Override
+      public List<SensorDataChunk> popChunksWaitingForVehicleLocation(int vehicleId, int frameId) {
+        return null;
+      }
 
+      @Override
+      public boolean pushUnmergedData(int vehicleId, int frameId, int chunkId) {
+        return true;
       }
 
       @Override
@@ -132,15 +149,10 @@ public final class TestUtils {
       }
 
       @Override
-      public FloatBuffer getMergedPointCloud (int frameId) {
+      public MergeTarget getMergeTarget(int frameId) {
         return null;
       }
 
-      @Override
-      public int updateMergedPointCloudOffset (int frameId, int dataSize) {
-        return 0;
-      }
-
       @Override
       public void updatePartitioningDecisions(int frameId) {
 
@@ -156,6 +168,21 @@ public final class TestUtils {
         return false;
       }
 
+      @Override
+      public int getCurrentFrameId() {
+        return 0;
+      }
+
+      @Override
+      public long getNumFramesCompleted() {
+        return 0;
+      }
+
+      @Override
+      public void releaseFrame(int frameId) {
+
+      }
+
       @Override
       public void setNetworkServer(NonBlockingNetworkServer networkServer) {
 
@@ -0,0 +1,68 @@
+package org.emp.vehicle;
+
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for SyntheticSensorData
+ */
+public class SyntheticSensorDataTest extends EmpUnitTest {
+
+    @Test
+    public void testGeneratePointCloud() {
+        float[] pointCloud = SyntheticSensorData.generatePointCloud(6400, 7);
+        assertThat(pointCloud.length).isEqualTo(4 * 6400);
+        assertThat(SyntheticSensorData.generatePointCloud(6400, 7)).isEqualTo(pointCloud);
+        assertThat(SyntheticSensorData.generatePointCloud(6400, 8)).isNotEqualTo(pointCloud);
+
+        int numGroundPoints = 0;
+        for (int i = 0; i < 6400; i++) {
+            float x = pointCloud[4 * i];
+            float y = pointCloud[4 * i + 1];
+            float z = pointCloud[4 * i + 2];
+            float intensity = pointCloud[4 * i + 3];
+            assertThat(Math.sqrt(x * x + y * y + z * z)).isAtMost(81.0);
+            assertThat(intensity).isAtLeast(0f);
+            assertThat(intensity).isLessThan(1f);
+            if (Math.abs(z + SyntheticSensorData.SENSOR_HEIGHT) < 0.1) {
+                numGroundPoints++;
+            }
+        }
+        // The lower beams hit the ground, the others the obstacles
+        assertThat(numGroundPoints).isGreaterThan(6400 / 10);
+        assertThat(numGroundPoints).isLessThan(6400);
+    }
+
+    @Test
+    public void testGeneratePointCloud_invalidNumPoints() {
+        assertThat(SyntheticSensorData.generatePointCloud(0, 1).length).isEqualTo(0);
+        assertThrows(IllegalArgumentException.class, () -> SyntheticSensorData.generatePointCloud(-1, 1));
+    }
+
+    @Test
+    public void testGenerateOxts() {
+        float[] oxts1 = parseOxts(SyntheticSensorData.generateOxts(1, 4, 0));
+        float[] oxts2 = parseOxts(SyntheticSensorData.generateOxts(2, 4, 0));
+        assertThat(oxts1.length).isEqualTo(6);
+        // Vehicles are spaced on the road, heading along it
+        assertThat(Math.hypot(oxts1[0] - oxts2[0], oxts1[1] - oxts2[1])).isGreaterThan(10.0);
+        assertThat((double) oxts1[5]).isWithin(1e-4).of(Math.PI / 2);
+
+        // The vehicle moves forward over time
+        float[] oxtsLater = parseOxts(SyntheticSensorData.generateOxts(1, 4, 0.1));
+        assertThat((double) oxtsLater[1]).isWithin(0.01).of(1.0);
+        assertThat(SyntheticSensorData.generateOxts(1, 4, 0.1)).isEqualTo(SyntheticSensorData.generateOxts(1, 4, 0.1));
+    }
+
+    private static float[] parseOxts(String oxts) {
+        String[] values = oxts.split(" ");
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = Float.parseFloat(values[i]);
+        }
+        return floats;
+    }
+}
@@ -0,0 +1,159 @@
+package org.emp.vehicle;
+
+import org.emp.data.EdgeMessageHandlerImpl;
+import org.emp.data.StatHandler;
+import org.emp.network.NonBlockingNetworkClient;
+import org.emp.utils.EmpUnitTest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for VehiclePipeline
+ */
+public class VehiclePipelineTest extends EmpUnitTest {
+    private static final int VEHICLE_ID = 3;
+    private static final int NUM_POINTS = 20000;
+
+    @Test
+    public void testRun_sendsChunksInOrder() throws Exception {
+        EdgeMessageHandlerImpl edgeMessageHandler = new EdgeMessageHandlerImpl();
+        // An empty mask leaves the whole point cloud in chunk 0, and chunks 1-3 empty
+        signal(edgeMessageHandler, 'M', 0, serialize(new ArrayList<float[]>()));
+        // The edge finishes a frame once its last chunk is sent
+        RecordingNetworkClient networkClient = new RecordingNetworkClient(edgeMessageHandler, 3);
+
+        try (VehiclePipeline pipeline = new VehiclePipeline(VEHICLE_ID, SyntheticSensorData.SENSOR_HEIGHT,
+                loadFrames(3), edgeMessageHandler, networkClient, new StatHandler(), 2)) {
+            pipeline.run(3);
+            assertThat(pipeline.getLatencies().getTotalCount()).isEqualTo(3);
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int frameId = 0; frameId < 3; frameId++) {
+            expected.addAll(Arrays.asList(frameId + "O5", frameId + "P0", frameId + "P1", frameId + "P2", frameId + "P3"));
+        }
+        assertThat(networkClient.getSent()).containsExactlyElementsIn(expected).inOrder();
+        assertThat(networkClient.getNumEmptyChunks()).isEqualTo(9);
+    }
+
+    @Test
+    public void testRun_skipsFramesFinishedByEdge() throws Exception {
+        EdgeMessageHandlerImpl edgeMessageHandler = new EdgeMessageHandlerImpl();
+        signal(edgeMessageHandler, 'D', 1, new byte[0]);
+        RecordingNetworkClient networkClient = new RecordingNetworkClient(edgeMessageHandler, -1);
+
+        try (VehiclePipeline pipeline = new VehiclePipeline(VEHICLE_ID, SyntheticSensorData.SENSOR_HEIGHT,
+                loadFrames(3), edgeMessageHandler, networkClient, new StatHandler(), 2)) {
+            pipeline.run(3);
+            assertThat(pipeline.getLatencies().getTotalCount()).isEqualTo(1);
+        }
+
+        // No mask yet, so the whole point cloud is sent
+        assertThat(networkClient.getSent()).containsExactly("2O5", "2P5").inOrder();
+    }
+
+    @Test
+    public void testRun_rethrowsGroundRemovalFailure() throws Exception {
+        EdgeMessageHandlerImpl edgeMessageHandler = new EdgeMessageHandlerImpl();
+        RecordingNetworkClient networkClient = new RecordingNetworkClient(edgeMessageHandler, -1);
+        BlockingQueue<DataLoader.dataElement> loadedFrames = loadFrames(1);
+        // Ground removal of the second frame fails, as it has no points
+        DataLoader.dataElement badFrame = new DataLoader.dataElement();
+        badFrame.idx = String.format("%06d", 1);
+        loadedFrames.add(badFrame);
+
+        try (VehiclePipeline pipeline = new VehiclePipeline(VEHICLE_ID, SyntheticSensorData.SENSOR_HEIGHT,
+                loadedFrames, edgeMessageHandler, networkClient, new StatHandler(), 2)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> pipeline.run(2));
+            assertThat(e.getCause()).isInstanceOf(NullPointerException.class);
+            assertThat(pipeline.getLatencies().getTotalCount()).isEqualTo(1);
+        }
+    }
+
+    private static BlockingQueue<DataLoader.dataElement> loadFrames(int numFrames) {
+        BlockingQueue<DataLoader.dataElement> loadedFrames = new LinkedBlockingQueue<>();
+        for (int i = 0; i < numFrames; i++) {
+            DataLoader.dataElement frame = new DataLoader.dataElement();
+            frame.idx = String.format("%06d", i);
+            frame.points = SyntheticSensorData.generatePointCloud(NUM_POINTS, i);
+            frame.oxts = SyntheticSensorData.generateOxts(VEHICLE_ID, 4, i * 0.1);
+            loadedFrames.add(frame);
+        }
+        return loadedFrames;
+    }
+
+    private static void signal(EdgeMessageHandlerImpl edgeMessageHandler, char type, int frameId, byte[] payload)
+        throws IOException, ClassNotFoundException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(EdgeMessageHandlerImpl.HEADER_BYTES + payload.length);
+        byteBuffer.putInt(payload.length).putShort((short) frameId).put((byte) type).put(payload);
+        edgeMessageHandler.handle(byteBuffer);
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * A network client that is never run, which records the messages put to it as
+     * "[frame ID][type][chunk ID]"
+     */
+    private static class RecordingNetworkClient extends NonBlockingNetworkClient {
+        private final EdgeMessageHandlerImpl edgeMessageHandler;
+        // Chunk ID after which the edge finishes the frame, or -1 if never
+        private final int lastChunkId;
+        private final List<String> sent = new ArrayList<>();
+        private int numEmptyChunks;
+
+        RecordingNetworkClient(EdgeMessageHandlerImpl edgeMessageHandler, int lastChunkId) throws UnknownHostException {
+            super("127.0.0.1", 0, 0, edgeMessageHandler);
+            this.edgeMessageHandler = edgeMessageHandler;
+            this.lastChunkId = lastChunkId;
+        }
+
+        @Override
+        public synchronized void putDataToSendByteBufferQueue(byte[] data) {
+            ByteBuffer message = ByteBuffer.wrap(data);
+            assertThat(message.getInt(4)).isEqualTo(VEHICLE_ID);
+            int frameId = message.getShort(8);
+            int chunkId = message.getShort(10);
+            char type = (char) message.get(12);
+            sent.add("" + frameId + type + chunkId);
+            if (type == 'P' && message.getInt(0) == 0) {
+                numEmptyChunks++;
+            }
+            if (type == 'P' && chunkId == lastChunkId) {
+                try {
+                    signal(edgeMessageHandler, 'D', frameId, new byte[0]);
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        synchronized List<String> getSent() {
+            return new ArrayList<>(sent);
+        }
+
+        synchronized int getNumEmptyChunks() {
+            return numEmptyChunks;
+        }
+    }
+}